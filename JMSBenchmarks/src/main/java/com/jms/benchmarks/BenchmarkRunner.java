@@ -0,0 +1,61 @@
+package com.jms.benchmarks;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.runner.RunnerException;
+
+//	BenchmarkRunner runs the JMH benchmarks of the examples and writes the results as JSON
+
+public class BenchmarkRunner {
+
+	/*	The benchmarks, one per hot path and each in the package of its example under com.jms.benchmarks. Those sending messages do so
+	 * 	against a broker of their own embedded in the benchmark's JVM (see EmbeddedBroker):
+	 *
+	 * 		ChatBenchmark				-	Chat.writeMessage(), with 0 and 4 other users listening
+	 * 		LoanRoundTripBenchmark		-	a loan request from QBorrower to QLender and the decision back
+	 * 		RateFanOutBenchmark			-	rates published by TLender until 1 or 4 TBorrowers have handled them
+	 * 		MetricsBenchmark			-	the counters and histograms of MessagingMetrics, per message sent and received
+	 * 		RealEstatesBenchmark		-	RealEstatesController.getList() parsing the CSV, and the JSON of the list it returns
+	 *
+	 * 	It takes the same arguments as JMH's own main class (-h lists them), e.g. a regular expression to run only some of the benchmarks:
+	 *
+	 * 		mvn -P benchmarks package
+	 * 		java -jar JMSBenchmarks/target/benchmarks.jar Chat
+	 *
+	 * 	Unless -rf and -rff say otherwise, the results are written to jmh-result.json in JMH's JSON format: one entry per benchmark and
+	 * 	parameter set, with the score, its error and unit, and the raw figures of every iteration. Keep the file of each release (e.g.
+	 * 	-rff results-1.2.json) to compare the next one with it */
+
+	static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws RunnerException, IOException {
+		List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+		if (!hasOption(args, "-rff")) {
+			arguments.add(0, DEFAULT_RESULT_FILE);
+			arguments.add(0, "-rff");
+		}
+		if (!hasOption(args, "-rf")) {
+			arguments.add(0, "json");
+			arguments.add(0, "-rf");
+		}
+		Main.main(arguments.toArray(new String[arguments.size()]));
+	}
+
+	static boolean hasOption(String[] args, String option) {
+		for (String arg : args) {
+			if (arg.equals(option) || arg.startsWith(option + "=")) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
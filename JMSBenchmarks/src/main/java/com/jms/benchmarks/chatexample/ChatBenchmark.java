@@ -0,0 +1,91 @@
+package com.jms.benchmarks.chatexample;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jms.chatexample.Chat;
+import com.jms.testbroker.EmbeddedBroker;
+
+//	ChatBenchmark measures Chat.writeMessage(): creating the text message and publishing it to the chat topic
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatBenchmark {
+
+	/*	Publishing returns once the broker has the message, not once the other users have it. With users listening, the broker delivers every
+	 * 	message to each of them in the same JVM, and once they fall behind, producer flow control slows the writer down to their pace. So
+	 * 	listeners=0 is the cost of the publish itself, listeners=4 what a writer gets in a busy chat room. The listeners count the messages
+	 * 	instead of printing them */
+
+	@Param({ "0", "4" })
+	public int listeners;
+
+	private EmbeddedBroker broker;
+	private Chat writer;
+	private final List<Chat> users = new ArrayList<Chat>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		broker = EmbeddedBroker.start("ChatBenchmark");
+		writer = new Chat("TopicCF", "MyTopic", "writer");
+		for (int i = 0; i < listeners; i++) {
+			users.add(new CountingChat("user" + i));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		writer.close();
+		for (Chat user : users) {
+			user.close();
+		}
+		users.clear();
+		broker.stop();
+	}
+
+	@Benchmark
+	public void writeMessage() throws JMSException {
+		writer.writeMessage("hello");
+	}
+
+	private static class CountingChat extends Chat {
+
+		private final AtomicLong received = new AtomicLong();
+
+		CountingChat(String userName) throws Exception {
+			super("TopicCF", "MyTopic", userName);
+		}
+
+		public void onMessage(Message message) {
+			received.incrementAndGet();
+		}
+	}
+}
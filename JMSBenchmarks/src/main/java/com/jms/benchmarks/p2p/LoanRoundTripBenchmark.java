@@ -0,0 +1,95 @@
+package com.jms.benchmarks.p2p;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jms.p2p.QBorrower;
+import com.jms.p2p.QLender;
+import com.jms.p2p.ReplyDispatcher;
+import com.jms.testbroker.EmbeddedBroker;
+
+//	LoanRoundTripBenchmark measures a loan request from QBorrower to QLender and the decision coming back
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class LoanRoundTripBenchmark {
+
+	/*	One request at a time, the way the interactive QBorrower works: the request is sent, the lender's worker decides and replies, and the
+	 * 	ReplyDispatcher hands the reply to the waiting call. Sampled, so the results carry the percentiles of the round trip and not only
+	 * 	its mean. The bulk mode's throughput depends on its window and is left to BulkLoanSubmitter's own report.
+	 *
+	 * 	A single thread, as a QBorrower's session must only be used by one */
+
+	private EmbeddedBroker broker;
+	private QLender lender;
+	private QBorrower borrower;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		broker = EmbeddedBroker.start("LoanRoundTripBenchmark");
+		lender = new QLender("QueueCF", "LoanRequestQ");
+		borrower = new QBorrower("QueueCF", "LoanRequestQ", "LoanResponseQ");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		borrower.close();
+		lender.close();
+		broker.stop();
+	}
+
+	@Benchmark
+	public Message roundTrip() throws Exception {
+		Reply reply = new Reply();
+		borrower.sendLoanRequest(60000, 200000, QBorrower.REPLY_TIMEOUT_MILLIS, reply);
+		return reply.await();
+	}
+
+	private static class Reply implements ReplyDispatcher.ReplyCallback {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Message message;
+
+		public void onReply(String correlationId, Message reply) {
+			message = reply;
+			done.countDown();
+		}
+
+		public void onTimeout(String correlationId) {
+			done.countDown();
+		}
+
+		Message await() throws InterruptedException {
+			if (!done.await(QBorrower.REPLY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) || message == null) {
+				throw new IllegalStateException("No reply from the lender within " + QBorrower.REPLY_TIMEOUT_MILLIS + " ms");
+			}
+			return message;
+		}
+	}
+}
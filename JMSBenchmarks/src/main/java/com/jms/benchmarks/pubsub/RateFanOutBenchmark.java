@@ -0,0 +1,119 @@
+package com.jms.benchmarks.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jms.pubsub.HandoffListener;
+import com.jms.pubsub.RateFeed;
+import com.jms.pubsub.RateSource;
+import com.jms.pubsub.RateTick;
+import com.jms.pubsub.TBorrower;
+import com.jms.pubsub.TLender;
+import com.jms.testbroker.EmbeddedBroker;
+
+//	RateFanOutBenchmark measures rates published by TLender until every TBorrower has handled them
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(RateFanOutBenchmark.TICKS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class RateFanOutBenchmark {
+
+	/*	Each invocation publishes TICKS generated rates through the lender's RateFeed, batched into messages as the feed does (see
+	 * 	RateRecords), then waits until every borrower has handled every message. The score is in rates per second, end to end: publishing,
+	 * 	the broker's fan-out to each borrower, and the borrowers decoding and deciding on every rate.
+	 *
+	 * 	The borrowers are the plain kind, subscribed to every rate without conflation, a selector or a store */
+
+	static final int TICKS = 1000;
+
+	@Param({ "1", "4" })
+	public int borrowers;
+
+	private EmbeddedBroker broker;
+	private TLender lender;
+	private final List<TBorrower> subscribed = new ArrayList<TBorrower>();
+	private RefillableRateSource rateSource;
+	private RateFeed rateFeed;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		broker = EmbeddedBroker.start("RateFanOutBenchmark");
+		//	The lender first, so it answers the snapshot request every borrower makes when it subscribes
+		lender = new TLender("TopicCF", "RateTopic");
+		for (int i = 0; i < borrowers; i++) {
+			subscribed.add(new TBorrower("TopicCF", "RateTopic", "6.0"));
+		}
+		rateSource = new RefillableRateSource();
+		rateFeed = lender.createFeed(rateSource);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		for (TBorrower borrower : subscribed) {
+			borrower.close();
+		}
+		subscribed.clear();
+		lender.close();
+		broker.stop();
+	}
+
+	@Benchmark
+	public long publishAndDeliver() throws Exception {
+		rateSource.refill(TICKS);
+		long rates = rateFeed.run(0, 0);
+		long messages = rateFeed.getMessages();
+		for (TBorrower borrower : subscribed) {
+			HandoffListener handoffListener = borrower.getHandoffListener();
+			while (handoffListener.getHandled() + handoffListener.getFailed() < messages) {
+				Thread.yield();
+			}
+		}
+		return rates;
+	}
+
+	//	The generated random walk (see RateSource.open()), a given number of ticks at a time
+	private static class RefillableRateSource extends RateSource {
+
+		private final RateSource generated = RateSource.open("gen");
+		private int remaining;
+
+		void refill(int ticks) {
+			remaining = ticks;
+		}
+
+		RefillableRateSource() throws IOException {
+		}
+
+		public boolean next(RateTick tick) throws IOException {
+			return remaining-- > 0 && generated.next(tick);
+		}
+	}
+}
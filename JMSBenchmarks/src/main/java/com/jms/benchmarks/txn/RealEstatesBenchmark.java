@@ -0,0 +1,56 @@
+package com.jms.benchmarks.txn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jmr.txn.bean.RealEstatesBean;
+import com.jmr.txn.controller.RealEstatesController;
+
+/**
+ * RealEstatesBenchmark measures the two halves of a GET /realEstateTxns: RealEstatesController.getList() reading and parsing
+ * realestatetransactions.csv into RealEstatesBeans, and the list written as JSON, as Spring's Jackson message converter does
+ * with the controller's result. No broker is involved.
+ * @author Kevin.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RealEstatesBenchmark {
+
+	private ObjectMapper objectMapper;
+	private ArrayList<RealEstatesBean> realEstateTxnList;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		objectMapper = new ObjectMapper();
+		realEstateTxnList = RealEstatesController.getList();
+	}
+
+	@Benchmark
+	public ArrayList<RealEstatesBean> parseCsv() throws IOException {
+		return RealEstatesController.getList();
+	}
+
+	@Benchmark
+	public byte[] serializeJson() throws JsonProcessingException {
+		return objectMapper.writeValueAsBytes(realEstateTxnList);
+	}
+}
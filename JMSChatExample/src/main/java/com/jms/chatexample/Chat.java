@@ -5,11 +5,18 @@ import java.io.*;
 import javax.jms.*;
 import javax.naming.*;
 
+import com.jms.metrics.MessagingMetrics;
+import com.jms.metrics.MetricsHttpServer;
+import com.jms.metrics.MetricsRegistry;
+
 //Program to illustrate JMS pub/sub messaging model. 
 //Producer/Publisher can send a message to many consumers/subscribers by delivering the message
 //to a single topic*/
 public class Chat implements MessageListener {
 
+	//Messages published and received by all Chat clients in this JVM, see MetricsRegistry
+	final static MessagingMetrics metrics = MetricsRegistry.get("Chat");
+
 	//second commit
 	private TopicSession pubSession;
 	private TopicPublisher publisher;
@@ -54,19 +61,30 @@ public class Chat implements MessageListener {
 	
 	//Receive messages from the Topic subscriber
 	public void onMessage(Message message) {
+		long start = System.nanoTime();
 		try {
+			metrics.received(message.getJMSTimestamp());
 			TextMessage textMessage = (TextMessage)message;
 			System.out.println(textMessage.getText());
+			metrics.handled(start);
 		} catch(JMSException ex) {
+			metrics.failed();
 			ex.printStackTrace();
 		}
 	}
 	
 	//Create and send message using publisher
-	protected void writeMessage(String text) throws JMSException{
+	public void writeMessage(String text) throws JMSException{
 		TextMessage message = pubSession.createTextMessage();
 		message.setText(userName + "\t:\t" + text);
-		publisher.publish(message);
+		long start = System.nanoTime();
+		try {
+			publisher.publish(message);
+		} catch(JMSException ex) {
+			metrics.failed();
+			throw ex;
+		}
+		metrics.sent(start);
 	}
 	
 	//Clone the JMS connection
@@ -83,6 +101,8 @@ public class Chat implements MessageListener {
 			//args[0] = topicFactory; args[1] = topicName; args[2] = userName;
 			Chat chat = new Chat(args[0], args[1], args[2]);
 			
+			MetricsHttpServer.startIfConfigured();
+			
 			//Read from command line
 			BufferedReader commandLine = new BufferedReader(new InputStreamReader(System.in));
 			
@@ -0,0 +1,110 @@
+package com.jms.chatexample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import com.jms.testbroker.BrokerTestCase;
+
+/**
+ * Integration test for Chat, against an embedded broker.
+ */
+public class ChatTest extends BrokerTestCase {
+
+	private static final int FAN_OUT_MESSAGES = 5000;
+	private static final int FAN_OUT_READERS = 4;
+
+	private final List<RecordingChat> chats = new ArrayList<RecordingChat>();
+
+	protected void tearDown() throws Exception {
+		for (RecordingChat chat : chats) {
+			chat.close();
+		}
+		super.tearDown();
+	}
+
+	public void testDeliversToEveryoneButTheWriter() throws Exception {
+		RecordingChat alice = join("alice");
+		final RecordingChat bob = join("bob");
+		final RecordingChat carol = join("carol");
+
+		alice.writeMessage("hello");
+		await("hello delivered", new Condition() {
+			public boolean isMet() {
+				return bob.received.size() == 1 && carol.received.size() == 1;
+			}
+		});
+		assertEquals("alice\t:\thello", bob.received.get(0));
+		assertEquals("alice\t:\thello", carol.received.get(0));
+
+		//	noLocal: alice's own message is not delivered back to her, and bob's reply is
+		bob.writeMessage("hi");
+		await("reply delivered", new Condition() {
+			public boolean isMet() {
+				return carol.received.size() == 2;
+			}
+		});
+		assertEquals(Collections.singletonList("bob\t:\thi"), alice.received);
+	}
+
+	public void testFanOut() throws Exception {
+		RecordingChat writer = join("writer");
+		final List<RecordingChat> readers = new ArrayList<RecordingChat>();
+		for (int i = 0; i < FAN_OUT_READERS; i++) {
+			readers.add(join("reader" + i));
+		}
+
+		long sent = Chat.metrics.getSent();
+		long start = System.nanoTime();
+		for (int i = 0; i < FAN_OUT_MESSAGES; i++) {
+			writer.writeMessage("message " + i);
+		}
+		await("all messages delivered", new Condition() {
+			public boolean isMet() {
+				for (RecordingChat reader : readers) {
+					if (reader.count.get() < FAN_OUT_MESSAGES) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+		report(FAN_OUT_MESSAGES * FAN_OUT_READERS, System.nanoTime() - start);
+		for (RecordingChat reader : readers) {
+			assertEquals(FAN_OUT_MESSAGES, reader.count.get());
+		}
+		assertEquals(FAN_OUT_MESSAGES, Chat.metrics.getSent() - sent);
+	}
+
+	private RecordingChat join(String userName) throws Exception {
+		RecordingChat chat = new RecordingChat(userName);
+		chats.add(chat);
+		return chat;
+	}
+
+	//	A chat that records the messages it receives instead of printing them. Only the first 100 are kept, the rest are only counted
+	private static class RecordingChat extends Chat {
+
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		final AtomicInteger count = new AtomicInteger();
+
+		RecordingChat(String userName) throws Exception {
+			super("TopicCF", "MyTopic", userName);
+		}
+
+		public void onMessage(Message message) {
+			try {
+				if (count.incrementAndGet() <= 100) {
+					received.add(((TextMessage) message).getText());
+				}
+			} catch (JMSException exc) {
+				throw new IllegalStateException(exc);
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.jms.metrics;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//	Histogram counts durations in nanoseconds from many threads at once, without locks, and answers percentile queries
+
+public class Histogram {
+
+	/*	The buckets are log-linear: every power of two is split into 16 equal sub-buckets, so a value
+	 * 	is known to within about 6% whatever its magnitude, from nanoseconds to hours, in under 1000 counters. Values below 16 get a bucket each.
+	 *
+	 * 	record() costs one atomic increment of the value's bucket, one add to a StripedCounter for the sum, and a read of the maximum - plus a
+	 * 	compare-and-set in the rare case that the maximum moves. There is no count of its own to contend for: getCount() sums the buckets,
+	 * 	which only the readers pay for. Threads recording similar values still increment the same bucket; the histogram is lock-free, not
+	 * 	contention-free.
+	 *
+	 * 	The getters read the counters while they are being updated. A percentile is that of some state the histogram was in during the read,
+	 * 	which is good enough to report on */
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	//	Negative values (a clock step between two hosts) are recorded as 0
+	public void record(long nanos) {
+		long value = nanos < 0 ? 0 : nanos;
+		counts.getAndIncrement(bucketOf(value));
+		sum.add(value);
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : sum.get() / count;
+	}
+
+	//	The value below which the given percentage (0 - 100) of the recorded values fall, as the upper bound of its bucket. 0 when empty
+	public long getPercentile(double percent) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percent / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		sum.reset();
+		max.set(0);
+	}
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+	}
+
+	//	In microseconds, which is as fine as the log lines that print it need
+	public String toString() {
+		return "count=" + getCount() + " mean=" + micros(getMean()) + "us p50=" + micros(getPercentile(50)) + "us p99="
+				+ micros(getPercentile(99)) + "us max=" + micros(getMax()) + "us";
+	}
+
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+}
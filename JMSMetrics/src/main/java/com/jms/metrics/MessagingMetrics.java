@@ -0,0 +1,159 @@
+package com.jms.metrics;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.concurrent.TimeUnit;
+
+//	MessagingMetrics counts what one component (Chat, QBorrower, an MDB...) sends and receives, and how long that takes
+
+public class MessagingMetrics implements MessagingMetricsMBean {
+
+	/*	One instance per component and JVM, from MetricsRegistry.get(), shared by every instance of the component: two QBorrowers in one JVM
+	 * 	add up. The component calls:
+	 *
+	 * 		sent(startNanos)		-	after a send or publish returned, with System.nanoTime() from before it: counts the message and records
+	 * 									the send latency
+	 * 		received(sentMillis)	-	when a message arrives, with its JMSTimestamp: counts it and records the end-to-end latency from the
+	 * 									producer's clock to ours. A timestamp of 0 (the producer disabled timestamps) is not recorded
+	 * 		handled(startNanos)		-	after the message was processed, with System.nanoTime() from before: records the handler time
+	 * 		failed()				-	for a message that could not be sent or processed
+	 * 		inFlight(delta)			-	for messages the component has taken on and not finished with: requests awaiting their reply, messages
+	 * 									queued for a worker thread
+	 *
+	 * 	Each of these is a StripedCounter add and at most one Histogram record, well under 100 ns per message on current hardware (see
+	 * 	MetricsBenchmark in JMSBenchmarks). The end-to-end latency compares the clocks of two hosts when producer and consumer run on different
+	 * 	ones, so it is only as good as their clock synchronisation; negative values count as 0
+	 *
+	 * 	There is no reset. MetricsRegistry serves the counts as Prometheus _total counters, which must only go up for as long as the process
+	 * 	runs: a scraper takes a drop for a restart and its rates jump. Compare two readings instead */
+
+	private final String component;
+
+	private final StripedCounter sent = new StripedCounter();
+	private final StripedCounter received = new StripedCounter();
+	private final StripedCounter errors = new StripedCounter();
+	private final StripedCounter inFlight = new StripedCounter();
+	private final Histogram sendLatency = new Histogram();
+	private final Histogram endToEnd = new Histogram();
+	private final Histogram handlerTime = new Histogram();
+
+	MessagingMetrics(String component) {
+		this.component = component;
+	}
+
+	public void sent(long startNanos) {
+		sendLatency.record(System.nanoTime() - startNanos);
+		sent.increment();
+	}
+
+	public void received(long sentMillis) {
+		received.increment();
+		if (sentMillis > 0) {
+			endToEnd.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - sentMillis));
+		}
+	}
+
+	public void handled(long startNanos) {
+		handlerTime.record(System.nanoTime() - startNanos);
+	}
+
+	public void failed() {
+		errors.increment();
+	}
+
+	public void inFlight(long delta) {
+		inFlight.add(delta);
+	}
+
+	public String getComponent() {
+		return component;
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	public long getReceived() {
+		return received.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getInFlight() {
+		return inFlight.get();
+	}
+
+	public Histogram getSendLatency() {
+		return sendLatency;
+	}
+
+	public Histogram getEndToEnd() {
+		return endToEnd;
+	}
+
+	public Histogram getHandlerTime() {
+		return handlerTime;
+	}
+
+	public long getSendLatencyMeanMicros() {
+		return micros(sendLatency.getMean());
+	}
+
+	public long getSendLatencyP50Micros() {
+		return micros(sendLatency.getPercentile(50));
+	}
+
+	public long getSendLatencyP99Micros() {
+		return micros(sendLatency.getPercentile(99));
+	}
+
+	public long getSendLatencyMaxMicros() {
+		return micros(sendLatency.getMax());
+	}
+
+	public long getEndToEndMeanMicros() {
+		return micros(endToEnd.getMean());
+	}
+
+	public long getEndToEndP50Micros() {
+		return micros(endToEnd.getPercentile(50));
+	}
+
+	public long getEndToEndP99Micros() {
+		return micros(endToEnd.getPercentile(99));
+	}
+
+	public long getEndToEndMaxMicros() {
+		return micros(endToEnd.getMax());
+	}
+
+	public long getHandlerTimeMeanMicros() {
+		return micros(handlerTime.getMean());
+	}
+
+	public long getHandlerTimeP50Micros() {
+		return micros(handlerTime.getPercentile(50));
+	}
+
+	public long getHandlerTimeP99Micros() {
+		return micros(handlerTime.getPercentile(99));
+	}
+
+	public long getHandlerTimeMaxMicros() {
+		return micros(handlerTime.getMax());
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	public String toString() {
+		return component + ": sent=" + getSent() + " received=" + getReceived() + " errors=" + getErrors() + " inFlight=" + getInFlight()
+				+ "; send " + sendLatency + "; end to end " + endToEnd + "; handler " + handlerTime;
+	}
+}
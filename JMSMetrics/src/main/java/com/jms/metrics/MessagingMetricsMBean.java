@@ -0,0 +1,45 @@
+package com.jms.metrics;
+
+/**
+ * @author Kevin
+ *
+ */
+
+//	The JMX view of a MessagingMetrics: counts, and the latencies in microseconds
+
+public interface MessagingMetricsMBean {
+
+	String getComponent();
+
+	long getSent();
+
+	long getReceived();
+
+	long getErrors();
+
+	long getInFlight();
+
+	long getSendLatencyMeanMicros();
+
+	long getSendLatencyP50Micros();
+
+	long getSendLatencyP99Micros();
+
+	long getSendLatencyMaxMicros();
+
+	long getEndToEndMeanMicros();
+
+	long getEndToEndP50Micros();
+
+	long getEndToEndP99Micros();
+
+	long getEndToEndMaxMicros();
+
+	long getHandlerTimeMeanMicros();
+
+	long getHandlerTimeP50Micros();
+
+	long getHandlerTimeP99Micros();
+
+	long getHandlerTimeMaxMicros();
+}
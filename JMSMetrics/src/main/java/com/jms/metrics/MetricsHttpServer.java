@@ -0,0 +1,86 @@
+package com.jms.metrics;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+//	MetricsHttpServer serves MetricsRegistry.writeText() at http://host:port/metrics, for the examples that run outside a server
+
+public class MetricsHttpServer {
+
+	/*	The examples start it from their main() method when they are run with -Djms.metrics.port=[port], e.g.
+	 *
+	 * 		java -Djms.metrics.port=9404 com.jms.p2p.QLender QueueCF LoanRequestQ
+	 * 		curl http://localhost:9404/metrics
+	 *
+	 * 	It listens on the loopback interface only, so the metrics are not open to the network by default. A scraper on another host needs
+	 * 	-Djms.metrics.host=[address] as well, with the address of the interface to listen on, or 0.0.0.0 for all of them.
+	 *
+	 * 	It is the HTTP server built into the JDK, answering one request at a time, which is plenty for a scraper polling every few seconds.
+	 * 	Its thread is not a daemon thread: the examples end with System.exit(), which stops it too */
+
+	public static final String PORT_PROPERTY = "jms.metrics.port";
+	public static final String HOST_PROPERTY = "jms.metrics.host";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final Logger logger = Logger.getLogger(MetricsHttpServer.class.getName());
+
+	private MetricsHttpServer() {
+	}
+
+	public static HttpServer start(int port) throws IOException {
+		return start(InetAddress.getLoopbackAddress(), port);
+	}
+
+	public static HttpServer start(InetAddress address, int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					byte[] body = MetricsRegistry.toText().getBytes(UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	//	Starts the server on the port of the jms.metrics.port system property, and the address of jms.metrics.host if that is set too. Does
+	//	nothing when the port is not set
+	public static void startIfConfigured() {
+		Integer port = Integer.getInteger(PORT_PROPERTY);
+		if (port == null) {
+			return;
+		}
+		String host = System.getProperty(HOST_PROPERTY);
+		try {
+			InetAddress address = host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+			start(address, port);
+			logger.info("Serving metrics on http://" + (host == null ? "localhost" : host) + ":" + port + "/metrics");
+		} catch (IOException exc) {
+			//	The example runs on without the endpoint, the metrics are still in JMX
+			logger.log(Level.WARNING, "Could not serve metrics on port " + port, exc);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.jms.metrics;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+//	MetricsRegistry holds the MessagingMetrics of every component in the JVM, registers them with JMX and writes them out as text
+
+public final class MetricsRegistry {
+
+	/*	Every component gets its metrics once, into a static field, e.g.
+	 *
+	 * 		final static MessagingMetrics metrics = MetricsRegistry.get("QBorrower");
+	 *
+	 * 	and they are registered as the MBean com.jms.metrics:type=MessagingMetrics,name=QBorrower in the platform MBean server, where
+	 * 	jconsole or any JMX client finds them. An MBean of the same name that is registered already (left behind by an earlier deployment of
+	 * 	helloworld-mdb) is replaced.
+	 *
+	 * 	writeText() writes all of them in the Prometheus text format, which MetricsHttpServer serves for the standalone examples and the
+	 * 	HelloWorldMDBMetrics servlet for helloworld-mdb: one line per counter, and for each latency its 50th, 90th, 99th and 99.9th
+	 * 	percentiles, sum and count, in seconds, labelled with the component */
+
+	public static final String DOMAIN = "com.jms.metrics";
+
+	private static final String TYPE = "MessagingMetrics";
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private static final ConcurrentMap<String, MessagingMetrics> metrics = new ConcurrentSkipListMap<String, MessagingMetrics>();
+
+	private static final Logger logger = Logger.getLogger(MetricsRegistry.class.getName());
+
+	private MetricsRegistry() {
+	}
+
+	//	The metrics of the component, created and registered with JMX on first use. Names are letters, digits, '.', '_' and '-'
+	public static MessagingMetrics get(String component) {
+		MessagingMetrics existing = metrics.get(component);
+		if (existing != null) {
+			return existing;
+		}
+		if (!component.matches("[A-Za-z0-9._-]+")) {
+			throw new IllegalArgumentException("Invalid component name: " + component);
+		}
+		MessagingMetrics created = new MessagingMetrics(component);
+		existing = metrics.putIfAbsent(component, created);
+		if (existing != null) {
+			return existing;
+		}
+		register(created);
+		return created;
+	}
+
+	//	All metrics, in the order of the component names
+	public static Collection<MessagingMetrics> getAll() {
+		return Collections.unmodifiableCollection(metrics.values());
+	}
+
+	public static ObjectName objectName(String component) throws JMException {
+		return new ObjectName(DOMAIN + ":type=" + TYPE + ",name=" + component);
+	}
+
+	private static void register(MessagingMetrics messagingMetrics) {
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = objectName(messagingMetrics.getComponent());
+			if (mBeanServer.isRegistered(name)) {
+				mBeanServer.unregisterMBean(name);
+			}
+			mBeanServer.registerMBean(messagingMetrics, name);
+		} catch (JMException exc) {
+			//	The metrics still count and are written out as text, they are only missing from JMX
+			logger.log(Level.WARNING, "Could not register the metrics of " + messagingMetrics.getComponent() + " with JMX", exc);
+		}
+	}
+
+	//	Takes the MBeans out of the MBean server again, e.g. when helloworld-mdb is undeployed. The metrics themselves carry on counting
+	public static void unregisterAll() {
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		for (String component : metrics.keySet()) {
+			try {
+				ObjectName name = objectName(component);
+				if (mBeanServer.isRegistered(name)) {
+					mBeanServer.unregisterMBean(name);
+				}
+			} catch (JMException exc) {
+				logger.log(Level.WARNING, "Could not unregister the metrics of " + component, exc);
+			}
+		}
+	}
+
+	public static String toText() {
+		StringBuilder text = new StringBuilder();
+		try {
+			writeText(text);
+		} catch (IOException exc) {
+			//	A StringBuilder does not throw
+			throw new IllegalStateException(exc);
+		}
+		return text.toString();
+	}
+
+	public static void writeText(Appendable out) throws IOException {
+		Collection<MessagingMetrics> all = getAll();
+
+		family(out, "jms_messages_sent_total", "counter", "Messages sent or published");
+		for (MessagingMetrics m : all) {
+			sample(out, "jms_messages_sent_total", m, null, m.getSent());
+		}
+		family(out, "jms_messages_received_total", "counter", "Messages received");
+		for (MessagingMetrics m : all) {
+			sample(out, "jms_messages_received_total", m, null, m.getReceived());
+		}
+		family(out, "jms_message_errors_total", "counter", "Messages that could not be sent or processed");
+		for (MessagingMetrics m : all) {
+			sample(out, "jms_message_errors_total", m, null, m.getErrors());
+		}
+		family(out, "jms_messages_in_flight", "gauge", "Messages taken on and not finished with yet");
+		for (MessagingMetrics m : all) {
+			sample(out, "jms_messages_in_flight", m, null, m.getInFlight());
+		}
+
+		family(out, "jms_send_latency_seconds", "summary", "Time a send or publish takes");
+		for (MessagingMetrics m : all) {
+			summary(out, "jms_send_latency_seconds", m, m.getSendLatency());
+		}
+		family(out, "jms_end_to_end_latency_seconds", "summary", "Time from the JMSTimestamp of a message to its receipt");
+		for (MessagingMetrics m : all) {
+			summary(out, "jms_end_to_end_latency_seconds", m, m.getEndToEnd());
+		}
+		family(out, "jms_handler_seconds", "summary", "Time taken to process a received message");
+		for (MessagingMetrics m : all) {
+			summary(out, "jms_handler_seconds", m, m.getHandlerTime());
+		}
+	}
+
+	private static void family(Appendable out, String name, String type, String help) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void summary(Appendable out, String name, MessagingMetrics m, Histogram histogram) throws IOException {
+		for (double quantile : QUANTILES) {
+			sample(out, name, m, "quantile=\"" + quantile + "\"", seconds(histogram.getPercentile(quantile * 100)));
+		}
+		sample(out, name + "_sum", m, null, seconds(histogram.getSum()));
+		sample(out, name + "_count", m, null, String.valueOf(histogram.getCount()));
+	}
+
+	private static void sample(Appendable out, String name, MessagingMetrics m, String label, long value) throws IOException {
+		sample(out, name, m, label, String.valueOf(value));
+	}
+
+	private static void sample(Appendable out, String name, MessagingMetrics m, String label, String value) throws IOException {
+		out.append(name).append("{component=\"").append(m.getComponent()).append('"');
+		if (label != null) {
+			out.append(',').append(label);
+		}
+		out.append("} ").append(value).append('\n');
+	}
+
+	private static String seconds(long nanos) {
+		return String.valueOf(nanos / 1e9);
+	}
+}
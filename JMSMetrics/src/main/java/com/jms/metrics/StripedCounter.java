@@ -0,0 +1,73 @@
+package com.jms.metrics;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//	StripedCounter is a counter that many threads can add to at once without contending for one memory location
+
+public class StripedCounter {
+
+	/*	A single AtomicLong incremented by every listener and sender thread makes them all write the same cache line, which then moves from
+	 * 	core to core on every increment - the more threads, the slower each increment. StripedCounter keeps a cell per stripe instead: a thread
+	 * 	adds to the cell its ID hashes to, and get() sums the cells. Threads that share a cell still count correctly, they only contend.
+	 *
+	 * 	There are twice as many stripes as processors (a power of two, at most MAX_STRIPES), and the cells are PADDING longs apart, so no two
+	 * 	cells share a cache line, nor the pair of lines some processors fetch together.
+	 *
+	 * 	This is what java.util.concurrent.atomic.LongAdder does from Java 8 on. helloworld-mdb is built for Java 7, so the examples use this.
+	 * 	get() is not atomic: a sum taken while other threads add is the value at some point during the call */
+
+	private static final int PADDING = 16;
+	private static final int MAX_STRIPES = 64;
+	static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	public void increment() {
+		cells.getAndIncrement(cell());
+	}
+
+	public void decrement() {
+		cells.getAndDecrement(cell());
+	}
+
+	public void add(long delta) {
+		cells.getAndAdd(cell(), delta);
+	}
+
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	public void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			cells.set(i * PADDING, 0);
+		}
+	}
+
+	//	Thread IDs are handed out in sequence, the multiplication spreads neighbouring IDs over the stripes
+	private static int cell() {
+		long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return ((int) (hash >>> 32) & (STRIPES - 1)) * PADDING;
+	}
+
+	static int stripes(int processors) {
+		int stripes = 1;
+		while (stripes < 2 * processors && stripes < MAX_STRIPES) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	public String toString() {
+		return String.valueOf(get());
+	}
+}
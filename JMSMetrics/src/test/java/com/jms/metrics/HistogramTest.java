@@ -0,0 +1,71 @@
+package com.jms.metrics;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for Histogram and StripedCounter.
+ */
+public class HistogramTest extends TestCase {
+
+	public void testBucketsHoldTheirValues() {
+		for (long value = 0; value < 1L << 40; value = value * 3 / 2 + 1) {
+			int bucket = Histogram.bucketOf(value);
+			assertTrue(value + " above its bucket", value <= Histogram.upperBoundOf(bucket));
+			assertTrue(value + " below its bucket", bucket == 0 || value > Histogram.upperBoundOf(bucket - 1));
+		}
+		assertTrue(Histogram.bucketOf(Long.MAX_VALUE) < (64 - 4) * 16);
+	}
+
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+		for (int micros = 1; micros <= 1000; micros++) {
+			histogram.record(micros * 1000L);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500500000L, histogram.getSum());
+		assertEquals(1000000L, histogram.getMax());
+		assertWithin(500000, histogram.getPercentile(50));
+		assertWithin(990000, histogram.getPercentile(99));
+		assertEquals(1000000L, histogram.getPercentile(100));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+
+	public void testCountsFromManyThreads() throws Exception {
+		final int threads = 8;
+		final int perThread = 100000;
+		final Histogram histogram = new Histogram();
+		final StripedCounter counter = new StripedCounter();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			new Thread() {
+				public void run() {
+					for (int j = 0; j < perThread; j++) {
+						histogram.record(j);
+						counter.increment();
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		assertEquals(threads * perThread, counter.get());
+		assertEquals(threads * perThread, histogram.getCount());
+		assertEquals(perThread - 1, histogram.getMax());
+	}
+
+	public void testStripesArePowersOfTwo() {
+		assertEquals(2, StripedCounter.stripes(1));
+		assertEquals(16, StripedCounter.stripes(6));
+		assertEquals(64, StripedCounter.stripes(128));
+	}
+
+	//	Percentiles are bucket bounds, within about 6% above the exact value
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("expected about " + expected + " but was " + actual, actual >= expected && actual <= expected * 1.07);
+	}
+}
@@ -0,0 +1,74 @@
+package com.jms.metrics;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.Scanner;
+
+import javax.management.MBeanServer;
+
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for MetricsRegistry.
+ */
+public class MetricsRegistryTest extends TestCase {
+
+	public void testOneInstancePerComponent() {
+		assertSame(MetricsRegistry.get("SameComponent"), MetricsRegistry.get("SameComponent"));
+		try {
+			MetricsRegistry.get("no spaces");
+			fail("Component name with a space accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	public void testRegistersWithJmx() throws Exception {
+		MessagingMetrics metrics = MetricsRegistry.get("JmxComponent");
+		metrics.sent(System.nanoTime());
+		metrics.sent(System.nanoTime());
+		metrics.inFlight(3);
+
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		assertEquals(2L, mBeanServer.getAttribute(MetricsRegistry.objectName("JmxComponent"), "Sent"));
+		assertEquals(3L, mBeanServer.getAttribute(MetricsRegistry.objectName("JmxComponent"), "InFlight"));
+
+		MetricsRegistry.unregisterAll();
+		assertFalse(mBeanServer.isRegistered(MetricsRegistry.objectName("JmxComponent")));
+	}
+
+	public void testWritesText() {
+		MessagingMetrics metrics = MetricsRegistry.get("TextComponent");
+		metrics.received(System.currentTimeMillis());
+		metrics.handled(System.nanoTime() - 2000000);
+		metrics.failed();
+
+		String text = MetricsRegistry.toText();
+		assertTrue(text, text.contains("# TYPE jms_messages_received_total counter\n"));
+		assertTrue(text, text.contains("jms_messages_received_total{component=\"TextComponent\"} 1\n"));
+		assertTrue(text, text.contains("jms_message_errors_total{component=\"TextComponent\"} 1\n"));
+		assertTrue(text, text.contains("jms_handler_seconds{component=\"TextComponent\",quantile=\"0.5\"} 0.002"));
+		assertTrue(text, text.contains("jms_handler_seconds_count{component=\"TextComponent\"} 1\n"));
+		assertEquals(1, text.split("# TYPE jms_handler_seconds summary").length - 1);
+	}
+
+	public void testServesTextOnLoopback() throws Exception {
+		MetricsRegistry.get("HttpComponent").sent(System.nanoTime());
+
+		HttpServer server = MetricsHttpServer.start(0);
+		try {
+			assertTrue(server.getAddress().getAddress().isLoopbackAddress());
+			InputStream in = new URL("http://localhost:" + server.getAddress().getPort() + "/metrics").openStream();
+			try {
+				String text = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+				assertTrue(text, text.contains("jms_messages_sent_total{component=\"HttpComponent\"} 1\n"));
+			} finally {
+				in.close();
+			}
+		} finally {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package com.jms.p2p;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Kevin
+ *	BulkLoanSubmitter streams loan applications from a CSV file through QBorrower and writes the lender's decisions to a results file
+ */
+public class BulkLoanSubmitter {
+
+	/*	The interactive QBorrower sends one request and blocks until the answer comes back, so a file with millions of rows would take millions
+	 * 	of round trips end to end. In bulk mode the requests are pipelined instead:
+	 *
+	 * 		-	The input file is read line by line, never held in memory
+	 * 		-	At most maxInFlight requests are outstanding at any time. A Semaphore permit is taken before each send and given back when the
+	 * 			decision (or a timeout) comes in, so a slow lender throttles the reader instead of flooding the request queue
+	 * 		-	Decisions are collected asynchronously by the ReplyDispatcher and appended to the results file in the order they arrive. Every
+	 * 			result row carries the line number of the application it belongs to
+	 * 		-	A reporter thread logs progress and throughput every few seconds and times out requests that were never answered
+	 *
+	 * 	Input rows have the same format as the interactive prompt: "salary, loanAmount". A first line that does not start with a number is
+	 * 	treated as a header and skipped.
+	 *
+	 * 	Result rows are: line,salary,loanAmount,decision,latencyMillis where decision is the lender's answer, TIMEOUT or INVALID */
+
+	static final int DEFAULT_MAX_IN_FLIGHT = 500;
+	private static final long REPORT_INTERVAL_SECONDS = 5;
+
+	private final QBorrower qBorrower;
+	private final int maxInFlight;
+	private final long timeoutMillis;
+	private final Semaphore window;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+
+	private Writer results;
+
+	final static Logger logger = Logger.getLogger(BulkLoanSubmitter.class);
+
+	/**
+	 * @param qBorrower		initialized borrower whose sender and reply dispatcher are used
+	 * @param maxInFlight	maximum number of requests waiting for a decision at any time
+	 * @param timeoutMillis	time after which an unanswered request is written out as TIMEOUT
+	 */
+	public BulkLoanSubmitter(QBorrower qBorrower, int maxInFlight, long timeoutMillis) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+		}
+		this.qBorrower = qBorrower;
+		this.maxInFlight = maxInFlight;
+		this.timeoutMillis = timeoutMillis;
+		this.window = new Semaphore(maxInFlight);
+	}
+
+	public void run(File inputFile, File resultsFile) throws IOException, JMSException, InterruptedException {
+		final long startNanos = System.nanoTime();
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		results = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(resultsFile), StandardCharsets.UTF_8), 1 << 16);
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), StandardCharsets.UTF_8), 1 << 16)) {
+			reporter.scheduleAtFixedRate(new Runnable() {
+				private long lastCompleted;
+				private long lastNanos = startNanos;
+
+				public void run() {
+					qBorrower.getReplyDispatcher().expireOverdue(System.currentTimeMillis());
+					long now = System.nanoTime();
+					long done = completed.get();
+					logger.info(progress(done, (done - lastCompleted) * 1e9 / (now - lastNanos)));
+					lastCompleted = done;
+					lastNanos = now;
+				}
+			}, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+			String line;
+			long lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().length() == 0 || (lineNumber == 1 && !startsWithNumber(line))) {
+					continue;
+				}
+				submit(lineNumber, line);
+			}
+
+			//	Wait for the tail of the window to drain - once every permit is back, every request has been answered or timed out
+			while (!window.tryAcquire(maxInFlight, 1, TimeUnit.SECONDS)) {
+				qBorrower.getReplyDispatcher().expireOverdue(System.currentTimeMillis());
+			}
+		} finally {
+			reporter.shutdownNow();
+			synchronized (this) {
+				results.close();
+			}
+		}
+
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		logger.info("Bulk submission finished in " + String.format("%.1f", seconds) + " s: " + progress(completed.get(), completed.get() / seconds));
+	}
+
+	private void submit(final long lineNumber, String line) throws JMSException, InterruptedException, IOException {
+		//	A single split on the comma is all the format needs - no StringTokenizer or regex per row
+		int comma = line.indexOf(',');
+		final double salary;
+		final double loanAmount;
+		try {
+			salary = Double.parseDouble(line.substring(0, comma).trim());
+			loanAmount = Double.parseDouble(line.substring(comma + 1).trim());
+		} catch (RuntimeException exc) {
+			invalid.incrementAndGet();
+			writeResult(lineNumber + ",,,INVALID,");
+			return;
+		}
+
+		window.acquire();
+		final long sentNanos = System.nanoTime();
+		try {
+			qBorrower.sendLoanRequest(salary, loanAmount, timeoutMillis, new ReplyDispatcher.ReplyCallback() {
+				public void onReply(String correlationId, Message reply) {
+					String decision;
+					try {
+						decision = reply instanceof TextMessage ? ((TextMessage) reply).getText() : "UNKNOWN";
+					} catch (JMSException exc) {
+						decision = "UNKNOWN";
+					}
+					finish(lineNumber + "," + salary + "," + loanAmount + "," + decision + "," + (System.nanoTime() - sentNanos) / 1000000);
+				}
+
+				public void onTimeout(String correlationId) {
+					timedOut.incrementAndGet();
+					finish(lineNumber + "," + salary + "," + loanAmount + ",TIMEOUT," + timeoutMillis);
+				}
+			});
+		} catch (JMSException exc) {
+			window.release();
+			throw exc;
+		}
+		sent.incrementAndGet();
+	}
+
+	//	Called from the dispatcher's listener thread or the reporter thread - never from the sending thread
+	private void finish(String resultRow) {
+		try {
+			writeResult(resultRow);
+		} catch (IOException exc) {
+			logger.error(exc);
+		} finally {
+			completed.incrementAndGet();
+			window.release();
+		}
+	}
+
+	private synchronized void writeResult(String resultRow) throws IOException {
+		results.write(resultRow);
+		results.write('\n');
+	}
+
+	private String progress(long done, double perSecond) {
+		return "sent=" + sent.get() + " completed=" + done + " timedOut=" + timedOut.get() + " invalid=" + invalid.get()
+				+ " inFlight=" + (maxInFlight - window.availablePermits()) + " rate=" + String.format("%.0f", perSecond) + " msg/s";
+	}
+
+	private static boolean startsWithNumber(String line) {
+		String trimmed = line.trim();
+		return trimmed.length() > 0 && (Character.isDigit(trimmed.charAt(0)) || trimmed.charAt(0) == '-' || trimmed.charAt(0) == '.');
+	}
+}
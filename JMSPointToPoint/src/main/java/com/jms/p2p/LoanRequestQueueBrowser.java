@@ -1,56 +1,370 @@
 package com.jms.p2p;
 
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Enumeration;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageEOFException;
+import javax.jms.ObjectMessage;
 import javax.jms.Queue;
 import javax.jms.QueueBrowser;
 import javax.jms.QueueConnection;
 import javax.jms.QueueConnectionFactory;
 import javax.jms.QueueSession;
 import javax.jms.Session;
+import javax.jms.StreamMessage;
 import javax.jms.TextMessage;
 import javax.naming.Context;
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 
 import org.apache.log4j.Logger;
 
 
 /**
  * @author Kevin
- *	LoanRequestQueueBrowser to browse LoanResponseQ
+ *	LoanRequestQueueBrowser browses a queue (LoanResponseQ unless told otherwise) and writes every message as one JSON line to standard output,
+ *	followed by a summary line with the message count, size distribution and age histogram
  */
 public class LoanRequestQueueBrowser {
-	
+
+	/*	Usage: java LoanRequestQueueBrowser [-factory QueueCF] [-queue LoanResponseQ] [-selector expression] [-flush n] [-max n] [-summary]
+	 *
+	 * 		-queue		JNDI name of the queue to browse. Names that are not bound in JNDI are taken as physical queue names
+	 * 		-selector	message selector, e.g. "JMSPriority > 4" or "JMSCorrelationID LIKE 'abc%'"
+	 * 		-flush		flush the output after every n messages, so a reader of a long browse sees it progress
+	 * 		-max		stop after this many messages
+	 * 		-summary	only print the summary line, not the messages
+	 *
+	 * 	The browser enumeration is consumed as it is fetched and every message is forgotten once it is written, so the memory used does not
+	 * 	depend on the depth of the queue. The statistics are kept in fixed-size histograms for the same reason.
+	 *
+	 * 	How many messages the broker sends to the browser ahead of time is a provider setting of the connection factory, so it is configured
+	 * 	where the factory is bound in JNDI, e.g. jms.prefetchPolicy.queueBrowserPrefetch on the ActiveMQ broker URL. */
+
 	final static Logger logger = Logger.getLogger(LoanRequestQueueBrowser.class);
-	
+
+	private static final int DEFAULT_FLUSH_INTERVAL = 100;
+	private static final int MAX_BYTES_SHOWN = 256;
+
+	//	Upper bounds of the size buckets in bytes (the last bucket is everything larger)
+	private static final long[] SIZE_BOUNDS = { 256, 1024, 4096, 16384, 65536, 262144, 1048576 };
+	private static final String[] SIZE_LABELS = { "<=256B", "<=1KB", "<=4KB", "<=16KB", "<=64KB", "<=256KB", "<=1MB", ">1MB" };
+
+	//	Upper bounds of the age buckets in milliseconds
+	private static final long[] AGE_BOUNDS = { 1000L, 10000L, 60000L, 600000L, 3600000L, 86400000L };
+	private static final String[] AGE_LABELS = { "<=1s", "<=10s", "<=1m", "<=10m", "<=1h", "<=1d", ">1d" };
+
 	public static void main(String args[]) {
+		String factoryName = "QueueCF";
+		String queueName = "LoanResponseQ";
+		String selector = null;
+		int flushInterval = DEFAULT_FLUSH_INTERVAL;
+		long maxCount = Long.MAX_VALUE;
+		boolean summaryOnly = false;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("-factory".equals(args[i])) {
+					factoryName = args[++i];
+				} else if ("-queue".equals(args[i])) {
+					queueName = args[++i];
+				} else if ("-selector".equals(args[i])) {
+					selector = args[++i];
+				} else if ("-flush".equals(args[i])) {
+					flushInterval = Integer.parseInt(args[++i]);
+					if (flushInterval < 1) {
+						throw new IllegalArgumentException("-flush " + flushInterval);
+					}
+				} else if ("-max".equals(args[i])) {
+					maxCount = Long.parseLong(args[++i]);
+				} else if ("-summary".equals(args[i])) {
+					summaryOnly = true;
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException exc) {
+			logger.info("Invalid arguments. Should be: ");
+			logger.info("java LoanRequestQueueBrowser [-factory QueueCF] [-queue LoanResponseQ] [-selector expression] [-flush n] [-max n] [-summary]");
+			System.exit(1);
+		}
+
 		try {
 			//	Establish a connection
 			Context context = new InitialContext();
-			QueueConnectionFactory queueConnectionFactory = (QueueConnectionFactory)context.lookup("QueueCF");
+			QueueConnectionFactory queueConnectionFactory = (QueueConnectionFactory)context.lookup(factoryName);
 			QueueConnection queueConnection = queueConnectionFactory.createQueueConnection();
 			queueConnection.start();
-			
+
 			//	Establish session
-			Queue queue = (Queue)context.lookup("LoanResponseQ");
 			QueueSession queueSession = queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
-			QueueBrowser queueBrowser = queueSession.createBrowser(queue);
-			
+			Queue queue;
+			try {
+				queue = (Queue)context.lookup(queueName);
+			} catch (NamingException exc) {
+				queue = queueSession.createQueue(queueName);
+			}
+			QueueBrowser queueBrowser = queueSession.createBrowser(queue, selector);
+
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+			BrowseStatistics statistics = new BrowseStatistics();
+			StringBuilder line = new StringBuilder(512);
+
 			@SuppressWarnings("rawtypes")
 			Enumeration enumeration = queueBrowser.getEnumeration();
-			
-			while(enumeration.hasMoreElements()) {
-				TextMessage textMessage = (TextMessage)enumeration.nextElement();
-				logger.info("Browsing:\t" + textMessage.getText().toString());
+
+			long now = System.currentTimeMillis();
+			while(statistics.count < maxCount && enumeration.hasMoreElements()) {
+				/*	Do not assume the message type - the request queue holds MapMessages, the response queue TextMessages, and anything else may
+				 * 	have been sent to either of them */
+				Message message = (Message)enumeration.nextElement();
+				long size = sizeOf(message);
+				statistics.add(size, message.getJMSTimestamp() > 0 ? now - message.getJMSTimestamp() : -1);
+
+				if (!summaryOnly) {
+					line.setLength(0);
+					appendMessage(line, message, size);
+					out.write(line.toString());
+					out.write('\n');
+				}
+				if (statistics.count % flushInterval == 0) {
+					out.flush();
+					now = System.currentTimeMillis();
+				}
 			}
+
+			line.setLength(0);
+			statistics.appendJson(line, queueName);
+			out.write(line.toString());
+			out.write('\n');
+			out.flush();
+
 			queueBrowser.close();
 			queueConnection.close();
 			System.exit(0);
 		} catch (Exception exc) {
-			logger.error(exc);			
+			logger.error(exc);
+			System.exit(1);
+		}
+	}
+
+	//	The JMS API does not expose the encoded size of a message, so the size of the body is estimated from its content where that is cheap
+	static long sizeOf(Message message) throws JMSException {
+		if (message instanceof TextMessage) {
+			String text = ((TextMessage)message).getText();
+			return text == null ? 0 : text.getBytes(StandardCharsets.UTF_8).length;
+		}
+		if (message instanceof BytesMessage) {
+			return ((BytesMessage)message).getBodyLength();
+		}
+		return -1;
+	}
+
+	static void appendMessage(StringBuilder json, Message message, long size) throws JMSException {
+		json.append("{\"id\":");
+		appendString(json, message.getJMSMessageID());
+		json.append(",\"correlationId\":");
+		appendString(json, message.getJMSCorrelationID());
+		json.append(",\"timestamp\":").append(message.getJMSTimestamp());
+		json.append(",\"expiration\":").append(message.getJMSExpiration());
+		json.append(",\"priority\":").append(message.getJMSPriority());
+		json.append(",\"redelivered\":").append(message.getJMSRedelivered());
+		json.append(",\"replyTo\":");
+		appendString(json, message.getJMSReplyTo() == null ? null : message.getJMSReplyTo().toString());
+		json.append(",\"size\":").append(size);
+
+		json.append(",\"properties\":{");
+		@SuppressWarnings("rawtypes")
+		Enumeration names = message.getPropertyNames();
+		boolean first = true;
+		while (names.hasMoreElements()) {
+			String name = (String)names.nextElement();
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+			appendString(json, name);
+			json.append(':');
+			appendValue(json, message.getObjectProperty(name));
+		}
+		json.append('}');
+
+		if (message instanceof TextMessage) {
+			json.append(",\"type\":\"text\",\"body\":");
+			appendString(json, ((TextMessage)message).getText());
+		} else if (message instanceof MapMessage) {
+			MapMessage mapMessage = (MapMessage)message;
+			json.append(",\"type\":\"map\",\"body\":{");
+			@SuppressWarnings("rawtypes")
+			Enumeration mapNames = mapMessage.getMapNames();
+			first = true;
+			while (mapNames.hasMoreElements()) {
+				String name = (String)mapNames.nextElement();
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				appendString(json, name);
+				json.append(':');
+				appendValue(json, mapMessage.getObject(name));
+			}
+			json.append('}');
+		} else if (message instanceof BytesMessage) {
+			BytesMessage bytesMessage = (BytesMessage)message;
+			byte[] bytes = new byte[(int)Math.min(bytesMessage.getBodyLength(), MAX_BYTES_SHOWN)];
+			bytesMessage.readBytes(bytes);
+			json.append(",\"type\":\"bytes\",\"length\":").append(bytesMessage.getBodyLength());
+			json.append(",\"body\":\"").append(Base64.getEncoder().encodeToString(bytes)).append('"');
+		} else if (message instanceof StreamMessage) {
+			StreamMessage streamMessage = (StreamMessage)message;
+			json.append(",\"type\":\"stream\",\"body\":[");
+			first = true;
+			try {
+				while (true) {
+					Object value = streamMessage.readObject();
+					if (!first) {
+						json.append(',');
+					}
+					first = false;
+					appendValue(json, value);
+				}
+			} catch (MessageEOFException endOfStream) {
+				json.append(']');
+			}
+		} else if (message instanceof ObjectMessage) {
+			//	Deserializing the payload would need the sender's classes on our classpath, so only the type is reported
+			json.append(",\"type\":\"object\"");
+		} else {
+			json.append(",\"type\":\"message\"");
+		}
+		json.append('}');
+	}
+
+	static void appendValue(StringBuilder json, Object value) {
+		if (value == null) {
+			json.append("null");
+		} else if (value instanceof Double && !Double.isFinite((Double)value)
+				|| value instanceof Float && !Float.isFinite((Float)value)) {
+			//	JSON has no NaN or Infinity literals, so these go out as the strings "NaN", "Infinity" and "-Infinity"
+			appendString(json, value.toString());
+		} else if (value instanceof Number || value instanceof Boolean) {
+			json.append(value);
+		} else if (value instanceof byte[]) {
+			json.append('"').append(Base64.getEncoder().encodeToString((byte[])value)).append('"');
+		} else {
+			appendString(json, value.toString());
+		}
+	}
+
+	static void appendString(StringBuilder json, String value) {
+		if (value == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int)c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+
+	/**
+	 *	Running statistics over the browsed messages, kept in fixed-size buckets so that memory use does not grow with the queue depth
+	 */
+	static class BrowseStatistics {
+
+		long count;
+		//	Messages whose size is known, which the size figures are over
+		long sizedCount;
+		long totalSize;
+		long minSize = Long.MAX_VALUE;
+		long maxSize;
+		long oldestAge;
+		final long[] sizeBuckets = new long[SIZE_LABELS.length];
+		final long[] ageBuckets = new long[AGE_LABELS.length];
+
+		void add(long size, long ageMillis) {
+			count++;
+			if (size >= 0) {
+				sizedCount++;
+				totalSize += size;
+				minSize = Math.min(minSize, size);
+				maxSize = Math.max(maxSize, size);
+				sizeBuckets[bucket(SIZE_BOUNDS, size)]++;
+			}
+			if (ageMillis >= 0) {
+				oldestAge = Math.max(oldestAge, ageMillis);
+				ageBuckets[bucket(AGE_BOUNDS, ageMillis)]++;
+			}
+		}
+
+		private static int bucket(long[] bounds, long value) {
+			int i = 0;
+			while (i < bounds.length && value > bounds[i]) {
+				i++;
+			}
+			return i;
+		}
+
+		void appendJson(StringBuilder json, String queueName) {
+			json.append("{\"summary\":");
+			appendString(json, queueName);
+			json.append(",\"count\":").append(count);
+			json.append(",\"totalSize\":").append(totalSize);
+			json.append(",\"minSize\":").append(sizedCount == 0 ? 0 : minSize);
+			json.append(",\"maxSize\":").append(maxSize);
+			json.append(",\"avgSize\":").append(sizedCount == 0 ? 0 : totalSize / sizedCount);
+			json.append(",\"oldestAgeMillis\":").append(oldestAge);
+			appendBuckets(json, "sizes", SIZE_LABELS, sizeBuckets);
+			appendBuckets(json, "ages", AGE_LABELS, ageBuckets);
+			json.append('}');
+		}
+
+		private static void appendBuckets(StringBuilder json, String name, String[] labels, long[] buckets) {
+			json.append(",\"").append(name).append("\":{");
+			for (int i = 0; i < labels.length; i++) {
+				if (i > 0) {
+					json.append(',');
+				}
+				json.append('"').append(labels[i]).append("\":").append(buckets[i]);
+			}
+			json.append('}');
 		}
 	}
 }
 
+
 /* 	===================================================================================================================================================
 * 	Examining a Queue
 * 	===================================================================================================================================================
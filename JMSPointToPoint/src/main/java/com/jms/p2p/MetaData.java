@@ -1,42 +1,365 @@
 package com.jms.p2p;
 
+import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.jms.ConnectionMetaData;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
 import javax.jms.QueueConnection;
 import javax.jms.QueueConnectionFactory;
+import javax.jms.QueueReceiver;
+import javax.jms.QueueSender;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+import javax.jms.TextMessage;
 import javax.naming.Context;
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 
 import org.apache.log4j.Logger;
 
 //This information can logged on application startup, indicating the JMS provider and version numbers
 //It is particularly useful for products or applications that may use multiple providers
+//Run on its own, MetaData probes the broker behind the connection factory and exits with a status monitoring can act on
 
 public class MetaData {
-	
+
+	/*	The probe does what every client of the broker does, and times it:
+	 *
+	 * 		1. Looks up the connection factory and opens a connection - the connection setup time
+	 * 		2. Reads the connection metadata: JMS version, provider and the JMSX properties the provider supports
+	 * 		3. Sends PINGS ping messages to a scratch queue, one at a time, and receives each of them before sending the next - the round
+	 * 			trip time through the broker
+	 * 		4. Sends and receives on the scratch queue as fast as it can for a few seconds - the sustained throughput. At most WINDOW messages
+	 * 			are on their way at any time, so the probe measures the broker, not how many messages it can queue up
+	 *
+	 * 	The scratch queue is a temporary queue unless a queue is named with -queue (for brokers that do not allow temporary queues). A
+	 * 	temporary queue lives only as long as the connection, so the probe leaves nothing behind. A named queue should be one nobody else
+	 * 	uses: the probe takes every message it finds there. A ping only counts as come back when the message received has its correlation ID;
+	 * 	anything else on the queue is skipped and counted as ping.foreign.
+	 *
+	 * 	The report goes to standard output, a summary line followed by one key=value line per figure, and the exit status follows the
+	 * 	convention of Nagios and most monitoring agents:
+	 *
+	 * 		0	OK
+	 * 		1	WARNING		-	the ping round trip (median) is above -warn, the connection setup above CONNECT_WARN_MILLIS, or the
+	 * 							throughput below -minRate
+	 * 		2	CRITICAL	-	the broker cannot be reached, a ping or a message of the throughput run is lost, or the ping round trip
+	 * 							is above -critical or the connection setup above CONNECT_CRITICAL_MILLIS
+	 * 		3	UNKNOWN		-	invalid arguments, no such connection factory or queue in JNDI, or the probe itself failed. It could not
+	 * 							tell anything about the broker
+	 *
+	 * 	Without -critical, the critical ping round trip is CRITICAL_PER_WARN times -warn, and at least DEFAULT_CRITICAL_MILLIS
+	 *
+	 * 	e.g.
+	 *
+	 * 		java com.jms.p2p.MetaData QueueCF -seconds 5 -warn 20 -critical 200
+	 *
+	 * 		OK - connect 48 ms, ping 0.412 ms, 18233 msgs/sec
+	 * 		status=OK
+	 * 		jms.version=1.1
+	 * 		... */
+
+	static final int OK = 0;
+	static final int WARNING = 1;
+	static final int CRITICAL = 2;
+	static final int UNKNOWN = 3;
+	private static final String[] STATUS_NAMES = { "OK", "WARNING", "CRITICAL", "UNKNOWN" };
+
+	static final long CONNECT_WARN_MILLIS = 1000;
+	static final long CONNECT_CRITICAL_MILLIS = 5000;
+	static final double DEFAULT_WARN_MILLIS = 50;
+	static final double DEFAULT_CRITICAL_MILLIS = 500;
+	static final int CRITICAL_PER_WARN = 10;
+
+	private static final int PINGS = 20;
+	private static final long RECEIVE_TIMEOUT_MILLIS = 5000;
+	private static final int WINDOW = 1000;
+
 	final static Logger logger = Logger.getLogger(MetaData.class);
-	
-	public static void main(String args[]) {
+
+	private String factoryName = "QueueCF";
+	private String queueName = null;
+	private int seconds = 2;
+	private double warnMillis = DEFAULT_WARN_MILLIS;
+	private double criticalMillis = -1;
+	private long minRate = 0;
+
+	private final Map<String, String> report = new LinkedHashMap<String, String>();
+	private int status = OK;
+	private String summary = "";
+	private final String probeId = UUID.randomUUID().toString();
+	private int foreign = 0;
+
+	/*	Arguments: [factory] [-queue jndiName] [-seconds throughputSeconds] [-warn pingMillis] [-critical pingMillis] [-minRate msgsPerSecond]
+	 * 	Throws IllegalArgumentException for anything else */
+	MetaData(String... args) {
+		int i = 0;
+		if (args.length > 0 && !args[0].startsWith("-")) {
+			factoryName = args[i++];
+		}
+		for (; i < args.length; i += 2) {
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+			}
+			String value = args[i + 1];
+			if ("-queue".equals(args[i])) {
+				queueName = value;
+			} else if ("-seconds".equals(args[i])) {
+				seconds = Integer.parseInt(value);
+			} else if ("-warn".equals(args[i])) {
+				warnMillis = Double.parseDouble(value);
+			} else if ("-critical".equals(args[i])) {
+				criticalMillis = Double.parseDouble(value);
+			} else if ("-minRate".equals(args[i])) {
+				minRate = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		if (criticalMillis < 0) {
+			criticalMillis = Math.max(DEFAULT_CRITICAL_MILLIS, CRITICAL_PER_WARN * warnMillis);
+		}
+		if (seconds < 1 || warnMillis < 0 || criticalMillis < warnMillis || minRate < 0) {
+			throw new IllegalArgumentException("seconds must be at least 1, and 0 <= warn <= critical, minRate >= 0");
+		}
+	}
+
+	//	Run the probe and return its status. The figures are in getReport() afterwards, as far as the probe got
+	int probe() {
+		QueueConnection queueConnection = null;
 		try {
+			long start = System.nanoTime();
 			Context context = new InitialContext();
-			QueueConnectionFactory queueConnectionFactory = (QueueConnectionFactory)context.lookup("QueueCF");
-			QueueConnection queueConnection = queueConnectionFactory.createQueueConnection();
+			QueueConnectionFactory queueConnectionFactory = (QueueConnectionFactory)context.lookup(factoryName);
+			Queue namedQueue = queueName == null ? null : (Queue)context.lookup(queueName);
+			long lookedUp = System.nanoTime();
+			queueConnection = queueConnectionFactory.createQueueConnection();
+			queueConnection.start();
+			long connected = System.nanoTime();
+			put("lookup.millis", millis(lookedUp - start));
+			put("connect.millis", millis(connected - lookedUp));
+			long connectMillis = TimeUnit.NANOSECONDS.toMillis(connected - lookedUp);
+			if (connectMillis > CONNECT_CRITICAL_MILLIS) {
+				raise(CRITICAL);
+			} else if (connectMillis > CONNECT_WARN_MILLIS) {
+				raise(WARNING);
+			}
+
+			//	The connection metadata, as this class always logged it
 			ConnectionMetaData connectionMetaData = queueConnection.getMetaData();
-			
-			logger.info("JMS Version\t:\t"  + connectionMetaData.getJMSMajorVersion() + "." + connectionMetaData.getJMSMinorVersion());
-			logger.info("JMS Provider\t:\t" + connectionMetaData.getJMSProviderName());
-			logger.info("JMSX Properties Supported: ");
-			
+			put("jms.version", connectionMetaData.getJMSMajorVersion() + "." + connectionMetaData.getJMSMinorVersion());
+			put("provider", connectionMetaData.getJMSProviderName());
+			put("provider.version", connectionMetaData.getProviderVersion());
+			StringBuilder jmsx = new StringBuilder();
 			@SuppressWarnings("rawtypes")
 			Enumeration enumeration = connectionMetaData.getJMSXPropertyNames();
-			
 			while(enumeration.hasMoreElements()) {
-				logger.info("\t-" + enumeration.nextElement());
+				jmsx.append(jmsx.length() == 0 ? "" : ",").append(enumeration.nextElement());
+			}
+			put("jmsx.properties", jmsx.toString());
+
+			//	Sends and receives go through sessions of their own: the receiver of the throughput run is a listener on another thread
+			QueueSession sendSession = queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+			QueueSession receiveSession = queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+			Queue scratchQueue = namedQueue != null ? namedQueue : sendSession.createTemporaryQueue();
+			put("queue", String.valueOf(scratchQueue));
+			QueueSender sender = sendSession.createSender(scratchQueue);
+			QueueReceiver receiver = receiveSession.createReceiver(scratchQueue);
+			drain(receiver);
+
+			double pingMillis = ping(sendSession, sender, receiver);
+			if (pingMillis < 0) {
+				summary = "ping lost";
+				return raise(CRITICAL);
+			}
+			if (pingMillis > criticalMillis) {
+				raise(CRITICAL);
+			} else if (pingMillis > warnMillis) {
+				raise(WARNING);
+			}
+
+			long perSecond = throughput(sendSession, sender, receiver);
+			if (perSecond < 0) {
+				summary = "messages lost";
+				return raise(CRITICAL);
+			}
+			if (perSecond < minRate) {
+				raise(WARNING);
 			}
-			System.exit(1);
-		} catch (Exception exc) {
+			summary = String.format("connect %d ms, ping %.3f ms, %d msgs/sec", connectMillis, pingMillis, perSecond);
+			return status;
+		} catch (NamingException exc) {
+			logger.error(exc);
+			summary = "not found in JNDI: " + exc.getMessage();
+			return raise(UNKNOWN);
+		} catch (JMSException exc) {
+			logger.error(exc);
+			summary = "broker unavailable: " + exc;
+			return raise(CRITICAL);
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			summary = "interrupted";
+			return raise(UNKNOWN);
+		} catch (RuntimeException exc) {
+			//	e.g. a JNDI name bound to something else than a connection factory or queue. Monitoring still gets a status
 			logger.error(exc);
-			System.exit(1);
+			summary = "probe failed: " + exc;
+			return raise(UNKNOWN);
+		} finally {
+			put("status", STATUS_NAMES[status]);
+			if (queueConnection != null) {
+				try {
+					queueConnection.close();
+				} catch (JMSException exc) {
+					logger.error(exc);
+				}
+			}
+		}
+	}
+
+	//	Round trips of one message at a time. Returns the median in milliseconds, or -1 when a ping did not come back
+	private double ping(QueueSession sendSession, QueueSender sender, QueueReceiver receiver) throws JMSException {
+		long[] roundTrips = new long[PINGS];
+		for (int i = 0; i < PINGS; i++) {
+			String correlationId = probeId + "-" + i;
+			TextMessage ping = sendSession.createTextMessage("ping " + i);
+			ping.setJMSCorrelationID(correlationId);
+			long start = System.nanoTime();
+			sender.send(ping);
+			Message pong = pong(receiver, correlationId);
+			roundTrips[i] = System.nanoTime() - start;
+			if (foreign > 0) {
+				put("ping.foreign", String.valueOf(foreign));
+			}
+			if (pong == null) {
+				put("ping.lost", String.valueOf(PINGS - i));
+				return -1;
+			}
+		}
+		Arrays.sort(roundTrips);
+		put("ping.count", String.valueOf(PINGS));
+		put("ping.min.millis", millis(roundTrips[0]));
+		put("ping.median.millis", millis(roundTrips[PINGS / 2]));
+		put("ping.max.millis", millis(roundTrips[PINGS - 1]));
+		return roundTrips[PINGS / 2] / 1e6;
+	}
+
+	//	The ping with the given correlation ID, or null when it did not come back within RECEIVE_TIMEOUT_MILLIS
+	private Message pong(QueueReceiver receiver, String correlationId) throws JMSException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECEIVE_TIMEOUT_MILLIS);
+		long remaining = RECEIVE_TIMEOUT_MILLIS;
+		while (remaining > 0) {
+			Message message = receiver.receive(remaining);
+			if (message == null || correlationId.equals(message.getJMSCorrelationID())) {
+				return message;
+			}
+			foreign++;
+			remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+		}
+		return null;
+	}
+
+	/*	Send for the given number of seconds, while a listener receives. Returns the messages received per second, or -1 when not all of
+	 * 	them arrived */
+	private long throughput(QueueSession sendSession, QueueSender sender, QueueReceiver receiver) throws JMSException, InterruptedException {
+		final Semaphore window = new Semaphore(WINDOW);
+		final AtomicLong received = new AtomicLong();
+		receiver.setMessageListener(new MessageListener() {
+			public void onMessage(Message message) {
+				received.incrementAndGet();
+				window.release();
+			}
+		});
+		TextMessage message = sendSession.createTextMessage("throughput");
+		long sent = 0;
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		while (System.nanoTime() - end < 0) {
+			if (window.tryAcquire(RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				sender.send(message);
+				sent++;
+			} else {
+				//	Nothing came back for a while, the rest of the window would not either
+				break;
+			}
+		}
+		//	The last messages are still on their way
+		window.tryAcquire(WINDOW, RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		long elapsed = System.nanoTime() - start;
+		receiver.setMessageListener(null);
+
+		long perSecond = received.get() * TimeUnit.SECONDS.toNanos(1) / elapsed;
+		put("throughput.seconds", String.format("%.3f", elapsed / 1e9));
+		put("throughput.sent", String.valueOf(sent));
+		put("throughput.received", String.valueOf(received.get()));
+		put("throughput.perSecond", String.valueOf(perSecond));
+		return received.get() < sent ? -1 : perSecond;
+	}
+
+	//	A named scratch queue may hold messages from an earlier probe that was killed
+	private void drain(QueueReceiver receiver) throws JMSException {
+		int drained = 0;
+		while (receiver.receiveNoWait() != null) {
+			drained++;
+		}
+		if (drained > 0) {
+			put("queue.drained", String.valueOf(drained));
+		}
+	}
+
+	private int raise(int newStatus) {
+		status = Math.max(status, newStatus);
+		return status;
+	}
+
+	private void put(String key, String value) {
+		report.put(key, value);
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	Map<String, String> getReport() {
+		return report;
+	}
+
+	void printReport(PrintStream out) {
+		out.println(STATUS_NAMES[status] + " - " + summary);
+		out.println("status=" + STATUS_NAMES[status]);
+		for (Map.Entry<String, String> entry : report.entrySet()) {
+			if (!"status".equals(entry.getKey())) {
+				out.println(entry.getKey() + "=" + entry.getValue());
+			}
+		}
+	}
+
+	public static void main(String args[]) {
+		MetaData metaData;
+		try {
+			metaData = new MetaData(args);
+		} catch (IllegalArgumentException exc) {
+			//	Also covers NumberFormatException
+			logger.error(exc.getMessage());
+			logger.error("Invalid arguments. Should be: ");
+			logger.error("java MetaData [factory] [-queue jndiName] [-seconds throughputSeconds] [-warn pingMillis] [-critical pingMillis] "
+					+ "[-minRate msgsPerSecond]");
+			System.exit(UNKNOWN);
+			return;
 		}
+		int status = metaData.probe();
+		metaData.printReport(System.out);
+		System.exit(status);
 	}
 }
@@ -8,6 +8,10 @@ import javax.naming.*;
 
 import org.apache.log4j.Logger;
 
+import com.jms.metrics.MessagingMetrics;
+import com.jms.metrics.MetricsHttpServer;
+import com.jms.metrics.MetricsRegistry;
+
 /**
  * @author Kevin
  *	QBorrower class is responsible for sending a loan request message to a queue containing a salary and amount
@@ -18,9 +22,18 @@ public class QBorrower {
 	private QueueSession qSession = null;
 	private Queue responseQ = null;
 	private Queue requestQ = null;
+	private QueueSender queueSender = null;
+	private ReplyDispatcher replyDispatcher = null;
+	
+	//	How long a borrower waits for a decision. This is also the time to live of the request, see sendLoanRequest()
+	public static final long REPLY_TIMEOUT_MILLIS = 30000;
 	
 	final static Logger logger = Logger.getLogger(QBorrower.class);
 	
+	/*	Requests sent and replies received by the borrowers in this JVM. The in-flight count is the number of requests waiting for their 
+	 * 	reply, kept by the ReplyDispatcher, and a request that got no reply in time counts as an error */
+	final static MessagingMetrics metrics = MetricsRegistry.get("QBorrower");
+	
 	//	JMS initialization: 
 	//	All JMS initialization is done in the QBorrower class constructor
 	/**
@@ -84,6 +97,11 @@ public class QBorrower {
 			requestQ = (Queue)context.lookup(requestQueue);
 			responseQ = (Queue)context.lookup(responseQueue);
 			
+			/*	The sender and the reply consumer are created once and reused for every loan request. The ReplyDispatcher opens its own session 
+			 * 	(sessions are single threaded and its listener runs on a separate thread) with a single receiver on the response queue */
+			queueSender = qSession.createSender(requestQ);
+			replyDispatcher = new ReplyDispatcher(qConnect, responseQ);
+			
 			//	Start the connection
 			//	This allows messages to be received on this connection
 			//	It is generally best practise to perform all of your initialization logic before starting the connection
@@ -127,64 +145,73 @@ public class QBorrower {
 			 * 	message consumer is a standard practise when using the request/reply model */
 			mapMessage.setJMSReplyTo(responseQ);
 			
-			/* 	After the message is created, create the QueueSender object, specifying the queue we wish to send messages to and then send the 
-			 * 	message using the send() method */
-			QueueSender queueSender = qSession.createSender(requestQ);
+			/*	Message correlation: we generate the correlation ID ourselves and set it on the request before sending it. QLender copies it onto 
+			 * 	the reply, which is how the ReplyDispatcher finds the request that is waiting for that reply. 
+			 * 
+			 * 	(Reading getJMSCorrelationID() from a freshly created message only ever returns null - nothing has set it yet - so a selector built 
+			 * 	from it can never match the intended reply.) 
+			 * 
+			 * 	The pending entry is registered before the send so that a fast reply cannot arrive before anybody is waiting for it */
+			String correlationId = replyDispatcher.nextCorrelationId();
+			mapMessage.setJMSCorrelationID(correlationId);
+			ReplyDispatcher.PendingReply pendingReply = replyDispatcher.expect(correlationId);
+			
+			/* 	After the message is created, send the message using the send() method of the QueueSender object created in the constructor, which 
+			 * 	is bound to the queue we wish to send messages to */
 			
 			/*	There are several overridden send() methods available in the QueueSender object. 
-			 * 	The one we are using here accepts only the JMS message object as the single argument 
+			 * 	The simplest one accepts only the JMS message object as the single argument 
 			 * 	The other overridden methods allow you to specify:
 			 * 		-	Queue
 			 * 		-	Delivery mode
 			 * 		-	Message priority 
 			 * 		-	Message expiry 
 			 * 
-			 * 	Since we are not specifying any of the other values in the example shown, 
+			 * 	If none of the other values are specified, 
 			 * 		-	Message priority is set to normal (4) 
 			 * 		-	Delivery mode is set to persistent messages (DeliveryMode.PERSISTENT)
 			 * 		-	Message expiry/time to live is set to 0 (zero) indicating that the message will never expire 
 			 * 
-			 * 	All these parameters can be overridden by using one of the other send() methods */	
-			queueSender.send(mapMessage);
+			 * 	We override the priority and the time to live: 
+			 * 		-	Larger loans get a higher priority (see priorityFor()), so a burst of small requests does not hold them up 
+			 * 		-	The time to live is the time we are prepared to wait for the reply. Once we have given up, the request is worthless, so it 
+			 * 			expires instead of being evaluated by a QLender that nobody is listening to anymore */	
+			long start = System.nanoTime();
+			try {
+				queueSender.send(mapMessage, DeliveryMode.PERSISTENT, priorityFor(loanAmount), REPLY_TIMEOUT_MILLIS);
+			} catch (JMSException exc) {
+				replyDispatcher.cancel(correlationId);
+				metrics.failed();
+				throw exc;
+			}
+			metrics.sent(start);
 			
 			/*	Once the message has been sent, the QueueBorrower class will block and wait for a response from the QLender on whether the loan was 	
 			 * 	approved or denied. 
-			 * 	The first step in this process is to set up a message selector so that we can correlate the response message with the one we sent. 
-			 * 	This is necessary because there maybe many other loan requests being sent to and from the loan request queues while we are making our 
-			 * 	loan request. 
 			 * 	To make sure we get the proper response back, we use a technique called "message correlation".
 			 * 	
 			 * 	Message correlation is required when using the request/reply model of P2P messaging where the queue is being shared by multiple 
 			 * 	producers and consumers. 
 			 * 
-			 * 	We specify the filter when creating the QueueReceiver indicating that we only want to receive messages when the JMSCorrelationID is 
-			 * 	equal to the original JMSMessageID. 
-			 * 	
-			 * 	Message producer, QBorrower expects the response about whether or not the loan was approved by creating a message selector based on 
-			 * 	the JMSCorrelationID message property * */
+			 * 	The classic way of doing this is to create a QueueReceiver with a message selector per request:
+			 * 
+			 * 		QueueReceiver queueReceiver = qSession.createReceiver(responseQ, "JMSCorrelationID = '" + correlationId + "'");
+			 * 
+			 * 	That costs a consumer registration per request and makes the broker evaluate one selector per waiting borrower for every reply on 
+			 * 	the shared queue. The ReplyDispatcher has one receiver per process instead and routes each reply to its PendingReply by 
+			 * 	correlation ID */
 			
 			/*	Although JMSMessageID is typically used to identify the unique message, it is certainly not a requirement.
-			 * 	You can use anything that can correlate the request and reply messages. 
-			 * 		
-			 * 	For example, as an alternative you could use the Java UUID class to generate a unique ID 
-			
-				mapMessage.setDouble("Salary", salary);
-				mapMessage.setDouble("Loan Amount", loanAmount);
-				mapMessage.setJMSReplyTo(responseQ);
-				
-				UUID uuid = UUID.randomUUID();
-				String uniqueId = uuid.toString();
-				mapMessage.setStringProperty("UUID", uniqueId); */
-			
-			String filter = "JMSCorrelationID = '" + mapMessage.getJMSCorrelationID() + "'";
-			
-			//filter = "JMSCorrelationID = '" + uniqueId + "'";
+			 * 	You can use anything that can correlate the request and reply messages - here the ReplyDispatcher hands out IDs made up of a random 
+			 * 	per-process UUID and a sequence number */
 			
-			QueueReceiver queueReceiver = qSession.createReceiver(responseQ, filter);
-
-			/*	Now that we have QueueReceiver, we can invoke the receive() method to do a blocking wait until the response message is received. 
-			 * 	In this case, we are using the overridden receive() method that accepts a timeout value in milliseconds */
-			TextMessage textMessage = (TextMessage)queueReceiver.receive(30000);
+			/*	Now we can do a blocking wait until the response message is received. 
+			 * 	In this case, we are waiting with a timeout value in milliseconds, just like the overridden QueueReceiver.receive() method */
+			TextMessage textMessage = (TextMessage)pendingReply.await(REPLY_TIMEOUT_MILLIS);
+			if(textMessage == null) {
+				replyDispatcher.cancel(correlationId);
+				metrics.failed();
+			}
 			
 			/*	It is a good idea to always specify a reasonable timeout value on the receive method. Otherwise, it will sit there and wait forever. 
 			 * 	In effect, the application would "hang".
@@ -200,7 +227,7 @@ public class QBorrower {
 			 * 
 			 * 	However, a more fail safe technique would be to check the return Message type using the instanceof operator/keyword as indicated here:	
 
-				Message receiveMessage = queueReceiver.receive(30000);
+				Message receiveMessage = pendingReply.await(REPLY_TIMEOUT_MILLIS);
 				if(receiveMessage == null) {
 					System.out.println("QLender not responding");
 				} else {
@@ -232,42 +259,123 @@ public class QBorrower {
 		} catch (JMSException ex) {
 			ex.printStackTrace();
 			System.exit(1);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			logger.error(ex);
+		}
+	}
+	
+	/*	Asynchronous variant of sendLoanRequest() used by the bulk mode: the request is sent with a fresh correlation ID and the call returns 
+	 * 	immediately. The decision (or the timeout) is delivered to the callback by the ReplyDispatcher. 
+	 * 
+	 * 	Like every use of qSession, this must only be called from one thread */
+	public void sendLoanRequest(double salary, double loanAmount, long timeoutMillis, ReplyDispatcher.ReplyCallback callback) throws JMSException {
+		MapMessage mapMessage = qSession.createMapMessage();
+		mapMessage.setDouble("Salary", salary);
+		mapMessage.setDouble("Loan Amount", loanAmount);
+		mapMessage.setJMSReplyTo(responseQ);
+		
+		String correlationId = replyDispatcher.nextCorrelationId();
+		mapMessage.setJMSCorrelationID(correlationId);
+		replyDispatcher.expect(correlationId, System.currentTimeMillis() + timeoutMillis, callback);
+		long start = System.nanoTime();
+		try {
+			queueSender.send(mapMessage, DeliveryMode.PERSISTENT, priorityFor(loanAmount), timeoutMillis);
+		} catch (JMSException exc) {
+			replyDispatcher.cancel(correlationId);
+			metrics.failed();
+			throw exc;
+		}
+		metrics.sent(start);
+	}
+	
+	/*	JMS priorities run from 0 (lowest) to 9 (highest), 4 being the default. 0-4 are "normal" and 5-9 "expedited" priorities. 
+	 * 	The priority only decides the order among messages that are waiting - it never drops a message */
+	static int priorityFor(double loanAmount) {
+		if (loanAmount >= 1000000) {
+			return 9;
+		} else if (loanAmount >= 500000) {
+			return 7;
+		} else if (loanAmount >= 200000) {
+			return 5;
+		} else if (loanAmount >= 50000) {
+			return 4;
 		}
+		return 2;
+	}
+	
+	ReplyDispatcher getReplyDispatcher() {
+		return replyDispatcher;
 	}
 	
 	private void exit() {
+		close();
+		System.exit(0);		
+	}
+	
+	//	Close the connection without ending the process, for callers that send through a QBorrower of their own (e.g. the tests)
+	public void close() {
 		try {
+			replyDispatcher.close();
 			qConnect.close();
 		} catch (JMSException exc) {		
 			logger.error(exc);
 		}
-		System.exit(0);		
 	}
 	
 	/*	Main method accepts 3 arguments from the command line: 
 			1. The JNDI name of the queue connection factory
 			2. The JNDI name of the loan request queue
-			3. The JNDI name of the loan response queue where the response from the QLender class will be received */
+			3. The JNDI name of the loan response queue where the response from the QLender class will be received 
+			
+		followed optionally by the bulk mode arguments (see BulkLoanSubmitter): 
+			-bulk inputFile resultsFile [maxInFlight] */
 	public static void main(String[] args) {
 		
 		String queueCF = null;
 		String requestQ = null;
 		String responseQ = null;
+		int maxInFlight = BulkLoanSubmitter.DEFAULT_MAX_IN_FLIGHT;
 		
 		//Validate the input parameters
-		if(args.length == 3) {
+		boolean valid = args.length == 3 || ((args.length == 6 || args.length == 7) && "-bulk".equals(args[3]));
+		if(valid && args.length == 7) {
+			//	The window of requests in flight needs room for at least one
+			try {
+				maxInFlight = Integer.parseInt(args[6]);
+				valid = maxInFlight > 0;
+			} catch (NumberFormatException exc) {
+				valid = false;
+			}
+		}
+		if(valid) {
 			queueCF = args[0];
 			requestQ = args[1];
 			responseQ = args[2];
 		} else {
 			logger.info("Invalid arguments. Should be: ");
 			logger.info("java QBorrower factory requestQueue responseQueue");
+			logger.info("java QBorrower factory requestQueue responseQueue -bulk inputFile resultsFile [maxInFlight]");
 			System.exit(0);
 		}
 		
 		//Instantiate and initialize QBorrower class' constructor 
 		QBorrower qBorrower = new QBorrower(queueCF, requestQ, responseQ);
 		
+		MetricsHttpServer.startIfConfigured();
+		
+		if(args.length > 3) {
+			//	Bulk mode: stream the input file through the lender and exit once every request has been answered or timed out
+			BulkLoanSubmitter bulkLoanSubmitter = new BulkLoanSubmitter(qBorrower, maxInFlight, REPLY_TIMEOUT_MILLIS);
+			try {
+				bulkLoanSubmitter.run(new File(args[4]), new File(args[5]));
+			} catch (Exception exc) {
+				logger.error(exc);
+				System.exit(1);
+			}
+			qBorrower.exit();
+		}
+		
 		try {
 			//read all standard input and send it as a message
 			BufferedReader standardInput = new BufferedReader(new InputStreamReader(System.in));
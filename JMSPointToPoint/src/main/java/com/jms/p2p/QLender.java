@@ -1,17 +1,24 @@
 package com.jms.p2p;
 
 import java.io.*;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.jms.*;
 import javax.naming.*;
 
 import org.apache.log4j.Logger;
 
-/*	In this example, QLender class is referred to as a "message listener" and, as such, implements the javax.jms.MessageListener interface and 
- * 	overrides the onMessage() method. 
- * 
- * 	QLender class is an asynchronous message listener, meaning that unlike the QBorrower it will not block when waiting for messages. 
+import com.jms.metrics.MessagingMetrics;
+import com.jms.metrics.MetricsHttpServer;
+import com.jms.metrics.MetricsRegistry;
+
+/*	In the first version of this example, QLender class was a "message listener": it implemented the javax.jms.MessageListener interface,
+ * 	overrode the onMessage() method, and JMS called onMessage() on a listener thread of its own for every message, so that unlike the
+ * 	QBorrower it did not block when waiting for messages.
  * 
- * 	This is evident from the fact the QLender class implements the MessageListener interface and then overrides the onMessage() method. 
+ * 	QLender now receives the requests on a worker thread instead, so it can choose which of them to answer first. The constructor shows
+ * 	where the listener was registered.
  * */
 
 /**
@@ -19,46 +26,109 @@ import org.apache.log4j.Logger;
  *	The role of the QLender class is to listen for loan requests on the loan request queue, determine if the salary meets the necessary business 
  * 	requirements, and finally send back the results to the borrower.
  */
-public class QLender implements MessageListener {
+public class QLender {
 
 	private QueueConnection qConnect = null;
 	private QueueSession qSession = null;
 	private Queue requestQ = null;
+	private QueueReceiver queueReceiver = null;
+
+	/*	Requests are not answered in the order they arrive. A worker thread receives them and holds the ones that have arrived in a priority
+	 * 	queue, so that whenever requests pile up it answers the highest priority one next (see QBorrower.priorityFor()), and requests whose 
+	 * 	borrower has already given up (the request's time to live has passed) are dropped without being evaluated.
+	 * 
+	 * 	A JMS session must only be used by one thread, and a request is acknowledged through the session that delivered it. So the worker
+	 * 	owns qSession: it receives the requests, sends the replies and acknowledges, and no other thread touches the session.
+	 * 
+	 * 	At most MAX_PENDING requests are held. When the worker falls behind, it stops receiving until it has answered some, which leaves the
+	 * 	backlog with the broker
+	 * 
+	 * 	A request is acknowledged once its reply has been sent (or once it is dropped as expired), not when it is received.
+	 * 	With AUTO_ACKNOWLEDGE the broker would forget the requests waiting in the priority queue, and they would be lost with the process. 
+	 * 	Acknowledged this way, the broker delivers them again - to this lender after a restart or to another one - and the ReplyCache answers 
+	 * 	those that had been answered already. CLIENT_ACKNOWLEDGE acknowledges every message the session has delivered so far, including 
+	 * 	requests still waiting behind a higher priority one, so with ActiveMQ the session uses its INDIVIDUAL_ACKNOWLEDGE mode, which 
+	 * 	acknowledges only the message itself (see acknowledgeMode()). Any other provider gets CLIENT_ACKNOWLEDGE with a window of one: 
+	 * 	the worker holds a single request at a time, so acknowledging it acknowledges nothing else, and requests are answered in the order 
+	 * 	the broker delivers them */
+	private static final int MAX_PENDING = 1000;
+	
+	//	How long the worker waits for a request when it has none, before it looks whether close() asked it to stop
+	private static final long POLL_MILLIS = 100;
+
+	//	Only used by the worker thread, and by close() once the worker has ended
+	private final PriorityQueue<LoanRequest> pendingRequests = new PriorityQueue<LoanRequest>();
+	private int maxPending = MAX_PENDING;
+	private long arrivals = 0;
+	private final AtomicLong expired = new AtomicLong();
+	private QueueSender replySender = null;
+	private Thread worker = null;
+	private volatile boolean running = true;
+
+	/*	Decisions already sent, keyed by correlation ID. A request that arrives again - redelivered after a failure, or sent twice by the
+	 * 	borrower - is answered from the cache instead of being evaluated again (see ReplyCache) */
+	private static final int DEDUP_ENTRIES = 100000;
+	private static final long DEDUP_TIME_TO_LIVE_MILLIS = 10 * 60 * 1000;
+	private ReplyCache replyCache = null;
 
 	final static Logger logger = Logger.getLogger(QLender.class);
 	
+	/*	Requests received and replies sent by the lenders in this JVM. The in-flight count is the number of requests waiting for the worker 
+	 * 	or being evaluated, the handler time is the time the worker takes to evaluate a request and send the reply */
+	final static MessagingMetrics metrics = MetricsRegistry.get("QLender");
+	
 	//	The constructor in the QLender class works in the same way as the constructor in the QBorrower class 
 	public QLender(String queueCF, String requestQueue) {
+		this(queueCF, requestQueue, null);
+	}
+
+	//	dedupFile is the memory-mapped file the dedup cache survives restarts in, or null to keep it in memory only
+	public QLender(String queueCF, String requestQueue, File dedupFile) {
 		try {
+			replyCache = dedupFile == null ? new ReplyCache(DEDUP_ENTRIES, DEDUP_TIME_TO_LIVE_MILLIS)
+					: new ReplyCache(DEDUP_ENTRIES, DEDUP_TIME_TO_LIVE_MILLIS, dedupFile);
+
 			//	Establish a connection to the provider, do a JNDI lookup to get the queue, creates a QueueSession and then starts the connection
 			Context context = new InitialContext();
 			QueueConnectionFactory queueConnectionFactory = (QueueConnectionFactory) context.lookup(queueCF);
 			qConnect = queueConnectionFactory.createQueueConnection();
 
-			// create the JMS session
-			qSession = qConnect.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+			// create the JMS session. The worker acknowledges the requests, once it has answered them
+			int acknowledgeMode = acknowledgeMode(qConnect);
+			qSession = qConnect.createQueueSession(false, acknowledgeMode);
+			if (acknowledgeMode == Session.CLIENT_ACKNOWLEDGE) {
+				maxPending = 1;
+				logger.warn("Individual acknowledge is not available, loan requests are answered one at a time in the order they arrive");
+			}
 
 			// lookup the request queue
 			requestQ = (Queue) context.lookup(requestQueue);
 
+			/*	The sender of the replies is created without a destination because every reply goes to the JMSReplyTo queue of its own 
+			 * 	request */
+			replySender = qSession.createSender(null);
+
 			// now that the setup is complete, start the connection
 			qConnect.start();
 
-			/*	Once the connection is started, the QLender class can beging to receive messages
-			 * 	However, before it can receive messages, it must be registered by the QueueReceiver as a message listener */
-			QueueReceiver queueReceiver = qSession.createReceiver(requestQ);
+			//	Once the connection is started, the QLender class can beging to receive messages
+			queueReceiver = qSession.createReceiver(requestQ);
 			
-			/*	At this point, a separate listener thread is started. That thread will wait until a message is received, and upon receipt of a 
-			 * 	message, will invoke the onMessage() method of the listener class. 
+			/*	As a message listener, QLender registered itself with the QueueReceiver at this point:
 			 * 
-			 * 	In this case, we set the message to the QLender class using the "this" keyword in the setMessageListner() method. 
+			 * 		queueReceiver.setMessageListener(this);
 			 * 
-			 * 	We could have easily delegated the messaging work to another class that implemented the MessageListener interface
-			 * 	
-			 * 	queueReceiver.setMessageListener(someOtherClass);
+			 * 	after which a separate listener thread waits until a message is received, and upon receipt of a message invokes the onMessage() 
+			 * 	method of the listener class. The listener thread then owns the session, and the worker could not acknowledge on it.
 			 * 
-			 * */
-			queueReceiver.setMessageListener(this);
+			 * 	Instead, the worker calls receive() itself, and the session is used by the worker thread alone from here on */
+			worker = new Thread(new Runnable() {
+				public void run() {
+					processRequests();
+				}
+			}, "QLender-worker");
+			worker.setDaemon(true);
+			worker.start();
 			logger.info("Message consumer is now waiting for loan requests...");
 		} catch (JMSException exc) {
 			logger.error(exc);
@@ -66,92 +136,259 @@ public class QLender implements MessageListener {
 		} catch (NamingException exc) {
 			logger.error(exc);
 			System.exit(1);
+		} catch (IOException exc) {
+			logger.error(exc);
+			System.exit(1);
 		}
 	}
 
-	public void onMessage(Message message) {
-		
-		/*	When a message is received on the queue specified in the createReceiver() method, the listener thread will asynchronously invoke 
-		 * 	the onMessage() method of the listener class (in our case, the QLender class is also the listener class) */
+	/*	Worker loop: take in every request that has arrived (up to MAX_PENDING), then answer the highest priority one. Waits for a request 
+	 * 	only when there is none to answer. Stops after the request in progress once close() clears running: the rest stay unacknowledged */
+	private void processRequests() {
+		try {
+			while (running) {
+				while (running && pendingRequests.size() < maxPending) {
+					Message message = pendingRequests.isEmpty() ? queueReceiver.receive(POLL_MILLIS) : queueReceiver.receiveNoWait();
+					if (message == null) {
+						break;
+					}
+					admit(message);
+				}
+
+				LoanRequest loanRequest = running ? pendingRequests.poll() : null;
+				if (loanRequest == null) {
+					continue;
+				}
+				metrics.inFlight(-1);
+				if (isExpired(loanRequest.mapMessage, System.currentTimeMillis())) {
+					//	The request expired while it was waiting for the worker
+					expired.incrementAndGet();
+					acknowledge(loanRequest.mapMessage);
+					logger.debug("Skipped " + expired.get() + " expired loan requests so far");
+				} else {
+					processRequest(loanRequest.mapMessage);
+				}
+			}
+		} catch (JMSException exc) {
+			metrics.failed();
+			logger.error(exc);
+			System.exit(1);
+		}
+	}
+
+	//	A request just received: queued for the worker unless it is expired already or no loan request at all
+	private void admit(Message message) throws JMSException {
+		if (message instanceof MapMessage) {
+			metrics.received(message.getJMSTimestamp());
+			if (isExpired(message, System.currentTimeMillis())) {
+				expired.incrementAndGet();
+				acknowledge(message);
+				return;
+			}
+			metrics.inFlight(1);
+			pendingRequests.add(new LoanRequest((MapMessage) message, message.getJMSPriority(), ++arrivals));
+		} else {
+			//	Not a loan request we could answer, nor will any other lender
+			metrics.failed();
+			acknowledge(message);
+		}
+	}
+
+	private static void acknowledge(Message message) {
+		try {
+			message.acknowledge();
+		} catch (JMSException exc) {
+			//	The broker delivers the request again, the ReplyCache answers it
+			metrics.failed();
+			logger.error(exc);
+		}
+	}
+
+	//	ActiveMQ can acknowledge single messages, any other provider gets CLIENT_ACKNOWLEDGE (and the worker a window of one request)
+	private static int acknowledgeMode(QueueConnection queueConnection) {
+		if (queueConnection instanceof org.apache.activemq.ActiveMQConnection) {
+			return org.apache.activemq.ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE;
+		}
+		return Session.CLIENT_ACKNOWLEDGE;
+	}
+
+	//	Requests that expired before the worker got to them, and were acknowledged without a reply
+	long getExpired() {
+		return expired.get();
+	}
+
+	private static boolean isExpired(Message message, long now) {
+		try {
+			long expiration = message.getJMSExpiration();
+			return expiration != 0 && expiration <= now;
+		} catch (JMSException exc) {
+			metrics.failed();
+			logger.error(exc);
+			return false;
+		}
+	}
+
+	/*	A request that cannot be answered - no or no queue JMSReplyTo, a missing or malformed field - is logged and acknowledged, and the 
+	 * 	worker goes on with the next one: no other lender could answer it either, and ending the process would leave every request waiting 
+	 * 	behind it unanswered until a restart.
+	 * 	Any other JMSException, e.g. a reply that could not be sent, is a problem of the broker or the connection, not of the request. The 
+	 * 	request is left unacknowledged and the session recovered, so it is delivered again and answered from the ReplyCache */
+	private void processRequest(MapMessage mapMessage) {
 		
+		long start = System.nanoTime();
 		boolean accepted = false;
 		
-		if (message instanceof MapMessage) {
-			try {
-				/* 	The onMessage() method first casts the Message to a MapMessage (the message type we are expecting to receive from the borrower 
-				 * 	
-				 * 	It then extracts the salary and loan amount requested from the message payload, checks the salary to loan amount ratio, then 
-				 * 	determines whether to accept or decline the loan request */
-				MapMessage mapMessage = (MapMessage) message;
-				double salary = mapMessage.getDouble("Salary");
-				double loanAmount = mapMessage.getDouble("Loan Amount");
+		try {
+			Destination replyTo = mapMessage.getJMSReplyTo();
+			if (!(replyTo instanceof Queue)) {
+				throw new InvalidDestinationException("JMSReplyTo is " + replyTo + ", not a queue");
+			}
 
+			/* 	The request is a MapMessage (the message type we are expecting to receive from the borrower)
+			 * 
+			 * 	It then extracts the salary and loan amount requested from the message payload, checks the salary to loan amount ratio, then
+			 * 	determines whether to accept or decline the loan request */
+			double salary = mapMessage.getDouble("Salary");
+			double loanAmount = mapMessage.getDouble("Loan Amount");
+
+			/*	Unless we have answered this request before: then the decision we sent is sent again, whatever the request says now. 
+			 * 	Evaluating it again could give the borrower two different answers */
+			String correlationId = mapMessage.getJMSCorrelationID();
+			String requestKey = correlationId != null ? correlationId : mapMessage.getJMSMessageID();
+			long now = System.currentTimeMillis();
+			Boolean cachedDecision = replyCache.get(requestKey, now);
+
+			if (cachedDecision != null) {
+				accepted = cachedDecision.booleanValue();
+				logger.info("Duplicate loan request " + requestKey + (mapMessage.getJMSRedelivered() ? " (redelivered)" : "") + ", resending " 
+						+ (accepted ? "Accepted!" : "Declined"));
+			} else {
 				if (loanAmount < 200000) {
 					accepted = (salary / loanAmount) > .25;
 				} else {
 					accepted = (salary / loanAmount) > .33;
 				}
 				logger.info("" + "Percent = " + (salary / loanAmount) + ", loan is " + (accepted ? "Accepted!" : "Declined"));
+				replyCache.put(requestKey, accepted, now);
+			}
 
-				/* 	Again, to make this more failsafe, it would be better to check the JMS message type using the instanceof operator in the even that 
-				 * 	another message type was being sent to that queue 
+			/* 	Again, to make this more failsafe, it would be better to check the JMS message type using the instanceof operator in the even that
+			 * 	another message type was being sent to that queue
 				
-					if(mapMessage instanceof MapMessage) {
-						//	process the request
-						} else {
-							throw new IllegalArgumentException("Unsupported message type");
-						} 	*/
+				if(mapMessage instanceof MapMessage) {
+					//	process the request
+					} else {
+						throw new IllegalArgumentException("Unsupported message type");
+					} 	*/
 				
-				/* 	Once the loan request has been analyzed and the results determined, the QLender class needs to send the response back to the 
-				 *  borrower. 
-				 *  
-				 *  It does this by first creating a JMS message to send. The response message does not need to be the same JMS message type as the 
-				 *  loan request message that was received by the QLender. 
-				 *  
-				 *  To illustrate this point, the QLender returns a TextMessage back to the QBorrower. */
-				TextMessage textMessage = qSession.createTextMessage();
-				textMessage.setText(accepted ? "Accepted!" : "Declined");
-				
-				/*	The next statement sets the JMSCorrelationID, which is the JMS header property that is used by the QBorrower class to filter the 
-				 * 	incoming response messages 
-				 * 		
-				 * 	When the message consumer e.g. QLender is ready to send the reply message, it sets the JMSCorrelationID message property to the 
-				 * 	message ID from the original message. * */
+			/* 	Once the loan request has been analyzed and the results determined, the QLender class needs to send the response back to the
+			 *  borrower.
+			 * 
+			 *  It does this by first creating a JMS message to send. The response message does not need to be the same JMS message type as the
+			 *  loan request message that was received by the QLender.
+			 * 
+			 *  To illustrate this point, the QLender returns a TextMessage back to the QBorrower. */
+			TextMessage textMessage = qSession.createTextMessage();
+			textMessage.setText(accepted ? "Accepted!" : "Declined");
 				
-				/* 	QLender application must now get the UUID property from the original message and set the JMSCorrelationID message proprty to
-				 * 	this value
-				 * 
-					textMessage.setJMSCorrelationID(message.getStringProperty("UUID")); */
+			/*	The next statement sets the JMSCorrelationID, which is the JMS header property that is used by the QBorrower class to filter the
+			 * 	incoming response messages
+			 * 
+			 * 	When the message consumer e.g. QLender is ready to send the reply message, it sets the JMSCorrelationID message property to the
+			 * 	message ID from the original message. * */
 				
-				textMessage.setJMSCorrelationID(mapMessage.getJMSCorrelationID());
-
-				/*	Once the message is created, the onMessage() method then sends the message to the response queue specified by the JMSReplyTo 
-				 * 	message header property. 
-				 * 
-				 * 	In the QBorrower class we set the JMSReplyTo header property when sending the original loan request. 
-				 * 
-				 * 	The QLender class can now use that header that property as the destination to send the response message to */
-				QueueSender queueSender = qSession.createSender((Queue) mapMessage.getJMSReplyTo());
-				queueSender.send(textMessage);
-
-				logger.info("\nMessage consumer is now waiting for loan requests...");
-			} catch (JMSException exc) {
-				logger.error(exc);
-				System.exit(1);
-			} catch (Exception exc) {
-				logger.error(exc);
-				System.exit(1);
-			}
+			/* 	QBorrower generates a correlation ID for every request and sets it on the request message, so all the lender has to do is
+			 * 	copy it onto the reply.
+			 * 
+			 * 	A requester that did not set a correlation ID can still be answered by falling back to the JMSMessageID of the request,
+			 * 	which is the classic JMSMessageID/JMSCorrelationID pairing */
+			textMessage.setJMSCorrelationID(requestKey);
+
+			/*	Once the message is created, the worker then sends the message to the response queue specified by the JMSReplyTo message header
+			 * 	property.
+			 * 
+			 * 	In the QBorrower class we set the JMSReplyTo header property when sending the original loan request.
+			 * 
+			 * 	The QLender class can now use that header that property as the destination to send the response message to.
+			 * 
+			 * 	The reply keeps the priority of the request and lives no longer than the request would have - after that the borrower is no
+			 * 	longer waiting for it */
+			long expiration = mapMessage.getJMSExpiration();
+			long timeToLive = expiration == 0 ? Message.DEFAULT_TIME_TO_LIVE : Math.max(1, expiration - System.currentTimeMillis());
+			long sendStart = System.nanoTime();
+			replySender.send((Queue) replyTo, textMessage, DeliveryMode.PERSISTENT, mapMessage.getJMSPriority(), timeToLive);
+			metrics.sent(sendStart);
+			
+			//	Only now is the request done with
+			mapMessage.acknowledge();
+			metrics.handled(start);
+
+			logger.info("\nMessage consumer is now waiting for loan requests...");
+		} catch (InvalidDestinationException exc) {
+			skip(mapMessage, exc);
+		} catch (MessageFormatException exc) {
+			skip(mapMessage, exc);
+		} catch (JMSException exc) {
+			metrics.failed();
+			logger.error("Could not answer loan request " + describe(mapMessage) + ", it is delivered again: " + exc);
+			recover();
+		} catch (RuntimeException exc) {
+			//	e.g. a NumberFormatException from a field that is a string, but not a number
+			skip(mapMessage, exc);
+		}
+	}
+
+	private void skip(MapMessage mapMessage, Exception exc) {
+		metrics.failed();
+		logger.error("Skipped loan request " + describe(mapMessage) + ": " + exc);
+		acknowledge(mapMessage);
+	}
+
+	/*	Have the broker deliver every unacknowledged request again. That includes the requests waiting in pendingRequests, so they are 
+	 * 	dropped here rather than answered twice */
+	private void recover() {
+		metrics.inFlight(-pendingRequests.size());
+		pendingRequests.clear();
+		try {
+			qSession.recover();
+		} catch (JMSException exc) {
+			//	The requests go back to the broker with the connection then
+			logger.error(exc);
+		}
+	}
+
+	private static String describe(Message message) {
+		try {
+			return message.getJMSMessageID() + " (correlation ID " + message.getJMSCorrelationID() + ")";
+		} catch (JMSException exc) {
+			return String.valueOf(message);
 		}
 	}
 
 	private void exit() {
+		close();
+		System.exit(0);
+	}
+
+	/*	Stop answering and close the connection without ending the process, for callers that run a lender of their own (e.g. the tests). 
+	 * 	The worker finishes the request in progress before the connection is closed; the requests still waiting for it are unacknowledged 
+	 * 	and go back to the broker with the connection */
+	public void close() {
+		running = false;
+		try {
+			worker.join();
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
 		try {
 			qConnect.close();
 		} catch (JMSException exc) {
 			logger.error(exc);
 		}
-		System.exit(0);
+		metrics.inFlight(-pendingRequests.size());
+		pendingRequests.clear();
+		replyCache.close();
+		logger.info("Skipped " + expired.get() + " expired loan requests, answered " + replyCache.getHits() + " duplicates from the cache");
 	}
 
 	/*	Main method validates the command-line arguments and then invokes the constructor by instantiating a new QLender class. 
@@ -162,16 +399,21 @@ public class QLender implements MessageListener {
 		String queueCF = null;
 		String requestQ = null;
 
-		if (args.length == 2) {
+		File dedupFile = null;
+
+		if (args.length == 2 || args.length == 3) {
 			queueCF = args[0];
 			requestQ = args[1];
+			dedupFile = args.length == 3 ? new File(args[2]) : null;
 		} else {
 			logger.info("Invalid arguments. Should be");
-			logger.info("java QLender factory request_queue");
+			logger.info("java QLender factory request_queue [dedup_file]");
 			System.exit(0);
 		}
 
-		QLender qLender = new QLender(queueCF, requestQ);
+		QLender qLender = new QLender(queueCF, requestQ, dedupFile);
+
+		MetricsHttpServer.startIfConfigured();
 
 		try {
 			// run until enter is pressed
@@ -184,6 +426,29 @@ public class QLender implements MessageListener {
 			logger.error(exc);
 		}
 	}
+
+	/**
+	 *	A request waiting for the worker. Higher JMS priorities come first, requests of equal priority in the order they arrived
+	 */
+	private static class LoanRequest implements Comparable<LoanRequest> {
+
+		final MapMessage mapMessage;
+		final int priority;
+		final long arrival;
+
+		LoanRequest(MapMessage mapMessage, int priority, long arrival) {
+			this.mapMessage = mapMessage;
+			this.priority = priority;
+			this.arrival = arrival;
+		}
+
+		public int compareTo(LoanRequest other) {
+			if (priority != other.priority) {
+				return priority > other.priority ? -1 : 1;
+			}
+			return arrival < other.arrival ? -1 : (arrival == other.arrival ? 0 : 1);
+		}
+	}
 }
 
 /*	===================================================================================================================================================
@@ -0,0 +1,233 @@
+package com.jms.p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Kevin
+ *	ReplyCache remembers the decision QLender sent for each loan request, so that a request that is delivered again is answered with the same
+ *	decision instead of being evaluated a second time
+ */
+public class ReplyCache {
+
+	/*	Requests are keyed by their correlation ID (or JMSMessageID when the borrower did not set one). The cache is bounded in two ways:
+	 *
+	 * 		-	maxEntries: once full, the oldest entry is evicted for every new one
+	 * 		-	timeToLiveMillis: entries older than this are evicted, and never returned. A borrower does not wait for a reply longer than its
+	 * 			request lives (see QBorrower.REPLY_TIMEOUT_MILLIS), so there is no point in remembering decisions for much longer than that
+	 *
+	 * 	Entries are kept in insertion order in a LinkedHashMap, which makes both evictions a look at the head of the map. A key that is put
+	 * 	again is moved to the tail with its new timestamp, so the head stays the oldest entry. A lookup is one hash map access, so the cache
+	 * 	can stay on at full throughput.
+	 *
+	 * 	Optionally, every decision is also written into a memory-mapped file so that a restarted QLender still recognises requests it answered
+	 * 	before it went down. The file is a ring of fixed-size slots:
+	 *
+	 * 		header:	int magic, int slot count, long next slot
+	 * 		slot:	long timestamp, byte decision, byte key length, byte check, key bytes (up to MAX_KEY_BYTES, UTF-8)
+	 *
+	 * 	Writing a slot is a plain memory write - the operating system writes the pages back to disk in the background, and close() forces them
+	 * 	out. Keys too long for a slot are only cached in memory.
+	 *
+	 * 	A slot is written timestamp last: its timestamp is set to 0 first, then the decision, key and check byte are written, then the 
+	 * 	timestamp. A process that dies half way through leaves a slot with timestamp 0, which load() skips. The pages of the file can still 
+	 * 	reach the disk in any order when the machine goes down, so the check byte - a CRC of timestamp, decision and key - lets load() skip a 
+	 * 	slot whose parts do not belong together as well. */
+
+	private static final int MAGIC = 0x51434144;
+	static final int HEADER_BYTES = 16;
+	static final int SLOT_BYTES = 128;
+	static final int KEY_OFFSET = 11;
+	private static final int MAX_KEY_BYTES = SLOT_BYTES - KEY_OFFSET;
+
+	private final int maxEntries;
+	private final long timeToLiveMillis;
+	private final LinkedHashMap<String, CachedReply> entries;
+
+	private RandomAccessFile file = null;
+	private MappedByteBuffer slots = null;
+	private long nextSlot;
+
+	private long hits;
+	private long misses;
+
+	final static Logger logger = Logger.getLogger(ReplyCache.class);
+
+	public ReplyCache(int maxEntries, long timeToLiveMillis) {
+		this.maxEntries = maxEntries;
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.entries = new LinkedHashMap<String, CachedReply>(maxEntries * 4 / 3 + 1);
+	}
+
+	//	Cache backed by a memory-mapped file. Decisions found in an existing file are loaded if they are still within the time to live
+	public ReplyCache(int maxEntries, long timeToLiveMillis, File persistentFile) throws IOException {
+		this(maxEntries, timeToLiveMillis);
+		file = new RandomAccessFile(persistentFile, "rw");
+		boolean existing = file.length() == HEADER_BYTES + (long) maxEntries * SLOT_BYTES;
+		slots = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) maxEntries * SLOT_BYTES);
+		if (existing && slots.getInt(0) == MAGIC && slots.getInt(4) == maxEntries) {
+			load(System.currentTimeMillis());
+		} else {
+			//	New file, or one written with a different capacity - start from scratch
+			slots.putInt(0, MAGIC);
+			slots.putInt(4, maxEntries);
+			slots.putLong(8, 0);
+		}
+	}
+
+	//	Returns the cached decision for the request, or null if the request has not been answered (recently)
+	public synchronized Boolean get(String requestKey, long now) {
+		CachedReply cachedReply = entries.get(requestKey);
+		if (cachedReply == null || now - cachedReply.timestamp > timeToLiveMillis) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return cachedReply.accepted;
+	}
+
+	public synchronized void put(String requestKey, boolean accepted, long now) {
+		insert(requestKey, new CachedReply(accepted, now));
+		evict(now);
+		if (slots != null) {
+			write(requestKey, accepted, now);
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void close() {
+		if (slots != null) {
+			slots.force();
+			try {
+				file.close();
+			} catch (IOException exc) {
+				logger.error(exc);
+			}
+			slots = null;
+		}
+	}
+
+	//	A LinkedHashMap keeps a key that is put again where it was first inserted, so it is removed first
+	private void insert(String requestKey, CachedReply cachedReply) {
+		entries.remove(requestKey);
+		entries.put(requestKey, cachedReply);
+	}
+
+	private void evict(long now) {
+		Iterator<CachedReply> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			CachedReply eldest = iterator.next();
+			if (entries.size() > maxEntries || now - eldest.timestamp > timeToLiveMillis) {
+				iterator.remove();
+			} else {
+				break;
+			}
+		}
+	}
+
+	private void write(String requestKey, boolean accepted, long now) {
+		byte[] key = requestKey.getBytes(StandardCharsets.UTF_8);
+		if (key.length > MAX_KEY_BYTES) {
+			return;
+		}
+		int offset = HEADER_BYTES + (int) (nextSlot % maxEntries) * SLOT_BYTES;
+		byte decision = (byte) (accepted ? 1 : 0);
+		slots.putLong(offset, 0);
+		slots.put(offset + 8, decision);
+		slots.put(offset + 9, (byte) key.length);
+		slots.put(offset + 10, check(now, decision, key));
+		for (int i = 0; i < key.length; i++) {
+			slots.put(offset + KEY_OFFSET + i, key[i]);
+		}
+		slots.putLong(offset, now);
+		slots.putLong(8, ++nextSlot);
+	}
+
+	private static byte check(long timestamp, byte decision, byte[] key) {
+		CRC32 crc = new CRC32();
+		for (int shift = 0; shift < 64; shift += 8) {
+			crc.update((int) (timestamp >>> shift));
+		}
+		crc.update(decision);
+		crc.update(key, 0, key.length);
+		return (byte) crc.getValue();
+	}
+
+	private void load(long now) {
+		nextSlot = slots.getLong(8);
+
+		//	Slots are reused round robin, so sort the live ones by timestamp to restore the insertion order of the map
+		Integer[] live = new Integer[maxEntries];
+		byte[][] keys = new byte[maxEntries][];
+		int count = 0;
+		int torn = 0;
+		for (int slot = 0; slot < maxEntries; slot++) {
+			int offset = HEADER_BYTES + slot * SLOT_BYTES;
+			long timestamp = slots.getLong(offset);
+			if (timestamp > 0 && now - timestamp <= timeToLiveMillis) {
+				int length = slots.get(offset + 9);
+				if (length < 0 || length > MAX_KEY_BYTES) {
+					torn++;
+					continue;
+				}
+				byte[] key = new byte[length];
+				for (int k = 0; k < key.length; k++) {
+					key[k] = slots.get(offset + KEY_OFFSET + k);
+				}
+				if (slots.get(offset + 10) != check(timestamp, slots.get(offset + 8), key)) {
+					torn++;
+					continue;
+				}
+				keys[slot] = key;
+				live[count++] = slot;
+			}
+		}
+		Arrays.sort(live, 0, count, new Comparator<Integer>() {
+			public int compare(Integer left, Integer right) {
+				long l = slots.getLong(HEADER_BYTES + left * SLOT_BYTES);
+				long r = slots.getLong(HEADER_BYTES + right * SLOT_BYTES);
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < count; i++) {
+			int offset = HEADER_BYTES + live[i] * SLOT_BYTES;
+			insert(new String(keys[live[i]], StandardCharsets.UTF_8), new CachedReply(slots.get(offset + 8) == 1, slots.getLong(offset)));
+		}
+		logger.info("Loaded " + count + " cached loan decisions" + (torn > 0 ? ", skipped " + torn + " incompletely written" : ""));
+	}
+
+	private static class CachedReply {
+
+		final boolean accepted;
+		final long timestamp;
+
+		CachedReply(boolean accepted, long timestamp) {
+			this.accepted = accepted;
+			this.timestamp = timestamp;
+		}
+	}
+}
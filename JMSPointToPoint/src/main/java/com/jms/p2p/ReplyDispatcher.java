@@ -0,0 +1,195 @@
+package com.jms.p2p;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.QueueConnection;
+import javax.jms.QueueReceiver;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Kevin
+ *	ReplyDispatcher owns the single consumer on the response queue for one borrower process and hands every reply to the request that is
+ *	waiting for it, using the JMSCorrelationID as the key into a map of pending requests
+ */
+public class ReplyDispatcher implements MessageListener {
+
+	/*	Before the dispatcher existed, QBorrower created a new QueueReceiver with a "JMSCorrelationID = '...'" selector for every loan request.
+	 * 	With many borrowers waiting on the same LoanResponseQ the broker has to evaluate every pending selector against every reply, and the
+	 * 	receivers are created and torn down once per request.
+	 *
+	 * 	Instead, each borrower process now opens exactly one receiver. Its correlation IDs all start with a prefix that is unique to the process,
+	 * 	so the one selector on that receiver ("JMSCorrelationID LIKE 'prefix%'") keeps the replies of other borrower processes on the shared queue
+	 * 	away from us, and the lookup of the individual request is a plain hash map lookup on our side.
+	 *
+	 * 	The dispatcher keeps the in-flight count of QBorrower.metrics: one for every pending request, until its reply arrives, it times out
+	 * 	or it is cancelled. The handler time of a reply is the time its waiter or callback took to take it over */
+
+	private final QueueSession replySession;
+	private final QueueReceiver replyReceiver;
+	private final String prefix;
+	private final AtomicLong sequence = new AtomicLong();
+	private final Map<String, PendingReply> pending = new ConcurrentHashMap<String, PendingReply>();
+
+	final static Logger logger = Logger.getLogger(ReplyDispatcher.class);
+
+	/**
+	 * @param qConnect	connection to create the dispatcher's own session on (sessions must not be shared between threads)
+	 * @param responseQ	queue the lender sends replies to
+	 * @throws JMSException
+	 */
+	public ReplyDispatcher(QueueConnection qConnect, Queue responseQ) throws JMSException {
+		prefix = UUID.randomUUID().toString() + ":";
+		replySession = qConnect.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+		replyReceiver = replySession.createReceiver(responseQ, "JMSCorrelationID LIKE '" + prefix + "%'");
+		replyReceiver.setMessageListener(this);
+	}
+
+	//	Generate a correlation ID for a new request. IDs are unique across borrower processes and never reused within one
+	public String nextCorrelationId() {
+		return prefix + sequence.incrementAndGet();
+	}
+
+	/*	Register interest in the reply for the given correlation ID. This must be done before the request is sent, otherwise a fast lender could
+	 * 	reply before the pending entry exists and the reply would be dropped as an orphan. */
+	public PendingReply expect(String correlationId) {
+		PendingReply pendingReply = new PendingReply(correlationId, 0, null);
+		pending.put(correlationId, pendingReply);
+		QBorrower.metrics.inFlight(1);
+		return pendingReply;
+	}
+
+	/*	Asynchronous variant used when many requests are in flight at once (see BulkLoanSubmitter). Nobody blocks on the PendingReply - the 
+	 * 	callback is invoked on the dispatcher's listener thread when the reply arrives, or from expireOverdue() once the deadline has passed */
+	public PendingReply expect(String correlationId, long deadlineMillis, ReplyCallback callback) {
+		PendingReply pendingReply = new PendingReply(correlationId, deadlineMillis, callback);
+		pending.put(correlationId, pendingReply);
+		QBorrower.metrics.inFlight(1);
+		return pendingReply;
+	}
+
+	//	Forget a request, e.g. when sending it failed or the caller gave up waiting
+	public void cancel(String correlationId) {
+		if (pending.remove(correlationId) != null) {
+			QBorrower.metrics.inFlight(-1);
+		}
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/*	Time out every request whose deadline has passed and return how many were expired. The scan is linear in the number of pending requests, 
+	 * 	which the caller keeps bounded, so it is meant to be called periodically rather than per message */
+	public int expireOverdue(long nowMillis) {
+		int expired = 0;
+		Iterator<PendingReply> iterator = pending.values().iterator();
+		while (iterator.hasNext()) {
+			PendingReply pendingReply = iterator.next();
+			if (pendingReply.deadlineMillis > 0 && pendingReply.deadlineMillis <= nowMillis && pending.remove(pendingReply.correlationId, pendingReply)) {
+				QBorrower.metrics.inFlight(-1);
+				QBorrower.metrics.failed();
+				pendingReply.timeout();
+				expired++;
+			}
+		}
+		return expired;
+	}
+
+	public void onMessage(Message message) {
+		long start = System.nanoTime();
+		try {
+			String correlationId = message.getJMSCorrelationID();
+			PendingReply pendingReply = correlationId == null ? null : pending.remove(correlationId);
+			if (pendingReply == null) {
+				//	The requester already timed out (or the reply is a duplicate) - there is nobody left to hand it to
+				logger.warn("Discarding reply with no pending request: " + correlationId);
+			} else {
+				QBorrower.metrics.received(message.getJMSTimestamp());
+				QBorrower.metrics.inFlight(-1);
+				pendingReply.complete(message);
+				QBorrower.metrics.handled(start);
+			}
+		} catch (JMSException exc) {
+			QBorrower.metrics.failed();
+			logger.error(exc);
+		}
+	}
+
+	public void close() {
+		try {
+			replyReceiver.close();
+			replySession.close();
+		} catch (JMSException exc) {
+			logger.error(exc);
+		}
+		QBorrower.metrics.inFlight(-pending.size());
+		pending.clear();
+	}
+
+	/**
+	 *	Receives the outcome of an asynchronous request
+	 */
+	public interface ReplyCallback {
+
+		void onReply(String correlationId, Message reply);
+
+		void onTimeout(String correlationId);
+	}
+
+	/**
+	 *	A request that is waiting for its reply. The reply is handed over from the dispatcher's listener thread either to the thread blocked in 
+	 *	await() or to the callback the request was registered with
+	 */
+	public static class PendingReply {
+
+		private final String correlationId;
+		private final long deadlineMillis;
+		private final ReplyCallback callback;
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile Message reply;
+
+		PendingReply(String correlationId, long deadlineMillis, ReplyCallback callback) {
+			this.correlationId = correlationId;
+			this.deadlineMillis = deadlineMillis;
+			this.callback = callback;
+		}
+
+		void complete(Message message) {
+			reply = message;
+			latch.countDown();
+			if (callback != null) {
+				callback.onReply(correlationId, message);
+			}
+		}
+
+		void timeout() {
+			latch.countDown();
+			if (callback != null) {
+				callback.onTimeout(correlationId);
+			}
+		}
+
+		public String getCorrelationId() {
+			return correlationId;
+		}
+
+		//	Returns the reply, or null if none arrived within the timeout (the same contract as QueueReceiver.receive(timeout))
+		public Message await(long timeoutMillis) throws InterruptedException {
+			latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+			return reply;
+		}
+	}
+}
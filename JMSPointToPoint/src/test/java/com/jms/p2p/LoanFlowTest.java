@@ -0,0 +1,261 @@
+package com.jms.p2p;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import com.jms.testbroker.BrokerTestCase;
+
+/**
+ * Integration test for QBorrower and QLender, against an embedded broker.
+ */
+public class LoanFlowTest extends BrokerTestCase {
+
+	private static final int BULK_REQUESTS = 5000;
+
+	/*	Requests waiting for the lender when it starts, ahead of the one a test is about. With that one, as many as the lender takes in at
+	 * 	once (see QLender.MAX_PENDING) */
+	private static final int PENDING_REQUESTS = 999;
+
+	//	Long enough for the request to reach the lender, too short for the lender to answer PENDING_REQUESTS first
+	private static final long EXPIRING_TIME_TO_LIVE_MILLIS = 50;
+
+	private QLender lender;
+	private QBorrower borrower;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		lender = new QLender("QueueCF", "LoanRequestQ");
+		borrower = new QBorrower("QueueCF", "LoanRequestQ", "LoanResponseQ");
+	}
+
+	protected void tearDown() throws Exception {
+		borrower.close();
+		lender.close();
+		super.tearDown();
+	}
+
+	public void testDecisions() throws Exception {
+		//	Below 200000 the salary must be over a quarter of the loan, from 200000 on over a third
+		assertEquals("Accepted!", decide(30000, 100000));
+		assertEquals("Declined", decide(20000, 100000));
+		assertEquals("Accepted!", decide(70000, 200000));
+		assertEquals("Declined", decide(60000, 200000));
+	}
+
+	public void testBulkThroughput() throws Exception {
+		File input = File.createTempFile("loans", ".csv");
+		File results = File.createTempFile("decisions", ".csv");
+		try {
+			Writer writer = new FileWriter(input);
+			try {
+				writer.write("salary, loanAmount\n");
+				for (int i = 0; i < BULK_REQUESTS; i++) {
+					writer.write((20000 + i % 50 * 1000) + ", " + (100000 + i % 7 * 50000) + "\n");
+				}
+			} finally {
+				writer.close();
+			}
+
+			long sent = QBorrower.metrics.getSent();
+			long start = System.nanoTime();
+			new BulkLoanSubmitter(borrower, BulkLoanSubmitter.DEFAULT_MAX_IN_FLIGHT, QBorrower.REPLY_TIMEOUT_MILLIS).run(input, results);
+			report(BULK_REQUESTS, System.nanoTime() - start);
+
+			assertEquals(BULK_REQUESTS, countDecisions(results));
+			assertEquals(BULK_REQUESTS, QBorrower.metrics.getSent() - sent);
+			assertEquals(0, QBorrower.metrics.getInFlight());
+		} finally {
+			input.delete();
+			results.delete();
+		}
+	}
+
+	//	Requests the lender had taken but not answered when it was closed are not acknowledged, the next lender answers them
+	public void testCloseLeavesUnansweredRequestsToTheNextLender() throws Exception {
+		final AtomicInteger replies = new AtomicInteger();
+		ReplyDispatcher.ReplyCallback callback = new ReplyDispatcher.ReplyCallback() {
+			public void onReply(String correlationId, Message reply) {
+				replies.incrementAndGet();
+			}
+
+			public void onTimeout(String correlationId) {
+			}
+		};
+		for (int i = 0; i < 500; i++) {
+			borrower.sendLoanRequest(50000, 100000, QBorrower.REPLY_TIMEOUT_MILLIS, callback);
+		}
+		lender.close();
+		lender = new QLender("QueueCF", "LoanRequestQ");
+		await("all requests answered", new Condition() {
+			public boolean isMet() {
+				return replies.get() == 500;
+			}
+		});
+		assertEquals(0, broker.getQueueSize("jms.LoanRequestQ"));
+	}
+
+	//	A request that has been waiting behind the others longer than its time to live is acknowledged, but not answered
+	public void testExpiredRequestIsAcknowledgedWithoutAReply() throws Exception {
+		final AtomicInteger replies = new AtomicInteger();
+		ReplyDispatcher.ReplyCallback callback = new ReplyDispatcher.ReplyCallback() {
+			public void onReply(String correlationId, Message reply) {
+				replies.incrementAndGet();
+			}
+
+			public void onTimeout(String correlationId) {
+			}
+		};
+		final AtomicInteger expiredReplies = new AtomicInteger();
+		ReplyDispatcher.ReplyCallback expiredCallback = new ReplyDispatcher.ReplyCallback() {
+			public void onReply(String correlationId, Message reply) {
+				expiredReplies.incrementAndGet();
+			}
+
+			public void onTimeout(String correlationId) {
+			}
+		};
+
+		//	The lowest priority request comes last, and expires while the lender answers the ones ahead of it
+		lender.close();
+		for (int i = 0; i < PENDING_REQUESTS; i++) {
+			borrower.sendLoanRequest(400000, 1000000, QBorrower.REPLY_TIMEOUT_MILLIS, callback);
+		}
+		borrower.sendLoanRequest(5000, 10000, EXPIRING_TIME_TO_LIVE_MILLIS, expiredCallback);
+		lender = new QLender("QueueCF", "LoanRequestQ");
+		await("the backlog answered and the expired request acknowledged", new Condition() {
+			public boolean isMet() throws Exception {
+				return replies.get() == PENDING_REQUESTS && broker.getQueueSize("jms.LoanRequestQ") == 0;
+			}
+		});
+
+		assertEquals(1, lender.getExpired());
+		assertEquals(0, expiredReplies.get());
+	}
+
+	//	Requests that wait for the lender are answered highest priority first, whatever the order they were sent in
+	public void testHigherPriorityRequestIsAnsweredFirst() throws Exception {
+		final List<String> replies = Collections.synchronizedList(new ArrayList<String>());
+		ReplyDispatcher.ReplyCallback callback = new ReplyDispatcher.ReplyCallback() {
+			public void onReply(String correlationId, Message reply) {
+				replies.add("low");
+			}
+
+			public void onTimeout(String correlationId) {
+			}
+		};
+		ReplyDispatcher.ReplyCallback highCallback = new ReplyDispatcher.ReplyCallback() {
+			public void onReply(String correlationId, Message reply) {
+				replies.add("high");
+			}
+
+			public void onTimeout(String correlationId) {
+			}
+		};
+
+		lender.close();
+		for (int i = 0; i < PENDING_REQUESTS; i++) {
+			borrower.sendLoanRequest(5000, 10000, QBorrower.REPLY_TIMEOUT_MILLIS, callback);
+		}
+		borrower.sendLoanRequest(400000, 1000000, QBorrower.REPLY_TIMEOUT_MILLIS, highCallback);
+		lender = new QLender("QueueCF", "LoanRequestQ");
+		await("all requests answered", new Condition() {
+			public boolean isMet() {
+				return replies.size() == PENDING_REQUESTS + 1;
+			}
+		});
+
+		//	The lender starts answering before the whole backlog has reached it, so a few of the low priority requests may come first
+		int position = replies.indexOf("high");
+		assertTrue("answered " + position + " of " + replies.size(), position < PENDING_REQUESTS / 10);
+	}
+
+	//	A request the lender cannot answer is acknowledged and skipped, the lender goes on with the next one
+	public void testUnanswerableRequestIsSkipped() throws Exception {
+		Connection connection = broker.createConnectionFactory().createConnection();
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(session.createQueue("jms.LoanRequestQ"));
+			MapMessage noReplyTo = session.createMapMessage();
+			noReplyTo.setDouble("Salary", 30000);
+			noReplyTo.setDouble("Loan Amount", 100000);
+			producer.send(noReplyTo);
+			MapMessage topicReplyTo = session.createMapMessage();
+			topicReplyTo.setDouble("Salary", 30000);
+			topicReplyTo.setDouble("Loan Amount", 100000);
+			topicReplyTo.setJMSReplyTo(session.createTopic("jms.LoanResponseT"));
+			producer.send(topicReplyTo);
+			MapMessage notANumber = session.createMapMessage();
+			notANumber.setString("Salary", "thirty thousand");
+			notANumber.setDouble("Loan Amount", 100000);
+			notANumber.setJMSReplyTo(session.createQueue("jms.LoanResponseQ"));
+			producer.send(notANumber);
+		} finally {
+			connection.close();
+		}
+
+		assertEquals("Accepted!", decide(30000, 100000));
+		await("the unanswerable requests acknowledged", new Condition() {
+			public boolean isMet() throws Exception {
+				return broker.getQueueSize("jms.LoanRequestQ") == 0;
+			}
+		});
+	}
+
+	private String decide(double salary, double loanAmount) throws Exception {
+		final Map<String, String> replies = new ConcurrentHashMap<String, String>();
+		borrower.sendLoanRequest(salary, loanAmount, QBorrower.REPLY_TIMEOUT_MILLIS, new ReplyDispatcher.ReplyCallback() {
+			public void onReply(String correlationId, Message reply) {
+				try {
+					replies.put("reply", ((TextMessage) reply).getText());
+				} catch (JMSException exc) {
+					replies.put("reply", exc.toString());
+				}
+			}
+
+			public void onTimeout(String correlationId) {
+				replies.put("reply", "TIMEOUT");
+			}
+		});
+		await("reply to " + salary + ", " + loanAmount, new Condition() {
+			public boolean isMet() {
+				return replies.containsKey("reply");
+			}
+		});
+		return replies.get("reply");
+	}
+
+	//	Result rows are line,salary,loanAmount,decision,latencyMillis. Fails on a row that did not get a decision
+	private static int countDecisions(File results) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(results));
+		try {
+			int decisions = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String decision = line.split(",")[3];
+				assertTrue(line, decision.equals("Accepted!") || decision.equals("Declined"));
+				decisions++;
+			}
+			return decisions;
+		} finally {
+			reader.close();
+		}
+	}
+}
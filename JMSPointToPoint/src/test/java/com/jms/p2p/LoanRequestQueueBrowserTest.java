@@ -0,0 +1,83 @@
+package com.jms.p2p;
+
+import org.apache.activemq.command.ActiveMQMapMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the JSON and the statistics of LoanRequestQueueBrowser.
+ */
+public class LoanRequestQueueBrowserTest extends TestCase {
+
+	public void testValues() {
+		assertEquals("null", value(null));
+		assertEquals("42", value(42));
+		assertEquals("2.5", value(2.5));
+		assertEquals("true", value(true));
+		assertEquals("\"AQI=\"", value(new byte[] { 1, 2 }));
+		assertEquals("\"a\\\"b\\\\c\\nd\\u0001\"", value("a\"b\\c\nd\u0001"));
+	}
+
+	public void testNonFiniteNumbersAreStrings() {
+		assertEquals("\"NaN\"", value(Double.NaN));
+		assertEquals("\"Infinity\"", value(Double.POSITIVE_INFINITY));
+		assertEquals("\"-Infinity\"", value(Float.NEGATIVE_INFINITY));
+		assertEquals("\"NaN\"", value(Float.NaN));
+	}
+
+	public void testMessages() throws Exception {
+		ActiveMQTextMessage text = new ActiveMQTextMessage();
+		text.setJMSCorrelationID("c1");
+		text.setDoubleProperty("Rate", Double.NaN);
+		text.setText("loan");
+		StringBuilder json = new StringBuilder();
+		LoanRequestQueueBrowser.appendMessage(json, text, 4);
+		assertTrue(json.toString(), json.toString().contains("\"correlationId\":\"c1\""));
+		assertTrue(json.toString(), json.toString().contains("\"properties\":{\"Rate\":\"NaN\"}"));
+		assertTrue(json.toString(), json.toString().endsWith(",\"type\":\"text\",\"body\":\"loan\"}"));
+
+		ActiveMQMapMessage map = new ActiveMQMapMessage();
+		map.setDouble("Salary", Double.POSITIVE_INFINITY);
+		json.setLength(0);
+		LoanRequestQueueBrowser.appendMessage(json, map, -1);
+		assertTrue(json.toString(), json.toString().endsWith(",\"type\":\"map\",\"body\":{\"Salary\":\"Infinity\"}}"));
+	}
+
+	//	Sizes are in bytes: a text counts its UTF-8 encoding, not its chars
+	public void testSizeOfText() throws Exception {
+		ActiveMQTextMessage text = new ActiveMQTextMessage();
+		text.setText("\u00e9t\u00e9 \u20ac");
+		assertEquals(9, LoanRequestQueueBrowser.sizeOf(text));
+		assertEquals(-1, LoanRequestQueueBrowser.sizeOf(new ActiveMQMapMessage()));
+	}
+
+	public void testStatistics() {
+		LoanRequestQueueBrowser.BrowseStatistics statistics = new LoanRequestQueueBrowser.BrowseStatistics();
+		statistics.add(100, 500);
+		statistics.add(300, 5000);
+		//	Size and age unknown
+		statistics.add(-1, -1);
+		statistics.add(-1, -1);
+
+		StringBuilder json = new StringBuilder();
+		statistics.appendJson(json, "LoanRequestQ");
+		String summary = json.toString();
+		assertTrue(summary, summary.startsWith("{\"summary\":\"LoanRequestQ\",\"count\":4,\"totalSize\":400,"));
+		assertTrue(summary, summary.contains("\"minSize\":100,\"maxSize\":300,\"avgSize\":200,\"oldestAgeMillis\":5000"));
+		assertTrue(summary, summary.contains("\"sizes\":{\"<=256B\":1,\"<=1KB\":1,"));
+		assertTrue(summary, summary.contains("\"ages\":{\"<=1s\":1,\"<=10s\":1,"));
+	}
+
+	public void testEmptyStatistics() {
+		StringBuilder json = new StringBuilder();
+		new LoanRequestQueueBrowser.BrowseStatistics().appendJson(json, "LoanRequestQ");
+		assertTrue(json.toString(), json.toString().contains("\"count\":0,\"totalSize\":0,\"minSize\":0,\"maxSize\":0,\"avgSize\":0"));
+	}
+
+	private static String value(Object value) {
+		StringBuilder json = new StringBuilder();
+		LoanRequestQueueBrowser.appendValue(json, value);
+		return json.toString();
+	}
+}
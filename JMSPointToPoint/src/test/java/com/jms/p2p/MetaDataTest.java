@@ -0,0 +1,67 @@
+package com.jms.p2p;
+
+import java.util.Map;
+
+import com.jms.testbroker.BrokerTestCase;
+
+/**
+ * Integration test for the MetaData probe, against an embedded broker.
+ */
+public class MetaDataTest extends BrokerTestCase {
+
+	public void testHealthyBroker() throws Exception {
+		MetaData metaData = new MetaData("QueueCF", "-seconds", "1");
+		assertEquals(MetaData.OK, metaData.probe());
+
+		Map<String, String> report = metaData.getReport();
+		assertEquals("OK", report.get("status"));
+		assertEquals("ActiveMQ", report.get("provider"));
+		assertTrue(report.get("jmsx.properties"), report.get("jmsx.properties").contains("JMSXGroupID"));
+		assertEquals("20", report.get("ping.count"));
+		assertEquals(report.get("throughput.sent"), report.get("throughput.received"));
+		assertTrue(Long.parseLong(report.get("throughput.perSecond")) > 0);
+		report(Long.parseLong(report.get("throughput.received")), (long) (Double.parseDouble(report.get("throughput.seconds")) * 1e9));
+	}
+
+	public void testNamedScratchQueue() throws Exception {
+		MetaData metaData = new MetaData("-queue", "queue1", "-seconds", "1");
+		assertEquals(MetaData.OK, metaData.probe());
+		assertEquals("queue://jms.queue1", metaData.getReport().get("queue"));
+		assertEquals(0, broker.getQueueSize("jms.queue1"));
+	}
+
+	public void testSlowPingWarns() throws Exception {
+		assertEquals(MetaData.WARNING, new MetaData("-seconds", "1", "-warn", "0").probe());
+		assertEquals(MetaData.CRITICAL, new MetaData("-seconds", "1", "-warn", "0", "-critical", "0").probe());
+		assertEquals(MetaData.WARNING, new MetaData("-seconds", "1", "-minRate", String.valueOf(Long.MAX_VALUE)).probe());
+	}
+
+	public void testCriticalFollowsWarn() throws Exception {
+		assertEquals(MetaData.OK, new MetaData("-seconds", "1", "-warn", "1000").probe());
+	}
+
+	public void testUnknownFactory() {
+		MetaData metaData = new MetaData("NoSuchCF");
+		assertEquals(MetaData.UNKNOWN, metaData.probe());
+		assertEquals("UNKNOWN", metaData.getReport().get("status"));
+	}
+
+	public void testQueueNameOfAFactory() {
+		MetaData metaData = new MetaData("-queue", "QueueCF");
+		assertEquals(MetaData.UNKNOWN, metaData.probe());
+		assertEquals("UNKNOWN", metaData.getReport().get("status"));
+	}
+
+	public void testInvalidArguments() {
+		try {
+			new MetaData("QueueCF", "-seconds");
+			fail("Option without a value accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			new MetaData("-warn", "100", "-critical", "10");
+			fail("Critical below warn accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.jms.p2p;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ReplyCache.
+ */
+public class ReplyCacheTest extends TestCase {
+
+	public void testReturnsCachedDecision() {
+		ReplyCache replyCache = new ReplyCache(10, 1000);
+		assertNull(replyCache.get("a", 0));
+		replyCache.put("a", true, 0);
+		replyCache.put("b", false, 0);
+		assertEquals(Boolean.TRUE, replyCache.get("a", 10));
+		assertEquals(Boolean.FALSE, replyCache.get("b", 10));
+		assertEquals(2, replyCache.getHits());
+		assertEquals(1, replyCache.getMisses());
+	}
+
+	public void testEvictsOldestWhenFull() {
+		ReplyCache replyCache = new ReplyCache(2, 1000);
+		replyCache.put("a", true, 0);
+		replyCache.put("b", true, 1);
+		replyCache.put("c", true, 2);
+		assertEquals(2, replyCache.size());
+		assertNull(replyCache.get("a", 3));
+		assertNotNull(replyCache.get("c", 3));
+	}
+
+	public void testExpiresByAge() {
+		ReplyCache replyCache = new ReplyCache(10, 100);
+		replyCache.put("a", true, 0);
+		assertNull(replyCache.get("a", 101));
+		replyCache.put("b", true, 150);
+		assertEquals(1, replyCache.size());
+	}
+
+	//	An entry put again counts from its new timestamp, and does not hold up the eviction of the ones put after it
+	public void testPutAgainMovesToTheTail() {
+		ReplyCache replyCache = new ReplyCache(10, 100);
+		replyCache.put("a", true, 0);
+		replyCache.put("b", true, 10);
+		replyCache.put("a", false, 50);
+		replyCache.put("c", true, 120);
+		assertEquals(2, replyCache.size());
+		assertNull(replyCache.get("b", 120));
+		assertEquals(Boolean.FALSE, replyCache.get("a", 120));
+	}
+
+	public void testSurvivesRestartInMappedFile() throws Exception {
+		File file = File.createTempFile("replycache", ".dat");
+		file.deleteOnExit();
+		long now = System.currentTimeMillis();
+
+		ReplyCache replyCache = new ReplyCache(4, 60000, file);
+		for (int i = 0; i < 6; i++) {
+			replyCache.put("request-" + i, i % 2 == 0, now + i);
+		}
+		replyCache.close();
+
+		ReplyCache reopened = new ReplyCache(4, 60000, file);
+		assertEquals(4, reopened.size());
+		assertNull(reopened.get("request-1", now + 10));
+		assertEquals(Boolean.TRUE, reopened.get("request-4", now + 10));
+		assertEquals(Boolean.FALSE, reopened.get("request-5", now + 10));
+		reopened.close();
+	}
+
+	//	A slot whose key does not match its check byte, or whose timestamp was never written, is not loaded
+	public void testSkipsIncompletelyWrittenSlots() throws Exception {
+		File file = File.createTempFile("replycache", ".dat");
+		file.deleteOnExit();
+		long now = System.currentTimeMillis();
+
+		ReplyCache replyCache = new ReplyCache(4, 60000, file);
+		for (int i = 0; i < 3; i++) {
+			replyCache.put("request-" + i, true, now + i);
+		}
+		replyCache.close();
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(ReplyCache.HEADER_BYTES + ReplyCache.KEY_OFFSET);
+			randomAccessFile.write('R');
+			randomAccessFile.seek(ReplyCache.HEADER_BYTES + ReplyCache.SLOT_BYTES);
+			randomAccessFile.writeLong(0);
+		} finally {
+			randomAccessFile.close();
+		}
+
+		ReplyCache reopened = new ReplyCache(4, 60000, file);
+		assertEquals(1, reopened.size());
+		assertNull(reopened.get("request-0", now + 10));
+		assertNull(reopened.get("request-1", now + 10));
+		assertEquals(Boolean.TRUE, reopened.get("request-2", now + 10));
+		reopened.close();
+	}
+}
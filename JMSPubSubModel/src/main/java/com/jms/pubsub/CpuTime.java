@@ -0,0 +1,64 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+
+//	CpuTime reads the CPU time of the process and of the current thread for the benchmarks, and formats it for their reports
+
+public class CpuTime {
+
+	/*	Process CPU time is only available through the HotSpot extension of the OperatingSystemMXBean, and thread CPU time only where the JVM
+	 * 	supports and enables it. Elsewhere the readings are UNAVAILABLE, and so is any figure computed from them, which the reports print as
+	 * 	n/a instead of a number */
+	public static final long UNAVAILABLE = -1;
+
+	private static final String NOT_AVAILABLE = "n/a";
+
+	private CpuTime() {
+	}
+
+	public static long processNanos() {
+		OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+		if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuTime();
+		}
+		return UNAVAILABLE;
+	}
+
+	public static long currentThreadNanos() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean.isCurrentThreadCpuTimeSupported()) {
+			return threadBean.getCurrentThreadCpuTime();
+		}
+		return UNAVAILABLE;
+	}
+
+	//	later - earlier, or UNAVAILABLE if either is
+	public static long difference(long later, long earlier) {
+		return later == UNAVAILABLE || earlier == UNAVAILABLE ? UNAVAILABLE : later - earlier;
+	}
+
+	//	first + second, or UNAVAILABLE if either is
+	public static long sum(long first, long second) {
+		return first == UNAVAILABLE || second == UNAVAILABLE ? UNAVAILABLE : first + second;
+	}
+
+	//	e.g. 1.25s
+	public static String seconds(long nanos) {
+		return nanos == UNAVAILABLE ? NOT_AVAILABLE : String.format("%.2fs", nanos / 1e9);
+	}
+
+	//	CPU time per event, e.g. 3.4us
+	public static String microsPer(long nanos, long count) {
+		if (nanos == UNAVAILABLE) {
+			return NOT_AVAILABLE;
+		}
+		return String.format("%.1fus", count == 0 ? 0.0 : nanos / 1e3 / count);
+	}
+}
@@ -0,0 +1,164 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+
+import org.apache.log4j.Logger;
+
+import com.jms.metrics.MessagingMetrics;
+
+//	HandoffListener takes messages off the JMS dispatch thread and hands them to a dedicated consumer thread through an SpscRingBuffer
+
+public class HandoffListener implements MessageListener {
+
+	/*	The provider calls onMessage() on its dispatch thread and delivers the session's next message only after onMessage() returns. So
+	 * 	whatever the listener does - decoding, deciding, logging - adds to the latency of every message behind it. HandoffListener's onMessage()
+	 * 	only puts the message into a ring buffer, and the consumer thread passes the messages to the target listener in the order they
+	 * 	arrived.
+	 *
+	 * 	-	Errors are isolated per message: an exception from the target is logged with the message ID and counted, and the consumer thread
+	 * 		carries on with the next message.
+	 * 	-	When the ring is full the dispatch thread waits for room, so a consumer that cannot keep up slows down delivery (and the provider
+	 * 		stops sending once its prefetch is used up) rather than messages piling up without bound.
+	 * 	-	The consumer parks when the ring is empty. The dispatch thread only pays for an unpark() when the consumer is actually parked. The
+	 * 		ring publishes with ordered rather than volatile stores, so in a rare race the dispatch thread can miss that the consumer is about
+	 * 		to park; the consumer never parks longer than MAX_PARK_NANOS, which bounds the delay for that message.
+	 *
+	 * 	With AUTO_ACKNOWLEDGE a message is acknowledged when onMessage() returns, i.e. when it is handed off, not when it is handled. Messages
+	 * 	still in the ring are lost if the process dies, which is fine for rate ticks that the next tick or a snapshot supersedes.
+	 *
+	 * 	Given MessagingMetrics, a message counts as received when it arrives on the dispatch thread, with its end-to-end latency, and in flight
+	 * 	until the target has handled it. The handler time is the target's, the wait in the ring is not part of it */
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	//	How long the dispatch thread waits between attempts when the ring is full
+	private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final SpscRingBuffer<Message> ring;
+	private final MessageListener target;
+	private final MessagingMetrics metrics;
+	private final Thread consumer;
+
+	private volatile boolean consumerParked;
+	private volatile boolean running = true;
+	private volatile long handled;
+	private volatile long failed;
+
+	final static Logger logger = Logger.getLogger(HandoffListener.class);
+
+	public HandoffListener(MessageListener target, int capacity, String threadName) {
+		this(target, capacity, threadName, null);
+	}
+
+	//	metrics may be null for none
+	public HandoffListener(MessageListener target, int capacity, String threadName, MessagingMetrics metrics) {
+		this.target = target;
+		this.metrics = metrics;
+		this.ring = new SpscRingBuffer<Message>(capacity);
+		this.consumer = new Thread(new Runnable() {
+			public void run() {
+				consume();
+			}
+		}, threadName);
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	//	Called on the dispatch thread
+	public void onMessage(Message message) {
+		if (metrics != null) {
+			metrics.received(timestamp(message));
+		}
+		while (!ring.offer(message)) {
+			if (!running) {
+				return;
+			}
+			LockSupport.parkNanos(FULL_WAIT_NANOS);
+		}
+		if (metrics != null) {
+			metrics.inFlight(1);
+		}
+		if (consumerParked) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	private void consume() {
+		while (running) {
+			Message message = ring.poll();
+			if (message == null) {
+				//	Announce the park, then look once more, so an offer() between the poll() and the park() is not missed
+				consumerParked = true;
+				message = ring.poll();
+				if (message == null) {
+					LockSupport.parkNanos(this, MAX_PARK_NANOS);
+					consumerParked = false;
+					continue;
+				}
+				consumerParked = false;
+			}
+			long start = System.nanoTime();
+			try {
+				target.onMessage(message);
+				handled++;
+				if (metrics != null) {
+					metrics.handled(start);
+				}
+			} catch (RuntimeException exc) {
+				failed++;
+				if (metrics != null) {
+					metrics.failed();
+				}
+				logger.error("Failed to handle message " + messageId(message) + ", skipping it", exc);
+			}
+			if (metrics != null) {
+				metrics.inFlight(-1);
+			}
+		}
+	}
+
+	private static long timestamp(Message message) {
+		try {
+			return message.getJMSTimestamp();
+		} catch (JMSException exc) {
+			return 0;
+		}
+	}
+
+	private static String messageId(Message message) {
+		try {
+			return message.getJMSMessageID();
+		} catch (JMSException exc) {
+			return "(unknown)";
+		}
+	}
+
+	//	Stop the consumer thread. Messages still in the ring are not handled
+	public void close() {
+		running = false;
+		LockSupport.unpark(consumer);
+	}
+
+	public long getHandled() {
+		return handled;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public int getBacklog() {
+		return ring.size();
+	}
+}
@@ -0,0 +1,43 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+//	LastValueSlot holds the latest rate of one product for a conflating TBorrower
+
+public class LastValueSlot {
+
+	/*	The JMS listener thread overwrites the slot with every rate it receives and the decision thread takes whatever is in the slot when it
+	 * 	gets round to it. Rates that were overwritten before the decision thread saw them are simply gone - which is the point: a slow decision
+	 * 	thread only ever sees the latest rate, and the listener never waits for it, so nothing backs up in the client or at the broker.
+	 *
+	 * 	The rate is kept as the raw bits of the double in an AtomicLong, so neither side locks or allocates. NaN marks an empty slot. */
+
+	private static final long EMPTY = Double.doubleToRawLongBits(Double.NaN);
+
+	private final AtomicLong bits = new AtomicLong(EMPTY);
+
+	//	Only written by the listener thread
+	private volatile long overwritten;
+
+	//	Called by the listener thread
+	public void overwrite(double rate) {
+		if (bits.getAndSet(Double.doubleToRawLongBits(rate)) != EMPTY) {
+			overwritten++;
+		}
+	}
+
+	//	Called by the decision thread. Returns the latest rate and empties the slot, or returns NaN if no rate arrived since the last take()
+	public double take() {
+		return Double.longBitsToDouble(bits.getAndSet(EMPTY));
+	}
+
+	//	Number of rates that were replaced before they were taken
+	public long getOverwritten() {
+		return overwritten;
+	}
+}
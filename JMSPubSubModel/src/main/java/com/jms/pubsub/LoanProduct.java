@@ -0,0 +1,72 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+//	LoanProduct lists the loan products rates are published for. The id is what goes over the wire (see RateRecords), the code is what people
+//	type and what message selectors match on
+
+public enum LoanProduct {
+
+	FIXED_30Y(1, "30Y", 360, 6.5),
+	FIXED_20Y(2, "20Y", 240, 6.25),
+	FIXED_15Y(3, "15Y", 180, 5.75),
+	FIXED_10Y(4, "10Y", 120, 5.5),
+	ARM_5_1(5, "ARM5", 360, 5.9),
+	ARM_7_1(6, "ARM7", 360, 6.0),
+	ARM_10_1(7, "ARM10", 360, 6.1);
+
+	//	Indexed by id, so decoding a record looks the product up without a map or an allocation
+	private static final LoanProduct[] BY_ID = new LoanProduct[8];
+
+	static {
+		for (LoanProduct product : values()) {
+			BY_ID[product.id] = product;
+		}
+	}
+
+	private final int id;
+	private final String code;
+	private final int termMonths;
+	private final double typicalRate;
+
+	private LoanProduct(int id, String code, int termMonths, double typicalRate) {
+		this.id = id;
+		this.code = code;
+		this.termMonths = termMonths;
+		this.typicalRate = typicalRate;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	public int getTermMonths() {
+		return termMonths;
+	}
+
+	//	Starting point of the generated rate feed
+	double getTypicalRate() {
+		return typicalRate;
+	}
+
+	//	Returns null for an id this version does not know
+	public static LoanProduct byId(int id) {
+		return id > 0 && id < BY_ID.length ? BY_ID[id] : null;
+	}
+
+	public static LoanProduct byCode(String code) {
+		for (LoanProduct product : values()) {
+			if (product.code.equalsIgnoreCase(code)) {
+				return product;
+			}
+		}
+		throw new IllegalArgumentException("Unknown loan product: " + code);
+	}
+}
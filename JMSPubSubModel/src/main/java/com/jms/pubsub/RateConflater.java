@@ -0,0 +1,71 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+//	RateConflater keeps only the latest tick per product between two flushes of the RateFeed conflation window
+
+public class RateConflater {
+
+	/*	A subscriber only ever acts on the latest rate of a product, so when a product ticks several times within one conflation window only the
+	 * 	last of those ticks is published. Products that did not tick during the window are not published at all.
+	 *
+	 * 	There is one slot per product, indexed by the product's ordinal and reused for every tick, so offering a tick does not allocate. The
+	 * 	conflater is used by the feed thread only and is not thread safe. */
+
+	private final Slot[] slots = new Slot[LoanProduct.values().length];
+	private final List<RateTick> dirty = new ArrayList<RateTick>();
+
+	private long offered;
+	private long conflated;
+
+	public void offer(RateTick tick) {
+		offered++;
+		Slot slot = slots[tick.product.ordinal()];
+		if (slot == null) {
+			slot = new Slot();
+			slots[tick.product.ordinal()] = slot;
+		}
+		if (slot.dirty) {
+			//	An unpublished tick of the same product is overwritten
+			conflated++;
+		} else {
+			slot.dirty = true;
+			dirty.add(slot.tick);
+		}
+		slot.tick.set(tick.product, tick.rate, tick.effectiveMillis);
+	}
+
+	//	The latest tick of every product that ticked since the last flush. Call clear() once they have been published
+	public List<RateTick> pending() {
+		return dirty;
+	}
+
+	public void clear() {
+		for (Slot slot : slots) {
+			if (slot != null) {
+				slot.dirty = false;
+			}
+		}
+		dirty.clear();
+	}
+
+	public long getOffered() {
+		return offered;
+	}
+
+	public long getConflated() {
+		return conflated;
+	}
+
+	private static class Slot {
+
+		final RateTick tick = new RateTick();
+		boolean dirty;
+	}
+}
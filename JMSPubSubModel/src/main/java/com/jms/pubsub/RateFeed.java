@@ -0,0 +1,267 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.*;
+
+import org.apache.log4j.Logger;
+
+//	RateFeed is the high-rate publishing loop behind the TLender feed mode
+
+public class RateFeed {
+
+	/*	The interactive TLender publishes one rate whenever somebody types it in. As a real rate feed it has to publish tens of thousands of ticks
+	 * 	per second, so the feed loop does a few things differently:
+	 *
+	 * 		-	One TopicPublisher and one BytesMessage are created up front and reused for every message (the provider copies the message on
+	 * 			send)
+	 * 		-	Ticks are encoded as fixed-size binary records (see RateRecords) and packed up to batchSize records per message. A batch is
+	 * 			published when it is full, as soon as the pacing makes the loop wait for the next tick, and at the latest once its first tick
+	 * 			has lingered in it for the max linger (1 ms by default). The feed polls the source with that deadline (see RateSource.poll()),
+	 * 			so a batch does not wait for a quiet source either
+	 * 		-	Ticks are published NON_PERSISTENT. A rate is superseded by the next one within moments, so there is nothing to gain from writing
+	 * 			it to the broker's store first. The delivery mode is passed on every publish, so the publisher's default - used by the rates 
+	 * 			TLender publishes from the console - is left as it is
+	 * 		-	Sends are asynchronous: the publisher does not wait for the broker to confirm each tick (see TLender.enableAsyncSend())
+	 * 		-	The publishing rate is paced against System.nanoTime(), so a target of e.g. 20000 rates/sec is held on average without a timer
+	 * 			per tick. A target of 0 publishes as fast as the source and the connection allow
+	 * 		-	Every tick is stamped with a sequence number when it is published, counting 1, 2, 3, ... per product, so subscribers can tell
+	 * 			whether they missed a tick of a product (see SequenceTracker). Ticks dropped by conflation are never published, so they leave no
+	 * 			gap
+	 *
+	 * 	A selectable feed gives up batching: every tick is published in a message of its own, carrying the tick in its properties as well (see
+	 * 	RateRecords.setSelectorProperties()). That costs one message per tick at the publisher, but lets the broker deliver each subscriber only
+	 * 	the ticks its selector asks for.
+	 *
+	 * 	A timestamped feed stamps every message with System.nanoTime() in the PublishNanos property just before it is published. nanoTime() is
+	 * 	only comparable within one JVM, so this is for subscribers running in the same process as the feed (see SubscriberHarness).
+	 *
+	 * 	The achieved rate is logged once per reporting interval and at the end.
+	 *
+	 * 	With a conflation window, ticks are not published as they come from the source. Only the latest tick of each product is kept (see
+	 * 	RateConflater), and those are published together once per window. Subscribers then receive at most one tick per product per window,
+	 * 	however fast the source ticks. The window is timed by the feed's poll of the source, so the latest ticks go out when it ends even if the
+	 * 	source has gone quiet. */
+
+	private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	public static final int DEFAULT_BATCH_SIZE = 64;
+	public static final long DEFAULT_MAX_LINGER_MILLIS = 1;
+	public static final String PUBLISH_NANOS_PROPERTY = "PublishNanos";
+
+	private final TopicPublisher topicPublisher;
+	private final BytesMessage bytesMessage;
+	private final RateSource rateSource;
+	private final RateTick tick = new RateTick();
+	private final RateRecords batch;
+	private long maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_LINGER_MILLIS);
+	//	When the first tick of the current batch was added to it
+	private long batchStartNanos;
+
+	private RateConflater rateConflater = null;
+	private long conflationWindowNanos;
+	private boolean selectable;
+	private boolean timestamped;
+	private RateSnapshot rateSnapshot = null;
+
+	private long published;
+	//	Read by other threads while the feed runs (see getMessages())
+	private volatile long messages;
+	//	Indexed by product ordinal
+	private final long[] sequences = new long[LoanProduct.values().length];
+
+	final static Logger logger = Logger.getLogger(RateFeed.class);
+
+	public RateFeed(TopicSession topicSession, TopicPublisher topicPublisher, RateSource rateSource) throws JMSException {
+		this(topicSession, topicPublisher, rateSource, DEFAULT_BATCH_SIZE);
+	}
+
+	//	batchSize is the maximum number of rate records packed into one message
+	public RateFeed(TopicSession topicSession, TopicPublisher topicPublisher, RateSource rateSource, int batchSize) throws JMSException {
+		this.batch = new RateRecords(batchSize);
+		this.topicPublisher = topicPublisher;
+		this.rateSource = rateSource;
+		this.bytesMessage = topicSession.createBytesMessage();
+	}
+
+	//	Publish only the latest tick per product once every windowMillis (0 turns conflation off)
+	public void setConflationWindow(long windowMillis) {
+		rateConflater = windowMillis > 0 ? new RateConflater() : null;
+		conflationWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+	}
+
+	//	Publish a batch that is not full yet once its first tick has waited this long for others to join it
+	public void setMaxLinger(long lingerMillis) {
+		maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+	}
+
+	//	Publish one tick per message with selector properties (see RateRecords.setSelectorProperties())
+	public void setSelectable(boolean selectable) {
+		this.selectable = selectable;
+	}
+
+	//	Keep the latest tick of every product in the snapshot (see RateSnapshot), null for none
+	public void setSnapshot(RateSnapshot rateSnapshot) {
+		this.rateSnapshot = rateSnapshot;
+	}
+
+	//	Stamp every message with its publish time in nanoseconds (see PUBLISH_NANOS_PROPERTY)
+	public void setTimestamped(boolean timestamped) {
+		this.timestamped = timestamped;
+	}
+
+	//	Number of messages published so far, may be called from any thread
+	public long getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @param targetRate		rates per second to publish, 0 for as fast as possible
+	 * @param durationSeconds	stop after this many seconds, 0 to run until the source is exhausted
+	 * @return the number of rates published
+	 */
+	public long run(int targetRate, int durationSeconds) throws JMSException, IOException {
+		long periodNanos = targetRate > 0 ? TimeUnit.SECONDS.toNanos(1) / targetRate : 0;
+		long startNanos = System.nanoTime();
+		long endNanos = durationSeconds > 0 ? startNanos + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+		long nextReportNanos = startNanos + REPORT_INTERVAL_NANOS;
+		long reportedCount = 0;
+		long reportedNanos = startNanos;
+		long nextFlushNanos = startNanos + conflationWindowNanos;
+		long ticks = 0;
+		long now = startNanos;
+
+		while (true) {
+			int polled = rateSource.poll(tick, waitNanos(now, endNanos, nextFlushNanos));
+			if (polled == RateSource.END) {
+				break;
+			}
+			now = System.nanoTime();
+			if (polled == RateSource.TICK) {
+				if (periodNanos > 0) {
+					//	Take tick n from the source no earlier than n periods after the start - falling behind is caught up, running ahead waits
+					long dueNanos = startNanos + ticks * periodNanos;
+					if (now < dueNanos) {
+						flushBatch();
+					}
+					while (now < dueNanos) {
+						LockSupport.parkNanos(dueNanos - now);
+						now = System.nanoTime();
+					}
+				}
+				if (now >= endNanos) {
+					break;
+				}
+
+				ticks++;
+				if (rateConflater == null) {
+					publish(tick);
+				} else {
+					rateConflater.offer(tick);
+				}
+			} else if (now >= endNanos) {
+				break;
+			}
+			if (rateConflater != null && now >= nextFlushNanos && !rateConflater.pending().isEmpty()) {
+				flushConflated();
+				nextFlushNanos = now + conflationWindowNanos;
+			}
+			if (batch.size() > 0 && now - batchStartNanos >= maxLingerNanos) {
+				flushBatch();
+			}
+
+			if (now >= nextReportNanos) {
+				logger.info("Published " + published + " rates in " + messages + " messages, " + perSecond(published - reportedCount, now - reportedNanos) 
+						+ " rates/sec");
+				reportedCount = published;
+				reportedNanos = now;
+				nextReportNanos = now + REPORT_INTERVAL_NANOS;
+			}
+		}
+
+		if (rateConflater != null) {
+			flushConflated();
+			logger.info("Conflated " + rateConflater.getConflated() + " of " + rateConflater.getOffered() + " ticks");
+		}
+		flushBatch();
+		long elapsed = System.nanoTime() - startNanos;
+		logger.info("Feed finished: " + published + " rates in " + messages + " messages in " + String.format("%.1f", elapsed / 1e9) + " s, " 
+				+ perSecond(published, elapsed) + " rates/sec, " + perSecond(messages, elapsed) + " msgs/sec");
+		return published;
+	}
+
+	//	How long the source may keep the loop waiting: until the batch has lingered long enough, the conflation window ends or the run is over
+	private long waitNanos(long now, long endNanos, long nextFlushNanos) {
+		long deadline = endNanos;
+		if (batch.size() > 0) {
+			deadline = Math.min(deadline, batchStartNanos + maxLingerNanos);
+		}
+		if (rateConflater != null && !rateConflater.pending().isEmpty()) {
+			deadline = Math.min(deadline, nextFlushNanos);
+		}
+		return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, deadline - now);
+	}
+
+	private void flushConflated() throws JMSException {
+		for (RateTick latest : rateConflater.pending()) {
+			publish(latest);
+		}
+		rateConflater.clear();
+		flushBatch();
+	}
+
+	private void publish(RateTick rateTick) throws JMSException {
+		long sequence = ++sequences[rateTick.product.ordinal()];
+		if (batch.size() == 0) {
+			batchStartNanos = System.nanoTime();
+		}
+		batch.add(rateTick.product.getId(), rateTick.product.getTermMonths(), rateTick.rate, rateTick.effectiveMillis, sequence);
+		published++;
+		if (rateSnapshot != null) {
+			rateSnapshot.update(rateTick.product.getId(), rateTick.rate, rateTick.effectiveMillis, sequence);
+		}
+		if (selectable) {
+			sendBatch(rateTick);
+		} else if (batch.isFull()) {
+			sendBatch(null);
+		}
+	}
+
+	private void flushBatch() throws JMSException {
+		if (batch.size() > 0) {
+			sendBatch(null);
+		}
+	}
+
+	//	single is the one tick in the batch when the message should carry selector properties, otherwise null
+	private void sendBatch(RateTick single) throws JMSException {
+		bytesMessage.clearBody();
+		bytesMessage.clearProperties();
+		if (single != null) {
+			RateRecords.setSelectorProperties(bytesMessage, single.product, single.rate);
+		}
+		batch.writeTo(bytesMessage);
+		if (timestamped) {
+			bytesMessage.setLongProperty(PUBLISH_NANOS_PROPERTY, System.nanoTime());
+		}
+		long start = System.nanoTime();
+		try {
+			topicPublisher.publish(bytesMessage, DeliveryMode.NON_PERSISTENT, topicPublisher.getPriority(), topicPublisher.getTimeToLive());
+		} catch (JMSException exc) {
+			TLender.metrics.failed();
+			throw exc;
+		}
+		TLender.metrics.sent(start);
+		messages++;
+	}
+
+	private static long perSecond(long count, long nanos) {
+		return nanos <= 0 ? 0 : count * TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+}
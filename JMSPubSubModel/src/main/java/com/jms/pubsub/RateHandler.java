@@ -0,0 +1,14 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+//	RateHandler receives the records decoded from a rate message (see RateRecords.decode()). The fields are passed as primitives so that
+//	decoding does not create an object per tick
+
+public interface RateHandler {
+
+	void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence);
+}
@@ -0,0 +1,119 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.nio.ByteBuffer;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+//	RateRecords encodes rate ticks into, and decodes them out of, the body of a BytesMessage
+
+public class RateRecords {
+
+	/*	Wire format (schema version 1). A message is marked with the int property RateSchema = 1 and its body holds one or more fixed-size
+	 * 	records back to back, so the number of records is the body length divided by RECORD_BYTES. Each record is big-endian, the byte order
+	 * 	BytesMessage.writeDouble() and friends use:
+	 *
+	 * 		offset	size	field
+	 * 		0		2		product id (see LoanProduct)
+	 * 		2		2		term in months
+	 * 		4		4		reserved, 0
+	 * 		8		8		rate (IEEE 754 double, percent)
+	 * 		16		8		effective timestamp (milliseconds since the epoch)
+	 * 		24		8		sequence number, per product (see RateFeed)
+	 *
+	 * 	A message without the RateSchema property is the original format: a single anonymous double.
+	 *
+	 * 	A message selector can only see message properties, not the body. A message that holds exactly one record can therefore also carry
+	 * 	that record as the properties Product (the LoanProduct code), Term and Rate, so that subscribers can filter at the broker, e.g.
+	 *
+	 * 		Product = '30Y' AND Rate <= 5.5
+	 *
+	 * 	Batched messages never carry them, as one set of properties cannot describe a batch of different products.
+	 *
+	 * 	One RateRecords instance works on one reusable buffer, either as a publisher's batch (add() then writeTo()) or as a subscriber's
+	 * 	scratch space (decode()). Neither allocates per record. Instances are not thread safe. */
+
+	public static final String SCHEMA_PROPERTY = "RateSchema";
+	public static final int SCHEMA_VERSION = 1;
+	public static final int RECORD_BYTES = 32;
+	public static final String PRODUCT_PROPERTY = "Product";
+	public static final String TERM_PROPERTY = "Term";
+	public static final String RATE_PROPERTY = "Rate";
+
+	private byte[] buffer;
+	private ByteBuffer view;
+	private int count;
+
+	//	capacity is the number of records the buffer holds before it has to grow (publishers never let it grow - see isFull())
+	public RateRecords(int capacity) {
+		buffer = new byte[Math.max(1, capacity) * RECORD_BYTES];
+		view = ByteBuffer.wrap(buffer);
+	}
+
+	public static boolean isRateRecords(Message message) throws JMSException {
+		return message.propertyExists(SCHEMA_PROPERTY) && message.getIntProperty(SCHEMA_PROPERTY) == SCHEMA_VERSION;
+	}
+
+	public void add(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+		int offset = count * RECORD_BYTES;
+		view.putShort(offset, (short) productId);
+		view.putShort(offset + 2, (short) termMonths);
+		view.putInt(offset + 4, 0);
+		view.putDouble(offset + 8, rate);
+		view.putLong(offset + 16, effectiveMillis);
+		view.putLong(offset + 24, sequence);
+		count++;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean isFull() {
+		return (count + 1) * RECORD_BYTES > buffer.length;
+	}
+
+	//	Write the batched records into the (empty) message and start a new batch
+	public void writeTo(BytesMessage bytesMessage) throws JMSException {
+		bytesMessage.setIntProperty(SCHEMA_PROPERTY, SCHEMA_VERSION);
+		bytesMessage.writeBytes(buffer, 0, count * RECORD_BYTES);
+		count = 0;
+	}
+
+	//	Describe the single record of a message in its properties, so subscribers can select on them
+	public static void setSelectorProperties(Message message, LoanProduct product, double rate) throws JMSException {
+		message.setStringProperty(PRODUCT_PROPERTY, product.getCode());
+		message.setIntProperty(TERM_PROPERTY, product.getTermMonths());
+		message.setDoubleProperty(RATE_PROPERTY, rate);
+	}
+
+	//	Selector for the ticks of a product at or below a rate
+	public static String thresholdSelector(LoanProduct product, double maxRate) {
+		return PRODUCT_PROPERTY + " = '" + product.getCode() + "' AND " + RATE_PROPERTY + " <= " + maxRate;
+	}
+
+	//	Hand every record in the message to the handler and return the number of records
+	public int decode(BytesMessage bytesMessage, RateHandler handler) throws JMSException {
+		int length = (int) bytesMessage.getBodyLength();
+		if (length > buffer.length) {
+			//	Grows once to the largest batch seen, then stays
+			buffer = new byte[length];
+			view = ByteBuffer.wrap(buffer);
+		}
+		bytesMessage.readBytes(buffer, length);
+
+		int records = length / RECORD_BYTES;
+		for (int i = 0; i < records; i++) {
+			int offset = i * RECORD_BYTES;
+			handler.onRate(view.getShort(offset), view.getShort(offset + 2), view.getDouble(offset + 8), view.getLong(offset + 16),
+					view.getLong(offset + 24));
+		}
+		return records;
+	}
+}
@@ -0,0 +1,84 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+//	RateSnapshot holds the latest published rate of every product, which TLender sends to subscribers that ask for it when they connect
+
+public class RateSnapshot {
+
+	/*	A subscriber that connects between two ticks of a product would otherwise know nothing about that product until its next tick, which
+	 * 	for a quiet product can be a long time. So a subscriber first asks for a snapshot:
+	 *
+	 * 		1.	it subscribes to the rate topic, and buffers the ticks that arrive
+	 * 		2.	it publishes an empty request to the snapshot topic (SNAPSHOT_TOPIC in jndi.properties), with a temporary topic of its own as
+	 * 			JMSReplyTo
+	 * 		3.	TLender answers on that temporary topic with one message holding a rate record (see RateRecords) for every product it has
+	 * 			published, including the sequence number of that tick
+	 * 		4.	the subscriber applies the snapshot, then the buffered and further ticks. A tick whose sequence number is not above the
+	 * 			snapshot's for its product was already part of the snapshot and is dropped
+	 *
+	 * 	Subscribing before asking is what makes this safe: every tick is either in the snapshot, or buffered, or both - never neither.
+	 *
+	 * 	The publishing thread updates the snapshot with every tick while the snapshot responder reads it, so access is synchronized. The lock
+	 * 	is uncontended nearly all the time.
+	 *
+	 * 	TBorrower uses one as well, to buffer the ticks of step 1: only the latest of each product is needed, so the buffer stays the size of
+	 * 	the product list however long the snapshot takes. */
+
+	public static final String SNAPSHOT_TOPIC = "RateSnapshotTopic";
+
+	//	Indexed by product id, see LoanProduct
+	private static final int SLOTS = 256;
+
+	private final double[] rates = new double[SLOTS];
+	private final long[] effectiveMillis = new long[SLOTS];
+	private final long[] sequences = new long[SLOTS];
+	private final boolean[] present = new boolean[SLOTS];
+	private int products;
+
+	//	Returns true if the rate replaced an earlier one of the product
+	public synchronized boolean update(int productId, double rate, long effectiveTime, long sequence) {
+		if (productId <= 0 || productId >= SLOTS) {
+			return false;
+		}
+		boolean replaced = present[productId];
+		if (!replaced) {
+			present[productId] = true;
+			products++;
+		}
+		rates[productId] = rate;
+		effectiveMillis[productId] = effectiveTime;
+		sequences[productId] = sequence;
+		return replaced;
+	}
+
+	//	Hand the latest rate of every product to the handler, in product id order, and return the number of products
+	public synchronized int replay(RateHandler handler) {
+		for (int id = 1; id < SLOTS; id++) {
+			if (present[id]) {
+				LoanProduct product = LoanProduct.byId(id);
+				handler.onRate(id, product == null ? 0 : product.getTermMonths(), rates[id], effectiveMillis[id], sequences[id]);
+			}
+		}
+		return products;
+	}
+
+	//	Write the latest rate of every product into the (empty) message, and return the number of products
+	public synchronized int writeTo(BytesMessage bytesMessage) throws JMSException {
+		RateRecords records = new RateRecords(Math.max(1, products));
+		for (int id = 1; id < SLOTS; id++) {
+			if (present[id]) {
+				LoanProduct product = LoanProduct.byId(id);
+				records.add(id, product == null ? 0 : product.getTermMonths(), rates[id], effectiveMillis[id], sequences[id]);
+			}
+		}
+		records.writeTo(bytesMessage);
+		return products;
+	}
+}
@@ -0,0 +1,237 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//	RateSource supplies the rates published by the TLender feed mode (see RateFeed)
+
+public abstract class RateSource implements Closeable {
+
+	/*	Sources are selected with a short specification on the command line:
+	 *
+	 * 		gen				an endless random walk for every LoanProduct in turn, for load testing
+	 * 		file:path		one rate per line: "rate", "product,rate" or "product,rate,effectiveMillis"
+	 * 		socket:port		listens on the port and reads lines in the same format as a file from the first client that connects
+	 *
+	 * 	Products are LoanProduct codes (30Y, 15Y, ARM5, ...). A line without a product is a 30Y rate, a line without an effective time takes
+	 * 	effect when it is read. Lines that are blank or start with '#' are skipped, and so are malformed lines (a bad number, an unknown 
+	 * 	product): one bad line must not end a feed that runs for hours. They are counted, and logged at most once per second. */
+
+	//	Results of poll()
+	public static final int TICK = 0;
+	public static final int TIMEOUT = 1;
+	public static final int END = 2;
+
+	//	Fill in the next tick and return true, or return false when the source is exhausted
+	public abstract boolean next(RateTick tick) throws IOException;
+
+	/*	Like next(), but waits no longer than timeoutNanos for the tick (Long.MAX_VALUE for as long as it takes), so the feed can publish what
+	 * 	it holds while the source is quiet. Sources that never keep the caller waiting, like the generated one, need not override it */
+	public int poll(RateTick tick, long timeoutNanos) throws IOException {
+		return next(tick) ? TICK : END;
+	}
+
+	public void close() throws IOException {
+	}
+
+	public static RateSource open(String spec) throws IOException {
+		if ("gen".equals(spec)) {
+			return new GeneratedRateSource(System.nanoTime());
+		} else if (spec.startsWith("file:")) {
+			return new LineRateSource(new FileInputStream(spec.substring("file:".length())), null, false);
+		} else if (spec.startsWith("socket:")) {
+			ServerSocket serverSocket = new ServerSocket(Integer.parseInt(spec.substring("socket:".length())));
+			try {
+				TLender.logger.info("Waiting for a rate source to connect on port " + serverSocket.getLocalPort());
+				Socket socket = serverSocket.accept();
+				return new LineRateSource(socket.getInputStream(), socket, true);
+			} finally {
+				serverSocket.close();
+			}
+		}
+		throw new IllegalArgumentException("Unknown rate source: " + spec);
+	}
+
+	//	Random walk per product in steps of at most 0.05, kept between 2% and 12%, ticking the products round robin
+	static class GeneratedRateSource extends RateSource {
+
+		private static final LoanProduct[] PRODUCTS = LoanProduct.values();
+
+		private final Random random;
+		private final double[] rates = new double[PRODUCTS.length];
+		private int next;
+
+		GeneratedRateSource(long seed) {
+			this.random = new Random(seed);
+			for (int i = 0; i < PRODUCTS.length; i++) {
+				rates[i] = PRODUCTS[i].getTypicalRate();
+			}
+		}
+
+		@Override
+		public boolean next(RateTick tick) {
+			int i = next;
+			next = (next + 1) % PRODUCTS.length;
+			rates[i] = Math.min(12.0, Math.max(2.0, rates[i] + (random.nextDouble() - 0.5) * 0.1));
+			tick.set(PRODUCTS[i], Math.round(rates[i] * 1000) / 1000.0, System.currentTimeMillis());
+			return true;
+		}
+	}
+
+	/*	A file is read on the feed thread. A socket can keep a reader waiting for as long as the other end is quiet, so with readAhead its lines
+	 * 	are read by a thread of their own and handed over through a queue, which poll() waits on with a timeout */
+	static class LineRateSource extends RateSource {
+
+		private static final int READ_AHEAD_LINES = 1024;
+		private static final long MALFORMED_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+		//	Queued by the reader thread after the last line, compared by identity
+		private static final String END_OF_INPUT = new String();
+
+		private final BufferedReader reader;
+		private final Closeable resource;
+		private final boolean readAhead;
+
+		private BlockingQueue<String> lines = null;
+		private Thread readerThread = null;
+		private volatile IOException readFailure = null;
+
+		private long malformed;
+		private long malformedLogged;
+		private long lastMalformedLogNanos;
+
+		LineRateSource(InputStream inputStream, Closeable resource, boolean readAhead) {
+			this.reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), 1 << 16);
+			this.resource = resource;
+			this.readAhead = readAhead;
+		}
+
+		@Override
+		public boolean next(RateTick tick) throws IOException {
+			if (readAhead) {
+				return poll(tick, Long.MAX_VALUE) == TICK;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (parse(line, tick)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int poll(RateTick tick, long timeoutNanos) throws IOException {
+			if (!readAhead) {
+				return super.poll(tick, timeoutNanos);
+			}
+			if (readerThread == null) {
+				startReader();
+			}
+			long deadline = System.nanoTime() + timeoutNanos;
+			try {
+				while (true) {
+					String line = timeoutNanos == Long.MAX_VALUE ? lines.take() : lines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (line == null) {
+						return TIMEOUT;
+					}
+					if (line == END_OF_INPUT) {
+						//	Again for the next call
+						lines.offer(END_OF_INPUT);
+						if (readFailure != null) {
+							throw readFailure;
+						}
+						return END;
+					}
+					if (parse(line, tick)) {
+						return TICK;
+					}
+				}
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		private void startReader() {
+			lines = new ArrayBlockingQueue<String>(READ_AHEAD_LINES);
+			readerThread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						String line;
+						while ((line = reader.readLine()) != null) {
+							lines.put(line);
+						}
+					} catch (IOException exc) {
+						readFailure = exc;
+					} catch (InterruptedException exc) {
+						return;
+					}
+					try {
+						lines.put(END_OF_INPUT);
+					} catch (InterruptedException exc) {
+						return;
+					}
+				}
+			}, "RateSource reader");
+			readerThread.setDaemon(true);
+			readerThread.start();
+		}
+
+		//	Lines skipped as malformed so far
+		long getMalformed() {
+			return malformed;
+		}
+
+		//	Fill in the tick from one line of the source and return true, or return false for a blank line, a comment or a malformed line
+		private boolean parse(String line, RateTick tick) {
+			line = line.trim();
+			if (line.length() == 0 || line.charAt(0) == '#') {
+				return false;
+			}
+			String[] fields = line.split(",");
+			try {
+				if (fields.length == 1) {
+					tick.set(LoanProduct.FIXED_30Y, Double.parseDouble(fields[0]), System.currentTimeMillis());
+				} else {
+					long effectiveMillis = fields.length > 2 ? Long.parseLong(fields[2].trim()) : System.currentTimeMillis();
+					tick.set(LoanProduct.byCode(fields[0].trim()), Double.parseDouble(fields[1].trim()), effectiveMillis);
+				}
+				return true;
+			} catch (IllegalArgumentException exc) {
+				//	NumberFormatException included
+				malformed++;
+				long now = System.nanoTime();
+				if (malformedLogged == 0 || now - lastMalformedLogNanos >= MALFORMED_LOG_INTERVAL_NANOS) {
+					TLender.logger.warn("Skipped malformed rate line \"" + line + "\": " + exc.getMessage() + " (" + (malformed - malformedLogged) 
+							+ " malformed lines since the last warning, " + malformed + " in all)");
+					malformedLogged = malformed;
+					lastMalformedLogNanos = now;
+				}
+				return false;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (readerThread != null) {
+				readerThread.interrupt();
+			}
+			//	The socket first: closing it ends a readLine() the reader thread is waiting in, which holds the reader's lock
+			if (resource != null) {
+				resource.close();
+			}
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,415 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+//	RateStore is an embedded, append-only time series of the rates a TBorrower has received
+
+public class RateStore implements RateHandler {
+
+	/*	The store is a directory of segment files (rates-000000.seg, rates-000001.seg, ...), each a fixed size and memory-mapped, so appending a
+	 * 	rate is a few writes into memory and the operating system writes the pages out in the background. When the last segment is full a new
+	 * 	one is started; segments are never modified once full.
+	 *
+	 * 	Segment layout:
+	 *
+	 * 		offset	size	field
+	 * 		0		4		magic
+	 * 		4		4		end of the records (offset of the next record to write)
+	 * 		8		4		record count
+	 * 		12		4		reserved, 0
+	 * 		16		8		lowest effective time in the segment (milliseconds since the epoch)
+	 * 		24		8		highest effective time in the segment
+	 * 		32		...		records
+	 *
+	 * 	Records are variable length, one byte of product id followed by three deltas, each zigzag encoded (so small negative deltas stay small)
+	 * 	and written as a varint of 7 bits per byte:
+	 *
+	 * 		effective time	-	milliseconds since the previous record in the segment
+	 * 		rate			-	change since the previous rate of the same product in the segment, in thousandths of a percent (6.125 is stored
+	 * 							as 6125)
+	 * 		sequence		-	change since the previous record's sequence number in the segment
+	 *
+	 * 	A tick from the feed typically takes 5 bytes instead of the 32 of a RateRecords record. Deltas start from 0 in every segment, so each
+	 * 	segment can be read on its own, and the time range in the header lets queries skip segments that cannot match.
+	 *
+	 * 	The store only takes what it can give back unchanged, so that a replay never shows a rate that was not received: rates must be quoted
+	 * 	to at most three decimals, and effective times must not go back, which keeps replays and the bars of downsample() in time order. 
+	 * 	Anything else is skipped and counted (see append()).
+	 *
+	 * 	The store is not shared between processes. Appends and queries are synchronized, so one thread may append while another queries. */
+
+	private static final int MAGIC = 0x52545331;	// "RTS1"
+	private static final int HEADER_BYTES = 32;
+	private static final int MAX_RECORD_BYTES = 1 + 3 * 10;
+	private static final int END_OFFSET = 4;
+	private static final int COUNT_OFFSET = 8;
+	private static final int MIN_TIME_OFFSET = 16;
+	private static final int MAX_TIME_OFFSET = 24;
+
+	public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+	public static final double RATE_SCALE = 1000.0;
+
+	//	Product ids are kept below this, so per product state is an array lookup (see LoanProduct)
+	private static final int MAX_PRODUCT_ID = 256;
+
+	private final File directory;
+	private final int segmentBytes;
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	//	State of the segment being appended to
+	private Segment active;
+	private long lastMillis;
+	private long lastSequence;
+	private final long[] lastScaledRate = new long[MAX_PRODUCT_ID];
+	//	Effective time of the last rate appended, unlike lastMillis not reset by a new segment
+	private long latestMillis = Long.MIN_VALUE;
+	private long skipped;
+
+	final static Logger logger = Logger.getLogger(RateStore.class);
+
+	public RateStore(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_BYTES);
+	}
+
+	RateStore(File directory, int segmentBytes) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create rate store directory " + directory);
+		}
+
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.getName().startsWith("rates-") && file.getName().endsWith(".seg")) {
+				segments.add(Segment.open(file, segmentBytes));
+			}
+		}
+		if (segments.isEmpty()) {
+			startSegment();
+		} else {
+			//	Recover the delta state of the last segment by reading it through once
+			active = segments.get(segments.size() - 1);
+			active.read(0, Long.MIN_VALUE, Long.MAX_VALUE, new RateHandler() {
+				public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+					lastMillis = effectiveMillis;
+					lastSequence = sequence;
+					lastScaledRate[productId] = Math.round(rate * RATE_SCALE);
+				}
+			});
+			latestMillis = lastMillis;
+		}
+	}
+
+	//	RateHandler, so a RateStore can be handed straight to RateRecords.decode()
+	public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+		append(productId, rate, effectiveMillis, sequence);
+	}
+
+	/*	A rate the store cannot hold as it is - a product id outside 1 to 255, a rate with more than three decimals (or not a number at all),
+	 * 	an effective time before that of the rate appended last - is skipped rather than thrown on: the rates come in batches from the feed,
+	 * 	and one rate the store cannot take must not stop the rest of its batch. All of them are counted in getSkipped(), the 1st, 2nd, 4th, 
+	 * 	8th ... one logged */
+	public synchronized void append(int productId, double rate, long effectiveMillis, long sequence) {
+		if (productId <= 0 || productId >= MAX_PRODUCT_ID) {
+			skip("product id " + productId + " is not between 1 and " + (MAX_PRODUCT_ID - 1));
+			return;
+		}
+		double scaled = rate * RATE_SCALE;
+		long scaledRate = Math.round(scaled);
+		if (Double.isNaN(scaled) || Double.isInfinite(scaled) || Math.abs(scaled - scaledRate) > 1e-6) {
+			skip("rate " + rate + " of product id " + productId + " has more than three decimals");
+			return;
+		}
+		if (effectiveMillis < latestMillis) {
+			skip("effective time " + effectiveMillis + " of product id " + productId + " is before " + latestMillis);
+			return;
+		}
+		ByteBuffer buffer = active.buffer;
+		int position = buffer.getInt(END_OFFSET);
+		if (position + MAX_RECORD_BYTES > segmentBytes) {
+			startSegment();
+			buffer = active.buffer;
+			position = buffer.getInt(END_OFFSET);
+		}
+
+		buffer.position(position);
+		buffer.put((byte) productId);
+		writeVarLong(buffer, zigzag(effectiveMillis - lastMillis));
+		writeVarLong(buffer, zigzag(scaledRate - lastScaledRate[productId]));
+		writeVarLong(buffer, zigzag(sequence - lastSequence));
+		lastMillis = effectiveMillis;
+		latestMillis = effectiveMillis;
+		lastSequence = sequence;
+		lastScaledRate[productId] = scaledRate;
+
+		int count = buffer.getInt(COUNT_OFFSET);
+		if (count == 0 || effectiveMillis < buffer.getLong(MIN_TIME_OFFSET)) {
+			buffer.putLong(MIN_TIME_OFFSET, effectiveMillis);
+		}
+		if (count == 0 || effectiveMillis > buffer.getLong(MAX_TIME_OFFSET)) {
+			buffer.putLong(MAX_TIME_OFFSET, effectiveMillis);
+		}
+		buffer.putInt(COUNT_OFFSET, count + 1);
+		//	The end offset is written last, so a record only becomes visible once it is complete
+		buffer.putInt(END_OFFSET, buffer.position());
+	}
+
+	/**
+	 * Replay the stored rates with an effective time in [fromMillis, toMillis] to the handler, in the order they were appended
+	 *
+	 * @param productId		only rates of this product, 0 for all products
+	 * @return the number of rates replayed
+	 */
+	public synchronized long replay(int productId, long fromMillis, long toMillis, RateHandler handler) {
+		long replayed = 0;
+		for (Segment segment : segments) {
+			if (segment.overlaps(fromMillis, toMillis)) {
+				replayed += segment.read(productId, fromMillis, toMillis, handler);
+			}
+		}
+		return replayed;
+	}
+
+	/**
+	 * Downsample the rates of one product in [fromMillis, toMillis] into bars of bucketMillis each (open, high, low, close and count). Buckets
+	 * without rates produce no bar. A single bucket spanning the whole range answers questions like the lowest rate of the week. The store
+	 * only takes rates in time order, so every bucket produces one bar at most
+	 */
+	public synchronized void downsample(int productId, final long fromMillis, long toMillis, final long bucketMillis, final BarHandler handler) {
+		final Bar bar = new Bar();
+		replay(productId, fromMillis, toMillis, new RateHandler() {
+			public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+				long bucketStart = fromMillis + (effectiveMillis - fromMillis) / bucketMillis * bucketMillis;
+				if (bar.count > 0 && bucketStart != bar.startMillis) {
+					bar.emit(productId, handler);
+				}
+				bar.add(bucketStart, rate);
+			}
+		});
+		if (bar.count > 0) {
+			bar.emit(productId, handler);
+		}
+	}
+
+	public synchronized long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.buffer.getInt(COUNT_OFFSET);
+		}
+		return size;
+	}
+
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+
+	private void skip(String reason) {
+		skipped++;
+		if ((skipped & (skipped - 1)) == 0) {
+			logger.warn("Rate not stored, " + reason + " (" + skipped + " skipped so far)");
+		}
+	}
+
+	//	Force the appended rates to disk. Not needed for durability against a crash of the process, only of the machine
+	public synchronized void flush() {
+		active.buffer.force();
+	}
+
+	public synchronized void close() {
+		flush();
+		segments.clear();
+	}
+
+	private void startSegment() {
+		File file = new File(directory, String.format("rates-%06d.seg", segments.size()));
+		try {
+			active = Segment.open(file, segmentBytes);
+		} catch (IOException exc) {
+			throw new IllegalStateException("Cannot create rate store segment " + file, exc);
+		}
+		segments.add(active);
+		lastMillis = 0;
+		lastSequence = 0;
+		Arrays.fill(lastScaledRate, 0);
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static long readVarLong(ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	//	Receives the bars of downsample()
+	public interface BarHandler {
+
+		void onBar(int productId, long startMillis, double open, double high, double low, double close, int count);
+	}
+
+	private static class Bar {
+
+		long startMillis;
+		double open, high, low, close;
+		int count;
+
+		void add(long bucketStart, double rate) {
+			if (count == 0) {
+				startMillis = bucketStart;
+				open = high = low = rate;
+			}
+			high = Math.max(high, rate);
+			low = Math.min(low, rate);
+			close = rate;
+			count++;
+		}
+
+		void emit(int productId, BarHandler handler) {
+			handler.onBar(productId, startMillis, open, high, low, close, count);
+			count = 0;
+		}
+	}
+
+	private static class Segment {
+
+		final MappedByteBuffer buffer;
+
+		private Segment(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		static Segment open(File file, int segmentBytes) throws IOException {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				boolean created = randomAccessFile.length() == 0;
+				MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+						created ? segmentBytes : randomAccessFile.length());
+				if (created) {
+					buffer.putInt(0, MAGIC);
+					buffer.putInt(END_OFFSET, HEADER_BYTES);
+				} else if (buffer.getInt(0) != MAGIC) {
+					throw new IOException(file + " is not a rate store segment");
+				}
+				//	The mapping stays valid after the file is closed
+				return new Segment(buffer);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+
+		boolean overlaps(long fromMillis, long toMillis) {
+			return buffer.getInt(COUNT_OFFSET) > 0 && buffer.getLong(MIN_TIME_OFFSET) <= toMillis && buffer.getLong(MAX_TIME_OFFSET) >= fromMillis;
+		}
+
+		long read(int productId, long fromMillis, long toMillis, RateHandler handler) {
+			//	A view of its own, so reading does not move the position appends use
+			ByteBuffer view = buffer.duplicate();
+			int end = view.getInt(END_OFFSET);
+			view.position(HEADER_BYTES);
+
+			long millis = 0;
+			long sequence = 0;
+			long[] scaledRates = new long[MAX_PRODUCT_ID];
+			long read = 0;
+			while (view.position() < end) {
+				int id = view.get() & 0xFF;
+				millis += unzigzag(readVarLong(view));
+				scaledRates[id] += unzigzag(readVarLong(view));
+				sequence += unzigzag(readVarLong(view));
+				if ((productId == 0 || productId == id) && millis >= fromMillis && millis <= toMillis) {
+					LoanProduct product = LoanProduct.byId(id);
+					handler.onRate(id, product == null ? 0 : product.getTermMonths(), scaledRates[id] / RATE_SCALE, millis, sequence);
+					read++;
+				}
+			}
+			return read;
+		}
+	}
+
+	public static void main(String args[]) {
+
+		/*	main() method queries a store written by TBorrower -store dir:
+		 * 		java RateStore dir bars product bucketMinutes [days]	OHLC bars of a product over the last days (default 7)
+		 * 		java RateStore dir backtest currentRate [product]		replays the store through TBorrower's refinancing rule (a rate at least
+		 * 																1 point below the current rate) and counts the signals */
+
+		if (args.length < 3) {
+			logger.error("Invalid arguments. Should be: ");
+			logger.error("java RateStore dir bars product bucketMinutes [days]");
+			logger.error("java RateStore dir backtest currentRate [product]");
+			System.exit(0);
+		}
+
+		try {
+			RateStore rateStore = new RateStore(new File(args[0]));
+			if ("bars".equals(args[1]) && args.length >= 4) {
+				long toMillis = System.currentTimeMillis();
+				long fromMillis = toMillis - (args.length > 4 ? Long.parseLong(args[4]) : 7) * 24 * 3600 * 1000L;
+				rateStore.downsample(LoanProduct.byCode(args[2]).getId(), fromMillis, toMillis, Long.parseLong(args[3]) * 60 * 1000L,
+						new BarHandler() {
+							public void onBar(int productId, long startMillis, double open, double high, double low, double close, int count) {
+								logger.info(String.format("%tF %<tT open=%.3f high=%.3f low=%.3f close=%.3f rates=%d", startMillis, open, high, low,
+										close, count));
+							}
+						});
+			} else if ("backtest".equals(args[1])) {
+				final double threshold = Double.valueOf(args[2]) - 1.0;
+				final long[] signals = new long[1];
+				long start = System.nanoTime();
+				long replayed = rateStore.replay(args.length > 3 ? LoanProduct.byCode(args[3]).getId() : 0, Long.MIN_VALUE, Long.MAX_VALUE,
+						new RateHandler() {
+							public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+								if (rate <= threshold) {
+									signals[0]++;
+								}
+							}
+						});
+				long elapsed = System.nanoTime() - start;
+				logger.info("Replayed " + replayed + " rates in " + elapsed / 1000000 + " ms (" + (long) (replayed / Math.max(elapsed / 1e9, 1e-9))
+						+ " rates/sec): " + signals[0] + " refinancing signals");
+			} else {
+				logger.error("Unknown command: " + args[1]);
+			}
+			rateStore.close();
+		} catch (Exception exc) {
+			logger.error(exc);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+//	RateTick is a single rate update as it travels through the feed. It is deliberately mutable so that one instance can be filled in again and
+//	again by a RateSource, instead of allocating an object for every tick
+
+public class RateTick {
+
+	LoanProduct product;
+	double rate;
+	long effectiveMillis;
+
+	public LoanProduct getProduct() {
+		return product;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	//	Time from which the rate applies, in milliseconds since the epoch
+	public long getEffectiveMillis() {
+		return effectiveMillis;
+	}
+
+	void set(LoanProduct product, double rate, long effectiveMillis) {
+		this.product = product;
+		this.rate = rate;
+		this.effectiveMillis = effectiveMillis;
+	}
+
+	@Override
+	public String toString() {
+		return product.getCode() + " " + rate;
+	}
+}
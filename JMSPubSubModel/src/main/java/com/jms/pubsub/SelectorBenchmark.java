@@ -0,0 +1,192 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.*;
+import javax.naming.*;
+
+import org.apache.log4j.Logger;
+
+//	SelectorBenchmark compares filtering rate ticks in every subscriber with letting the broker filter them through message selectors
+
+public class SelectorBenchmark {
+
+	/*	Every simulated borrower watches one product and wants to hear about it only when the rate drops to its threshold or below. The same
+	 * 	ticks are published twice, to two sets of subscribers that differ only in where that condition is checked:
+	 *
+	 * 		client	-	each subscriber receives every tick, decodes it and compares it with its threshold (what TBorrower does without a selector)
+	 * 		broker	-	each subscriber registers "Product = 'x' AND Rate <= y" as its message selector and the broker delivers only matching ticks
+	 *
+	 * 	Both runs count the messages delivered to subscribers and the ticks that were actually below a threshold, and measure the CPU time the
+	 * 	process used. The subscribers share a handful of connections, one session each. The ticks are published with selector properties (see
+	 * 	RateFeed.setSelectable()) in both runs, so the publishing cost is the same.
+	 *
+	 * 	The CPU figure is for this process only. Against an external broker it is the cost on the subscriber side, and the broker's extra work
+	 * 	for evaluating selectors has to be read from the broker's own monitoring. Against an embedded broker (java.naming.provider.url=vm://...)
+	 * 	it covers both. */
+
+	private static final int SUBSCRIBERS_PER_CONNECTION = 100;
+
+	//	The run is over once no message has been delivered for this long after the last tick was published
+	private static final long QUIET_MILLIS = 1000;
+
+	private final TopicConnectionFactory topicConnectionFactory;
+	private final Topic topic;
+	private final String topicCF;
+	private final String topicName;
+
+	final static Logger logger = Logger.getLogger(SelectorBenchmark.class);
+
+	public SelectorBenchmark(String topicCF, String topicName) throws NamingException {
+		Context context = new InitialContext();
+		this.topicConnectionFactory = (TopicConnectionFactory)context.lookup(topicCF);
+		this.topic = (Topic)context.lookup(topicName);
+		this.topicCF = topicCF;
+		this.topicName = topicName;
+	}
+
+	/**
+	 * @param useSelectors	let the broker filter (true) or every subscriber filter for itself (false)
+	 * @param subscribers	number of simulated borrowers
+	 * @param ticks			number of ticks to publish
+	 * @param targetRate	ticks per second, 0 for as fast as possible
+	 */
+	public void run(boolean useSelectors, int subscribers, int ticks, int targetRate) throws JMSException, IOException {
+		final AtomicLong delivered = new AtomicLong();
+		final AtomicLong matched = new AtomicLong();
+
+		List<TopicConnection> connections = new ArrayList<TopicConnection>();
+		Random random = new Random(1);
+		LoanProduct[] products = LoanProduct.values();
+		try {
+			TopicConnection topicConnection = null;
+			for (int i = 0; i < subscribers; i++) {
+				if (i % SUBSCRIBERS_PER_CONNECTION == 0) {
+					topicConnection = topicConnectionFactory.createTopicConnection();
+					connections.add(topicConnection);
+				}
+
+				//	Thresholds up to 2 points below the product's typical rate, the same in both runs
+				LoanProduct product = products[i % products.length];
+				double threshold = Math.round((product.getTypicalRate() - random.nextDouble() * 2.0) * 100) / 100.0;
+
+				TopicSession topicSession = topicConnection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
+				TopicSubscriber topicSubscriber = topicSession.createSubscriber(topic,
+						useSelectors ? RateRecords.thresholdSelector(product, threshold) : null, false);
+				topicSubscriber.setMessageListener(new ThresholdListener(product, threshold, delivered, matched));
+			}
+			for (TopicConnection connection : connections) {
+				connection.start();
+			}
+
+			long startCpu = CpuTime.processNanos();
+			long startNanos = System.nanoTime();
+
+			//	The same seed in both runs, so both publish exactly the same ticks
+			TLender lender = new TLender(topicCF, topicName);
+			lender.setSelectable(true);
+			lender.runFeed(limit(new RateSource.GeneratedRateSource(42), ticks), targetRate, 0);
+
+			long lastCount = -1;
+			while (delivered.get() != lastCount) {
+				lastCount = delivered.get();
+				try {
+					Thread.sleep(QUIET_MILLIS);
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			long elapsedNanos = System.nanoTime() - startNanos - QUIET_MILLIS * 1000000L;
+			long cpuNanos = CpuTime.difference(CpuTime.processNanos(), startCpu);
+			lender.close();
+
+			logger.info(String.format("%-6s subscribers=%d ticks=%d delivered=%d matched=%d delivered/subscriber=%.1f wall=%.2fs cpu=%s",
+					useSelectors ? "broker" : "client", subscribers, ticks, delivered.get(), matched.get(),
+					delivered.get() / (double) subscribers, elapsedNanos / 1e9, CpuTime.seconds(cpuNanos)));
+		} finally {
+			for (TopicConnection connection : connections) {
+				connection.close();
+			}
+		}
+	}
+
+	private static RateSource limit(final RateSource rateSource, final int ticks) {
+		return new RateSource() {
+			private int count;
+
+			@Override
+			public boolean next(RateTick tick) throws IOException {
+				return count++ < ticks && rateSource.next(tick);
+			}
+		};
+	}
+
+	//	One simulated borrower. It decodes every tick it is given, as a real one would, and checks it against its threshold
+	private static class ThresholdListener implements MessageListener, RateHandler {
+
+		private final LoanProduct product;
+		private final double threshold;
+		private final AtomicLong delivered;
+		private final AtomicLong matched;
+		private final RateRecords rateRecords = new RateRecords(1);
+
+		ThresholdListener(LoanProduct product, double threshold, AtomicLong delivered, AtomicLong matched) {
+			this.product = product;
+			this.threshold = threshold;
+			this.delivered = delivered;
+			this.matched = matched;
+		}
+
+		public void onMessage(Message message) {
+			delivered.incrementAndGet();
+			try {
+				rateRecords.decode((BytesMessage)message, this);
+			} catch (JMSException exc) {
+				logger.error(exc);
+			}
+		}
+
+		public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+			if (productId == product.getId() && rate <= threshold) {
+				matched.incrementAndGet();
+			}
+		}
+	}
+
+	public static void main(String args[]) {
+
+		/*	main() method accepts the JNDI names of the topic connection factory and the rate topic, optionally followed by the number of
+		 * 	subscribers, the number of ticks and the publishing rate. Both runs go to the same topic, so nothing else should be publishing to it
+		 * 	during the benchmark. -transport spec selects the transport (see TransportProfile) */
+
+		args = TransportProfile.selectFromArguments(args);
+		if (args.length < 2 || args.length > 5) {
+			logger.error("Invalid arguments. Should be: ");
+			logger.error("java SelectorBenchmark factory topic [subscribers] [ticks] [ratePerSecond] [-transport spec]");
+			System.exit(0);
+		}
+		int subscribers = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int ticks = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+		int targetRate = args.length > 4 ? Integer.parseInt(args[4]) : 5000;
+
+		try {
+			SelectorBenchmark benchmark = new SelectorBenchmark(args[0], args[1]);
+			benchmark.run(false, subscribers, ticks, targetRate);
+			benchmark.run(true, subscribers, ticks, targetRate);
+		} catch (Exception exc) {
+			logger.error(exc);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,156 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+//	SequenceTracker follows the per product sequence numbers of the rate feed and classifies every tick as in order, after a gap, duplicate or
+//	out of order
+
+public class SequenceTracker {
+
+	/*	The publisher numbers the ticks of every product 1, 2, 3, ... (see RateFeed). Per product the tracker keeps the highest sequence number
+	 * 	seen and a 64 bit mask of which of the 64 numbers up to and including it have arrived (bit i stands for highest - i). So every tick is
+	 * 	classified with a few shifts, without keeping the ticks themselves:
+	 *
+	 * 		NEXT			the number after the highest - the normal case
+	 * 		GAP				higher than that, the numbers in between are missing (for now)
+	 * 		OUT_OF_ORDER	lower than the highest, but not seen yet: a missing tick arrived late. It fills its gap, but it is older than the rate
+	 * 						already applied, so it must not replace it. A tick at or below the number the tracker started from (the first tick 
+	 * 						after subscribing, a restart or a snapshot) was never counted as missing, so it fills no gap
+	 * 		DUPLICATE		seen before, or too far below the highest to tell
+	 * 		RESET			number 1 again, below the highest: the publisher was restarted and numbers from 1 again. This holds however few ticks
+	 * 						the old run published, the numbers of the new run would otherwise all look like duplicates. The price is that a first
+	 * 						tick delivered late, after its successors, is taken for a restart as well
+	 *
+	 * 	A tracker belongs to one thread. The counters can be read from any thread. */
+
+	public static final int NEXT = 0;
+	public static final int GAP = 1;
+	public static final int OUT_OF_ORDER = 2;
+	public static final int DUPLICATE = 3;
+	public static final int RESET = 4;
+
+	private static final int WINDOW = 64;
+
+	private final long[] highest;
+	private final long[] received;
+	//	Per product, the number tracking started from. Only numbers above it can have been counted as missing
+	private final long[] baseline;
+
+	private volatile long ticks;
+	private volatile long gaps;
+	private volatile long missing;
+	private volatile long duplicates;
+	private volatile long outOfOrder;
+	private volatile long resets;
+
+	public SequenceTracker() {
+		int maxId = 0;
+		for (LoanProduct product : LoanProduct.values()) {
+			maxId = Math.max(maxId, product.getId());
+		}
+		highest = new long[maxId + 1];
+		received = new long[maxId + 1];
+		baseline = new long[maxId + 1];
+	}
+
+	//	Classify the tick and update the counters. Ticks of products this version does not know are not tracked and always NEXT
+	public int track(int productId, long sequence) {
+		if (productId <= 0 || productId >= highest.length) {
+			return NEXT;
+		}
+		ticks++;
+		long top = highest[productId];
+		if (top == 0) {
+			//	The first tick of the product since we subscribed
+			highest[productId] = sequence;
+			received[productId] = 1;
+			baseline[productId] = sequence;
+			return NEXT;
+		}
+		if (sequence > top) {
+			long distance = sequence - top;
+			received[productId] = distance >= WINDOW ? 1 : (received[productId] << distance) | 1;
+			highest[productId] = sequence;
+			if (distance == 1) {
+				return NEXT;
+			}
+			gaps++;
+			missing += distance - 1;
+			return GAP;
+		}
+		if (sequence == 1 && top > 1) {
+			highest[productId] = 1;
+			received[productId] = 1;
+			baseline[productId] = 1;
+			resets++;
+			return RESET;
+		}
+		long distance = top - sequence;
+		if (distance >= WINDOW) {
+			duplicates++;
+			return DUPLICATE;
+		}
+		long bit = 1L << distance;
+		if ((received[productId] & bit) != 0) {
+			duplicates++;
+			return DUPLICATE;
+		}
+		received[productId] |= bit;
+		outOfOrder++;
+		if (sequence > baseline[productId]) {
+			missing--;
+		}
+		return OUT_OF_ORDER;
+	}
+
+	/*	A snapshot (see RateSnapshot) replaced everything up to the given sequence number. Returns false if the tracker has already seen a
+	 * 	newer tick of the product, in which case the snapshot's rate is outdated and must not be applied */
+	public boolean resync(int productId, long sequence) {
+		if (productId <= 0 || productId >= highest.length) {
+			return true;
+		}
+		if (sequence <= highest[productId]) {
+			return false;
+		}
+		//	Whatever was missing below the snapshot is superseded by it
+		highest[productId] = sequence;
+		received[productId] = -1L;
+		baseline[productId] = sequence;
+		return true;
+	}
+
+	public long getTicks() {
+		return ticks;
+	}
+
+	//	Number of times ticks were skipped
+	public long getGaps() {
+		return gaps;
+	}
+
+	//	Number of ticks skipped that have not arrived out of order since
+	public long getMissing() {
+		return missing;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public long getOutOfOrder() {
+		return outOfOrder;
+	}
+
+	public long getResets() {
+		return resets;
+	}
+
+	@Override
+	public String toString() {
+		return "ticks=" + ticks + " gaps=" + gaps + " missing=" + missing + " duplicates=" + duplicates + " outOfOrder=" + outOfOrder + " resets="
+				+ resets;
+	}
+}
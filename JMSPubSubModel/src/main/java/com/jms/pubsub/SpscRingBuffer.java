@@ -0,0 +1,81 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+//	SpscRingBuffer is a bounded queue for exactly one producer thread and one consumer thread, without locks
+
+public class SpscRingBuffer<E> {
+
+	/*	The entries are a preallocated array whose size is a power of two, so a sequence number maps to its slot with a mask. tail counts the
+	 * 	entries ever offered and is only written by the producer, head counts the entries ever taken and is only written by the consumer, so
+	 * 	neither needs a compare-and-set. Each side publishes its counter with lazySet(), an ordered store that is cheaper than a volatile write
+	 * 	and still guarantees that the slot written before it is visible to the other side once the counter is.
+	 *
+	 * 	Each side also keeps a private copy of the other side's counter and only rereads the shared one when the copy says the buffer is full
+	 * 	(producer) or empty (consumer). In the steady state that keeps the two threads from touching each other's counters at all.
+	 *
+	 * 	offer() must only ever be called from one thread and poll() from one (other) thread. */
+
+	private final Object[] entries;
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	//	Producer's copy of head, consumer's copy of tail
+	private long cachedHead;
+	private long cachedTail;
+
+	//	capacity is rounded up to a power of two
+	public SpscRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		entries = new Object[size];
+		mask = size - 1;
+	}
+
+	//	Producer only. Returns false if the buffer is full
+	public boolean offer(E entry) {
+		long t = tail.get();
+		if (t - cachedHead >= entries.length) {
+			cachedHead = head.get();
+			if (t - cachedHead >= entries.length) {
+				return false;
+			}
+		}
+		entries[(int) t & mask] = entry;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	//	Consumer only. Returns null if the buffer is empty
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long h = head.get();
+		if (h >= cachedTail) {
+			cachedTail = tail.get();
+			if (h >= cachedTail) {
+				return null;
+			}
+		}
+		int slot = (int) h & mask;
+		E entry = (E) entries[slot];
+		//	Let the entry be collected once it has been handled
+		entries[slot] = null;
+		head.lazySet(h + 1);
+		return entry;
+	}
+
+	//	Approximate when called while the other side is running
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return entries.length;
+	}
+}
@@ -0,0 +1,257 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+import javax.naming.*;
+
+import org.apache.log4j.Logger;
+
+import com.jms.metrics.Histogram;
+
+//	SubscriberHarness hosts thousands of simulated borrowers in one process to see how the rate topic fans out as the subscriber count grows
+
+public class SubscriberHarness {
+
+	/*	Each TBorrower is a JVM of its own with a connection of its own, which makes it impractical to run ten thousand of them. The harness
+	 * 	simulates them instead: every simulated borrower is a session with one subscriber, and the sessions share a few connections, which is
+	 * 	how a real deployment would host many subscribers in one process too. A connection is one socket and one reader thread at the client,
+	 * 	and one transport connection at the broker; a session is little more than a dispatch queue, so thousands of them are cheap.
+	 *
+	 * 	The harness runs one step per subscriber count. In each step the subscribers are created, a timestamped feed (see
+	 * 	RateFeed.setTimestamped()) publishes from this process for the given time, and the subscribers are closed again. Each step reports:
+	 *
+	 * 		-	fan-out latency percentiles, from publish to the subscriber's listener, over every delivery to every subscriber
+	 * 		-	deliveries against the number expected (messages published x subscribers)
+	 * 		-	CPU time of the process, and of the publishing thread alone. The difference is the cost of the subscriber side (which includes
+	 * 			the broker when it is embedded, e.g. java.naming.provider.url=vm://...). Where the JVM cannot measure them, they are n/a (see
+	 * 			CpuTime)
+	 * 		-	slow consumers: once a second the harness compares every subscriber's count with the number of messages published so far and
+	 * 			logs how many are more than SLOW_CONSUMER_LAG messages behind, and how far behind the worst one is. Subscribers that are
+	 * 			still missing messages after DRAIN_MILLIS are reported as incomplete: either they never caught up, or the broker cut them off
+	 * 			(e.g. by a pending message limit)
+	 *
+	 * 		-	integrity: every simulated borrower checks the sequence numbers of the ticks it receives (see SequenceTracker), and the step
+	 * 			reports the gaps, duplicates and out of order ticks over all of them. Under any load these should all be 0 - unless the broker
+	 * 			is discarding ticks for slow consumers, which then shows up here
+	 *
+	 * 	Comparing the steps shows where fan-out stops scaling: latency percentiles climb, the lag grows and, eventually, deliveries go missing.
+	 *
+	 * 	The simulated borrowers decode every message, as TBorrower does, but do no further work.
+	 *
+	 * 	By default the ActiveMQ client hands every session's messages to a pooled thread of its own. With thousands of sessions per connection,
+	 * 	adding jms.alwaysSessionAsync=false to the provider URL lets the connection's thread dispatch to the listeners directly instead, which
+	 * 	saves a thread hand-off per delivery - worth comparing both with the harness.
+	 *
+	 * 	Virtual threads would be the other way to host this many borrowers, but they need Java 21 and this module is built for Java 8. */
+
+	private static final int SLOW_CONSUMER_LAG = 1000;
+	private static final long SAMPLE_INTERVAL_MILLIS = 1000;
+
+	//	After the feed stops, subscribers get this long to catch up before the step is measured
+	private static final long DRAIN_MILLIS = 5000;
+
+	private final String topicCF;
+	private final String topicName;
+	private final TopicConnectionFactory topicConnectionFactory;
+	private final Topic topic;
+
+	final static Logger logger = Logger.getLogger(SubscriberHarness.class);
+
+	public SubscriberHarness(String topicCF, String topicName) throws NamingException {
+		Context context = new InitialContext();
+		this.topicConnectionFactory = (TopicConnectionFactory)context.lookup(topicCF);
+		this.topic = (Topic)context.lookup(topicName);
+		this.topicCF = topicCF;
+		this.topicName = topicName;
+	}
+
+	public void runStep(int subscribers, int connections, int targetRate, int durationSeconds) throws Exception {
+		final Histogram latencies = new Histogram();
+		List<SimulatedBorrower> borrowers = new ArrayList<SimulatedBorrower>(subscribers);
+		List<TopicConnection> topicConnections = new ArrayList<TopicConnection>(connections);
+
+		try {
+			for (int i = 0; i < connections; i++) {
+				topicConnections.add(topicConnectionFactory.createTopicConnection());
+			}
+			for (int i = 0; i < subscribers; i++) {
+				//	Round robin, so the sessions are spread evenly over the connections
+				TopicSession topicSession = topicConnections.get(i % connections).createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
+				SimulatedBorrower borrower = new SimulatedBorrower(latencies);
+				topicSession.createSubscriber(topic).setMessageListener(borrower);
+				borrowers.add(borrower);
+			}
+			for (TopicConnection topicConnection : topicConnections) {
+				topicConnection.start();
+			}
+			logger.info("Step: " + subscribers + " subscribers on " + connections + " connections");
+
+			TLender lender = new TLender(topicCF, topicName);
+			RateFeed rateFeed = lender.createFeed(RateSource.open("gen"));
+			rateFeed.setTimestamped(true);
+			FeedThread feedThread = new FeedThread(rateFeed, targetRate, durationSeconds);
+
+			long startCpu = CpuTime.processNanos();
+			feedThread.start();
+
+			int maxSlow = 0;
+			long maxLag = 0;
+			long drainEnd = Long.MAX_VALUE;
+			while (System.currentTimeMillis() < drainEnd) {
+				Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+				if (!feedThread.isAlive() && drainEnd == Long.MAX_VALUE) {
+					drainEnd = System.currentTimeMillis() + DRAIN_MILLIS;
+				}
+
+				long published = rateFeed.getMessages();
+				int slow = 0;
+				long worstLag = 0;
+				for (SimulatedBorrower borrower : borrowers) {
+					long lag = published - borrower.received;
+					worstLag = Math.max(worstLag, lag);
+					if (lag > SLOW_CONSUMER_LAG) {
+						slow++;
+					}
+				}
+				maxSlow = Math.max(maxSlow, slow);
+				maxLag = Math.max(maxLag, worstLag);
+				if (feedThread.isAlive() || slow > 0) {
+					logger.info("  published " + published + " messages, " + slow + " slow consumers, worst lag " + worstLag + " messages, p99 "
+							+ micros(latencies.getPercentile(99)));
+				}
+			}
+			long cpuNanos = CpuTime.difference(CpuTime.processNanos(), startCpu);
+			long feedCpuNanos = feedThread.cpuNanos;
+			long subscriberCpuNanos = CpuTime.difference(cpuNanos, feedCpuNanos);
+			lender.close();
+			if (feedThread.failure != null) {
+				throw feedThread.failure;
+			}
+
+			long published = rateFeed.getMessages();
+			long delivered = 0;
+			int incomplete = 0;
+			long gaps = 0, missing = 0, duplicates = 0, outOfOrder = 0;
+			for (SimulatedBorrower borrower : borrowers) {
+				delivered += borrower.received;
+				if (borrower.received < published) {
+					incomplete++;
+				}
+				gaps += borrower.sequenceTracker.getGaps();
+				missing += borrower.sequenceTracker.getMissing();
+				duplicates += borrower.sequenceTracker.getDuplicates();
+				outOfOrder += borrower.sequenceTracker.getOutOfOrder();
+			}
+
+			logger.info(String.format("  subscribers=%d connections=%d published=%d delivered=%d/%d incomplete=%d", subscribers, connections,
+					published, delivered, published * subscribers, incomplete));
+			logger.info("  latency p50=" + micros(latencies.getPercentile(50)) + " p90=" + micros(latencies.getPercentile(90)) + " p99="
+					+ micros(latencies.getPercentile(99)) + " p99.9=" + micros(latencies.getPercentile(99.9)) + " max=" + micros(latencies.getMax()));
+			logger.info(String.format("  cpu process=%s feed=%s subscribers=%s (%s/delivery) slow consumers=%d worst lag=%d",
+					CpuTime.seconds(cpuNanos), CpuTime.seconds(feedCpuNanos), CpuTime.seconds(subscriberCpuNanos),
+					CpuTime.microsPer(subscriberCpuNanos, delivered), maxSlow, maxLag));
+			logger.info("  integrity gaps=" + gaps + " missing=" + missing + " duplicates=" + duplicates + " outOfOrder=" + outOfOrder);
+		} finally {
+			for (TopicConnection topicConnection : topicConnections) {
+				topicConnection.close();
+			}
+		}
+	}
+
+	private static String micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+	}
+
+	//	One simulated borrower. received is only written by the session's dispatch thread and read by the sampling thread
+	private static class SimulatedBorrower implements MessageListener, RateHandler {
+
+		private final Histogram latencies;
+		private final RateRecords rateRecords = new RateRecords(RateFeed.DEFAULT_BATCH_SIZE);
+		private final SequenceTracker sequenceTracker = new SequenceTracker();
+		private volatile long received;
+
+		SimulatedBorrower(Histogram latencies) {
+			this.latencies = latencies;
+		}
+
+		public void onMessage(Message message) {
+			try {
+				//	Ticks from another publisher on the topic carry no publish time
+				if (message.propertyExists(RateFeed.PUBLISH_NANOS_PROPERTY)) {
+					latencies.record(System.nanoTime() - message.getLongProperty(RateFeed.PUBLISH_NANOS_PROPERTY));
+				}
+				rateRecords.decode((BytesMessage)message, this);
+			} catch (JMSException exc) {
+				logger.error(exc);
+			}
+			received++;
+		}
+
+		public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+			sequenceTracker.track(productId, sequence);
+		}
+	}
+
+	//	Runs the feed and records its CPU time when it is done
+	private static class FeedThread extends Thread {
+
+		private final RateFeed rateFeed;
+		private final int targetRate;
+		private final int durationSeconds;
+		volatile long cpuNanos = CpuTime.UNAVAILABLE;
+		volatile Exception failure;
+
+		FeedThread(RateFeed rateFeed, int targetRate, int durationSeconds) {
+			super("RateFeed");
+			this.rateFeed = rateFeed;
+			this.targetRate = targetRate;
+			this.durationSeconds = durationSeconds;
+		}
+
+		public void run() {
+			try {
+				rateFeed.run(targetRate, durationSeconds);
+			} catch (Exception exc) {
+				failure = exc;
+			}
+			cpuNanos = CpuTime.currentThreadNanos();
+		}
+	}
+
+	public static void main(String args[]) {
+
+		/*	main() method accepts the JNDI names of the topic connection factory and the rate topic, and a comma separated list of subscriber
+		 * 	counts to step through, e.g. 100,1000,5000,10000. Optionally followed by the number of connections to share, the feed rate in
+		 * 	rates per second and the duration of each step in seconds. Nothing else should be publishing to the topic during the run. 
+		 * 	-transport spec selects the transport (see TransportProfile) */
+
+		args = TransportProfile.selectFromArguments(args);
+		if (args.length < 3 || args.length > 6) {
+			logger.error("Invalid arguments. Should be: ");
+			logger.error("java SubscriberHarness factory topic subscriberCounts [connections] [ratePerSecond] [durationSeconds] [-transport spec]");
+			System.exit(0);
+		}
+		int connections = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		int targetRate = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+		int durationSeconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+
+		try {
+			SubscriberHarness harness = new SubscriberHarness(args[0], args[1]);
+			for (String count : args[2].split(",")) {
+				harness.runStep(Integer.parseInt(count.trim()), connections, targetRate, durationSeconds);
+			}
+		} catch (Exception exc) {
+			logger.error(exc);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -8,11 +8,22 @@ package com.jms.pubsub;
 //	TBorrower class acts as a subscriber to the rate topic and, as such, is a an asynchronous message listener (similar to QBorrower class)
 
 import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import javax.jms.*;
 import javax.naming.*;
 
 import org.apache.log4j.Logger;
 
+import com.jms.metrics.MessagingMetrics;
+import com.jms.metrics.MetricsHttpServer;
+import com.jms.metrics.MetricsRegistry;
+
 public class TBorrower implements MessageListener {
 	
 	private TopicConnection topicConnection = null;
@@ -21,24 +32,141 @@ public class TBorrower implements MessageListener {
 	
 	private double currentRate;
 	
+	/*	Conflating mode (see LastValueSlot): the listener thread only overwrites the latest rate per product and a separate decision thread 
+	 * 	evaluates the latest rates once per conflation interval. The map is null when conflation is off */
+	private Map<String, LastValueSlot> lastValues = null;
+	private ScheduledExecutorService decisionThread = null;
+	
+	//	Every rate received is also appended here for later analysis (see RateStore). null when the rates are not kept
+	private RateStore rateStore = null;
+	
+	/*	Snapshot on connect (see RateSnapshot): while the snapshot is awaited, the rates that arrive are buffered in pendingRates (null 
+	 * 	otherwise). Only the latest rate of each product is kept - it supersedes the earlier ones, which are counted in droppedRates - so a 
+	 * 	high-rate feed cannot fill memory while the snapshot takes its time. Rates in the original format, which have no product, are kept 
+	 * 	in pendingPlainRate (NaN for none). 
+	 * 	Applying the snapshot resyncs the sequenceTracker, which then takes the older ticks still in flight for duplicates, and a tick 
+	 * 	numbered 1 for a restart of the lender. 
+	 * 	
+	 * 	pendingRates and sequenceTracker are guarded by the TBorrower itself: onMessage() is synchronized, and so is 
+	 * 	applying a snapshot. onMessage() runs on the decision thread of the HandoffListener, a snapshot is applied on the recovery thread or, 
+	 * 	when connecting, the main thread */
+	private Topic snapshotTopic = null;
+	private RateSnapshot pendingRates = null;
+	private double pendingPlainRate = Double.NaN;
+	private long droppedRates;
+	private static final long SNAPSHOT_TIMEOUT_MILLIS = 5000;
+	
+	/*	Gap detection (see SequenceTracker). A gap in a product's ticks means we missed at least one rate of it, so we recover by asking for a 
+	 * 	snapshot again - the latest rate is all a borrower needs, so there is nothing to retransmit. Recoveries run on their own thread, at 
+	 * 	most one every MIN_RECOVERY_INTERVAL_MILLIS, and the gaps in between are only counted. 
+	 * 	The tracker is null for a borrower with a selector, which skips ticks on purpose */
+	private SequenceTracker sequenceTracker = null;
+	private ExecutorService recoveryThread = null;
+	private long lastRecoveryMillis;
+	private static final long MIN_RECOVERY_INTERVAL_MILLIS = 1000;
+	
+	//	Takes the messages off the JMS dispatch thread and runs onMessage() on a decision thread of its own (see HandoffListener)
+	private HandoffListener handoffListener = null;
+	
+	/*	Rate messages carry one or more binary rate records (see RateRecords). They are decoded on the listener thread into this reusable 
+	 * 	buffer and handed to rateHandler one by one */
+	private final RateRecords rateRecords = new RateRecords(RateFeed.DEFAULT_BATCH_SIZE);
+	private final RateHandler rateHandler = new RateHandler() {
+		public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+			if (sequenceTracker != null) {
+				int result = sequenceTracker.track(productId, sequence);
+				if (result == SequenceTracker.DUPLICATE || result == SequenceTracker.OUT_OF_ORDER) {
+					//	We have applied a newer rate of the product already
+					return;
+				}
+				if (result == SequenceTracker.GAP) {
+					recover(productId);
+				}
+			}
+			applyRate(productId, rate, effectiveMillis, sequence);
+		}
+	};
+	
+	//	While a snapshot is awaited: keep the latest rate of each product
+	private final RateHandler bufferHandler = new RateHandler() {
+		public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+			if (pendingRates.update(productId, rate, effectiveMillis, sequence)) {
+				droppedRates++;
+			}
+		}
+	};
+	
+	//	The rates of a snapshot, and the latest ones buffered while waiting for it. A rate older than one we have applied already is skipped
+	private final RateHandler snapshotHandler = new RateHandler() {
+		public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+			if (sequenceTracker.resync(productId, sequence)) {
+				applyRate(productId, rate, effectiveMillis, sequence);
+			}
+		}
+	};
+	
+	/*	In conflating mode the broker is also told to keep no more than this many messages pending for us beyond the prefetch. If we still fall 
+	 * 	behind, the oldest ticks are discarded at the broker instead of piling up in its memory */
+	private static final int MAX_PENDING_MESSAGES = 100;
+	
 	final static Logger logger = Logger.getLogger(TBorrower.class);
 	
+	//	Rate messages received and handled by the borrowers in this JVM, kept by the HandoffListener
+	final static MessagingMetrics metrics = MetricsRegistry.get("TBorrower");
+	
 	//	TBorrower constructor works in the same way as TLender constructor 
 	public TBorrower(String topicCF, String topicName, String rate) {
+		this(topicCF, topicName, rate, 0);
+	}
+	
+	//	conflateMillis is the interval at which the decision thread evaluates the latest rates, 0 to evaluate every rate as it arrives
+	public TBorrower(String topicCF, String topicName, String rate, long conflateMillis) {
+		this(topicCF, topicName, rate, conflateMillis, null);
+	}
+	
+	/*	selector is a message selector evaluated by the broker (e.g. "Product = '30Y' AND Rate <= 5.5", see RateRecords), so only the ticks 
+	 * 	it matches are delivered at all. null receives every tick */
+	public TBorrower(String topicCF, String topicName, String rate, long conflateMillis, String selector) {
+		this(topicCF, topicName, rate, conflateMillis, selector, null);
+	}
+	
+	//	storeDirectory is where the received rates are kept (see RateStore), null to keep only the current rate
+	public TBorrower(String topicCF, String topicName, String rate, long conflateMillis, String selector, File storeDirectory) {
+		this(topicCF, topicName, rate, conflateMillis, selector, storeDirectory, null);
+	}
+	
+	/*	durableName makes the subscription durable under that name (used as the client ID too), so ticks published while the borrower is 
+	 * 	down are kept for it until they expire (see TLender.RATE_TIME_TO_LIVE_MILLIS). null subscribes nondurably */
+	public TBorrower(String topicCF, String topicName, String rate, long conflateMillis, String selector, File storeDirectory, 
+			String durableName) {
 		
 		try {
 			currentRate = Double.valueOf(rate);
 			
+			if (storeDirectory != null) {
+				rateStore = new RateStore(storeDirectory);
+				logger.info("Keeping rates in " + storeDirectory + " (" + rateStore.size() + " stored so far)");
+			}
+			
 			//	Connect to the provider and get the JMS connection
 			Context context = new InitialContext();
 			TopicConnectionFactory topicConnectionFactory = (TopicConnectionFactory)context.lookup(topicCF);
 			topicConnection = topicConnectionFactory.createTopicConnection();
 			
+			//	A durable subscription belongs to a client ID, which has to be set before the connection is used
+			if (durableName != null) {
+				topicConnection.setClientID(durableName);
+			}
+			
 			// Create the JMS Session
 			topicSession = topicConnection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
 			
 			topic = (Topic)context.lookup(topicName);
 			
+			if (conflateMillis > 0) {
+				startConflation(conflateMillis);
+			}
+			
 			/*	Once the connection is started, the TBorrower class can begin to receive messages. 
 			 * 	However, before it can receive messages, it must be registered by the TopicSubscriber as a message listener (in this case, a 
 			 * 	subscriber) 
@@ -47,24 +175,49 @@ public class TBorrower implements MessageListener {
 			 * 	That thread will wait until a message is received, and upon receipt of a message will invoke the onMessage() method of the 
 			 * 	listener class. 
 			 * 	
-			 *  In this case, we set the message listener to the TBorrower object using the "this" keyword in the setMessageListener() method */
+			 *  In this case, we set the message listener to the TBorrower object using the "this" keyword in the setMessageListener() method 
+			 *  
+			 *  Here the TBorrower is wrapped in a HandoffListener first: the listener thread only puts each message into a ring buffer, and the 
+			 *  TBorrower's onMessage() is invoked on a separate decision thread. Decoding, deciding and logging then no longer hold up the 
+			 *  delivery of the next message, and a message that cannot be handled is logged and skipped instead of ending the borrower */
+			
+			/*	A borrower with a selector only wants to hear about rates that cross its threshold, so it does not ask for a snapshot of the 
+			 * 	current rates, nor check for gaps. Otherwise rate messages are buffered from the moment we subscribe until the snapshot has 
+			 * 	been applied */
+			if (selector == null) {
+				sequenceTracker = new SequenceTracker();
+				snapshotTopic = lookupSnapshotTopic(context);
+			}
+			if (snapshotTopic != null) {
+				pendingRates = new RateSnapshot();
+			}
 			
-			TopicSubscriber topicSubscriber = topicSession.createSubscriber(topic);
-			topicSubscriber.setMessageListener(this);
+			TopicSubscriber topicSubscriber = durableName != null 
+					? topicSession.createDurableSubscriber(topic, durableName, selector, false) 
+					: topicSession.createSubscriber(topic, selector, false);
+			handoffListener = new HandoffListener(this, HandoffListener.DEFAULT_CAPACITY, "RateDecisions", metrics);
+			topicSubscriber.setMessageListener(handoffListener);
 
 			topicConnection.start();
 			
-			logger.info("Waiting for loan rates...");
+			if (snapshotTopic != null) {
+				applySnapshot(requestSnapshot());
+			}
+			
+			logger.info(selector == null ? "Waiting for loan rates..." : "Waiting for loan rates matching " + selector);
 		} catch (JMSException exc) {
 			logger.error(exc);
 			System.exit(1);
 		} catch (NamingException exc) {
 			logger.error(exc);
 			System.exit(1);
+		} catch (IOException exc) {
+			logger.error(exc);
+			System.exit(1);
 		}
 	}
 	
-	public void onMessage(Message message) {
+	public synchronized void onMessage(Message message) {
 
 		try {
 			/*	When a message is received on the topic specified in the createSubscriber() method, the listener thread will asynchronously invoke the 
@@ -72,42 +225,236 @@ public class TBorrower implements MessageListener {
 			 *	
 			 * 	The onMessage() method first casts the message to a BytesMessage (the message type we are expecting to receive from the lender)
 			 * 	
-			 * 	It then extracts the new rate and determines whether to refinance or not
+			 * 	It then extracts the new rate(s) and determines whether to refinance or not. A message marked with the RateSchema property holds 
+			 * 	a batch of rate records for any of the loan products, anything else is the original format of a single 30 year fixed rate
 			 * 	
 			 * 	In practise, it would be better to make this method failsafe by checking the JMS message type using the "instanceof" keyword in the 
 			 * 	event that another message type was being sent to that queue. 
 			 *		if(message instanceof BytesMessage) {
 			 * 			// process request
 			 * 		} else {
-			 * 			throw new IllegalArgumentException("Unsupported message type") */
+			 * 			throw new IllegalArgumentException("Unsupported message type") 
+			 * 	
+			 * 	which is what we do. The exception only skips this message: the HandoffListener that calls us logs it and carries on */
 			
-			BytesMessage bytesMessage = (BytesMessage)message;
+			if (!(message instanceof BytesMessage)) {
+				throw new IllegalArgumentException("Unsupported message type " + message.getClass().getName());
+			}
+			if (pendingRates != null) {
+				//	Waiting for a snapshot
+				bufferRates((BytesMessage)message);
+				return;
+			}
+			handleRates((BytesMessage)message);
+		} catch (JMSException exc) {
+			throw new IllegalArgumentException("Unreadable rate message", exc);
+		}
+	}
+	
+	private void handleRates(BytesMessage bytesMessage) throws JMSException {
+		if (RateRecords.isRateRecords(bytesMessage)) {
+			rateRecords.decode(bytesMessage, rateHandler);
+		} else {
+			//	The original format has no product, time or sequence number: stored as a 30 year fixed rate effective now
 			double newRate = bytesMessage.readDouble();
+			if (rateStore != null) {
+				rateStore.append(LoanProduct.FIXED_30Y.getId(), newRate, System.currentTimeMillis(), 0);
+			}
+			acceptRate(null, newRate);
+		}
+	}
+	
+	private void bufferRates(BytesMessage bytesMessage) throws JMSException {
+		if (RateRecords.isRateRecords(bytesMessage)) {
+			rateRecords.decode(bytesMessage, bufferHandler);
+		} else {
+			if (!Double.isNaN(pendingPlainRate)) {
+				droppedRates++;
+			}
+			pendingPlainRate = bytesMessage.readDouble();
+		}
+	}
+	
+	private void applyRate(int productId, double rate, long effectiveMillis, long sequence) {
+		if (rateStore != null) {
+			rateStore.append(productId, rate, effectiveMillis, sequence);
+		}
+		LoanProduct product = LoanProduct.byId(productId);
+		if (product == null) {
+			//	A product added to the feed after this subscriber was built
+			return;
+		}
+		acceptRate(product.getCode(), rate);
+	}
+	
+	private Topic lookupSnapshotTopic(Context context) {
+		try {
+			return (Topic)context.lookup(RateSnapshot.SNAPSHOT_TOPIC);
+		} catch (NamingException exc) {
+			logger.info("No " + RateSnapshot.SNAPSHOT_TOPIC + " configured, starting without a snapshot");
+			return null;
+		}
+	}
+	
+	/*	Ask the lender for the latest rate of every product (see RateSnapshot) and wait for the answer on a temporary topic. The request and 
+	 * 	the reply use a session of their own, as topicSession belongs to the listener thread by now. Returns null if no lender answered */
+	private BytesMessage requestSnapshot() throws JMSException {
+		TopicSession snapshotSession = topicConnection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
+		try {
+			TemporaryTopic replyTopic = snapshotSession.createTemporaryTopic();
+			TopicSubscriber replySubscriber = snapshotSession.createSubscriber(replyTopic);
 			
-			//	If the rate is at least 1 point lower than the current rate, then recommend financing 
-			if((currentRate - newRate) >= 1.0) {
-				logger.info("New rate = " + newRate + " :- Consider refinancing loan");
-			} else {
-				logger.info("New rate = " + newRate + " :- Keep existing loan");
+			Message request = snapshotSession.createMessage();
+			request.setJMSReplyTo(replyTopic);
+			TopicPublisher requestPublisher = snapshotSession.createPublisher(snapshotTopic);
+			requestPublisher.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+			requestPublisher.setTimeToLive(SNAPSHOT_TIMEOUT_MILLIS);
+			requestPublisher.publish(request);
+			
+			return (BytesMessage)replySubscriber.receive(SNAPSHOT_TIMEOUT_MILLIS);
+		} finally {
+			snapshotSession.close();
+		}
+	}
+	
+	/*	Apply the snapshot (if any), then the latest rates buffered meanwhile. The listener thread waits on the lock until they are done, so 
+	 * 	no newer tick can overtake them */
+	private synchronized void applySnapshot(BytesMessage snapshot) throws JMSException {
+		if (snapshot == null) {
+			logger.warn("No snapshot received within " + SNAPSHOT_TIMEOUT_MILLIS + " ms, waiting for live rates");
+		} else {
+			int products = rateRecords.decode(snapshot, snapshotHandler);
+			logger.info("Applied a snapshot of " + products + " products");
+		}
+		RateSnapshot buffered = pendingRates;
+		double plainRate = pendingPlainRate;
+		pendingRates = null;
+		pendingPlainRate = Double.NaN;
+		int products = buffered.replay(snapshotHandler);
+		if (!Double.isNaN(plainRate)) {
+			if (rateStore != null) {
+				rateStore.append(LoanProduct.FIXED_30Y.getId(), plainRate, System.currentTimeMillis(), 0);
 			}
-			logger.info("Waiting for rate updates...");
-		} catch (JMSException exc) {
-			logger.error(exc);
-			System.exit(1);
-		} catch (Exception exc) {
-			logger.error(exc);
-			System.exit(1);
+			acceptRate(null, plainRate);
+		}
+		logger.info("Applied the latest buffered rates of " + products + " products (" + droppedRates + " superseded rates dropped so far)");
+	}
+	
+	//	Called on the listener thread when a gap shows we missed a tick of the product
+	private void recover(int productId) {
+		long now = System.currentTimeMillis();
+		if (snapshotTopic == null || pendingRates != null || now - lastRecoveryMillis < MIN_RECOVERY_INTERVAL_MILLIS) {
+			return;
+		}
+		lastRecoveryMillis = now;
+		LoanProduct product = LoanProduct.byId(productId);
+		logger.warn("Missed " + (product == null ? "" : product.getCode() + " ") + "rates, recovering from a snapshot (" + sequenceTracker + ")");
+		
+		//	Buffer from here on, exactly as when we connected, and wait for the snapshot on the recovery thread, not the listener thread
+		pendingRates = new RateSnapshot();
+		if (recoveryThread == null) {
+			recoveryThread = Executors.newSingleThreadExecutor();
+		}
+		recoveryThread.execute(new Runnable() {
+			public void run() {
+				try {
+					applySnapshot(requestSnapshot());
+				} catch (JMSException exc) {
+					logger.error(exc);
+				}
+			}
+		});
+	}
+	
+	private void acceptRate(String product, double newRate) {
+		if (lastValues != null) {
+			//	Conflating: leave the rate for the decision thread, replacing any rate of the same product it has not looked at yet
+			slotFor(product).overwrite(newRate);
+			return;
+		}
+		evaluate(product, newRate);
+	}
+	
+	private void evaluate(String product, double newRate) {
+		String label = product == null ? "" : product + " ";
+		
+		//	If the rate is at least 1 point lower than the current rate, then recommend financing 
+		if((currentRate - newRate) >= 1.0) {
+			logger.info("New " + label + "rate = " + newRate + " :- Consider refinancing loan");
+		} else {
+			logger.info("New " + label + "rate = " + newRate + " :- Keep existing loan");
 		}
+		logger.info("Waiting for rate updates...");
+	}
+	
+	private void startConflation(long conflateMillis) {
+		lastValues = new ConcurrentHashMap<String, LastValueSlot>();
+		
+		//	Destination options are an ActiveMQ feature, so the pending message limit can only be asked for when the provider is ActiveMQ
+		if (topic instanceof org.apache.activemq.command.ActiveMQTopic) {
+			topic = new org.apache.activemq.command.ActiveMQTopic(((org.apache.activemq.command.ActiveMQTopic)topic).getPhysicalName() 
+					+ "?consumer.maximumPendingMessageLimit=" + MAX_PENDING_MESSAGES);
+		}
+		
+		decisionThread = Executors.newSingleThreadScheduledExecutor();
+		decisionThread.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (Map.Entry<String, LastValueSlot> entry : lastValues.entrySet()) {
+					double latestRate = entry.getValue().take();
+					if (!Double.isNaN(latestRate)) {
+						evaluate(entry.getKey().length() == 0 ? null : entry.getKey(), latestRate);
+					}
+				}
+			}
+		}, conflateMillis, conflateMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	private LastValueSlot slotFor(String product) {
+		String key = product == null ? "" : product;
+		LastValueSlot slot = lastValues.get(key);
+		if (slot == null) {
+			//	Only the thread running onMessage() creates slots, so there is no race between the get() and the put()
+			slot = new LastValueSlot();
+			lastValues.put(key, slot);
+		}
+		return slot;
+	}
+	
+	//	Counts of the messages handled and skipped so far
+	public HandoffListener getHandoffListener() {
+		return handoffListener;
 	}
 	
 	private void exit() {
 		
+		close();
+		System.exit(0);
+	}
+	
+	//	Unsubscribe and close the connection without ending the process, for callers that run a borrower of their own (e.g. the tests)
+	public void close() {
+		
 		try {
 			topicConnection.close();
 		} catch (JMSException exc) {
 			logger.error(exc);
 		}
-		System.exit(0);
+		if (decisionThread != null) {
+			decisionThread.shutdownNow();
+		}
+		if (recoveryThread != null) {
+			recoveryThread.shutdownNow();
+		}
+		if (rateStore != null) {
+			rateStore.close();
+		}
+		if (sequenceTracker != null) {
+			logger.info("Sequence check: " + sequenceTracker);
+		}
+		if (handoffListener != null) {
+			handoffListener.close();
+			logger.info("Handled " + handoffListener.getHandled() + " messages, skipped " + handoffListener.getFailed() + " that failed");
+		}
 	}
 	
 	public static void main(String args[]) {
@@ -118,18 +465,55 @@ public class TBorrower implements MessageListener {
 		String topicCF = null;
 		String topicName = null;
 		String rate = null;
+		long conflateMillis = 0;
+		String selector = null;
+		File storeDirectory = null;
+		String durableName = null;
+		
+		/*	The options are
+		 * 		-conflate intervalMillis	evaluate only the latest rate per product once per interval
+		 * 		-selector expression		let the broker filter the ticks, e.g. -selector "Product = '15Y' AND Rate <= 5.0"
+		 * 		-store directory			keep every rate received in a RateStore in the directory, to query or backtest later with
+		 * 									java RateStore directory ...
+		 * 		-durable name				subscribe durably under the name, so a restarted borrower gets the ticks it missed (apart from those
+		 * 									that expired meanwhile)
+		 * 		-alert product				shorthand for a selector that matches exactly the ticks worth refinancing for: the product's rate 
+		 * 									at least 1 point below the current rate 
+		 * 		-transport spec				reach the broker over another transport than the one in jndi.properties (see TransportProfile)
+		 * 	The selector options only match ticks published with selector properties (TLender console, or TLender -feed ... -selectable) */
 		
-		if(args.length == 3) {
+		args = TransportProfile.selectFromArguments(args);
+		boolean valid = args.length >= 3 && args.length % 2 == 1;
+		for (int i = 3; valid && i < args.length; i += 2) {
+			if ("-conflate".equals(args[i])) {
+				conflateMillis = Long.parseLong(args[i + 1]);
+			} else if ("-selector".equals(args[i])) {
+				selector = args[i + 1];
+			} else if ("-durable".equals(args[i])) {
+				durableName = args[i + 1];
+			} else if ("-store".equals(args[i])) {
+				storeDirectory = new File(args[i + 1]);
+			} else if ("-alert".equals(args[i])) {
+				selector = RateRecords.thresholdSelector(LoanProduct.byCode(args[i + 1]), Double.valueOf(args[2]) - 1.0);
+			} else {
+				valid = false;
+			}
+		}
+		
+		if (valid) {
 			topicCF = args[0];
 			topicName = args[1];
 			rate = args[2];
 		} else {
 			logger.error("Invalid arguments. Should be: ");
-			logger.error("java TBorrower factory topic rate");
+			logger.error("java TBorrower factory topic rate [-conflate intervalMillis] [-selector expression | -alert product] [-store directory] "
+					+ "[-durable name] [-transport vm|tcp|nio]");
 			System.exit(0);
 		}
 		
-		TBorrower borrower = new TBorrower(topicCF, topicName, rate);
+		TBorrower borrower = new TBorrower(topicCF, topicName, rate, conflateMillis, selector, storeDirectory, durableName);
+		
+		MetricsHttpServer.startIfConfigured();
 		
 		try {
 			//	Run until enter is pressed
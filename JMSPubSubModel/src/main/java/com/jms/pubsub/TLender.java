@@ -11,6 +11,10 @@ import javax.naming.*;
 
 import org.apache.log4j.Logger;
 
+import com.jms.metrics.MessagingMetrics;
+import com.jms.metrics.MetricsHttpServer;
+import com.jms.metrics.MetricsRegistry;
+
 //	TLender class publishes new mortgage rates to a topic
 
 public class TLender {
@@ -18,8 +22,27 @@ public class TLender {
 	private TopicConnection topicConnection = null;
 	private TopicSession topicSession = null;
 	private Topic topic = null;
+	private TopicPublisher topicPublisher = null;
+	
+	//	Rates entered on the console are published one record per message, numbered per product in the order they were entered
+	private final RateRecords consoleRecord = new RateRecords(1);
+	private final long[] consoleSequences = new long[LoanProduct.values().length];
+	
+	//	Feed mode only: publish every tick in its own message with selector properties (see RateFeed.setSelectable())
+	private boolean selectable;
+	
+	//	The latest rate of every product, sent to subscribers that ask for it when they connect (see RateSnapshot)
+	private final RateSnapshot rateSnapshot = new RateSnapshot();
+	private TopicSession snapshotSession = null;
+	
+	/*	A rate is stale once it has been superseded, and a subscriber that was away gets the current rates from the snapshot anyway. So rates 
+	 * 	expire at the broker after this long instead of piling up for durable subscribers that are offline */
+	public static final long RATE_TIME_TO_LIVE_MILLIS = 5 * 60 * 1000;
 
 	final static Logger logger = Logger.getLogger(TLender.class);
+	
+	//	Rate messages published by the lenders in this JVM, from the console and by the feed (see RateFeed). Snapshots are not counted
+	final static MessagingMetrics metrics = MetricsRegistry.get("TLender");
 
 	/*	This constructor handles all the JMS initialization logic
 	 * 	It does the following:
@@ -52,6 +75,13 @@ public class TLender {
 
 			topic = (Topic) context.lookup(topicName);
 
+			/*	The publisher is created once and reused for every rate. Creating a producer is a round trip to the provider, far more expensive 
+			 * 	than publishing a rate */
+			topicPublisher = topicSession.createPublisher(topic);
+			topicPublisher.setTimeToLive(RATE_TIME_TO_LIVE_MILLIS);
+			
+			startSnapshotResponder(context);
+
 			// Now that the setup is complete, start the connection
 			topicConnection.start();
 		} catch (JMSException exc) {
@@ -63,7 +93,7 @@ public class TLender {
 		}
 	}
 
-	private	void publishRate(double newRate) {
+	private	void publishRate(LoanProduct product, double newRate) {
 		
 		/*	Once the TLender class is initialized, the rate is entered through the command line. At this point, the publishRate() is invoked from 
 		 * 	the main() method and the rate published to the topic. 
@@ -74,15 +104,24 @@ public class TLender {
 		
 		try {
 			/*	Create BytesMessage to hold the data - Again, we could have chosen any of the 5 JMS types, but we chose the BytesMessage for 
-			 * 	maximum portability. */
+			 * 	maximum portability. 
+			 * 	
+			 * 	The body is a single rate record (see RateRecords), which tells subscribers which product and term the rate is for */
 			
 			BytesMessage bytesMessage = topicSession.createBytesMessage();
-			bytesMessage.writeDouble(newRate);
+			long effectiveMillis = System.currentTimeMillis();
+			long sequence = ++consoleSequences[product.ordinal()];
+			consoleRecord.add(product.getId(), product.getTermMonths(), newRate, effectiveMillis, sequence);
+			consoleRecord.writeTo(bytesMessage);
+			rateSnapshot.update(product.getId(), newRate, effectiveMillis, sequence);
+			
+			//	A single rate can also be described in the message properties, so subscribers can use message selectors on it
+			RateRecords.setSelectorProperties(bytesMessage, product, newRate);
 
-			/*	Create the publisher and publish the message 
+			/*	Publish the message 
 			 * 	
-			 * 	After the message is created, we then create a TopicPublisher object, specifying the topic we wish to publish the message to, and 
-			 * 	then publish the message using the publish() method
+			 * 	After the message is created, we publish it with the TopicPublisher object created in the constructor for the topic we wish to 
+			 * 	publish the message to, using the publish() method
 			 * 	
 			 * 	Just the like send() method in the P2P model, there are several overridden publish() methods available in the TopicSender object. 
 			 * 	The one we are using here accepts only the JMS message object as the single argument. 
@@ -98,22 +137,99 @@ public class TLender {
 			 * 		2. Delivery mode is set to persistent (DeliveryMode.PERSISTENT)
 			 * 		3. Message expiry/Time to live is set to 0 - indicating that the message will never expire
 			 * 
-			 * 	All these parameters can be overridden by using one of the publish() methods */
-			TopicPublisher topicPublisher = topicSession.createPublisher(topic);
+			 * 	All these parameters can be overridden by using one of the publish() methods, or set as defaults on the publisher - as we do 
+			 * 	with the time to live in the constructor */
+			long start = System.nanoTime();
 			topicPublisher.publish(bytesMessage);
+			metrics.sent(start);
 		} catch (JMSException exc) {
+			metrics.failed();
 			logger.error(exc);
 		}
 	}
 
+	/*	Publish ticks from a rate source as fast as the target rate allows (see RateFeed). 
+	 * 	Returns the number of rates published */
+	public long runFeed(RateSource rateSource, int targetRate, int durationSeconds) throws JMSException, IOException {
+		return runFeed(rateSource, targetRate, durationSeconds, 0);
+	}
+	
+	//	Same, publishing only the latest rate per product once per conflation window (see RateConflater)
+	public long runFeed(RateSource rateSource, int targetRate, int durationSeconds, long conflationMillis) throws JMSException, IOException {
+		RateFeed rateFeed = createFeed(rateSource);
+		rateFeed.setConflationWindow(conflationMillis);
+		return rateFeed.run(targetRate, durationSeconds);
+	}
+	
+	//	A feed publishing through this TLender's publisher, for callers that need to configure or watch the feed themselves
+	public RateFeed createFeed(RateSource rateSource) throws JMSException {
+		enableAsyncSend();
+		RateFeed rateFeed = new RateFeed(topicSession, topicPublisher, rateSource);
+		rateFeed.setSelectable(selectable);
+		rateFeed.setSnapshot(rateSnapshot);
+		return rateFeed;
+	}
+	
+	/*	Answer snapshot requests (see RateSnapshot) on a session of their own, as the publishing session belongs to the thread that publishes.
+	 * 	Snapshots are only offered when the snapshot topic is configured in jndi.properties */
+	private void startSnapshotResponder(Context context) throws JMSException {
+		Topic snapshotTopic;
+		try {
+			snapshotTopic = (Topic) context.lookup(RateSnapshot.SNAPSHOT_TOPIC);
+		} catch (NamingException exc) {
+			logger.info("No " + RateSnapshot.SNAPSHOT_TOPIC + " configured, snapshots are not offered");
+			return;
+		}
+		snapshotSession = topicConnection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
+		
+		//	An unidentified publisher, as every request names its own reply destination
+		final TopicPublisher replyPublisher = snapshotSession.createPublisher(null);
+		replyPublisher.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+		snapshotSession.createSubscriber(snapshotTopic).setMessageListener(new MessageListener() {
+			public void onMessage(Message request) {
+				try {
+					if (request.getJMSReplyTo() == null) {
+						return;
+					}
+					BytesMessage snapshot = snapshotSession.createBytesMessage();
+					int products = rateSnapshot.writeTo(snapshot);
+					snapshot.setJMSCorrelationID(request.getJMSMessageID());
+					replyPublisher.publish((Topic) request.getJMSReplyTo(), snapshot);
+					logger.debug("Sent a snapshot of " + products + " products");
+				} catch (JMSException exc) {
+					//	A subscriber that went away before its snapshot was sent must not stop the lender
+					logger.error(exc);
+				}
+			}
+		});
+	}
+	
+	public void setSelectable(boolean selectable) {
+		this.selectable = selectable;
+	}
+	
+	/*	By default the ActiveMQ client sends persistent messages synchronously, waiting for the broker's receipt of every message. 
+	 * 	Asynchronous sends let the publisher stream messages without a round trip per message. This is a provider-specific setting, so it is 
+	 * 	only applied when the connection is an ActiveMQ connection */
+	private void enableAsyncSend() {
+		if (topicConnection instanceof org.apache.activemq.ActiveMQConnection) {
+			((org.apache.activemq.ActiveMQConnection) topicConnection).setUseAsyncSend(true);
+		}
+	}
+
 	public void exit() {
 
+		close();
+		System.exit(0);
+	}
+	
+	//	Close the connection without ending the process, for callers that publish through a TLender (e.g. SelectorBenchmark)
+	public void close() {
 		try {
 			topicConnection.close();
 		} catch (JMSException exc) {
 			logger.error(exc);
 		}
-		System.exit(0);
 	}
 	
 	/*	main() method instantiates the Tlender class and, upon receiving a new rate, invokes the publishRate() method to publish the rate to the 
@@ -126,18 +242,49 @@ public class TLender {
 
 		/* 	main() method accepts two arguments from the command line:
 			 * 		1. JNDI name of the topic connection factory
-			 * 		2. JNDI name of the topic used to publish the rates */
+			 * 		2. JNDI name of the topic used to publish the rates 
+			 * 
+			 * 	optionally followed by the feed mode arguments: 
+			 * 		-feed source [ratePerSecond] [durationSeconds] [conflationMillis] [-selectable]
+			 * 	where source is gen, file:path or socket:port (see RateSource) 
+			 * 	
+			 * 	-transport spec can be added anywhere to reach the broker over another transport than the one in jndi.properties, e.g. 
+			 * 	-transport nio (see TransportProfile) */
+		
+		args = TransportProfile.selectFromArguments(args);
+		boolean selectable = args.length > 3 && "-selectable".equals(args[args.length - 1]);
+		if (selectable) {
+			args = java.util.Arrays.copyOf(args, args.length - 1);
+		}
 		
-		if (args.length == 2) {
+		if (args.length == 2 || (args.length >= 4 && args.length <= 7 && "-feed".equals(args[2]))) {
 			topicCF = args[0];
 			topicName = args[1];
 		} else {
 			logger.error("Invalid arguments. Should be: ");
-			logger.error("java TLender factory topic");
+			logger.error("java TLender factory topic [-transport vm|tcp|nio]");
+			logger.error("java TLender factory topic -feed gen|file:path|socket:port [ratePerSecond] [durationSeconds] [conflationMillis] "
+					+ "[-selectable] [-transport vm|tcp|nio]");
 			System.exit(0);
 		}
 
 		TLender lender = new TLender(topicCF, topicName);
+		lender.setSelectable(selectable);
+		
+		MetricsHttpServer.startIfConfigured();
+
+		if (args.length > 2) {
+			int targetRate = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+			int durationSeconds = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+			long conflationMillis = args.length > 6 ? Long.parseLong(args[6]) : 0;
+			try (RateSource rateSource = RateSource.open(args[3])) {
+				lender.runFeed(rateSource, targetRate, durationSeconds, conflationMillis);
+			} catch (Exception exc) {
+				logger.error(exc);
+				System.exit(1);
+			}
+			lender.exit();
+		}
 
 		try {
 			// Read all standard input and send it as a message
@@ -145,7 +292,7 @@ public class TLender {
 
 			logger.info("Topic publisher application started");
 			logger.info("Press enter to quit application");
-			logger.info("Enter: Rate (e.g. 6.8)");
+			logger.info("Enter: Rate (e.g. 6.8) or Product, Rate (e.g. 15Y, 5.9)");
 
 			while (true) {
 				logger.info("> ");
@@ -160,9 +307,16 @@ public class TLender {
 					lender.exit();
 				}
 
-				//	Rate is then parsed and then publishRate() method is invoked
-				double newRate = Double.valueOf(rate);
-				lender.publishRate(newRate);
+				//	Rate (and product, 30 year fixed if none is given) is then parsed and then publishRate() method is invoked
+				String[] fields = rate.split(",");
+				try {
+					LoanProduct product = fields.length > 1 ? LoanProduct.byCode(fields[0].trim()) : LoanProduct.FIXED_30Y;
+					double newRate = Double.valueOf(fields[fields.length - 1].trim());
+					lender.publishRate(product, newRate);
+				} catch (IllegalArgumentException exc) {
+					//	Also covers NumberFormatException
+					logger.error(exc.getMessage());
+				}
 			}
 		} catch (IOException exc) {
 			logger.error(exc);
@@ -0,0 +1,271 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+import javax.naming.*;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.TransportConnector;
+import org.apache.log4j.Logger;
+
+import com.jms.metrics.Histogram;
+
+//	TransportBenchmark runs the same rate workload over each transport profile and reports throughput and latency side by side
+
+public class TransportBenchmark {
+
+	/*	Which transport to use, and with which settings, is best decided by measuring. The benchmark starts an embedded broker with a tcp and
+	 * 	an nio connector and runs the same workload once per transport profile (see TransportProfile), each against that broker:
+	 *
+	 * 		throughput	-	the lender publishes generated ticks as fast as it can for the given time, to a few subscribers (one connection each).
+	 * 						Reported are the rates per second published, and the rates per second delivered, counted until the last
+	 * 						subscriber has received the last tick
+	 * 		latency		-	the lender publishes timestamped ticks (see RateFeed.setTimestamped()) at a fixed rate for the same time, and the
+	 * 						subscribers record the time from publish to their listener
+	 *
+	 * 	along with the CPU time the process used for each. At the end the results of all profiles are logged as a table.
+	 *
+	 * 	Profiles are given as specs, e.g. vm,tcp,nio or tcp,tcp?wireFormat.tightEncodingEnabled=false to compare settings of one transport.
+	 * 	A spec without an address runs against the embedded broker. A spec with one (tcp:broker1:61616, or a complete URL) runs against that
+	 * 	broker instead - the latency phase still works there, as the lender and the subscribers are both in this process.
+	 *
+	 * 	Everything runs in one process on one machine, so the numbers compare the cost of the transports themselves (serialization, sockets,
+	 * 	threads), not the network between machines. */
+
+	private static final String BROKER_NAME = "benchmark";
+
+	//	A phase is over once no tick has been delivered for this long after the feed stopped
+	private static final long QUIET_MILLIS = 1000;
+
+	private final String topicCF;
+	private final String topicName;
+	private final BrokerService broker;
+	private final List<Result> results = new ArrayList<Result>();
+
+	final static Logger logger = Logger.getLogger(TransportBenchmark.class);
+
+	public TransportBenchmark(String topicCF, String topicName) throws Exception {
+		this.topicCF = topicCF;
+		this.topicName = topicName;
+
+		//	Port 0 lets the system pick free ports
+		broker = new BrokerService();
+		broker.setBrokerName(BROKER_NAME);
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.addConnector("tcp://localhost:0");
+		broker.addConnector("nio://localhost:0");
+		broker.start();
+	}
+
+	//	The provider URL for a spec: the embedded broker's, unless the spec names an address of its own
+	private String urlFor(String spec) throws Exception {
+		int query = spec.indexOf('?');
+		String name = query >= 0 ? spec.substring(0, query) : spec;
+		if (name.contains(":")) {
+			return TransportProfile.resolve(spec);
+		}
+		String options = query >= 0 ? spec.substring(query + 1) : null;
+		TransportProfile profile = TransportProfile.byName(name);
+		if (profile == TransportProfile.VM) {
+			return profile.url(BROKER_NAME, options == null ? "create=false" : "create=false&" + options);
+		}
+		for (TransportConnector connector : broker.getTransportConnectors()) {
+			if (connector.getConnectUri().getScheme().equals(profile.getScheme())) {
+				return profile.url(connector.getConnectUri().getAuthority(), options);
+			}
+		}
+		throw new IllegalArgumentException("No connector for " + spec);
+	}
+
+	/**
+	 * @param spec				transport profile spec (see TransportProfile)
+	 * @param subscribers		number of subscribers, each on a connection of its own
+	 * @param durationSeconds	length of each phase
+	 * @param targetRate		rates per second published in the latency phase
+	 */
+	public void run(String spec, int subscribers, int durationSeconds, int targetRate) throws Exception {
+		Result result = new Result(spec, TransportProfile.select(urlFor(spec)));
+		logger.info("Profile " + spec + ": " + result.url);
+
+		Context context = new InitialContext();
+		TopicConnectionFactory topicConnectionFactory = (TopicConnectionFactory)context.lookup(topicCF);
+		Topic topic = (Topic)context.lookup(topicName);
+
+		List<TopicConnection> connections = new ArrayList<TopicConnection>();
+		List<CountingBorrower> borrowers = new ArrayList<CountingBorrower>();
+		Histogram latencies = new Histogram();
+		TLender lender = null;
+		try {
+			for (int i = 0; i < subscribers; i++) {
+				TopicConnection topicConnection = topicConnectionFactory.createTopicConnection();
+				connections.add(topicConnection);
+				TopicSession topicSession = topicConnection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
+				CountingBorrower borrower = new CountingBorrower(latencies);
+				topicSession.createSubscriber(topic).setMessageListener(borrower);
+				borrowers.add(borrower);
+				topicConnection.start();
+			}
+			lender = new TLender(topicCF, topicName);
+
+			//	Throughput: as fast as possible
+			long startCpu = CpuTime.processNanos();
+			long startNanos = System.nanoTime();
+			long published = lender.createFeed(RateSource.open("gen")).run(0, durationSeconds);
+			long publishNanos = System.nanoTime() - startNanos;
+			long delivered = awaitQuiet(borrowers);
+			long lastDeliveryNanos = startNanos;
+			for (CountingBorrower borrower : borrowers) {
+				lastDeliveryNanos = Math.max(lastDeliveryNanos, borrower.lastNanos);
+			}
+			result.publishedPerSecond = published * 1e9 / publishNanos;
+			result.deliveredPerSecond = delivered * 1e9 / Math.max(1, lastDeliveryNanos - startNanos);
+			result.complete = delivered == published * subscribers;
+			result.throughputCpuNanos = CpuTime.difference(CpuTime.processNanos(), startCpu);
+			logger.info(String.format("  throughput published=%d (%.0f rates/s) delivered=%d/%d (%.0f rates/s) cpu=%s", published,
+					result.publishedPerSecond, delivered, published * subscribers, result.deliveredPerSecond, CpuTime.seconds(result.throughputCpuNanos)));
+
+			//	Latency: paced and timestamped
+			for (CountingBorrower borrower : borrowers) {
+				borrower.rates = 0;
+			}
+			startCpu = CpuTime.processNanos();
+			RateFeed rateFeed = lender.createFeed(RateSource.open("gen"));
+			rateFeed.setTimestamped(true);
+			rateFeed.run(targetRate, durationSeconds);
+			awaitQuiet(borrowers);
+			result.latencyCpuNanos = CpuTime.difference(CpuTime.processNanos(), startCpu);
+			result.latencies = latencies;
+			logger.info("  latency at " + targetRate + " rates/s p50=" + micros(latencies.getPercentile(50)) + " p99="
+					+ micros(latencies.getPercentile(99)) + " p99.9=" + micros(latencies.getPercentile(99.9)) + " max=" + micros(latencies.getMax())
+					+ " cpu=" + CpuTime.seconds(result.latencyCpuNanos));
+			results.add(result);
+		} finally {
+			if (lender != null) {
+				lender.close();
+			}
+			for (TopicConnection connection : connections) {
+				connection.close();
+			}
+		}
+	}
+
+	//	Wait until the subscribers stop receiving, and return the number of rates they received
+	private static long awaitQuiet(List<CountingBorrower> borrowers) throws InterruptedException {
+		long last = -1;
+		long total = 0;
+		while (true) {
+			total = 0;
+			for (CountingBorrower borrower : borrowers) {
+				total += borrower.rates;
+			}
+			if (total == last) {
+				return total;
+			}
+			last = total;
+			Thread.sleep(QUIET_MILLIS);
+		}
+	}
+
+	public void report() {
+		logger.info(String.format("%-40s %12s %12s %9s %9s %9s %9s", "profile", "publish/s", "deliver/s", "p50", "p99", "p99.9", "cpu"));
+		for (Result result : results) {
+			logger.info(String.format("%-40s %12.0f %12.0f %9s %9s %9s %9s%s", result.spec, result.publishedPerSecond, result.deliveredPerSecond,
+					micros(result.latencies.getPercentile(50)), micros(result.latencies.getPercentile(99)),
+					micros(result.latencies.getPercentile(99.9)), CpuTime.seconds(CpuTime.sum(result.throughputCpuNanos, result.latencyCpuNanos)),
+					result.complete ? "" : " (incomplete)"));
+		}
+	}
+
+	public void stop() throws Exception {
+		broker.stop();
+	}
+
+	private static String micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+	}
+
+	private static class Result {
+		final String spec;
+		final String url;
+		double publishedPerSecond;
+		double deliveredPerSecond;
+		boolean complete;
+		long throughputCpuNanos;
+		long latencyCpuNanos;
+		Histogram latencies;
+
+		Result(String spec, String url) {
+			this.spec = spec;
+			this.url = url;
+		}
+	}
+
+	//	One subscriber. It decodes every message, counts the rates and records the latency of timestamped messages
+	private static class CountingBorrower implements MessageListener, RateHandler {
+
+		private final Histogram latencies;
+		private final RateRecords rateRecords = new RateRecords(RateFeed.DEFAULT_BATCH_SIZE);
+		//	Written by the session's dispatch thread, read by the benchmark
+		volatile long rates;
+		volatile long lastNanos;
+
+		CountingBorrower(Histogram latencies) {
+			this.latencies = latencies;
+		}
+
+		public void onMessage(Message message) {
+			try {
+				if (message.propertyExists(RateFeed.PUBLISH_NANOS_PROPERTY)) {
+					latencies.record(System.nanoTime() - message.getLongProperty(RateFeed.PUBLISH_NANOS_PROPERTY));
+				}
+				rateRecords.decode((BytesMessage)message, this);
+			} catch (JMSException exc) {
+				logger.error(exc);
+			}
+			lastNanos = System.nanoTime();
+		}
+
+		public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+			rates++;
+		}
+	}
+
+	public static void main(String args[]) {
+
+		/*	main() method accepts the JNDI names of the topic connection factory and the rate topic, optionally followed by a comma separated
+		 * 	list of profile specs (vm,tcp,nio by default), the number of subscribers, the duration of each phase in seconds and the rate of the
+		 * 	latency phase in rates per second */
+
+		if (args.length < 2 || args.length > 6) {
+			logger.error("Invalid arguments. Should be: ");
+			logger.error("java TransportBenchmark factory topic [profiles] [subscribers] [durationSeconds] [ratePerSecond]");
+			System.exit(0);
+		}
+		String profiles = args.length > 2 ? args[2] : "vm,tcp,nio";
+		int subscribers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		int durationSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+		int targetRate = args.length > 5 ? Integer.parseInt(args[5]) : 5000;
+
+		try {
+			TransportBenchmark benchmark = new TransportBenchmark(args[0], args[1]);
+			for (String spec : profiles.split(",")) {
+				benchmark.run(spec.trim(), subscribers, durationSeconds, targetRate);
+			}
+			benchmark.report();
+			benchmark.stop();
+		} catch (Exception exc) {
+			logger.error(exc);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,116 @@
+package com.jms.pubsub;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.Arrays;
+
+import javax.naming.Context;
+
+//	TransportProfile picks the wire transport the lender and borrowers use to reach the ActiveMQ broker, instead of the URL in jndi.properties
+
+public enum TransportProfile {
+
+	/*	jndi.properties names the broker with a fixed provider URL (tcp://localhost:61616). The classes of this module all get their connection
+	 * 	factory from a new InitialContext(), and a java.naming.provider.url system property takes precedence over jndi.properties. So selecting
+	 * 	a profile only sets that property, and the JNDI names of the connection factory and the topics stay as they are.
+	 *
+	 * 		VM		the broker runs inside this JVM (vm://). The first connection starts it, and messages are passed between the client and the
+	 * 				broker by reference, without serialization or sockets. Only clients in the same JVM can reach it
+	 * 		TCP		a socket per connection, with a reader thread per connection at the broker (tcp://)
+	 * 		NIO		a socket per connection, served by a few selector threads at the broker (nio://). The broker has to have an nio connector
+	 * 				configured, on port 61618 here by default. The client side is the same as TCP
+	 *
+	 * 	A profile is given as a spec, e.g. on the command line with -transport spec:
+	 *
+	 * 		tcp							the profile's default address and options
+	 * 		tcp:broker1:61616			another address
+	 * 		tcp?socketBufferSize=131072	other options, e.g. to compare transport settings with TransportBenchmark. The options are ActiveMQ URL
+	 * 									options, like wireFormat.tcpNoDelayEnabled, wireFormat.tightEncodingEnabled or jms.prefetchPolicy.all
+	 * 		tcp://broker1:61616			a complete URL is used as it is
+	 *
+	 * 	The profiles are ActiveMQ URLs. Another provider (like the OpenJMS settings in jndi.properties) is still configured in jndi.properties. */
+
+	VM("vm", "localhost", "broker.persistent=false&broker.useJmx=false"),
+	TCP("tcp", "localhost:61616", null),
+	NIO("nio", "localhost:61618", null);
+
+	public static final String TRANSPORT_OPTION = "-transport";
+
+	private final String scheme;
+	private final String defaultAddress;
+	private final String defaultOptions;
+
+	private TransportProfile(String scheme, String defaultAddress, String defaultOptions) {
+		this.scheme = scheme;
+		this.defaultAddress = defaultAddress;
+		this.defaultOptions = defaultOptions;
+	}
+
+	public String getScheme() {
+		return scheme;
+	}
+
+	public String url() {
+		return url(defaultAddress, defaultOptions);
+	}
+
+	//	The URL of the profile for an address (host:port, or the broker name for VM). options replace the default options, null for none
+	public String url(String address, String options) {
+		String url = scheme + "://" + address;
+		return options == null || options.isEmpty() ? url : url + "?" + options;
+	}
+
+	public static TransportProfile byName(String name) {
+		for (TransportProfile profile : values()) {
+			if (profile.scheme.equalsIgnoreCase(name)) {
+				return profile;
+			}
+		}
+		throw new IllegalArgumentException("Unknown transport " + name + ", should be one of " + Arrays.toString(values()));
+	}
+
+	//	The provider URL for a spec (see above)
+	public static String resolve(String spec) {
+		if (spec.contains("://")) {
+			return spec;
+		}
+		String options = null;
+		int query = spec.indexOf('?');
+		if (query >= 0) {
+			options = spec.substring(query + 1);
+			spec = spec.substring(0, query);
+		}
+		String address = null;
+		int colon = spec.indexOf(':');
+		if (colon >= 0) {
+			address = spec.substring(colon + 1);
+			spec = spec.substring(0, colon);
+		}
+		TransportProfile profile = byName(spec);
+		return profile.url(address != null ? address : profile.defaultAddress, options != null ? options : profile.defaultOptions);
+	}
+
+	//	Use the spec for every InitialContext created from now on. Returns the provider URL
+	public static String select(String spec) {
+		String url = resolve(spec);
+		System.setProperty(Context.PROVIDER_URL, url);
+		return url;
+	}
+
+	//	Select the transport if the arguments contain -transport spec, and return the arguments without it
+	public static String[] selectFromArguments(String[] args) {
+		for (int i = 0; i < args.length - 1; i++) {
+			if (TRANSPORT_OPTION.equals(args[i])) {
+				select(args[i + 1]);
+				String[] rest = new String[args.length - 2];
+				System.arraycopy(args, 0, rest, 0, i);
+				System.arraycopy(args, i + 2, rest, i, args.length - i - 2);
+				return rest;
+			}
+		}
+		return args;
+	}
+}
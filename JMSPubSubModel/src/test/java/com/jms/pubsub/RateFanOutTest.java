@@ -0,0 +1,261 @@
+package com.jms.pubsub;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.jms.testbroker.BrokerTestCase;
+
+/**
+ * Integration test for TLender and TBorrower, against an embedded broker.
+ */
+public class RateFanOutTest extends BrokerTestCase {
+
+	private static final int STORED_TICKS = 2000;
+	private static final int FAN_OUT_TICKS = 20000;
+	private static final int FAN_OUT_BORROWERS = 4;
+	private static final long QUIET_SOURCE_TIMEOUT_MILLIS = 5000;
+	private static final long CONFLATION_WINDOW_MILLIS = 50;
+
+	private TLender lender;
+	private final List<TBorrower> borrowers = new ArrayList<TBorrower>();
+	private final List<File> directories = new ArrayList<File>();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		//	The lender first, so it answers the snapshot request every borrower makes when it subscribes
+		lender = new TLender("TopicCF", "RateTopic");
+	}
+
+	protected void tearDown() throws Exception {
+		for (TBorrower borrower : borrowers) {
+			borrower.close();
+		}
+		lender.close();
+		for (File directory : directories) {
+			delete(directory);
+		}
+		super.tearDown();
+	}
+
+	public void testEveryBorrowerStoresEveryRate() throws Exception {
+		File first = directory();
+		File second = directory();
+		subscribe(first);
+		subscribe(second);
+
+		RateFeed rateFeed = lender.createFeed(new LimitedRateSource(STORED_TICKS));
+		long rates = rateFeed.run(0, 0);
+		awaitHandled(rateFeed.getMessages());
+		assertEquals(STORED_TICKS, rates);
+
+		for (TBorrower borrower : borrowers) {
+			borrower.close();
+		}
+		borrowers.clear();
+		assertStored(rates, first);
+		assertStored(rates, second);
+	}
+
+	//	A lender restarted after the snapshot numbers from 1 again, below the sequence numbers of the snapshot, and none of its rates is lost
+	public void testRatesOfARestartedLenderAfterASnapshot() throws Exception {
+		RateFeed rateFeed = lender.createFeed(new LimitedRateSource(STORED_TICKS));
+		rateFeed.run(0, 0);
+		File directory = directory();
+		subscribe(directory);
+
+		lender.close();
+		lender = new TLender("TopicCF", "RateTopic");
+		int products = LoanProduct.values().length;
+		rateFeed = lender.createFeed(new LimitedRateSource(2 * products));
+		long rates = rateFeed.run(0, 0);
+		awaitHandled(rateFeed.getMessages());
+
+		for (TBorrower borrower : borrowers) {
+			borrower.close();
+		}
+		borrowers.clear();
+		//	The snapshot of every product, then every rate of the restarted lender
+		assertStored(products + rates, directory);
+	}
+
+	public void testFanOut() throws Exception {
+		for (int i = 0; i < FAN_OUT_BORROWERS; i++) {
+			subscribe(null);
+		}
+
+		long start = System.nanoTime();
+		RateFeed rateFeed = lender.createFeed(new LimitedRateSource(FAN_OUT_TICKS));
+		long rates = rateFeed.run(0, 0);
+		awaitHandled(rateFeed.getMessages());
+		//	Rates delivered, several rates travel in one message
+		report(rates * FAN_OUT_BORROWERS, System.nanoTime() - start);
+	}
+
+	public void testPartialBatchIsPublishedWhileTheSourceIsQuiet() throws Exception {
+		final TBorrower borrower = subscribe(null);
+		QuietRateSource rateSource = new QuietRateSource(3);
+		FeedThread feed = new FeedThread(lender.createFeed(rateSource));
+		feed.start();
+		try {
+			await("the partial batch published", QUIET_SOURCE_TIMEOUT_MILLIS, new Condition() {
+				public boolean isMet() {
+					return borrower.getHandoffListener().getHandled() >= 1;
+				}
+			});
+			assertEquals(1, feed.rateFeed.getMessages());
+		} finally {
+			rateSource.finish();
+			feed.join();
+		}
+		assertNull(feed.failure);
+		assertEquals(3, feed.rates);
+	}
+
+	public void testConflationWindowIsPublishedWhileTheSourceIsQuiet() throws Exception {
+		final TBorrower borrower = subscribe(null);
+		QuietRateSource rateSource = new QuietRateSource(3);
+		RateFeed rateFeed = lender.createFeed(rateSource);
+		rateFeed.setConflationWindow(CONFLATION_WINDOW_MILLIS);
+		FeedThread feed = new FeedThread(rateFeed);
+		feed.start();
+		try {
+			await("the conflated ticks published", QUIET_SOURCE_TIMEOUT_MILLIS, new Condition() {
+				public boolean isMet() {
+					return borrower.getHandoffListener().getHandled() >= 1;
+				}
+			});
+			//	The generated walk ticks the products in turn, so there was nothing to conflate
+			assertEquals(1, rateFeed.getMessages());
+		} finally {
+			rateSource.finish();
+			feed.join();
+		}
+		assertNull(feed.failure);
+		assertEquals(3, feed.rates);
+	}
+
+	private TBorrower subscribe(File storeDirectory) {
+		TBorrower borrower = new TBorrower("TopicCF", "RateTopic", "6.0", 0, null, storeDirectory);
+		borrowers.add(borrower);
+		return borrower;
+	}
+
+	//	Until every borrower has handled every message the feed published
+	private void awaitHandled(final long messages) throws Exception {
+		await("all rate messages handled", new Condition() {
+			public boolean isMet() {
+				for (TBorrower borrower : borrowers) {
+					if (borrower.getHandoffListener().getHandled() < messages) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+		for (TBorrower borrower : borrowers) {
+			assertEquals(messages, borrower.getHandoffListener().getHandled());
+			assertEquals(0, borrower.getHandoffListener().getFailed());
+		}
+	}
+
+	private static void assertStored(long rates, File directory) throws IOException {
+		RateStore rateStore = new RateStore(directory);
+		try {
+			assertEquals(rates, rateStore.size());
+		} finally {
+			rateStore.close();
+		}
+	}
+
+	private File directory() throws IOException {
+		File directory = File.createTempFile("rates", "");
+		directory.delete();
+		directory.mkdirs();
+		directories.add(directory);
+		return directory;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	//	Runs a feed until its source is exhausted
+	private static class FeedThread extends Thread {
+
+		final RateFeed rateFeed;
+		volatile long rates;
+		volatile Exception failure;
+
+		FeedThread(RateFeed rateFeed) {
+			super("RateFanOutTest feed");
+			this.rateFeed = rateFeed;
+		}
+
+		public void run() {
+			try {
+				rates = rateFeed.run(0, 0);
+			} catch (Exception exc) {
+				failure = exc;
+			}
+		}
+	}
+
+	//	A few ticks of the generated random walk, then nothing until finish() ends the source
+	private static class QuietRateSource extends RateSource {
+
+		private final RateSource generated = new RateSource.GeneratedRateSource(42);
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private int remaining;
+
+		QuietRateSource(int ticks) {
+			this.remaining = ticks;
+		}
+
+		void finish() {
+			finished.countDown();
+		}
+
+		public boolean next(RateTick tick) throws IOException {
+			return poll(tick, Long.MAX_VALUE) == TICK;
+		}
+
+		public int poll(RateTick tick, long timeoutNanos) throws IOException {
+			if (remaining > 0) {
+				remaining--;
+				return generated.next(tick) ? TICK : END;
+			}
+			try {
+				return finished.await(Math.min(timeoutNanos, TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MILLIS)), TimeUnit.NANOSECONDS) 
+						? END : TIMEOUT;
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				return END;
+			}
+		}
+	}
+
+	//	The generated random walk, ending after a number of ticks
+	private static class LimitedRateSource extends RateSource {
+
+		private final RateSource generated = new RateSource.GeneratedRateSource(42);
+		private int remaining;
+
+		LimitedRateSource(int ticks) {
+			this.remaining = ticks;
+		}
+
+		public boolean next(RateTick tick) throws IOException {
+			return remaining-- > 0 && generated.next(tick);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.jms.pubsub;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for RateSnapshot.
+ */
+public class RateSnapshotTest extends TestCase {
+
+	//	Only the latest rate of each product is kept, however many arrive
+	public void testKeepsTheLatestRatePerProduct() {
+		RateSnapshot rateSnapshot = new RateSnapshot();
+		int id30 = LoanProduct.FIXED_30Y.getId();
+		int id15 = LoanProduct.FIXED_15Y.getId();
+		assertFalse(rateSnapshot.update(id30, 6.0, 1000, 1));
+		assertFalse(rateSnapshot.update(id15, 5.5, 1001, 1));
+		for (int sequence = 2; sequence <= 10000; sequence++) {
+			assertTrue(rateSnapshot.update(id30, 6.0 + sequence / 1000.0, 1000 + sequence, sequence));
+		}
+		assertFalse(rateSnapshot.update(0, 6.0, 1000, 1));
+
+		final List<double[]> replayed = new ArrayList<double[]>();
+		assertEquals(2, rateSnapshot.replay(new RateHandler() {
+			public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+				replayed.add(new double[] { productId, rate, sequence });
+			}
+		}));
+		assertEquals(2, replayed.size());
+		assertEquals(16.0 + 5.5, replayed.get(0)[1] + replayed.get(1)[1], 1e-9);
+		assertEquals(10000.0, replayed.get(id30 < id15 ? 0 : 1)[2]);
+	}
+}
@@ -0,0 +1,36 @@
+package com.jms.pubsub;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for RateSource.
+ */
+public class RateSourceTest extends TestCase {
+
+	//	Malformed lines are skipped and counted, the lines after them still read
+	public void testSkipsMalformedLines() throws IOException {
+		String lines = "# rates\n6.125\nsix\n15Y,5.5\nXYZ,5.5\n\nARM5,4.75,1000\n30Y,6.0,yesterday\n30Y\n30Y,6.25,2000\n";
+		RateSource.LineRateSource rateSource = new RateSource.LineRateSource(new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8)),
+				null, false);
+		RateTick tick = new RateTick();
+
+		assertTrue(rateSource.next(tick));
+		assertEquals(LoanProduct.FIXED_30Y, tick.product);
+		assertEquals(6.125, tick.rate);
+		assertTrue(rateSource.next(tick));
+		assertEquals(LoanProduct.FIXED_15Y, tick.product);
+		assertTrue(rateSource.next(tick));
+		assertEquals(LoanProduct.ARM_5_1, tick.product);
+		assertEquals(1000, tick.effectiveMillis);
+		assertTrue(rateSource.next(tick));
+		assertEquals(2000, tick.effectiveMillis);
+		assertFalse(rateSource.next(tick));
+
+		assertEquals(4, rateSource.getMalformed());
+		rateSource.close();
+	}
+}
@@ -0,0 +1,143 @@
+package com.jms.pubsub;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for RateStore.
+ */
+public class RateStoreTest extends TestCase {
+
+	private File directory;
+
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("ratestore", "");
+		directory.delete();
+	}
+
+	protected void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	public void testSkipsProductIdsOutOfRange() throws IOException {
+		RateStore rateStore = new RateStore(directory, 256);
+		rateStore.append(0, 6.0, 1000000L, 1);
+		rateStore.append(256, 6.0, 1000010L, 2);
+		rateStore.append(LoanProduct.FIXED_30Y.getId(), 6.0, 1000020L, 3);
+		assertEquals(1, rateStore.size());
+		assertEquals(2, rateStore.getSkipped());
+		rateStore.close();
+	}
+
+	//	Rates are stored exactly or not at all, so a replay only shows rates that were received
+	public void testSkipsRatesItCannotHoldExactly() throws IOException {
+		RateStore rateStore = new RateStore(directory, 256);
+		int id = LoanProduct.FIXED_30Y.getId();
+		rateStore.append(id, 6.125, 1000000L, 1);
+		rateStore.append(id, 6.1254, 1000010L, 2);
+		rateStore.append(id, Double.NaN, 1000020L, 3);
+		rateStore.append(id, 6.001, 1000030L, 4);
+		assertEquals(2, rateStore.size());
+		assertEquals(2, rateStore.getSkipped());
+		rateStore.close();
+	}
+
+	//	A rate effective before the last one stored is skipped, also across segments and a reopen, so buckets get one bar each
+	public void testSkipsEffectiveTimesGoingBack() throws IOException {
+		RateStore rateStore = new RateStore(directory, 64);
+		int id = LoanProduct.FIXED_30Y.getId();
+		for (int i = 0; i < 20; i++) {
+			rateStore.append(id, 6.0, 1000L + i * 100, i);
+		}
+		rateStore.append(id, 5.0, 1050L, 20);
+		assertTrue(directory.listFiles().length > 1);
+		assertEquals(1, rateStore.getSkipped());
+		rateStore.close();
+
+		rateStore = new RateStore(directory, 64);
+		rateStore.append(id, 5.0, 1100L, 21);
+		rateStore.append(id, 7.0, 2900L, 22);
+		assertEquals(1, rateStore.getSkipped());
+		final List<double[]> bars = new ArrayList<double[]>();
+		rateStore.downsample(id, 0, 10000, 1000, new RateStore.BarHandler() {
+			public void onBar(int productId, long startMillis, double open, double high, double low, double close, int count) {
+				bars.add(new double[] { startMillis, close, count });
+			}
+		});
+		assertEquals(2, bars.size());
+		assertTrue(java.util.Arrays.equals(new double[] { 1000, 6.0, 10 }, bars.get(0)));
+		assertTrue(java.util.Arrays.equals(new double[] { 2000, 7.0, 11 }, bars.get(1)));
+		rateStore.close();
+	}
+
+	public void testReplaysRangeAcrossSegmentsAndReopen() throws IOException {
+		int id30 = LoanProduct.FIXED_30Y.getId();
+		int id15 = LoanProduct.FIXED_15Y.getId();
+
+		//	Small segments, so the rates span several of them
+		RateStore rateStore = new RateStore(directory, 256);
+		for (int i = 0; i < 200; i++) {
+			rateStore.append(i % 2 == 0 ? id30 : id15, 6.0 + (i % 7) * 0.125 - (i % 3) * 0.001, 1000000L + i * 10, i + 1);
+		}
+		assertTrue(directory.listFiles().length > 1);
+		assertEquals(200, rateStore.size());
+		rateStore.close();
+
+		rateStore = new RateStore(directory, 256);
+		rateStore.append(id30, 4.5, 1002000L, 201);
+		final List<double[]> replayed = new ArrayList<double[]>();
+		long count = rateStore.replay(id30, 1000500L, 1002000L, new RateHandler() {
+			public void onRate(int productId, int termMonths, double rate, long effectiveMillis, long sequence) {
+				assertEquals(360, termMonths);
+				replayed.add(new double[] { rate, effectiveMillis, sequence });
+			}
+		});
+		//	Rates 50, 52, ... 198 of the first run and the one appended after reopening
+		assertEquals(76, count);
+		double[] first = replayed.get(0);
+		assertEquals(6.0 + 1 * 0.125 - 2 * 0.001, first[0], 1e-9);
+		assertEquals(1000500.0, first[1]);
+		assertEquals(51.0, first[2]);
+		assertEquals(4.5, replayed.get(75)[0], 1e-9);
+		assertEquals(201.0, replayed.get(75)[2]);
+		rateStore.close();
+	}
+
+	public void testDownsamplesIntoBars() throws IOException {
+		RateStore rateStore = new RateStore(directory, 4096);
+		int id = LoanProduct.FIXED_30Y.getId();
+		double[] rates = { 6.5, 6.25, 6.75, 6.0, 5.5, 5.75 };
+		for (int i = 0; i < rates.length; i++) {
+			rateStore.append(id, rates[i], i * 1000L, i);
+		}
+		final List<double[]> bars = new ArrayList<double[]>();
+		rateStore.downsample(id, 0, 10000, 3000, new RateStore.BarHandler() {
+			public void onBar(int productId, long startMillis, double open, double high, double low, double close, int count) {
+				bars.add(new double[] { startMillis, open, high, low, close, count });
+			}
+		});
+		assertEquals(2, bars.size());
+		assertTrue(java.util.Arrays.equals(new double[] { 0, 6.5, 6.75, 6.25, 6.75, 3 }, bars.get(0)));
+		assertTrue(java.util.Arrays.equals(new double[] { 3000, 6.0, 6.0, 5.5, 5.75, 3 }, bars.get(1)));
+		rateStore.close();
+	}
+
+	public void testZigzag() {
+		long[] values = { 0, 1, -1, 63, -64, Long.MAX_VALUE, Long.MIN_VALUE };
+		for (long value : values) {
+			assertEquals(value, RateStore.unzigzag(RateStore.zigzag(value)));
+		}
+		assertEquals(1, RateStore.zigzag(-1));
+		assertEquals(2, RateStore.zigzag(1));
+	}
+}
@@ -0,0 +1,86 @@
+package com.jms.pubsub;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for SequenceTracker.
+ */
+public class SequenceTrackerTest extends TestCase {
+
+	private static final int ID = LoanProduct.FIXED_30Y.getId();
+
+	public void testClassifiesTicks() {
+		SequenceTracker tracker = new SequenceTracker();
+		assertEquals(SequenceTracker.NEXT, tracker.track(ID, 5));
+		assertEquals(SequenceTracker.NEXT, tracker.track(ID, 6));
+		assertEquals(SequenceTracker.GAP, tracker.track(ID, 9));
+		assertEquals(2, tracker.getMissing());
+		assertEquals(SequenceTracker.OUT_OF_ORDER, tracker.track(ID, 7));
+		assertEquals(SequenceTracker.DUPLICATE, tracker.track(ID, 7));
+		assertEquals(SequenceTracker.DUPLICATE, tracker.track(ID, 9));
+		assertEquals(SequenceTracker.NEXT, tracker.track(ID, 10));
+
+		assertEquals(7, tracker.getTicks());
+		assertEquals(1, tracker.getGaps());
+		assertEquals(1, tracker.getMissing());
+		assertEquals(2, tracker.getDuplicates());
+		assertEquals(1, tracker.getOutOfOrder());
+	}
+
+	//	A tick older than the first one seen was never counted as missing, so it does not take one off
+	public void testTickBeforeTheFirstDoesNotFillAGap() {
+		SequenceTracker tracker = new SequenceTracker();
+		assertEquals(SequenceTracker.NEXT, tracker.track(ID, 5));
+		assertEquals(SequenceTracker.OUT_OF_ORDER, tracker.track(ID, 4));
+		assertEquals(0, tracker.getMissing());
+
+		assertEquals(SequenceTracker.GAP, tracker.track(ID, 8));
+		assertEquals(SequenceTracker.OUT_OF_ORDER, tracker.track(ID, 3));
+		assertEquals(SequenceTracker.OUT_OF_ORDER, tracker.track(ID, 7));
+		assertEquals(1, tracker.getMissing());
+
+		//	After a restart the numbering starts over from 1, nothing below it
+		tracker.track(ID, 1);
+		assertEquals(SequenceTracker.GAP, tracker.track(ID, 3));
+		assertEquals(SequenceTracker.OUT_OF_ORDER, tracker.track(ID, 2));
+		assertEquals(1, tracker.getMissing());
+		assertEquals(4, tracker.getOutOfOrder());
+	}
+
+	public void testProductsAreTrackedSeparately() {
+		SequenceTracker tracker = new SequenceTracker();
+		int other = LoanProduct.ARM_5_1.getId();
+		assertEquals(SequenceTracker.NEXT, tracker.track(ID, 1));
+		assertEquals(SequenceTracker.NEXT, tracker.track(other, 1));
+		assertEquals(SequenceTracker.NEXT, tracker.track(ID, 2));
+		assertEquals(SequenceTracker.NEXT, tracker.track(other, 2));
+		assertEquals(0, tracker.getGaps());
+	}
+
+	public void testResetAndResync() {
+		SequenceTracker tracker = new SequenceTracker();
+		tracker.track(ID, 1000);
+		assertEquals(SequenceTracker.RESET, tracker.track(ID, 1));
+		assertEquals(SequenceTracker.NEXT, tracker.track(ID, 2));
+		assertEquals(1, tracker.getResets());
+
+		assertFalse(tracker.resync(ID, 2));
+		assertTrue(tracker.resync(ID, 50));
+		assertEquals(SequenceTracker.DUPLICATE, tracker.track(ID, 40));
+		assertEquals(SequenceTracker.NEXT, tracker.track(ID, 51));
+	}
+
+	public void testRestartAfterAFewTicks() {
+		SequenceTracker tracker = new SequenceTracker();
+		for (long sequence = 1; sequence <= 5; sequence++) {
+			tracker.track(ID, sequence);
+		}
+		assertEquals(SequenceTracker.RESET, tracker.track(ID, 1));
+		assertEquals(SequenceTracker.NEXT, tracker.track(ID, 2));
+		assertEquals(SequenceTracker.NEXT, tracker.track(ID, 3));
+		assertEquals(SequenceTracker.DUPLICATE, tracker.track(ID, 2));
+		assertEquals(1, tracker.getResets());
+		assertEquals(1, tracker.getDuplicates());
+		assertEquals(0, tracker.getGaps());
+	}
+}
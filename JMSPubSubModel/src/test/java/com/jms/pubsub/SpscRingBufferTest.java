@@ -0,0 +1,58 @@
+package com.jms.pubsub;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for SpscRingBuffer.
+ */
+public class SpscRingBufferTest extends TestCase {
+
+	public void testCapacityIsRoundedUp() {
+		assertEquals(8, new SpscRingBuffer<Integer>(5).capacity());
+		assertEquals(8, new SpscRingBuffer<Integer>(8).capacity());
+		assertEquals(2, new SpscRingBuffer<Integer>(1).capacity());
+	}
+
+	public void testOfferAndPollInOrder() {
+		SpscRingBuffer<Integer> ring = new SpscRingBuffer<Integer>(4);
+		assertNull(ring.poll());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer(i));
+		}
+		assertFalse(ring.offer(4));
+		assertEquals(4, ring.size());
+
+		assertEquals(Integer.valueOf(0), ring.poll());
+		assertTrue(ring.offer(4));
+		for (int i = 1; i <= 4; i++) {
+			assertEquals(Integer.valueOf(i), ring.poll());
+		}
+		assertNull(ring.poll());
+		assertEquals(0, ring.size());
+	}
+
+	public void testTwoThreads() throws InterruptedException {
+		final int count = 1000000;
+		final SpscRingBuffer<Integer> ring = new SpscRingBuffer<Integer>(64);
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < count; i++) {
+					while (!ring.offer(i)) {
+						Thread.yield();
+					}
+				}
+			}
+		});
+		producer.start();
+		for (int expected = 0; expected < count; ) {
+			Integer entry = ring.poll();
+			if (entry == null) {
+				Thread.yield();
+				continue;
+			}
+			assertEquals(expected++, entry.intValue());
+		}
+		producer.join();
+		assertNull(ring.poll());
+	}
+}
@@ -0,0 +1,46 @@
+package com.jms.pubsub;
+
+import java.util.Arrays;
+
+import javax.naming.Context;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for TransportProfile.
+ */
+public class TransportProfileTest extends TestCase {
+
+	public void testResolvesSpecs() {
+		assertEquals("tcp://localhost:61616", TransportProfile.resolve("tcp"));
+		assertEquals("nio://broker1:61618", TransportProfile.resolve("NIO:broker1:61618"));
+		assertEquals("tcp://localhost:61616?socketBufferSize=131072", TransportProfile.resolve("tcp?socketBufferSize=131072"));
+		assertEquals("vm://localhost?broker.persistent=false&broker.useJmx=false", TransportProfile.resolve("vm"));
+		assertEquals("vm://rates?create=false", TransportProfile.resolve("vm:rates?create=false"));
+		assertEquals("ssl://broker1:61617", TransportProfile.resolve("ssl://broker1:61617"));
+	}
+
+	public void testRejectsUnknownProfile() {
+		try {
+			TransportProfile.resolve("udp");
+			fail();
+		} catch (IllegalArgumentException exc) {
+			// expected
+		}
+	}
+
+	public void testSelectsFromArguments() {
+		String previous = System.getProperty(Context.PROVIDER_URL);
+		try {
+			String[] rest = TransportProfile.selectFromArguments(new String[] { "TopicCF", "RateTopic", "-transport", "nio", "4.0" });
+			assertEquals(Arrays.asList("TopicCF", "RateTopic", "4.0"), Arrays.asList(rest));
+			assertEquals("nio://localhost:61618", System.getProperty(Context.PROVIDER_URL));
+		} finally {
+			if (previous == null) {
+				System.clearProperty(Context.PROVIDER_URL);
+			} else {
+				System.setProperty(Context.PROVIDER_URL, previous);
+			}
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.jms.testbroker;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+//	BrokerTestCase is the base class of tests that need a broker: every test runs against an EmbeddedBroker of its own
+
+public abstract class BrokerTestCase extends TestCase {
+
+	/*	setUp() starts the broker with the destinations of the jndi.properties on the test classpath, tearDown() stops it again, so no test sees
+	 * 	the messages another test left behind. Subclasses that override setUp() or tearDown() call super first or last respectively.
+	 *
+	 * 	The messaging in the examples is asynchronous, so the tests wait for a condition to be met (await()) rather than for a fixed time.
+	 * 	Performance tests report their figures through report(), one line per measurement in the same format, so the lines can be picked out
+	 * 	of the build output and compared between runs */
+
+	protected static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+	private static final long POLL_MILLIS = 10;
+
+	/*	The PERF lines go to a logger of their own. The modules' test log4j.properties only let warnings through, so unless one of them configures
+	 * 	this logger it writes the bare lines to standard output */
+	final static Logger perfLogger = Logger.getLogger("PERF");
+
+	static {
+		if (!perfLogger.getAllAppenders().hasMoreElements()) {
+			perfLogger.addAppender(new ConsoleAppender(new PatternLayout("%m%n")));
+			perfLogger.setAdditivity(false);
+			perfLogger.setLevel(Level.INFO);
+		}
+	}
+
+	protected EmbeddedBroker broker;
+
+	//	Something a test waits for
+	protected interface Condition {
+		boolean isMet() throws Exception;
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		broker = EmbeddedBroker.start(getClass().getSimpleName(), jndiResource());
+	}
+
+	protected void tearDown() throws Exception {
+		if (broker != null) {
+			broker.stop();
+			broker = null;
+		}
+		super.tearDown();
+	}
+
+	//	The classpath resource the broker's destinations are read from
+	protected String jndiResource() {
+		return EmbeddedBroker.DEFAULT_JNDI_RESOURCE;
+	}
+
+	//	Wait until the condition is met, failing the test with the message if it is not met within the timeout
+	protected static void await(String message, long timeoutMillis, Condition condition) throws Exception {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (!condition.isMet()) {
+			if (System.nanoTime() - deadline > 0) {
+				fail(message + " (not within " + timeoutMillis + " ms)");
+			}
+			Thread.sleep(POLL_MILLIS);
+		}
+	}
+
+	protected static void await(String message, Condition condition) throws Exception {
+		await(message, DEFAULT_TIMEOUT_MILLIS, condition);
+	}
+
+	/**
+	 * Logs a performance figure as a line like
+	 * <pre>PERF ChatTest.testFanOut messages=20000 seconds=1.234 perSecond=16207</pre>
+	 */
+	protected void report(long messages, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		perfLogger.info(String.format("PERF %s.%s messages=%d seconds=%.3f perSecond=%.0f", getClass().getSimpleName(), getName(), messages,
+				seconds, messages / Math.max(seconds, 1e-9)));
+	}
+}
@@ -0,0 +1,127 @@
+package com.jms.testbroker;
+
+/**
+ * @author Kevin
+ *
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.naming.Context;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+
+//	EmbeddedBroker runs an ActiveMQ broker inside the test's JVM, so the examples can be tested without a broker on localhost:61616
+
+public class EmbeddedBroker {
+
+	/*	The examples find their connection factories and destinations through JNDI, configured by the jndi.properties on their classpath. The
+	 * 	broker is started with the queues and topics declared there (queue.[jndiName] = [physicalName], topic.[jndiName] = [physicalName]), and
+	 * 	the provider URL is pointed at it through the java.naming.provider.url system property, which takes precedence over jndi.properties.
+	 * 	So the classes under test look up the same names as in production and get connections to the embedded broker over the vm:// transport,
+	 * 	without a socket.
+	 *
+	 * 	The broker keeps nothing on disk and registers no JMX beans, so a broker can be started and stopped for every test. stop() puts the
+	 * 	previous provider URL back */
+
+	public static final String DEFAULT_JNDI_RESOURCE = "jndi.properties";
+
+	private final BrokerService brokerService;
+	private final String url;
+	private final String previousProviderUrl;
+
+	private EmbeddedBroker(BrokerService brokerService, String previousProviderUrl) {
+		this.brokerService = brokerService;
+		this.url = "vm://" + brokerService.getBrokerName() + "?create=false";
+		this.previousProviderUrl = previousProviderUrl;
+	}
+
+	public static EmbeddedBroker start(String brokerName) throws Exception {
+		return start(brokerName, DEFAULT_JNDI_RESOURCE);
+	}
+
+	/**
+	 * @param brokerName	name of the broker, part of its vm:// URL
+	 * @param jndiResource	classpath resource the destinations are read from
+	 */
+	public static EmbeddedBroker start(String brokerName, String jndiResource) throws Exception {
+		BrokerService brokerService = new BrokerService();
+		brokerService.setBrokerName(brokerName);
+		brokerService.setPersistent(false);
+		brokerService.setUseJmx(false);
+		brokerService.setUseShutdownHook(false);
+		brokerService.setDestinations(destinations(loadProperties(jndiResource)));
+		brokerService.start();
+		brokerService.waitUntilStarted();
+
+		EmbeddedBroker broker = new EmbeddedBroker(brokerService, System.getProperty(Context.PROVIDER_URL));
+		System.setProperty(Context.PROVIDER_URL, broker.url);
+		return broker;
+	}
+
+	//	The URL the JNDI lookups are pointed at
+	public String getUrl() {
+		return url;
+	}
+
+	public BrokerService getBrokerService() {
+		return brokerService;
+	}
+
+	//	A connection factory for tests that create their connections themselves instead of looking one up
+	public ActiveMQConnectionFactory createConnectionFactory() {
+		return new ActiveMQConnectionFactory(url);
+	}
+
+	//	Number of messages waiting in a queue, by physical name. 0 for a queue nobody has used yet
+	public long getQueueSize(String physicalName) throws Exception {
+		Destination destination = brokerService.getDestination(new ActiveMQQueue(physicalName));
+		return destination == null ? 0 : destination.getDestinationStatistics().getMessages().getCount();
+	}
+
+	public void stop() throws Exception {
+		if (previousProviderUrl == null) {
+			System.clearProperty(Context.PROVIDER_URL);
+		} else {
+			System.setProperty(Context.PROVIDER_URL, previousProviderUrl);
+		}
+		brokerService.stop();
+		brokerService.waitUntilStopped();
+	}
+
+	static Properties loadProperties(String resource) throws IOException {
+		InputStream in = EmbeddedBroker.class.getClassLoader().getResourceAsStream(resource);
+		if (in == null) {
+			throw new IOException(resource + " not found on the classpath");
+		}
+		Properties properties = new Properties();
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	static ActiveMQDestination[] destinations(Properties jndiProperties) {
+		List<ActiveMQDestination> destinations = new ArrayList<ActiveMQDestination>();
+		for (String name : jndiProperties.stringPropertyNames()) {
+			String physicalName = jndiProperties.getProperty(name).trim();
+			if (name.startsWith("queue.")) {
+				destinations.add(new ActiveMQQueue(physicalName));
+			} else if (name.startsWith("topic.")) {
+				destinations.add(new ActiveMQTopic(physicalName));
+			}
+		}
+		return destinations.toArray(new ActiveMQDestination[destinations.size()]);
+	}
+}
@@ -0,0 +1,54 @@
+package com.jms.testbroker;
+
+import java.util.Properties;
+
+import javax.jms.*;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+
+/**
+ * Unit test for EmbeddedBroker.
+ */
+public class EmbeddedBrokerTest extends BrokerTestCase {
+
+	public void testReadsDestinationsFromJndiProperties() {
+		Properties properties = new Properties();
+		properties.setProperty("queue.LoanRequestQ", "jms.LoanRequestQ ");
+		properties.setProperty("topic.RateTopic", "jms.RateTopic");
+		properties.setProperty("connectionFactoryNames", "QueueCF");
+		assertEquals(2, EmbeddedBroker.destinations(properties).length);
+	}
+
+	public void testPointsJndiAtTheBroker() throws Exception {
+		assertEquals(broker.getUrl(), System.getProperty(Context.PROVIDER_URL));
+
+		InitialContext context = new InitialContext();
+		QueueConnectionFactory factory = (QueueConnectionFactory) context.lookup("TestCF");
+		Queue queue = (Queue) context.lookup("TestQueue");
+		QueueConnection connection = factory.createQueueConnection();
+		try {
+			QueueSession session = connection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+			session.createSender(queue).send(session.createTextMessage("hello"));
+			assertEquals(1, broker.getQueueSize("test.queue"));
+
+			connection.start();
+			TextMessage message = (TextMessage) session.createReceiver(queue).receive(5000);
+			assertEquals("hello", message.getText());
+			//	The acknowledgement reaches the broker after receive() returns
+			await("queue drained", new Condition() {
+				public boolean isMet() throws Exception {
+					return broker.getQueueSize("test.queue") == 0;
+				}
+			});
+		} finally {
+			connection.close();
+		}
+	}
+
+	public void testRestoresProviderUrl() throws Exception {
+		String url = broker.getUrl();
+		broker.stop();
+		broker = null;
+		assertFalse(url.equals(System.getProperty(Context.PROVIDER_URL)));
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Keeps an audit trail of the topic: logs every message with its ID and the time it was sent.
+ *
+ * @author Kevin
+ */
+@ApplicationScoped
+public class AuditHandler implements TopicHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(AuditHandler.class.toString());
+
+    @Override
+    public String getName() {
+        return "audit";
+    }
+
+    @Override
+    public void handle(ReceivedMessage message) {
+        LOGGER.info("Received Message from topic: " + message.getText() + " (" + message.getMessageId() + ", sent "
+                + new Date(message.getSentMillis()) + ")");
+    }
+
+    @Override
+    public void onDropped(long messages) {
+        LOGGER.warning("Audit trail of the topic is missing " + messages + " messages");
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.inject.Inject;
+import javax.jms.Queue;
+
+import com.jms.metrics.Histogram;
+
+/**
+ * <p>
+ * Collects the messages the {@link HelloWorldQueueMDB} instances receive and writes them to the {@link MessageSink} in batches,
+ * instead of handling every message on its own.
+ * </p>
+ *
+ * <p>
+ * Batching is only switched on for a queue whose messages may be lost, with the system property
+ * <code>helloworld.mdb.queueLossTolerant</code> set to <code>true</code>. The MDB acknowledges a message when onMessage()
+ * returns, and with batching that is when the message is added to the stage, not when it is written: messages waiting in the
+ * stage are lost if the server dies or the application is undeployed, at most one batch per lane plus one flush interval's worth.
+ * That suits work like logging, statistics or idempotent writes only. By default the stage writes every message to the sink
+ * before add() returns, as a batch of one, so a message is acknowledged only once it has been written. The lanes, the order of the
+ * groups, the retries and the metrics below are the same either way.
+ * </p>
+ *
+ * <p>
+ * With batching on, a batch is written as soon as it has <code>helloworld.mdb.batchSize</code> messages (100 by default), by the MDB thread that
+ * added the last one, or after <code>helloworld.mdb.flushMillis</code> (200 by default) by a timer, whichever comes first. Both
+ * are system properties. Writing holds up the MDB thread that filled the batch, and with it the delivery to that session, which
+ * is what keeps the stage from growing without bound when the sink cannot keep up.
+ * </p>
+ *
+ * <p>
+ * Messages of a message group (JMSXGroupID) stay in order. The broker delivers all messages of a group to the same MDB session,
+ * one after the other, and the stage keeps them in order too: it is split into <code>helloworld.mdb.lanes</code> lanes (16 by
+ * default), each with a batch of its own, and a group always goes to the same lane, chosen by the hash of its ID. A lane is locked
+ * while its batch is written, so its batches are written one after the other, while the other lanes are written in parallel.
+ * Messages without a group are spread over the lanes by message ID. Where the producer numbered the messages of a group
+ * (JMSXGroupSeq), the stage counts the messages that reach the sink out of order - there should be none. For that it remembers
+ * the last number written per group, of at most <code>helloworld.mdb.maxGroups</code> groups (10000 by default, shared by the
+ * lanes), forgetting the least recently written ones beyond that and the ones not written for
+ * <code>helloworld.mdb.groupIdleSeconds</code> (600 by default). A forgotten group is simply checked anew from its next message.
+ * </p>
+ *
+ * <p>
+ * A batch the sink fails to write is written again one message at a time, so one bad message does not cost the others in its
+ * batch. The messages that fail on their own as well go to the {@link PoisonMessageRouter}, like a message the MDB fails to read:
+ * it sends them to the queue again after a delay that grows with every attempt, and parks them once they have had all their
+ * attempts.
+ * </p>
+ *
+ * <p>
+ * Every <code>helloworld.mdb.statsSeconds</code> (60 by default) the stage logs its metrics: messages written and failed, batches
+ * and their mean size, messages out of group order, the time from send to write (end to end) and from receipt to write (in the stage), and the time the sink
+ * takes per batch. The same figures are available from the getters. The messages waiting in the stage are the in-flight count
+ * of the queue MDB's metrics, and the messages it failed to write count as its errors.
+ * </p>
+ *
+ * @author Kevin
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class BatchingStage {
+
+    private static final Logger LOGGER = Logger.getLogger(BatchingStage.class.toString());
+
+    private final boolean lossTolerant = Boolean.getBoolean("helloworld.mdb.queueLossTolerant");
+
+    private final int batchSize = Integer.getInteger("helloworld.mdb.batchSize", 100);
+    private final long flushMillis = Long.getLong("helloworld.mdb.flushMillis", 200);
+    private final int laneCount = Integer.getInteger("helloworld.mdb.lanes", 16);
+    private final long statsNanos = TimeUnit.SECONDS.toNanos(Long.getLong("helloworld.mdb.statsSeconds", 60));
+    private final int maxGroups = Integer.getInteger("helloworld.mdb.maxGroups", 10000);
+    private final long groupIdleMillis = TimeUnit.SECONDS.toMillis(Long.getLong("helloworld.mdb.groupIdleSeconds", 600));
+
+    @Resource
+    private TimerService timerService;
+
+    @Inject
+    private MessageSink sink;
+
+    @EJB
+    private PoisonMessageRouter poisonMessageRouter;
+
+    @Resource(lookup = "java:/queue/HELLOWORLDMDBQueue")
+    private Queue queue;
+
+    private Lane[] lanes;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong outOfOrder = new AtomicLong();
+    private final Histogram endToEnd = new Histogram();
+    private final Histogram inStage = new Histogram();
+    private final Histogram sinkTime = new Histogram();
+    private volatile long nextStatsNanos;
+
+    @PostConstruct
+    public void start() {
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane();
+        }
+        nextStatsNanos = System.nanoTime() + statsNanos;
+        timerService.createIntervalTimer(flushMillis, flushMillis, new TimerConfig(null, false));
+        if (lossTolerant) {
+            LOGGER.info("Batching stage started: " + laneCount + " lanes, batch size " + batchSize + ", flush every " + flushMillis + " ms");
+        } else {
+            LOGGER.info("Batching stage started: " + laneCount + " lanes, every message written before it is acknowledged");
+        }
+    }
+
+    /**
+     * Called by the MDB for every message. Writes the lane's batch if this message fills it, or unless the queue is loss tolerant.
+     */
+    public void add(ReceivedMessage message) {
+        String key = message.getGroupId() != null ? message.getGroupId() : message.getMessageId();
+        Lane lane = lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+        HelloWorldQueueMDB.METRICS.inFlight(1);
+        synchronized (lane) {
+            lane.batch.add(message);
+            if (!lossTolerant || lane.batch.size() >= batchSize) {
+                lane.write();
+            }
+        }
+    }
+
+    @Timeout
+    public void flush() {
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                if (!lane.batch.isEmpty()) {
+                    lane.write();
+                }
+            }
+        }
+        if (System.nanoTime() - nextStatsNanos >= 0) {
+            nextStatsNanos = System.nanoTime() + statsNanos;
+            LOGGER.info(statistics());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        flush();
+        LOGGER.info(statistics());
+    }
+
+    /**
+     * A batch and the groups hashed to it. All fields are guarded by the lane itself, which is held while the batch is written.
+     */
+    private class Lane {
+
+        private List<ReceivedMessage> batch = new ArrayList<>(batchSize);
+
+        // Highest JMSXGroupSeq written per group, least recently written first
+        private final Map<String, GroupPosition> groupSequences = new LinkedHashMap<String, GroupPosition>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, GroupPosition> eldest) {
+                return size() > Math.max(1, maxGroups / laneCount);
+            }
+        };
+
+        void write() {
+            List<ReceivedMessage> messages = batch;
+            batch = new ArrayList<>(batchSize);
+            long start = System.nanoTime();
+            try {
+                sink.write(messages);
+            } catch (Exception e) {
+                if (messages.size() == 1) {
+                    retry(messages.get(0), e);
+                    return;
+                }
+                LOGGER.log(Level.WARNING, "Failed to write a batch of " + messages.size() + " messages, writing them one at a time", e);
+                for (ReceivedMessage message : messages) {
+                    write(Collections.singletonList(message));
+                }
+                return;
+            }
+            written(messages, start);
+        }
+
+        private void write(List<ReceivedMessage> messages) {
+            long start = System.nanoTime();
+            try {
+                sink.write(messages);
+            } catch (Exception e) {
+                retry(messages.get(0), e);
+                return;
+            }
+            written(messages, start);
+        }
+
+        private void retry(ReceivedMessage message, Exception cause) {
+            failed.incrementAndGet();
+            HelloWorldQueueMDB.METRICS.inFlight(-1);
+            HelloWorldQueueMDB.METRICS.failed();
+            try {
+                poisonMessageRouter.failed(message, queue, cause);
+            } catch (EJBException e) {
+                LOGGER.log(Level.SEVERE, "Failed to write message " + message.getMessageId() + ", and to retry or park it: " + cause, e);
+            }
+        }
+
+        private void written(List<ReceivedMessage> messages, long start) {
+            long end = System.nanoTime();
+            long nowMillis = System.currentTimeMillis();
+            sinkTime.record(end - start);
+            Iterator<GroupPosition> oldest = groupSequences.values().iterator();
+            while (oldest.hasNext() && nowMillis - oldest.next().writtenMillis >= groupIdleMillis) {
+                oldest.remove();
+            }
+            for (ReceivedMessage message : messages) {
+                inStage.record(end - message.getReceivedNanos());
+                if (message.getSentMillis() > 0) {
+                    endToEnd.record(TimeUnit.MILLISECONDS.toNanos(nowMillis - message.getSentMillis()));
+                }
+                if (message.getGroupId() != null && message.getGroupSequence() > 0) {
+                    GroupPosition position = groupSequences.get(message.getGroupId());
+                    if (position == null) {
+                        position = new GroupPosition();
+                        groupSequences.put(message.getGroupId(), position);
+                    } else if (position.sequence >= message.getGroupSequence() && message.getGroupSequence() != 1) {
+                        // 1 again is a producer that started over
+                        outOfOrder.incrementAndGet();
+                    }
+                    position.sequence = message.getGroupSequence();
+                    position.writtenMillis = nowMillis;
+                }
+            }
+            written.addAndGet(messages.size());
+            HelloWorldQueueMDB.METRICS.inFlight(-messages.size());
+            batches.incrementAndGet();
+        }
+    }
+
+    private static class GroupPosition {
+
+        private int sequence;
+
+        private long writtenMillis;
+    }
+
+    public String statistics() {
+        long batchCount = batches.get();
+        return "Batching stage: written=" + written.get() + " failed=" + failed.get() + " batches=" + batchCount + " meanBatch="
+                + (batchCount == 0 ? 0 : written.get() / batchCount) + " outOfOrder=" + outOfOrder.get() + "; end to end " + endToEnd + "; in stage " + inStage
+                + "; sink per batch " + sinkTime;
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getOutOfOrder() {
+        return outOfOrder.get();
+    }
+
+    public Histogram getEndToEnd() {
+        return endToEnd;
+    }
+
+    public Histogram getInStage() {
+        return inStage;
+    }
+
+    public Histogram getSinkTime() {
+        return sinkTime;
+    }
+}
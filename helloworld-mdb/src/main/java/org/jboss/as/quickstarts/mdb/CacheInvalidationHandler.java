@@ -0,0 +1,73 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * An in-process cache kept consistent through the topic: every message names the key of an entry that has changed elsewhere, and
+ * the entry is evicted, so the next read loads it afresh. When messages were dropped, there is no telling which entries they named,
+ * and the whole cache is cleared.
+ *
+ * @author Kevin
+ */
+@ApplicationScoped
+public class CacheInvalidationHandler implements TopicHandler {
+
+    private final ConcurrentMap<String, Object> cache = new ConcurrentHashMap<>();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong clears = new AtomicLong();
+
+    @Override
+    public String getName() {
+        return "cache";
+    }
+
+    @Override
+    public void handle(ReceivedMessage message) {
+        if (cache.remove(message.getText()) != null) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onDropped(long messages) {
+        cache.clear();
+        clears.incrementAndGet();
+    }
+
+    public Object get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, Object value) {
+        cache.put(key, value);
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getClears() {
+        return clears.get();
+    }
+}
@@ -17,36 +17,90 @@
 
 package org.jboss.as.quickstarts.mdb;
 
-import java.util.logging.Logger;
 import javax.ejb.ActivationConfigProperty;
+import javax.ejb.EJB;
 import javax.ejb.MessageDriven;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.TextMessage;
 
+import com.jms.metrics.MessagingMetrics;
+import com.jms.metrics.MetricsRegistry;
+
+/**
+ * <p>
+ * Receives the text messages sent to the queue and hands them to the {@link BatchingStage}, which writes them to the sink. By
+ * default the message is written before onMessage() returns, and so before it is acknowledged. Only with
+ * <code>helloworld.mdb.queueLossTolerant</code> set does the stage write in batches: onMessage() then only copies the message, so
+ * each instance is ready for the next message almost at once, at the price of losing the messages still in the stage if the
+ * server stops.
+ * </p>
+ *
+ * <p>
+ * How many messages are processed in parallel is limited by two settings, both in WEB-INF/jboss-ejb3.xml: maxSession, the number
+ * of sessions the resource adapter consumes the queue with (system property <code>helloworld.mdb.maxSession</code>, 16 by
+ * default), and the size of the bean instance pool the MDB is taken from (<code>helloworld.mdb.pool</code>, the server's
+ * mdb-strict-max-pool by default). Every session needs an instance, so the pool should be at least as large as maxSession.
+ * </p>
+ *
+ * <p>
+ * Messages that belong to a message group (JMSXGroupID, set by the servlet clients with the <code>group</code> and
+ * <code>groups</code> parameters) are processed in order within their group: the broker delivers a group to one session only, and
+ * the stage keeps the order of a group too. Different groups are processed in parallel, so with many more groups than sessions the
+ * throughput still grows with maxSession.
+ * </p>
+ *
+ * <p>
+ * A message that cannot be read does not make onMessage() throw, which would have the broker deliver it again at once. It goes to
+ * the {@link PoisonMessageRouter}, which retries it later and parks it after a few attempts.
+ * </p>
+ *
+ * <p>
+ * The messages received, their end-to-end latency and the time onMessage() takes are counted in {@link #METRICS}, together with
+ * the messages waiting in the stage (in flight) and those the MDB or the stage could not process (errors). They are in JMX and at
+ * <code>/HelloWorldMDBMetrics</code>.
+ * </p>
+ */
 @MessageDriven(name = "HelloWorldQueueMDB", activationConfig = {
         @ActivationConfigProperty(propertyName = "destination", propertyValue = "HELLOWORLDMDBQueue"),
         @ActivationConfigProperty(propertyName = "destinationType", propertyValue = "javax.jms.Queue"),
         @ActivationConfigProperty(propertyName = "acknowledgeMode", propertyValue = "Auto-acknowledge") })
 public class HelloWorldQueueMDB implements MessageListener {
-private static final Logger LOGGER = Logger.getLogger(HelloWorldQueueMDB.class.toString());
+
+    static final MessagingMetrics METRICS = MetricsRegistry.get("HelloWorldQueueMDB");
+
+    @EJB
+    private BatchingStage batchingStage;
+
+    @EJB
+    private PoisonMessageRouter poisonMessageRouter;
 
     /**
      * @see MessageListener#onMessage(Message)
      */
     @Override
     public void onMessage(Message rcvMessage) {
+        long start = System.nanoTime();
         TextMessage msg = null;
         try {
+            METRICS.received(rcvMessage.getJMSTimestamp());
             if (rcvMessage instanceof TextMessage) {
                 msg = (TextMessage) rcvMessage;
-                LOGGER.info("Received Message from queue: " + msg.getText());
+                // The broker fills in neither property, both are up to the producer
+                String groupId = msg.getStringProperty("JMSXGroupID");
+                int groupSequence = msg.propertyExists("JMSXGroupSeq") ? msg.getIntProperty("JMSXGroupSeq") : 0;
+                int retryAttempt = msg.propertyExists(PoisonMessageRouter.RETRY_ATTEMPT) ? msg.getIntProperty(PoisonMessageRouter.RETRY_ATTEMPT) : 0;
+                batchingStage.add(new ReceivedMessage(msg.getJMSMessageID(), msg.getText(), groupId, groupSequence, retryAttempt,
+                        msg.getJMSTimestamp(), start));
+                METRICS.handled(start);
             } else {
-                LOGGER.warning("Message of wrong type: " + rcvMessage.getClass().getName());
+                METRICS.failed();
+                poisonMessageRouter.park(rcvMessage, "Message of wrong type: " + rcvMessage.getClass().getName());
             }
         } catch (JMSException e) {
-            throw new RuntimeException(e);
+            METRICS.failed();
+            poisonMessageRouter.failed(rcvMessage, e);
         }
     }
 }
@@ -16,37 +16,57 @@
  */
 package org.jboss.as.quickstarts.mdb;
 
-import java.util.logging.Logger;
 import javax.ejb.ActivationConfigProperty;
+import javax.ejb.EJB;
 import javax.ejb.MessageDriven;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.TextMessage;
 
+import com.jms.metrics.MessagingMetrics;
+import com.jms.metrics.MetricsRegistry;
+
+/**
+ * Receives the text messages sent to the topic and hands each of them to the {@link TopicDispatcher}, which passes it on to all
+ * {@link TopicHandler}s of the application (audit, cache invalidation and metrics), each on a thread of its own. A message that
+ * cannot be read is parked by the {@link PoisonMessageRouter}. The messages are counted in {@link #METRICS}, the handler time
+ * being the time to hand a message to the dispatcher; what the handlers do with it is in the dispatcher's statistics.
+ */
 @MessageDriven(name = "HelloWorldQTopicMDB", activationConfig = {
         @ActivationConfigProperty(propertyName = "destination", propertyValue = "HELLOWORLDMDBTopic"),
         @ActivationConfigProperty(propertyName = "destinationType", propertyValue = "javax.jms.Topic"),
         @ActivationConfigProperty(propertyName = "acknowledgeMode", propertyValue = "Auto-acknowledge") })
 public class HelloWorldTopicMDB implements MessageListener {
 
-    private static final Logger LOGGER = Logger.getLogger(HelloWorldTopicMDB.class.toString());
+    static final MessagingMetrics METRICS = MetricsRegistry.get("HelloWorldTopicMDB");
+
+    @EJB
+    private TopicDispatcher topicDispatcher;
+
+    @EJB
+    private PoisonMessageRouter poisonMessageRouter;
 
     /**
      * @see MessageListener#onMessage(Message)
      */
     @Override
     public void onMessage(Message rcvMessage) {
+        long start = System.nanoTime();
         TextMessage msg = null;
         try {
+            METRICS.received(rcvMessage.getJMSTimestamp());
             if (rcvMessage instanceof TextMessage) {
                 msg = (TextMessage) rcvMessage;
-                LOGGER.info("Received Message from topic: " + msg.getText());
+                topicDispatcher.dispatch(new ReceivedMessage(msg.getJMSMessageID(), msg.getText(), msg.getJMSTimestamp(), start));
+                METRICS.handled(start);
             } else {
-                LOGGER.warning("Message of wrong type: " + rcvMessage.getClass().getName());
+                METRICS.failed();
+                poisonMessageRouter.park(rcvMessage, "Message of wrong type: " + rcvMessage.getClass().getName());
             }
         } catch (JMSException e) {
-            throw new RuntimeException(e);
+            METRICS.failed();
+            poisonMessageRouter.failed(rcvMessage, e);
         }
     }
 }
\ No newline at end of file
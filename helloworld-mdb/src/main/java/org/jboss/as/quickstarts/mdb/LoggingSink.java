@@ -0,0 +1,43 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The default {@link MessageSink}: one log line per batch, and the messages themselves at FINE level.
+ *
+ * @author Kevin
+ */
+public class LoggingSink implements MessageSink {
+
+    private static final Logger LOGGER = Logger.getLogger(LoggingSink.class.toString());
+
+    @Override
+    public void write(List<ReceivedMessage> batch) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            for (ReceivedMessage message : batch) {
+                LOGGER.fine("Received Message from queue: " + message.getText());
+            }
+        }
+        LOGGER.info("Received " + batch.size() + " messages from queue, first: " + batch.get(0).getText() + ", last: "
+                + batch.get(batch.size() - 1).getText());
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.util.List;
+
+/**
+ * The downstream end of the {@link BatchingStage}: receives the messages in batches.
+ *
+ * <p>
+ * Batches are written from whichever thread fills or flushes them, so several may be written at the same time and an
+ * implementation has to be thread safe. An exception fails the whole batch, the stage logs it and counts the messages as failed.
+ * </p>
+ *
+ * <p>
+ * {@link LoggingSink} is the default. To write somewhere else, add an implementation annotated with
+ * {@link javax.enterprise.inject.Alternative} and enable it in beans.xml.
+ * </p>
+ *
+ * @author Kevin
+ */
+public interface MessageSink {
+
+    void write(List<ReceivedMessage> batch) throws Exception;
+}
@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import com.jms.metrics.Histogram;
+
+/**
+ * Measures the topic: messages, characters, messages dropped and the time from send to handling, logged every
+ * <code>helloworld.mdb.statsSeconds</code> (60 by default).
+ *
+ * @author Kevin
+ */
+@ApplicationScoped
+public class MetricsHandler implements TopicHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(MetricsHandler.class.toString());
+
+    private final long statsNanos = TimeUnit.SECONDS.toNanos(Long.getLong("helloworld.mdb.statsSeconds", 60));
+
+    // Only written by the handler's thread
+    private volatile long messages;
+    private volatile long characters;
+    private volatile long dropped;
+    private final Histogram endToEnd = new Histogram();
+    private long nextStatsNanos = System.nanoTime() + statsNanos;
+
+    @Override
+    public String getName() {
+        return "metrics";
+    }
+
+    @Override
+    public void handle(ReceivedMessage message) {
+        messages++;
+        if (message.getText() != null) {
+            characters += message.getText().length();
+        }
+        if (message.getSentMillis() > 0) {
+            endToEnd.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - message.getSentMillis()));
+        }
+        if (System.nanoTime() - nextStatsNanos >= 0) {
+            nextStatsNanos = System.nanoTime() + statsNanos;
+            LOGGER.info("Topic: messages=" + messages + " characters=" + characters + " dropped=" + dropped + "; end to end "
+                    + endToEnd);
+        }
+    }
+
+    // Counted, so that the figures are known to fall short of the topic's
+    @Override
+    public void onDropped(long messages) {
+        dropped += messages;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getCharacters() {
+        return characters;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public Histogram getEndToEnd() {
+        return endToEnd;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.jms.Destination;
+import javax.jms.JMSContext;
+import javax.jms.JMSDestinationDefinition;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+
+/**
+ * <p>
+ * Decides what becomes of a message the MDBs failed to process, instead of throwing an exception from onMessage(). An exception
+ * rolls the delivery back, and the broker delivers the message again at once, by default up to 10 times, to the next free
+ * session - a message that fails every time keeps a session busy failing, and the others wait behind it.
+ * </p>
+ *
+ * <p>
+ * A message from the queue is sent to the queue again with a delivery delay, and the failed delivery is acknowledged as if it had
+ * been processed. The broker holds the copy back for the delay, so the session goes on with the next message at once. The delay
+ * doubles with every attempt: <code>helloworld.mdb.retryDelayMillis</code> (1000 by default) after the first failure, then twice
+ * as long, and so on up to <code>helloworld.mdb.maxRetryDelayMillis</code> (60000), less up to a quarter at random, so messages
+ * that failed together do not all come back together. The attempts are counted in the <code>RetryAttempt</code> property of the
+ * copy, plus the broker's own JMSXDeliveryCount, which counts deliveries that were rolled back.
+ * </p>
+ *
+ * <p>
+ * After <code>helloworld.mdb.maxAttempts</code> attempts (5 by default), the message is parked: sent to the parking queue,
+ * java:/queue/HELLOWORLDMDBParkingQueue, with the properties <code>ParkedFrom</code> (the destination it came from),
+ * <code>ParkedReason</code> (the last failure), <code>ParkedMillis</code> and <code>ParkedMessageId</code>. Nothing consumes the
+ * parking queue, the messages stay there until they are replayed to where they came from or discarded with the
+ * HelloWorldMDBParking servlet. Messages that cannot succeed however often they are tried, like a message of the wrong type, and
+ * messages from the topic are parked at once: sending them to the topic again would deliver them to every subscriber again.
+ * </p>
+ *
+ * <p>
+ * The copy is sent with the container's JMSContext, in the transaction of the MDB, so the failed delivery is only acknowledged if
+ * the copy is sent. If it cannot be sent, the exception rolls the delivery back, and the broker's redelivery is the last resort.
+ * A retried message of a message group comes back after later messages of its group, the batching stage counts it out of order.
+ * </p>
+ *
+ * <p>
+ * A message the batching stage failed to write was acknowledged long before. It is retried in the same way, as a copy of what the
+ * stage kept of it, sent in a transaction of its own. The attempts it had before are in the RetryAttempt property it arrived
+ * with (see {@link ReceivedMessage#getRetryAttempt()}).
+ * </p>
+ *
+ * @author Kevin
+ */
+@JMSDestinationDefinition(name = PoisonMessageRouter.PARKING_QUEUE, interfaceName = "javax.jms.Queue", destinationName = "HELLOWORLDMDBParkingQueue")
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class PoisonMessageRouter {
+
+    private static final Logger LOGGER = Logger.getLogger(PoisonMessageRouter.class.toString());
+
+    public static final String PARKING_QUEUE = "java:/queue/HELLOWORLDMDBParkingQueue";
+
+    public static final String RETRY_ATTEMPT = "RetryAttempt";
+
+    public static final String PARKED_FROM = "ParkedFrom";
+
+    public static final String PARKED_REASON = "ParkedReason";
+
+    public static final String PARKED_MILLIS = "ParkedMillis";
+
+    public static final String PARKED_MESSAGE_ID = "ParkedMessageId";
+
+    // Properties of a parked message that a replay removes again
+    public static final Collection<String> PARKING_PROPERTIES = Collections.unmodifiableList(Arrays.asList(RETRY_ATTEMPT,
+            PARKED_FROM, PARKED_REASON, PARKED_MILLIS, PARKED_MESSAGE_ID));
+
+    private static final String DELIVERY_COUNT = "JMSXDeliveryCount";
+
+    private static final int MAX_REASON_LENGTH = 500;
+
+    private final int maxAttempts = Integer.getInteger("helloworld.mdb.maxAttempts", 5);
+    private final long retryDelayMillis = Long.getLong("helloworld.mdb.retryDelayMillis", 1000);
+    private final long maxRetryDelayMillis = Long.getLong("helloworld.mdb.maxRetryDelayMillis", 60000);
+
+    @Inject
+    private JMSContext context;
+
+    @Resource(lookup = PARKING_QUEUE)
+    private Queue parkingQueue;
+
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong parked = new AtomicLong();
+
+    /**
+     * Retries the message after a delay, or parks it once it has had all its attempts. Called by the MDBs in onMessage().
+     */
+    public void failed(Message message, Exception cause) {
+        try {
+            int attempts = attempts(message);
+            Destination destination = message.getJMSDestination();
+            if (attempts >= maxAttempts || !(destination instanceof Queue)) {
+                park(message, describe(cause));
+                return;
+            }
+            long delay = delay(attempts);
+            String messageId = message.getJMSMessageID();
+            writableProperties(message, Collections.<String> emptyList());
+            message.setIntProperty(RETRY_ATTEMPT, attempts);
+            context.createProducer().setDeliveryDelay(delay).send(destination, message);
+            retried.incrementAndGet();
+            LOGGER.fine("Retrying message " + messageId + " in " + delay + " ms after attempt " + attempts + ": " + cause);
+        } catch (JMSException e) {
+            throw new JMSRuntimeException(e.getMessage(), e.getErrorCode(), e);
+        }
+    }
+
+    /**
+     * Parks the message without retrying it, for failures that retrying does not cure.
+     */
+    public void park(Message message, String reason) {
+        try {
+            Destination origin = message.getJMSDestination();
+            String messageId = message.getJMSMessageID();
+            int attempts = attempts(message);
+            writableProperties(message, Collections.<String> emptyList());
+            message.setIntProperty(RETRY_ATTEMPT, attempts);
+            send(message, origin, messageId, reason);
+        } catch (JMSException e) {
+            throw new JMSRuntimeException(e.getMessage(), e.getErrorCode(), e);
+        }
+    }
+
+    /**
+     * Retries a message that was acknowledged already, but could not be processed afterwards, like a message that fails its batch,
+     * or parks it once it has had all its attempts. It is sent in a transaction of its own, independent of the delivery the caller
+     * may be processing.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void failed(ReceivedMessage message, Destination origin, Exception cause) {
+        TextMessage copy = context.createTextMessage(message.getText());
+        try {
+            if (message.getGroupId() != null) {
+                copy.setStringProperty("JMSXGroupID", message.getGroupId());
+                copy.setIntProperty("JMSXGroupSeq", message.getGroupSequence());
+            }
+            int attempts = message.getRetryAttempt() + 1;
+            copy.setIntProperty(RETRY_ATTEMPT, attempts);
+            if (attempts >= maxAttempts || !(origin instanceof Queue)) {
+                send(copy, origin, message.getMessageId(), describe(cause));
+                return;
+            }
+            long delay = delay(attempts);
+            context.createProducer().setDeliveryDelay(delay).send(origin, copy);
+            retried.incrementAndGet();
+            LOGGER.fine("Retrying message " + message.getMessageId() + " in " + delay + " ms after attempt " + attempts + ": " + cause);
+        } catch (JMSException e) {
+            throw new JMSRuntimeException(e.getMessage(), e.getErrorCode(), e);
+        }
+    }
+
+    private void send(Message message, Destination origin, String messageId, String reason) throws JMSException {
+        message.setStringProperty(PARKED_FROM, originName(origin));
+        message.setStringProperty(PARKED_REASON, reason);
+        message.setLongProperty(PARKED_MILLIS, System.currentTimeMillis());
+        message.setStringProperty(PARKED_MESSAGE_ID, messageId);
+        context.createProducer().send(parkingQueue, message);
+        long count = parked.incrementAndGet();
+        LOGGER.warning("Parked message " + messageId + " from " + origin + ": " + reason + " (" + count + " parked, " + retried.get()
+                + " retries since deployment)");
+    }
+
+    // Failed attempts so far, including this one
+    static int attempts(Message message) throws JMSException {
+        int retries = message.propertyExists(RETRY_ATTEMPT) ? message.getIntProperty(RETRY_ATTEMPT) : 0;
+        int deliveries = message.propertyExists(DELIVERY_COUNT) ? message.getIntProperty(DELIVERY_COUNT) : 1;
+        return retries + Math.max(1, deliveries);
+    }
+
+    long delay(int attempts) {
+        long delay = retryDelayMillis << Math.min(attempts - 1, 30);
+        if (delay <= 0 || delay > maxRetryDelayMillis) {
+            delay = maxRetryDelayMillis;
+        }
+        return delay - ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+    }
+
+    private static String describe(Exception cause) {
+        String reason = String.valueOf(cause);
+        return reason.length() > MAX_REASON_LENGTH ? reason.substring(0, MAX_REASON_LENGTH) : reason;
+    }
+
+    /**
+     * The value of the ParkedFrom property: <code>queue:</code> or <code>topic:</code> and the name of the destination.
+     */
+    public static String originName(Destination origin) throws JMSException {
+        if (origin instanceof Queue) {
+            return "queue:" + ((Queue) origin).getQueueName();
+        }
+        if (origin instanceof Topic) {
+            return "topic:" + ((Topic) origin).getTopicName();
+        }
+        return String.valueOf(origin);
+    }
+
+    /**
+     * The properties of a received message are read-only. Clears them, which makes them writable, and sets them again, except the
+     * ones named and those the provider sets itself (JMSX* other than the group properties, and JMS_*).
+     */
+    public static void writableProperties(Message message, Collection<String> removed) throws JMSException {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        for (Enumeration<?> names = message.getPropertyNames(); names.hasMoreElements();) {
+            String name = (String) names.nextElement();
+            boolean providerSet = name.startsWith("JMS") && !name.equals("JMSXGroupID") && !name.equals("JMSXGroupSeq");
+            if (!providerSet && !removed.contains(name)) {
+                properties.put(name, message.getObjectProperty(name));
+            }
+        }
+        message.clearProperties();
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            message.setObjectProperty(property.getKey(), property.getValue());
+        }
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getParked() {
+        return parked.get();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+/**
+ * The part of a received message that is kept until its batch is written to the {@link MessageSink}, or the
+ * {@link TopicHandler}s have handled it. The JMS message itself is only valid during onMessage(), so the MDBs copy what is needed.
+ *
+ * @author Kevin
+ */
+public class ReceivedMessage {
+
+    private final String messageId;
+    private final String text;
+    private final String groupId;
+    private final int groupSequence;
+    private final int retryAttempt;
+    private final long sentMillis;
+    private final long receivedNanos;
+
+    public ReceivedMessage(String messageId, String text, long sentMillis, long receivedNanos) {
+        this(messageId, text, null, 0, sentMillis, receivedNanos);
+    }
+
+    public ReceivedMessage(String messageId, String text, String groupId, int groupSequence, long sentMillis, long receivedNanos) {
+        this(messageId, text, groupId, groupSequence, 0, sentMillis, receivedNanos);
+    }
+
+    public ReceivedMessage(String messageId, String text, String groupId, int groupSequence, int retryAttempt, long sentMillis,
+            long receivedNanos) {
+        this.messageId = messageId;
+        this.text = text;
+        this.groupId = groupId;
+        this.groupSequence = groupSequence;
+        this.retryAttempt = retryAttempt;
+        this.sentMillis = sentMillis;
+        this.receivedNanos = receivedNanos;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * JMSXGroupID of the message, null if it belongs to no group.
+     */
+    public String getGroupId() {
+        return groupId;
+    }
+
+    /**
+     * JMSXGroupSeq of the message: its number within the group, counting from 1. 0 if the producer did not number it.
+     */
+    public int getGroupSequence() {
+        return groupSequence;
+    }
+
+    /**
+     * RetryAttempt of the message: the attempts that failed before this delivery (see {@link PoisonMessageRouter}), 0 for none.
+     */
+    public int getRetryAttempt() {
+        return retryAttempt;
+    }
+
+    /**
+     * JMSTimestamp of the message: when the producer sent it.
+     */
+    public long getSentMillis() {
+        return sentMillis;
+    }
+
+    /**
+     * System.nanoTime() when the MDB received the message.
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+}
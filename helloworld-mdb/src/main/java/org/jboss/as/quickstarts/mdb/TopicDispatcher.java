@@ -0,0 +1,261 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+
+import com.jms.metrics.Histogram;
+
+/**
+ * <p>
+ * Fans the messages of the topic out to the {@link TopicHandler}s of the application. One delivery from the broker serves all
+ * handlers, where an MDB per handler would have the broker deliver every message once per MDB.
+ * </p>
+ *
+ * <p>
+ * With the system property <code>helloworld.mdb.topicLossTolerant</code> set to <code>true</code>, every handler has a bounded
+ * queue of its own (<code>helloworld.mdb.handlerQueue</code> messages, 10000 by default) and a thread
+ * of its own from the server's ManagedThreadFactory, which takes the messages off the queue and calls the handler. So the MDB only
+ * puts the message in each queue and returns, and the handlers are isolated from each other:
+ * </p>
+ * <ul>
+ * <li>a slow handler only fills its own queue. Once it is full, further messages are dropped for that handler, and counted, while
+ * the other handlers carry on. The MDB never waits for a handler. The handler is told how many it missed through
+ * {@link TopicHandler#onDropped(long)}, on its own thread, before it handles the next message</li>
+ * <li>an exception from a handler is logged and counted, and the handler goes on with the next message</li>
+ * </ul>
+ *
+ * <p>
+ * Every <code>helloworld.mdb.statsSeconds</code> (60 by default) the dispatcher logs per handler the messages handled, failed and
+ * dropped, the queue depth, and the time spent waiting in the queue and in the handler.
+ * </p>
+ *
+ * <p>
+ * The MDB acknowledges a message when onMessage() returns, which with the queues is as soon as the message is queued: messages
+ * still in the queues are lost if the server stops. So by default, without <code>helloworld.mdb.topicLossTolerant</code>, there
+ * are no queues and threads: dispatch() calls the handlers one after the other on the MDB thread, and returns once all of them
+ * have handled the message. An exception from a handler is still logged and counted without affecting the others, a handler that
+ * is interrupted misses the message and is told so like a handler whose queue was full, and a handler is still called for one
+ * message at a time, but a slow handler now holds up the MDB, and no message is ever dropped.
+ * </p>
+ *
+ * @author Kevin
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class TopicDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(TopicDispatcher.class.toString());
+
+    private final boolean lossTolerant = Boolean.getBoolean("helloworld.mdb.topicLossTolerant");
+
+    private final int queueCapacity = Integer.getInteger("helloworld.mdb.handlerQueue", 10000);
+    private final long statsMillis = TimeUnit.SECONDS.toMillis(Long.getLong("helloworld.mdb.statsSeconds", 60));
+
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
+    @Resource
+    private TimerService timerService;
+
+    @Inject
+    @Any
+    private Instance<TopicHandler> handlers;
+
+    private final List<HandlerQueue> queues = new ArrayList<>();
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void start() {
+        for (TopicHandler handler : handlers) {
+            HandlerQueue queue = new HandlerQueue(handler);
+            if (lossTolerant) {
+                queue.thread = threadFactory.newThread(queue);
+                queue.thread.setName("topic-handler-" + handler.getName());
+                queue.thread.start();
+            }
+            queues.add(queue);
+        }
+        timerService.createIntervalTimer(statsMillis, statsMillis, new TimerConfig(null, false));
+        if (lossTolerant) {
+            LOGGER.info("Topic dispatcher started with " + queues.size() + " handlers, queues of " + queueCapacity + " messages");
+        } else {
+            LOGGER.info("Topic dispatcher started with " + queues.size() + " handlers, called on the MDB thread");
+        }
+    }
+
+    /**
+     * Called by the MDB for every message. Never blocks when the topic is loss tolerant, otherwise returns once every handler has
+     * handled the message. A handler that is interrupted misses the message, the other handlers still get it, and the MDB thread
+     * is interrupted again once they have.
+     */
+    public void dispatch(ReceivedMessage message) {
+        boolean interrupted = false;
+        for (HandlerQueue queue : queues) {
+            if (lossTolerant) {
+                queue.offer(message);
+            } else if (!queue.handleNow(message)) {
+                queue.drop("was interrupted");
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Timeout
+    public void logStatistics() {
+        for (HandlerQueue queue : queues) {
+            LOGGER.info(queue.toString());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        for (HandlerQueue queue : queues) {
+            if (queue.thread != null) {
+                queue.thread.interrupt();
+            }
+        }
+        for (HandlerQueue queue : queues) {
+            if (queue.thread == null) {
+                continue;
+            }
+            try {
+                queue.thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        logStatistics();
+    }
+
+    /**
+     * The queue and the thread of one handler, or with a topic that is not loss tolerant only its statistics.
+     */
+    private class HandlerQueue implements Runnable {
+
+        private final TopicHandler handler;
+        private final BlockingQueue<ReceivedMessage> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicLong handled = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        // Dropped, but not yet passed to onDropped()
+        private final AtomicLong unreported = new AtomicLong();
+        private final Histogram waitTime = new Histogram();
+        private final Histogram handlerTime = new Histogram();
+        private Thread thread;
+
+        HandlerQueue(TopicHandler handler) {
+            this.handler = handler;
+        }
+
+        void offer(ReceivedMessage message) {
+            if (!queue.offer(message)) {
+                drop("is " + queueCapacity + " messages behind");
+            }
+        }
+
+        // The handler misses a message, it is told so before the next one
+        void drop(String reason) {
+            unreported.incrementAndGet();
+            long count = dropped.incrementAndGet();
+            // Log the 1st, 2nd, 4th, 8th, ... drop, so a handler that stays behind does not flood the log
+            if (Long.bitCount(count) == 1) {
+                LOGGER.warning("Handler " + handler.getName() + " " + reason + ", " + count + " messages dropped so far");
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                ReceivedMessage message;
+                try {
+                    message = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (!handle(message)) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Handles the message on the MDB thread. Called by several MDB threads at once, the handler is still only called for one
+         * message at a time.
+         */
+        synchronized boolean handleNow(ReceivedMessage message) {
+            return handle(message);
+        }
+
+        // Returns false if the handler was interrupted
+        private boolean handle(ReceivedMessage message) {
+            long start = System.nanoTime();
+            waitTime.record(start - message.getReceivedNanos());
+            try {
+                long missed = unreported.getAndSet(0);
+                if (missed > 0) {
+                    handler.onDropped(missed);
+                }
+                handler.handle(message);
+                handled.incrementAndGet();
+            } catch (InterruptedException e) {
+                // Stopped while handling
+                return false;
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Handler " + handler.getName() + " failed on message " + message.getMessageId(), e);
+            }
+            handlerTime.record(System.nanoTime() - start);
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "Topic handler " + handler.getName() + ": handled=" + handled.get() + " failed=" + failed.get() + " dropped="
+                    + dropped.get() + " queued=" + queue.size() + "; waiting " + waitTime + "; handling " + handlerTime;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+/**
+ * An in-process consumer of the topic. The {@link TopicDispatcher} hands every message the {@link HelloWorldTopicMDB} receives to
+ * every handler, each on a thread of its own when the topic is loss tolerant, otherwise on the MDB thread.
+ *
+ * <p>
+ * A handler is a CDI bean: any bean implementing this interface in the application is picked up when the dispatcher starts.
+ * handle() is only ever called for one message at a time, in the order the messages arrived.
+ * </p>
+ *
+ * @author Kevin
+ */
+public interface TopicHandler {
+
+    /**
+     * Name used in the dispatcher's log lines and metrics.
+     */
+    String getName();
+
+    /**
+     * An exception is logged and counted by the dispatcher, the handler then goes on with the next message.
+     */
+    void handle(ReceivedMessage message) throws Exception;
+
+    /**
+     * Called before the next message the handler handles, when messages were dropped because its queue was full (which only
+     * happens when the topic is loss tolerant). A handler whose state depends on seeing every message, like a cache, has to resynchronize here. An exception is logged
+     * and counted like one from handle().
+     *
+     * @param messages the number of messages dropped since the last call
+     */
+    void onDropped(long messages) throws Exception;
+}
@@ -0,0 +1,368 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.servlet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.jms.CompletionListener;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSContext;
+import javax.jms.JMSProducer;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.Topic;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebInitParam;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.jms.metrics.MessagingMetrics;
+import com.jms.metrics.MetricsRegistry;
+
+/**
+ * <p>
+ * A servlet 3 client that sends messages in bulk to the queue or the topic, and answers with a JSON summary instead of a line of
+ * HTML per message.
+ * </p>
+ *
+ * <p>
+ * The messages are either generated (<code>GET /HelloWorldMDBBulkSend?count=10000</code>) or posted as
+ * <code>text/plain</code>, one message per line. The request parameters are
+ * </p>
+ * <ul>
+ * <li><code>count</code> - number of messages to generate, when none are posted (1000 by default)</li>
+ * <li><code>batchSize</code> - number of messages sent per transaction (500 by default)</li>
+ * <li><code>async</code> - send with a {@link CompletionListener} instead of waiting for the broker after each message</li>
+ * <li><code>groups</code> - spread the messages over this many message groups in turn, at most 1000 (see {@link MessageGroups}).
+ * The groups are the request's own, bulk-<em>n</em>-0, bulk-<em>n</em>-1, ... where <em>n</em> numbers the requests, so
+ * concurrent requests do not interleave their messages in one group</li>
+ * <li><code>topic</code> - send to the topic instead of the queue</li>
+ * </ul>
+ *
+ * <p>
+ * The messages are sent in transacted batches: the broker acknowledges a commit per batch rather than a send per message, and a
+ * batch is either delivered completely or not at all. With <code>async</code>, a send returns at once and the completion
+ * listener is called when the broker has the message; the commit waits for the batch's sends to complete.
+ * </p>
+ *
+ * <p>
+ * The contexts come from a {@link JMSContextPool} of transacted contexts. Both transacted contexts and asynchronous sends are not
+ * portable in the Java EE web container, where the JCA connection factory (java:/JmsXA) ignores the session mode and forbids
+ * asynchronous sends. java:/ConnectionFactory is not a JCA factory and supports both.
+ * </p>
+ *
+ * <p>
+ * The summary gives the number of messages sent, the throughput and the latency percentiles, in microseconds, of the sends (to
+ * the return of send() or, with <code>async</code>, to the completion) and of the commits. The status is 503 when no context
+ * could be borrowed within five seconds, and 500 when a batch failed.
+ * </p>
+ *
+ * @author Kevin
+ *
+ */
+
+@WebServlet(urlPatterns = "/HelloWorldMDBBulkSend", initParams = @WebInitParam(name = "poolSize", value = "4"))
+public class HelloWorldMDBBulkServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 4211836525731096027L;
+
+    private static final int DEFAULT_COUNT = 1000;
+
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    // Upper limit per request, the latencies of all messages are kept while the request runs
+    private static final int MAX_MESSAGES = 1000000;
+
+    private static final long BORROW_TIMEOUT_SECONDS = 5;
+
+    private static final int MAX_GROUPS = 1000;
+
+    // Numbers the requests for their group prefix
+    private static final AtomicLong REQUESTS = new AtomicLong();
+
+    // The messages sent, with the same send latencies as the summary, see HelloWorldMDBMetricsServlet
+    static final MessagingMetrics METRICS = MetricsRegistry.get("HelloWorldMDBBulkServlet");
+
+    @Resource(lookup = "java:/ConnectionFactory")
+    ConnectionFactory cf;
+
+    @Resource(mappedName = "java:/queue/HELLOWORLDMDBQueue")
+    private Queue queue;
+
+    @Resource(mappedName = "java:/topic/HELLOWORLDMDBTopic")
+    private Topic topic;
+
+    private JMSContextPool contextPool;
+
+    @Inject
+    private MessageGroups messageGroups;
+
+    @Override
+    public void init() throws ServletException {
+        contextPool = new JMSContextPool(cf, Integer.parseInt(getInitParameter("poolSize")), JMSContext.SESSION_TRANSACTED);
+    }
+
+    @Override
+    public void destroy() {
+        contextPool.close();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        send(req, resp, null);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String contentType = req.getContentType();
+        if (contentType == null || !contentType.startsWith("text/plain")) {
+            send(req, resp, null);
+            return;
+        }
+        List<String> texts = new ArrayList<>();
+        BufferedReader reader = req.getReader();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                if (texts.size() == MAX_MESSAGES) {
+                    resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "At most " + MAX_MESSAGES + " messages per request");
+                    return;
+                }
+                texts.add(line);
+            }
+        }
+        send(req, resp, texts);
+    }
+
+    private void send(HttpServletRequest req, HttpServletResponse resp, List<String> texts) throws IOException {
+        int count;
+        int batchSize;
+        int groups;
+        try {
+            count = texts != null ? texts.size() : intParameter(req, "count", DEFAULT_COUNT);
+            batchSize = intParameter(req, "batchSize", DEFAULT_BATCH_SIZE);
+            groups = intParameter(req, "groups", 0);
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (count < 1 || count > MAX_MESSAGES || batchSize < 1 || groups < 0 || groups > MAX_GROUPS) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "count must be 1 to " + MAX_MESSAGES + ", batchSize at least 1, groups 0 to "
+                    + MAX_GROUPS);
+            return;
+        }
+        boolean async = req.getParameterMap().keySet().contains("async");
+        boolean useTopic = req.getParameterMap().keySet().contains("topic");
+        final Destination destination = useTopic ? topic : queue;
+
+        BulkSend bulkSend = new BulkSend(count, batchSize, async, groups, "bulk-" + REQUESTS.incrementAndGet() + "-", messageGroups);
+        String error = null;
+        int status = HttpServletResponse.SC_OK;
+        try (JMSContextPool.Lease lease = contextPool.borrow(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            try {
+                bulkSend.run(lease.getContext(), lease.getProducer(), destination, texts);
+            } catch (JMSRuntimeException e) {
+                // The batch in progress is rolled back with the context, the batches before it stay sent
+                lease.invalidate();
+                error = e.toString();
+                status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+            } finally {
+                lease.getProducer().setAsync(null);
+            }
+        } catch (JMSRuntimeException | IllegalStateException e) {
+            // No context within the timeout, none could be opened or the servlet is being taken out of service: nothing was sent
+            error = e.toString();
+            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = e.toString();
+            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        }
+
+        resp.setStatus(status);
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().write(bulkSend.toJson(destination, error));
+    }
+
+    static int intParameter(HttpServletRequest req, String name, int defaultValue) {
+        String value = req.getParameter(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * A JSON string literal of the text.
+     */
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * One bulk request: sends the messages and collects the statistics.
+     */
+    private static class BulkSend implements CompletionListener {
+
+        private final int count;
+        private final int batchSize;
+        private final boolean async;
+        private final int groups;
+        private final String groupPrefix;
+        private final MessageGroups messageGroups;
+
+        // Send start of every message, and its latency in microseconds once it is known
+        private final long[] sendNanos;
+        private final long[] sendMicros;
+        private final long[] commitMicros;
+
+        /*
+         * Completions of a producer are called in the order the messages were sent, so the n-th completion belongs to the n-th
+         * message
+         */
+        private final AtomicInteger completions = new AtomicInteger();
+        private int sent;
+        private int committed;
+        private int batches;
+        private long elapsedNanos;
+
+        BulkSend(int count, int batchSize, boolean async, int groups, String groupPrefix, MessageGroups messageGroups) {
+            this.count = count;
+            this.batchSize = batchSize;
+            this.async = async;
+            this.groups = groups;
+            this.groupPrefix = groupPrefix;
+            this.messageGroups = messageGroups;
+            this.sendNanos = new long[count];
+            this.sendMicros = new long[count];
+            this.commitMicros = new long[(count + batchSize - 1) / batchSize];
+        }
+
+        void run(JMSContext context, JMSProducer producer, Destination destination, List<String> texts) {
+            producer.setAsync(async ? this : null);
+            long start = System.nanoTime();
+            try {
+                while (sent < count) {
+                    int batchEnd = Math.min(count, sent + batchSize);
+                    for (; sent < batchEnd; sent++) {
+                        String text = texts != null ? texts.get(sent) : "This is message " + (sent + 1);
+                        sendNanos[sent] = System.nanoTime();
+                        if (groups == 0) {
+                            producer.send(destination, text);
+                        } else {
+                            producer.send(destination, messageGroups.createMessage(context, text, groupPrefix + sent % groups));
+                        }
+                        if (!async) {
+                            sendMicros[sent] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sendNanos[sent]);
+                            METRICS.sent(sendNanos[sent]);
+                        }
+                    }
+                    long commitStart = System.nanoTime();
+                    context.commit();
+                    commitMicros[batches++] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - commitStart);
+                    committed = sent;
+                }
+            } catch (JMSRuntimeException e) {
+                METRICS.failed();
+                try {
+                    context.rollback();
+                } catch (JMSRuntimeException rollbackFailure) {
+                    // The connection is gone, nothing was committed for this batch
+                }
+                throw e;
+            } finally {
+                elapsedNanos = System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void onCompletion(Message message) {
+            int index = completions.getAndIncrement();
+            if (index < count) {
+                sendMicros[index] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sendNanos[index]);
+                METRICS.sent(sendNanos[index]);
+            }
+        }
+
+        /*
+         * A failed send fails the commit of its batch as well, which is where it is counted
+         */
+        @Override
+        public void onException(Message message, Exception exception) {
+            completions.getAndIncrement();
+        }
+
+        String toJson(Destination destination, String error) {
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"destination\":").append(quote(String.valueOf(destination)));
+            json.append(",\"requested\":").append(count);
+            json.append(",\"sent\":").append(committed);
+            json.append(",\"failed\":").append(count - committed);
+            json.append(",\"batchSize\":").append(batchSize);
+            json.append(",\"batches\":").append(batches);
+            json.append(",\"async\":").append(async);
+            json.append(",\"groups\":").append(groups);
+            if (groups > 0) {
+                json.append(",\"groupPrefix\":").append(quote(groupPrefix));
+            }
+            json.append(",\"elapsedMillis\":").append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+            json.append(",\"messagesPerSecond\":").append(elapsedNanos == 0 ? 0 : Math.round(committed * 1e9 / elapsedNanos));
+            json.append(",\"sendLatencyMicros\":").append(percentiles(sendMicros, committed));
+            json.append(",\"commitLatencyMicros\":").append(percentiles(commitMicros, batches));
+            if (error != null) {
+                json.append(",\"error\":").append(quote(error));
+            }
+            return json.append("}").toString();
+        }
+
+        private static String percentiles(long[] values, int length) {
+            long[] sorted = Arrays.copyOf(values, length);
+            Arrays.sort(sorted);
+            return "{\"p50\":" + percentile(sorted, 50) + ",\"p90\":" + percentile(sorted, 90) + ",\"p99\":" + percentile(sorted, 99)
+                    + ",\"max\":" + percentile(sorted, 100) + "}";
+        }
+
+        private static long percentile(long[] sorted, double percent) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percent / 100))];
+        }
+    }
+}
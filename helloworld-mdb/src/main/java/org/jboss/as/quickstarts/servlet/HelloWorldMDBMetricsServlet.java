@@ -0,0 +1,62 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.jms.metrics.MetricsRegistry;
+
+/**
+ * <p>
+ * The metrics of the MDBs, <code>GET /HelloWorldMDBMetrics</code>, in the Prometheus text format: messages received and failed,
+ * messages in flight in the batching stage, and the end-to-end latency and handler time of each MDB (see
+ * {@link MetricsRegistry#writeText(Appendable)}). Point a Prometheus scrape job at it, or read it with curl.
+ * </p>
+ *
+ * <p>
+ * The same metrics are registered in the server's JMX as <code>com.jms.metrics:type=MessagingMetrics,name=...</code>. The servlet is
+ * loaded on startup so that it can take them out of JMX again when the application is undeployed.
+ * </p>
+ *
+ * @author Kevin
+ *
+ */
+
+@WebServlet(urlPatterns = "/HelloWorldMDBMetrics", loadOnStartup = 1)
+public class HelloWorldMDBMetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 4852209715370142863L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("text/plain; version=0.0.4");
+        resp.setCharacterEncoding("UTF-8");
+        MetricsRegistry.writeText(resp.getWriter());
+    }
+
+    @Override
+    public void destroy() {
+        MetricsRegistry.unregisterAll();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.servlet;
+
+import static org.jboss.as.quickstarts.servlet.HelloWorldMDBBulkServlet.intParameter;
+import static org.jboss.as.quickstarts.servlet.HelloWorldMDBBulkServlet.quote;
+
+import java.io.IOException;
+import java.util.Enumeration;
+
+import javax.annotation.Resource;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSConsumer;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSProducer;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.TextMessage;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jboss.as.quickstarts.mdb.PoisonMessageRouter;
+
+/**
+ * <p>
+ * The replay tool of the parking queue, where the {@link PoisonMessageRouter} parks the messages the MDBs could not process.
+ * </p>
+ *
+ * <ul>
+ * <li><code>GET /HelloWorldMDBParking</code> lists the parked messages as JSON, oldest first: the message ID they had, where they
+ * came from, the number of attempts, why they were parked and when, and their text. <code>limit</code> sets the number of
+ * messages listed (100 by default)</li>
+ * <li><code>POST /HelloWorldMDBParking?replay</code> sends the parked messages back to where they came from, without the
+ * properties of the parking, so they get all their attempts again. <code>replay=ID</code> replays only the message that had that
+ * message ID</li>
+ * <li><code>POST /HelloWorldMDBParking?discard=ID</code> removes the message from the parking queue for good</li>
+ * </ul>
+ *
+ * <p>
+ * Messages are moved in transactions of {@value #BATCH_SIZE}, a message is either in the parking queue or back in its destination.
+ * A replayed message that fails again is parked again after its attempts. A request only moves the messages parked before it
+ * started, so one that fails again during the replay stays parked until the next request. Messages from the topic go to all of
+ * its subscribers again.
+ * </p>
+ *
+ * @author Kevin
+ *
+ */
+
+@WebServlet(urlPatterns = "/HelloWorldMDBParking")
+public class HelloWorldMDBParkingServlet extends HttpServlet {
+
+    private static final long serialVersionUID = -2309711624580317493L;
+
+    private static final int DEFAULT_LIMIT = 100;
+
+    private static final int BATCH_SIZE = 100;
+
+    // A parked message is in the queue already, this only covers the time to the consumer
+    private static final long RECEIVE_TIMEOUT_MILLIS = 1000;
+
+    // Only messages whose origin a replay can send them back to
+    private static final String REPLAYABLE = PoisonMessageRouter.PARKED_FROM + " LIKE 'queue:%' OR " + PoisonMessageRouter.PARKED_FROM
+            + " LIKE 'topic:%'";
+
+    @Resource(lookup = "java:/ConnectionFactory")
+    ConnectionFactory cf;
+
+    @Resource(mappedName = PoisonMessageRouter.PARKING_QUEUE)
+    private Queue parkingQueue;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        int limit;
+        try {
+            limit = intParameter(req, "limit", DEFAULT_LIMIT);
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        StringBuilder json = new StringBuilder("{\"parked\":[");
+        int count = 0;
+        boolean more = false;
+        try (JMSContext context = cf.createContext()) {
+            Enumeration<?> messages = context.createBrowser(parkingQueue).getEnumeration();
+            while (messages.hasMoreElements()) {
+                Message message = (Message) messages.nextElement();
+                if (count == limit) {
+                    more = true;
+                    break;
+                }
+                json.append(count++ == 0 ? "" : ",").append(toJson(message));
+            }
+        } catch (JMSException | JMSRuntimeException e) {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.toString());
+            return;
+        }
+        json.append("],\"listed\":").append(count).append(",\"more\":").append(more).append("}");
+        write(resp, json.toString());
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        boolean replay = req.getParameterMap().containsKey("replay");
+        String id = replay ? req.getParameter("replay") : req.getParameter("discard");
+        if (!replay && (id == null || id.isEmpty())) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Either replay, replay=ID or discard=ID");
+            return;
+        }
+        // Not the messages parked again while this request replays them, or it would go on for as long as they keep failing
+        long started = System.currentTimeMillis();
+        String selector = PoisonMessageRouter.PARKED_MILLIS + " <= " + started;
+        if (replay) {
+            selector = "(" + REPLAYABLE + ") AND " + selector;
+        }
+        if (id != null && !id.isEmpty()) {
+            String byId = PoisonMessageRouter.PARKED_MESSAGE_ID + " = '" + id.replace("'", "''") + "'";
+            selector = selector + " AND " + byId;
+        }
+
+        int moved = 0;
+        int committed = 0;
+        String error = null;
+        try (JMSContext context = cf.createContext(JMSContext.SESSION_TRANSACTED)) {
+            JMSConsumer consumer = context.createConsumer(parkingQueue, selector);
+            JMSProducer producer = context.createProducer();
+            try {
+                Message message;
+                while ((message = consumer.receive(RECEIVE_TIMEOUT_MILLIS)) != null) {
+                    if (replay) {
+                        Destination origin = origin(context, message.getStringProperty(PoisonMessageRouter.PARKED_FROM));
+                        PoisonMessageRouter.writableProperties(message, PoisonMessageRouter.PARKING_PROPERTIES);
+                        producer.send(origin, message);
+                    }
+                    if (++moved % BATCH_SIZE == 0) {
+                        context.commit();
+                        committed = moved;
+                    }
+                }
+                context.commit();
+                committed = moved;
+            } catch (JMSException | JMSRuntimeException e) {
+                // The batch in progress stays parked
+                error = e.toString();
+                context.rollback();
+            }
+        } catch (JMSRuntimeException e) {
+            error = e.toString();
+        }
+
+        StringBuilder json = new StringBuilder("{");
+        json.append(replay ? "\"replayed\":" : "\"discarded\":").append(committed);
+        if (error != null) {
+            json.append(",\"error\":").append(quote(error));
+        }
+        resp.setStatus(error == null ? HttpServletResponse.SC_OK : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        write(resp, json.append("}").toString());
+    }
+
+    private static Destination origin(JMSContext context, String parkedFrom) {
+        if (parkedFrom.startsWith("queue:")) {
+            return context.createQueue(parkedFrom.substring("queue:".length()));
+        }
+        return context.createTopic(parkedFrom.substring("topic:".length()));
+    }
+
+    private static String toJson(Message message) throws JMSException {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"id\":").append(quote(String.valueOf(message.getStringProperty(PoisonMessageRouter.PARKED_MESSAGE_ID))));
+        json.append(",\"from\":").append(quote(String.valueOf(message.getStringProperty(PoisonMessageRouter.PARKED_FROM))));
+        json.append(",\"attempts\":").append(message.propertyExists(PoisonMessageRouter.RETRY_ATTEMPT)
+                ? message.getIntProperty(PoisonMessageRouter.RETRY_ATTEMPT) : 0);
+        json.append(",\"reason\":").append(quote(String.valueOf(message.getStringProperty(PoisonMessageRouter.PARKED_REASON))));
+        json.append(",\"parkedMillis\":").append(message.propertyExists(PoisonMessageRouter.PARKED_MILLIS)
+                ? message.getLongProperty(PoisonMessageRouter.PARKED_MILLIS) : 0);
+        if (message instanceof TextMessage) {
+            json.append(",\"text\":").append(quote(String.valueOf(((TextMessage) message).getText())));
+        } else {
+            json.append(",\"type\":").append(quote(message.getClass().getSimpleName()));
+        }
+        return json.append("}").toString();
+    }
+
+    private static void write(HttpServletResponse resp, String json) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().write(json);
+    }
+}
@@ -19,23 +19,30 @@ package org.jboss.as.quickstarts.servlet;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
+import javax.inject.Inject;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
 import javax.jms.MessageProducer;
 import javax.jms.Queue;
 import javax.jms.Session;
 import javax.jms.TextMessage;
 import javax.jms.Topic;
 import javax.servlet.ServletException;
+import javax.servlet.annotation.WebInitParam;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.jms.metrics.MessagingMetrics;
+import com.jms.metrics.MetricsRegistry;
+
 /**
  * <p>
  * A simple servlet 3 as client that sends several messages to a queue or a topic.
@@ -46,17 +53,47 @@ import javax.servlet.http.HttpServletResponse;
  * @HttpServlet}.
  * </p>
  *
+ * <p>
+ * The messages are sent through a JMS 2.0 {@link javax.jms.JMSContext} borrowed from a {@link JMSContextPool}. The pool is
+ * opened when the servlet is initialized and closed when it is destroyed, so a request no longer opens and closes a connection
+ * of its own. The number of contexts is set with the <code>poolSize</code> init parameter, which can be overridden in web.xml.
+ * </p>
+ *
+ * <p>
+ * When no context becomes available within five seconds, or the pool cannot open one, the request is answered with 503. A send
+ * that fails is answered with 500, and logged.
+ * </p>
+ *
+ * <p>
+ * Only with the <code>unpooledBaseline</code> init parameter set to <code>true</code> in web.xml, the <code>unpooled</code>
+ * request parameter sends the messages the old way, over a connection opened for the request. It is the baseline for
+ * ServletLoadDriver (in src/test), which compares the requests per second of both, and is off by default: no client should be
+ * able to make the servlet open a connection per request in production. Without it, <code>unpooled</code> is answered with 403.
+ * </p>
+ *
+ * <p>
+ * With <code>group=key</code> the messages belong to the message group <em>key</em> (see {@link MessageGroups}), and the queue
+ * MDB processes them in order. A key that is not valid for {@link MessageGroups#isValidGroup(String)} is answered with 400.
+ * </p>
+ *
  * @author Serge Pagop (spagop@redhat.com)
  *
  */
 
-@WebServlet("/HelloWorldMDBServletClient")
+@WebServlet(urlPatterns = "/HelloWorldMDBServletClient", initParams = { @WebInitParam(name = "poolSize", value = "8"),
+        @WebInitParam(name = "unpooledBaseline", value = "false") })
 public class HelloWorldMDBServletClient extends HttpServlet {
 
     private static final long serialVersionUID = -8314035702649252239L;
 
     private static final int MSG_COUNT = 5;
 
+    // How long a request waits for a context when all of them are in use
+    private static final long BORROW_TIMEOUT_SECONDS = 5;
+
+    // The messages sent, see HelloWorldMDBMetricsServlet
+    static final MessagingMetrics METRICS = MetricsRegistry.get("HelloWorldMDBServletClient");
+
     @Resource(lookup = "java:/ConnectionFactory")
     ConnectionFactory cf;
 
@@ -66,36 +103,119 @@ public class HelloWorldMDBServletClient extends HttpServlet {
     @Resource(mappedName = "java:/topic/HELLOWORLDMDBTopic")
     private Topic topic;
 
+    private JMSContextPool contextPool;
+
+    private boolean unpooledBaseline;
+
+    @Inject
+    private MessageGroups messageGroups;
+
+    @Override
+    public void init() throws ServletException {
+        contextPool = new JMSContextPool(cf, Integer.parseInt(getInitParameter("poolSize")));
+        unpooledBaseline = Boolean.parseBoolean(getInitParameter("unpooledBaseline"));
+    }
+
+    @Override
+    public void destroy() {
+        contextPool.close();
+    }
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String group = req.getParameter("group");
+        if (group != null && !MessageGroups.isValidGroup(group)) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "group must be 1 to " + MessageGroups.MAX_GROUP_LENGTH
+                    + " letters, digits, '-', '_', '.' or ':'");
+            return;
+        }
+        boolean unpooled = req.getParameterMap().keySet().contains("unpooled");
+        if (unpooled && !unpooledBaseline) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN, "The unpooled baseline is not enabled");
+            return;
+        }
+        boolean useTopic = req.getParameterMap().keySet().contains("topic");
+        final Destination destination = useTopic ? topic : queue;
+
+        // The page is only written once the messages are sent, so a failure can still be answered with an error status
+        StringBuilder page = new StringBuilder();
+        page.append("<h1>Quickstart: Example demonstrates the use of <strong>JMS 2.0</strong> and <strong>EJB 3.2 Message-Driven Bean</strong> in WildFly 8.</h1>");
+        page.append("<p>Sending messages to <em>" + destination + "</em></p>");
+        page.append("<h2>Following messages will be send to the destination:</h2>");
+        if (unpooled) {
+            try {
+                sendUnpooled(destination, page);
+            } catch (JMSException | JMSRuntimeException e) {
+                log("Failed to send messages to " + destination + " over a connection of its own", e);
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to send the messages: " + e);
+                return;
+            }
+        } else {
+            JMSContextPool.Lease borrowed;
+            try {
+                borrowed = contextPool.borrow(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (JMSRuntimeException | IllegalStateException e) {
+                // All contexts in use for too long, no context could be opened or the servlet is being taken out of service
+                log("No JMS context for a request to " + destination + ": " + e);
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "No JMS context available, try again later");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Interrupted while waiting for a JMS context");
+                return;
+            }
+            try (JMSContextPool.Lease lease = borrowed) {
+                for (int i = 0; i < MSG_COUNT; i++) {
+                    String text = "This is message " + (i + 1);
+                    long start = System.nanoTime();
+                    try {
+                        if (group == null) {
+                            lease.send(destination, text);
+                        } else {
+                            lease.send(destination, messageGroups.createMessage(lease.getContext(), text, group));
+                        }
+                    } catch (JMSRuntimeException e) {
+                        METRICS.failed();
+                        throw e;
+                    }
+                    METRICS.sent(start);
+                    page.append("Message (" + i + "): " + text + "</br>");
+                }
+            } catch (JMSRuntimeException e) {
+                log("Failed to send messages to " + destination, e);
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to send the messages: " + e);
+                return;
+            }
+        }
+        page.append("<p><i>Go to your WildFly Server console or Server log to see the result of messages processing</i></p>");
+
         resp.setContentType("text/html");
         PrintWriter out = resp.getWriter();
-        out.write("<h1>Quickstart: Example demonstrates the use of <strong>JMS 2.0</strong> and <strong>EJB 3.2 Message-Driven Bean</strong> in WildFly 8.</h1>");
+        out.write(page.toString());
+        out.close();
+    }
+
+    // A connection, session and producer per request, as this servlet used to send
+    private void sendUnpooled(Destination destination, StringBuilder page) throws JMSException {
+        Connection connection = cf.createConnection();
         try {
-            Connection connection = cf.createConnection();
             Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-            boolean useTopic = req.getParameterMap().keySet().contains("topic");
-            final Destination destination = useTopic ? topic : queue;
-
             MessageProducer producer = session.createProducer(destination);
-
-            out.write("<p>Sending messages to <em>" + destination + "</em></p>");
-            out.write("<h2>Following messages will be send to the destination:</h2>");
             for (int i = 0; i < MSG_COUNT; i++) {
                 String text = "This is message " + (i + 1);
                 TextMessage message = session.createTextMessage(text);
-                producer.send(message);
-                out.write("Message (" + i + "): " + text + "</br>");
+                long start = System.nanoTime();
+                try {
+                    producer.send(message);
+                } catch (JMSException e) {
+                    METRICS.failed();
+                    throw e;
+                }
+                METRICS.sent(start);
+                page.append("Message (" + i + "): " + text + "</br>");
             }
-            out.write("<p><i>Go to your WildFly Server console or Server log to see the result of messages processing</i></p>");
-
-            connection.close();
-        } catch (JMSException e) {
-            e.printStackTrace();
         } finally {
-            if (out != null) {
-                out.close();
-            }
+            connection.close();
         }
     }
 
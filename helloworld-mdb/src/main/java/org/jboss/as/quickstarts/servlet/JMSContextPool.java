@@ -0,0 +1,200 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.servlet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSContext;
+import javax.jms.JMSProducer;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Message;
+
+/**
+ * <p>
+ * A fixed number of JMS 2.0 {@link JMSContext}s, each with its {@link JMSProducer}, shared by the requests of a servlet.
+ * </p>
+ *
+ * <p>
+ * Creating a context opens a connection to the broker, which takes far longer than sending a few messages. The pool opens its
+ * contexts once and lends them out. A context may only be used by one thread at a time, so a context is lent to one request,
+ * and a request that finds all of them in use waits for one to be returned.
+ * </p>
+ *
+ * <p>
+ * Each context has a connection of its own. {@link JMSContext#createContext(int)} would share one connection between several
+ * contexts, but Java EE does not allow more than one session per connection in the web and EJB containers.
+ * </p>
+ *
+ * <p>
+ * A context whose send failed is closed when it is returned, and replaced by a new one the next time it is lent out, so a
+ * broker restart does not leave the pool with dead connections.
+ * </p>
+ *
+ * @author Kevin
+ *
+ */
+public class JMSContextPool implements AutoCloseable {
+
+    private final ConnectionFactory connectionFactory;
+    private final int sessionMode;
+    private final BlockingQueue<Lease> idle;
+    private volatile boolean closed;
+
+    /**
+     * Opens all contexts up front, so the first requests do not pay for them.
+     */
+    public JMSContextPool(ConnectionFactory connectionFactory, int size) {
+        this(connectionFactory, size, JMSContext.AUTO_ACKNOWLEDGE);
+    }
+
+    /**
+     * Same, with contexts in the given session mode, e.g. {@link JMSContext#SESSION_TRANSACTED}.
+     */
+    public JMSContextPool(ConnectionFactory connectionFactory, int size, int sessionMode) {
+        this.connectionFactory = connectionFactory;
+        this.sessionMode = sessionMode;
+        this.idle = new ArrayBlockingQueue<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                Lease lease = new Lease();
+                lease.open();
+                idle.add(lease);
+            }
+        } catch (JMSRuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Borrows a context, waiting up to the timeout for one to be returned. Use it in a try-with-resources statement, closing
+     * the lease returns the context.
+     */
+    public Lease borrow(long timeout, TimeUnit unit) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("JMS context pool is closed");
+        }
+        Lease lease = idle.poll(timeout, unit);
+        if (lease == null) {
+            throw new JMSRuntimeException("No JMS context available within " + unit.toMillis(timeout) + " ms");
+        }
+        try {
+            lease.open();
+        } catch (JMSRuntimeException e) {
+            idle.add(lease);
+            throw e;
+        }
+        return lease;
+    }
+
+    /**
+     * Closes the contexts that are not lent out now, the others are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Lease lease;
+        while ((lease = idle.poll()) != null) {
+            lease.discard();
+        }
+    }
+
+    /**
+     * A context and its producer, lent to one request at a time.
+     */
+    public class Lease implements AutoCloseable {
+
+        private JMSContext context;
+        private JMSProducer producer;
+        private boolean broken;
+
+        private void open() {
+            if (context == null) {
+                context = connectionFactory.createContext(sessionMode);
+                producer = context.createProducer();
+                broken = false;
+            }
+        }
+
+        private void discard() {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (JMSRuntimeException e) {
+                    // The connection is gone already
+                }
+                context = null;
+                producer = null;
+            }
+        }
+
+        public JMSContext getContext() {
+            return context;
+        }
+
+        /**
+         * The producer of the context. Settings changed on it, like {@link JMSProducer#setAsync}, stay with it for the next
+         * request, so reset them before returning the lease.
+         */
+        public JMSProducer getProducer() {
+            return producer;
+        }
+
+        public void send(Destination destination, String text) {
+            try {
+                producer.send(destination, text);
+            } catch (JMSRuntimeException e) {
+                invalidate();
+                throw e;
+            }
+        }
+
+        public void send(Destination destination, Message message) {
+            try {
+                producer.send(destination, message);
+            } catch (JMSRuntimeException e) {
+                invalidate();
+                throw e;
+            }
+        }
+
+        /**
+         * Marks the context as failed, it is replaced instead of being lent out again.
+         */
+        public void invalidate() {
+            broken = true;
+        }
+
+        /**
+         * Returns the context to the pool.
+         */
+        @Override
+        public void close() {
+            if (broken || closed) {
+                discard();
+            }
+            if (!closed) {
+                idle.add(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.servlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.TextMessage;
+
+/**
+ * <p>
+ * Creates messages that belong to a message group. The broker delivers all messages with the same JMSXGroupID to the same
+ * consumer, so the MDB processes a group in order, one message after the other, and different groups in parallel.
+ * </p>
+ *
+ * <p>
+ * The messages of a group are numbered 1, 2, 3, ... in JMSXGroupSeq, across the requests of both servlet clients, so the MDB can
+ * check the order it processes them in. The numbers only reflect the order of sending if a group is sent by one request at a time.
+ * </p>
+ *
+ * <p>
+ * Group IDs come from the clients, so the numbering is bounded: a group not used for 10 minutes is forgotten, and so is the least
+ * recently used one when there are 10000. A forgotten group is numbered from 1 again, which the MDB takes for a producer that
+ * started over. A client chosen ID must pass {@link #isValidGroup(String)}.
+ * </p>
+ *
+ * @author Kevin
+ *
+ */
+@ApplicationScoped
+public class MessageGroups {
+
+    public static final String GROUP_ID = "JMSXGroupID";
+
+    public static final String GROUP_SEQUENCE = "JMSXGroupSeq";
+
+    public static final int MAX_GROUP_LENGTH = 64;
+
+    private static final int DEFAULT_MAX_GROUPS = 10000;
+
+    private static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final int maxGroups;
+
+    private final long idleMillis;
+
+    // Least recently used first. Guarded by itself
+    private final Map<String, Sequence> sequences = new LinkedHashMap<String, Sequence>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Sequence> eldest) {
+            return size() > maxGroups;
+        }
+    };
+
+    public MessageGroups() {
+        this(DEFAULT_MAX_GROUPS, DEFAULT_IDLE_MILLIS);
+    }
+
+    MessageGroups(int maxGroups, long idleMillis) {
+        this.maxGroups = maxGroups;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * 1 to {@link #MAX_GROUP_LENGTH} letters, digits, '-', '_', '.' or ':'.
+     */
+    public static boolean isValidGroup(String group) {
+        if (group == null || group.isEmpty() || group.length() > MAX_GROUP_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < group.length(); i++) {
+            char c = group.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '.' || c == ':')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public TextMessage createMessage(JMSContext context, String text, String group) {
+        TextMessage message = context.createTextMessage(text);
+        try {
+            message.setStringProperty(GROUP_ID, group);
+            message.setIntProperty(GROUP_SEQUENCE, nextSequence(group));
+        } catch (JMSException e) {
+            throw new JMSRuntimeException(e.getMessage(), e.getErrorCode(), e);
+        }
+        return message;
+    }
+
+    int nextSequence(String group) {
+        long now = System.currentTimeMillis();
+        synchronized (sequences) {
+            // The idle groups are the least recently used, at the start of the map
+            Iterator<Sequence> oldest = sequences.values().iterator();
+            while (oldest.hasNext() && now - oldest.next().usedMillis >= idleMillis) {
+                oldest.remove();
+            }
+            Sequence sequence = sequences.get(group);
+            if (sequence == null) {
+                sequence = new Sequence();
+                sequences.put(group, sequence);
+            }
+            sequence.usedMillis = now;
+            return ++sequence.last;
+        }
+    }
+
+    int size() {
+        synchronized (sequences) {
+            return sequences.size();
+        }
+    }
+
+    private static class Sequence {
+
+        private int last;
+
+        private long usedMillis;
+    }
+}
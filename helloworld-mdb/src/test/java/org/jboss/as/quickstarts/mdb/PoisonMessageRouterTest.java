@@ -0,0 +1,157 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.jms.JMSException;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.command.ActiveMQTextMessage;
+
+/**
+ * <p>
+ * Unit test for the retry delays and the attempt count of {@link PoisonMessageRouter}, and for
+ * {@link PoisonMessageRouter#writableProperties}. Sending needs the container's JMSContext, which is covered by
+ * {@link QueueConsumerTest} and {@link TopicConsumerTest} as far as it can be without a server.
+ * </p>
+ *
+ * @author Kevin
+ */
+public class PoisonMessageRouterTest extends TestCase {
+
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 1000;
+
+    // Enough draws of the random jitter to see it stay in its bounds
+    private static final int DRAWS = 1000;
+
+    private PoisonMessageRouter router;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("helloworld.mdb.retryDelayMillis", String.valueOf(RETRY_DELAY_MILLIS));
+        System.setProperty("helloworld.mdb.maxRetryDelayMillis", String.valueOf(MAX_RETRY_DELAY_MILLIS));
+        try {
+            router = new PoisonMessageRouter();
+        } finally {
+            System.clearProperty("helloworld.mdb.retryDelayMillis");
+            System.clearProperty("helloworld.mdb.maxRetryDelayMillis");
+        }
+    }
+
+    public void testDelayDoubles() {
+        assertDelay(1, 100);
+        assertDelay(2, 200);
+        assertDelay(3, 400);
+        assertDelay(4, 800);
+    }
+
+    public void testDelayIsCapped() {
+        assertDelay(5, MAX_RETRY_DELAY_MILLIS);
+        // Past the point where the shift overflows
+        assertDelay(40, MAX_RETRY_DELAY_MILLIS);
+        assertDelay(Integer.MAX_VALUE, MAX_RETRY_DELAY_MILLIS);
+    }
+
+    public void testJitterSpreadsTheDelays() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < DRAWS; i++) {
+            long delay = router.delay(4);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(min + " to " + max, max - min > 100);
+    }
+
+    public void testFirstDeliveryIsTheFirstAttempt() throws Exception {
+        assertEquals(1, PoisonMessageRouter.attempts(new ActiveMQTextMessage()));
+    }
+
+    public void testRolledBackDeliveriesCount() throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        // JMSXDeliveryCount 3
+        message.setRedeliveryCounter(2);
+        assertEquals(3, PoisonMessageRouter.attempts(message));
+    }
+
+    public void testRetriesAddToTheDeliveries() throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setIntProperty(PoisonMessageRouter.RETRY_ATTEMPT, 2);
+        assertEquals(3, PoisonMessageRouter.attempts(message));
+
+        message.setRedeliveryCounter(1);
+        assertEquals(4, PoisonMessageRouter.attempts(message));
+    }
+
+    public void testWritableProperties() throws Exception {
+        ActiveMQTextMessage message = received();
+        PoisonMessageRouter.writableProperties(message, Collections.<String> emptyList());
+
+        message.setIntProperty(PoisonMessageRouter.RETRY_ATTEMPT, 3);
+        assertEquals(3, message.getIntProperty(PoisonMessageRouter.RETRY_ATTEMPT));
+        assertEquals("kept", message.getStringProperty("Custom"));
+        assertEquals("group", message.getStringProperty("JMSXGroupID"));
+        assertEquals(7, message.getIntProperty("JMSXGroupSeq"));
+    }
+
+    public void testWritablePropertiesRemovesTheNamedOnes() throws Exception {
+        ActiveMQTextMessage message = received();
+        PoisonMessageRouter.writableProperties(message, PoisonMessageRouter.PARKING_PROPERTIES);
+
+        assertFalse(message.propertyExists(PoisonMessageRouter.RETRY_ATTEMPT));
+        assertFalse(message.propertyExists(PoisonMessageRouter.PARKED_FROM));
+        assertEquals("kept", message.getStringProperty("Custom"));
+    }
+
+    public void testWritablePropertiesLeavesOutTheProviderOnes() throws Exception {
+        ActiveMQTextMessage message = received();
+        PoisonMessageRouter.writableProperties(message, Arrays.asList("Custom"));
+
+        assertFalse(message.propertyExists("Custom"));
+        assertFalse(message.propertyExists("JMS_Vendor"));
+        assertEquals("group", message.getStringProperty("JMSXGroupID"));
+    }
+
+    // Every delay for the attempt is the expected one, less up to a quarter
+    private void assertDelay(int attempts, long expected) {
+        for (int i = 0; i < DRAWS; i++) {
+            long delay = router.delay(attempts);
+            assertTrue("attempt " + attempts + ": " + delay, delay <= expected && delay >= expected - expected / 4);
+        }
+    }
+
+    // A message as a consumer gets it: with properties of its own, the provider's, and read-only
+    private static ActiveMQTextMessage received() throws JMSException {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setText("parked");
+        message.setStringProperty("Custom", "kept");
+        message.setStringProperty("JMSXGroupID", "group");
+        message.setIntProperty("JMSXGroupSeq", 7);
+        message.setStringProperty("JMS_Vendor", "provider");
+        message.setIntProperty(PoisonMessageRouter.RETRY_ATTEMPT, 2);
+        message.setStringProperty(PoisonMessageRouter.PARKED_FROM, "queue:HELLOWORLDMDBQueue");
+        message.setReadOnlyProperties(true);
+        return message;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ejb.TimerService;
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import com.jms.testbroker.BrokerTestCase;
+
+/**
+ * <p>
+ * Runs {@link HelloWorldQueueMDB} and the {@link BatchingStage} against an embedded broker, without a server: the MDB instances
+ * are the listeners of plain consumers, one per session, as the resource adapter would set them up, and the beans they use are
+ * injected by hand. The stage's timer is not started, the test flushes the stage itself while it waits.
+ * </p>
+ *
+ * <p>
+ * The MDBs only use the JMS 1.1 part of the API, which the ActiveMQ client implements. The {@link PoisonMessageRouter} needs the
+ * container's JMSContext, so it is replaced by one that only records what it is given.
+ * </p>
+ *
+ * @author Kevin
+ */
+public class QueueConsumerTest extends BrokerTestCase {
+
+    private static final int SESSIONS = 4;
+
+    private static final int GROUPS = 20;
+
+    private static final int MESSAGES_PER_GROUP = 100;
+
+    private static final int THROUGHPUT_MESSAGES = 20000;
+
+    // The sink fails every message with this text
+    private static final String FAILING_TEXT = "fail";
+
+    private final RecordingSink sink = new RecordingSink();
+
+    private final RecordingRouter router = new RecordingRouter();
+
+    private BatchingStage stage;
+
+    private Connection connection;
+
+    private Queue queue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        stage = new BatchingStage();
+        inject(stage, "timerService", noTimers());
+        inject(stage, "sink", sink);
+        inject(stage, "poisonMessageRouter", router);
+        stage.start();
+
+        connection = broker.createConnectionFactory().createConnection();
+        for (int i = 0; i < SESSIONS; i++) {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            queue = session.createQueue("HELLOWORLDMDBQueue");
+            MessageConsumer consumer = session.createConsumer(queue);
+            HelloWorldQueueMDB mdb = new HelloWorldQueueMDB();
+            inject(mdb, "batchingStage", stage);
+            inject(mdb, "poisonMessageRouter", router);
+            consumer.setMessageListener(mdb);
+        }
+        connection.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connection.close();
+        super.tearDown();
+    }
+
+    public void testGroupsStayInOrder() throws Exception {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(queue);
+        for (int seq = 1; seq <= MESSAGES_PER_GROUP; seq++) {
+            for (int group = 0; group < GROUPS; group++) {
+                TextMessage message = session.createTextMessage("group" + group + ":" + seq);
+                message.setStringProperty("JMSXGroupID", "group" + group);
+                message.setIntProperty("JMSXGroupSeq", seq);
+                producer.send(message);
+            }
+        }
+        awaitWritten(GROUPS * MESSAGES_PER_GROUP);
+
+        assertEquals(0, stage.getOutOfOrder());
+        assertEquals(0, stage.getFailed());
+        assertEquals(0, router.failed.get());
+        Map<String, Integer> sequences = new HashMap<>();
+        for (ReceivedMessage message : sink.messages()) {
+            Integer previous = sequences.put(message.getGroupId(), message.getGroupSequence());
+            assertEquals(message.getText(), previous == null ? 1 : previous + 1, message.getGroupSequence());
+        }
+        assertEquals(GROUPS, sequences.size());
+        assertEquals(0, HelloWorldQueueMDB.METRICS.getInFlight());
+    }
+
+    // The queue is not loss tolerant, so every message is written before it is acknowledged, without waiting for a flush
+    public void testEveryMessageIsWrittenBeforeItIsAcknowledged() throws Exception {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(queue);
+        for (int i = 0; i < MESSAGES_PER_GROUP; i++) {
+            producer.send(session.createTextMessage("message " + i));
+        }
+        await(MESSAGES_PER_GROUP + " messages written", new Condition() {
+            @Override
+            public boolean isMet() {
+                return stage.getWritten() == MESSAGES_PER_GROUP;
+            }
+        });
+
+        assertEquals(MESSAGES_PER_GROUP, stage.getBatches());
+        assertEquals(0, HelloWorldQueueMDB.METRICS.getInFlight());
+    }
+
+    public void testWrongTypeIsParked() throws Exception {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(queue);
+        long errors = HelloWorldQueueMDB.METRICS.getErrors();
+        BytesMessage bytes = session.createBytesMessage();
+        bytes.writeInt(42);
+        producer.send(bytes);
+        producer.send(session.createTextMessage("after the bytes"));
+        awaitWritten(1);
+
+        assertEquals(1, router.parked.get());
+        assertEquals(1, HelloWorldQueueMDB.METRICS.getErrors() - errors);
+        assertEquals("after the bytes", sink.messages().get(0).getText());
+    }
+
+    public void testSinkFailureIsRetried() throws Exception {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(queue);
+        TextMessage failing = session.createTextMessage(FAILING_TEXT);
+        failing.setIntProperty(PoisonMessageRouter.RETRY_ATTEMPT, 2);
+        producer.send(failing);
+        producer.send(session.createTextMessage("after the failure"));
+        awaitWritten(1);
+        await("the failed message retried", new Condition() {
+            @Override
+            public boolean isMet() {
+                stage.flush();
+                return router.retried.get() == 1;
+            }
+        });
+
+        assertEquals(1, stage.getFailed());
+        assertEquals(0, router.parked.get());
+        assertEquals(2, router.lastRetryAttempt);
+        assertEquals("after the failure", sink.messages().get(0).getText());
+    }
+
+    public void testThroughput() throws Exception {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(queue);
+        long start = System.nanoTime();
+        for (int i = 0; i < THROUGHPUT_MESSAGES; i++) {
+            producer.send(session.createTextMessage("message " + i));
+        }
+        awaitWritten(THROUGHPUT_MESSAGES);
+        report(THROUGHPUT_MESSAGES, System.nanoTime() - start);
+
+        assertEquals(0, stage.getFailed());
+        assertEquals(0, stage.getOutOfOrder());
+        assertEquals(THROUGHPUT_MESSAGES, stage.getEndToEnd().getCount());
+        assertEquals(THROUGHPUT_MESSAGES, stage.getInStage().getCount());
+    }
+
+    // Flushes the stage while waiting, in place of its timer
+    private void awaitWritten(final long messages) throws Exception {
+        await(messages + " messages written", new Condition() {
+            @Override
+            public boolean isMet() {
+                stage.flush();
+                return stage.getWritten() >= messages;
+            }
+        });
+        assertEquals(messages, stage.getWritten());
+    }
+
+    private static void inject(Object bean, String fieldName, Object value) throws Exception {
+        Field field = bean.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(bean, value);
+    }
+
+    // A TimerService whose timers never fire
+    private static TimerService noTimers() {
+        return (TimerService) Proxy.newProxyInstance(TimerService.class.getClassLoader(), new Class<?>[] { TimerService.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getReturnType() == Collection.class ? Collections.emptyList() : null;
+                    }
+                });
+    }
+
+    private static class RecordingSink implements MessageSink {
+
+        private final List<ReceivedMessage> messages = new ArrayList<>();
+
+        @Override
+        public synchronized void write(List<ReceivedMessage> batch) {
+            for (ReceivedMessage message : batch) {
+                if (FAILING_TEXT.equals(message.getText())) {
+                    throw new IllegalStateException("Cannot write " + message.getMessageId());
+                }
+            }
+            messages.addAll(batch);
+        }
+
+        synchronized List<ReceivedMessage> messages() {
+            return new ArrayList<>(messages);
+        }
+    }
+
+    private static class RecordingRouter extends PoisonMessageRouter {
+
+        private final AtomicInteger failed = new AtomicInteger();
+
+        private final AtomicInteger parked = new AtomicInteger();
+
+        private final AtomicInteger retried = new AtomicInteger();
+
+        private volatile int lastRetryAttempt;
+
+        @Override
+        public void failed(Message message, Exception cause) {
+            failed.incrementAndGet();
+        }
+
+        @Override
+        public void park(Message message, String reason) {
+            parked.incrementAndGet();
+        }
+
+        @Override
+        public void failed(ReceivedMessage message, Destination origin, Exception cause) {
+            lastRetryAttempt = message.getRetryAttempt();
+            retried.incrementAndGet();
+        }
+    }
+}
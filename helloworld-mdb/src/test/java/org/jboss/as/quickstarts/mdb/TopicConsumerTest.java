@@ -0,0 +1,398 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2015, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.mdb;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.TimerService;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.inject.Instance;
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+import com.jms.testbroker.BrokerTestCase;
+
+/**
+ * <p>
+ * Runs {@link HelloWorldTopicMDB} and the {@link TopicDispatcher} against an embedded broker, without a server: the MDB is the
+ * listener of a plain topic subscriber, and the dispatcher gets its handlers, its threads and a TimerService whose timers never
+ * fire by hand, in place of CDI and the server's ManagedThreadFactory.
+ * </p>
+ *
+ * <p>
+ * As in {@link QueueConsumerTest}, the {@link PoisonMessageRouter} is replaced by one that only counts what it is given.
+ * </p>
+ *
+ * @author Kevin
+ */
+public class TopicConsumerTest extends BrokerTestCase {
+
+    private static final int MESSAGES = 1000;
+
+    // Queue capacity of every handler: room for all MESSAGES, but not for the twice as many the blocked handler is sent
+    private static final int HANDLER_QUEUE = MESSAGES;
+
+    // The failing handler throws on every message with this text
+    private static final String FAILING_TEXT = "fail";
+
+    private final RecordingHandler audit = new RecordingHandler("audit");
+
+    private final RecordingHandler cache = new RecordingHandler("cache");
+
+    private final FailingHandler failing = new FailingHandler();
+
+    private final BlockedHandler blocked = new BlockedHandler();
+
+    private final CountingRouter router = new CountingRouter();
+
+    private TopicDispatcher dispatcher;
+
+    private Connection connection;
+
+    private Topic topic;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The handler queues, which the tests are about, are only used for a loss tolerant topic
+        System.setProperty("helloworld.mdb.topicLossTolerant", "true");
+        System.setProperty("helloworld.mdb.handlerQueue", String.valueOf(HANDLER_QUEUE));
+        try {
+            dispatcher = new TopicDispatcher();
+        } finally {
+            System.clearProperty("helloworld.mdb.topicLossTolerant");
+            System.clearProperty("helloworld.mdb.handlerQueue");
+        }
+        inject(dispatcher, "timerService", noTimers());
+        inject(dispatcher, "threadFactory", threads());
+        inject(dispatcher, "handlers", handlers(audit, cache, failing, blocked));
+        dispatcher.start();
+
+        connection = broker.createConnectionFactory().createConnection();
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        topic = session.createTopic("HELLOWORLDMDBTopic");
+        HelloWorldTopicMDB mdb = new HelloWorldTopicMDB();
+        inject(mdb, "topicDispatcher", dispatcher);
+        inject(mdb, "poisonMessageRouter", router);
+        session.createConsumer(topic).setMessageListener(mdb);
+        connection.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connection.close();
+        blocked.release.countDown();
+        dispatcher.stop();
+        super.tearDown();
+    }
+
+    public void testEveryHandlerGetsEveryMessageInOrder() throws Exception {
+        long received = HelloWorldTopicMDB.METRICS.getReceived();
+        publish(MESSAGES);
+        await("all messages handled", new Condition() {
+            @Override
+            public boolean isMet() {
+                return audit.texts().size() == MESSAGES && cache.texts().size() == MESSAGES;
+            }
+        });
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            expected.add("message " + i);
+        }
+        assertEquals(expected, audit.texts());
+        assertEquals(expected, cache.texts());
+        assertEquals(MESSAGES, HelloWorldTopicMDB.METRICS.getReceived() - received);
+    }
+
+    public void testFailingHandlerGoesOn() throws Exception {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(topic);
+        producer.send(session.createTextMessage(FAILING_TEXT));
+        producer.send(session.createTextMessage("after the failure"));
+        await("both messages handled", new Condition() {
+            @Override
+            public boolean isMet() {
+                return failing.calls.get() == 2 && audit.texts().size() == 2;
+            }
+        });
+
+        assertEquals(1, failing.failures.get());
+    }
+
+    public void testBlockedHandlerOnlyDropsItsOwnMessages() throws Exception {
+        publish(2 * MESSAGES);
+        await("all messages handled", new Condition() {
+            @Override
+            public boolean isMet() {
+                return audit.texts().size() == 2 * MESSAGES && cache.texts().size() == 2 * MESSAGES;
+            }
+        });
+
+        // The message it is blocked on, and a full queue behind it. It is told about the rest before it handles the next one
+        blocked.release.countDown();
+        await("blocked handler caught up", new Condition() {
+            @Override
+            public boolean isMet() {
+                return blocked.calls.get() + blocked.dropped.get() == 2 * MESSAGES;
+            }
+        });
+        assertTrue(blocked.calls.get() + " messages handled", blocked.calls.get() <= HANDLER_QUEUE + 1);
+        assertEquals(1, blocked.dropCalls.get());
+        assertEquals(0, audit.dropped.get());
+    }
+
+    // Without the queues, an interrupted handler misses the message but the handlers after it do not
+    public void testInterruptedHandlerDoesNotHoldUpTheOthers() throws Exception {
+        TopicDispatcher callingDispatcher = new TopicDispatcher();
+        InterruptedHandler interrupted = new InterruptedHandler();
+        RecordingHandler after = new RecordingHandler("after");
+        inject(callingDispatcher, "timerService", noTimers());
+        inject(callingDispatcher, "handlers", handlers(interrupted, after));
+        callingDispatcher.start();
+
+        callingDispatcher.dispatch(new ReceivedMessage("ID:1", "first", 0, System.nanoTime()));
+        assertTrue(Thread.interrupted());
+        assertEquals(Arrays.asList("first"), after.texts());
+
+        callingDispatcher.dispatch(new ReceivedMessage("ID:2", "second", 0, System.nanoTime()));
+        assertFalse(Thread.interrupted());
+        assertEquals(Arrays.asList("first", "second"), after.texts());
+        assertEquals(Arrays.asList("second"), interrupted.texts());
+        assertEquals(1, interrupted.dropped.get());
+        callingDispatcher.stop();
+    }
+
+    public void testWrongTypeIsParked() throws Exception {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(topic);
+        BytesMessage bytes = session.createBytesMessage();
+        bytes.writeInt(42);
+        producer.send(bytes);
+        producer.send(session.createTextMessage("after the bytes"));
+        await("the text message handled", new Condition() {
+            @Override
+            public boolean isMet() {
+                return audit.texts().size() == 1;
+            }
+        });
+
+        assertEquals(1, router.parked.get());
+        assertEquals("after the bytes", audit.texts().get(0));
+    }
+
+    private void publish(int messages) throws Exception {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(topic);
+        for (int i = 0; i < messages; i++) {
+            producer.send(session.createTextMessage("message " + i));
+        }
+        session.close();
+    }
+
+    private static void inject(Object bean, String fieldName, Object value) throws Exception {
+        Field field = bean.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(bean, value);
+    }
+
+    // A TimerService whose timers never fire
+    private static TimerService noTimers() {
+        return (TimerService) Proxy.newProxyInstance(TimerService.class.getClassLoader(), new Class<?>[] { TimerService.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getReturnType() == Collection.class ? Collections.emptyList() : null;
+                    }
+                });
+    }
+
+    // A ManagedThreadFactory handing out plain daemon threads
+    private static ManagedThreadFactory threads() {
+        return (ManagedThreadFactory) Proxy.newProxyInstance(ManagedThreadFactory.class.getClassLoader(),
+                new Class<?>[] { ManagedThreadFactory.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        Thread thread = new Thread((Runnable) args[0]);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    // The Instance CDI would inject, of which the dispatcher only iterates
+    @SuppressWarnings("unchecked")
+    private static Instance<TopicHandler> handlers(TopicHandler... handlers) {
+        final List<TopicHandler> list = Arrays.asList(handlers);
+        return (Instance<TopicHandler>) Proxy.newProxyInstance(Instance.class.getClassLoader(), new Class<?>[] { Instance.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("iterator")) {
+                            return list.iterator();
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static class RecordingHandler implements TopicHandler {
+
+        private final String name;
+
+        private final List<String> texts = new ArrayList<>();
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        RecordingHandler(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public synchronized void handle(ReceivedMessage message) {
+            texts.add(message.getText());
+        }
+
+        @Override
+        public void onDropped(long messages) {
+            dropped.addAndGet(messages);
+        }
+
+        synchronized List<String> texts() {
+            return new ArrayList<>(texts);
+        }
+    }
+
+    private static class FailingHandler implements TopicHandler {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        @Override
+        public String getName() {
+            return "failing";
+        }
+
+        @Override
+        public void handle(ReceivedMessage message) {
+            calls.incrementAndGet();
+            if (FAILING_TEXT.equals(message.getText())) {
+                failures.incrementAndGet();
+                throw new IllegalStateException("Cannot handle " + message.getMessageId());
+            }
+        }
+
+        @Override
+        public void onDropped(long messages) {
+        }
+    }
+
+    // Blocks on its first message until released
+    private static class BlockedHandler implements TopicHandler {
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        private final AtomicInteger dropCalls = new AtomicInteger();
+
+        @Override
+        public String getName() {
+            return "blocked";
+        }
+
+        @Override
+        public void handle(ReceivedMessage message) throws InterruptedException {
+            calls.incrementAndGet();
+            release.await();
+        }
+
+        @Override
+        public void onDropped(long messages) {
+            dropCalls.incrementAndGet();
+            dropped.addAndGet(messages);
+        }
+    }
+
+    // Interrupted while handling its first message, handles the others
+    private static class InterruptedHandler implements TopicHandler {
+
+        private final List<String> texts = new ArrayList<>();
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        @Override
+        public String getName() {
+            return "interrupted";
+        }
+
+        @Override
+        public synchronized void handle(ReceivedMessage message) throws InterruptedException {
+            if (message.getText().equals("first")) {
+                throw new InterruptedException();
+            }
+            texts.add(message.getText());
+        }
+
+        @Override
+        public void onDropped(long messages) {
+            dropped.addAndGet(messages);
+        }
+
+        synchronized List<String> texts() {
+            return new ArrayList<>(texts);
+        }
+    }
+
+    private static class CountingRouter extends PoisonMessageRouter {
+
+        private final AtomicInteger parked = new AtomicInteger();
+
+        @Override
+        public void failed(Message message, Exception cause) {
+        }
+
+        @Override
+        public void park(Message message, String reason) {
+            parked.incrementAndGet();
+        }
+    }
+}
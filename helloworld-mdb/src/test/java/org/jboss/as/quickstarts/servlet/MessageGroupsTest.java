@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.servlet;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>
+ * Unit test for {@link MessageGroups}: the numbering of the groups, how many it keeps, and the group IDs it accepts.
+ * </p>
+ *
+ * @author Kevin
+ */
+public class MessageGroupsTest extends TestCase {
+
+    public void testGroupsAreNumberedSeparately() {
+        MessageGroups messageGroups = new MessageGroups();
+        assertEquals(1, messageGroups.nextSequence("a"));
+        assertEquals(2, messageGroups.nextSequence("a"));
+        assertEquals(1, messageGroups.nextSequence("b"));
+        assertEquals(3, messageGroups.nextSequence("a"));
+    }
+
+    public void testLeastRecentlyUsedGroupIsForgotten() {
+        MessageGroups messageGroups = new MessageGroups(2, Long.MAX_VALUE);
+        messageGroups.nextSequence("a");
+        messageGroups.nextSequence("b");
+        messageGroups.nextSequence("a");
+        messageGroups.nextSequence("c");
+        assertEquals(2, messageGroups.size());
+        assertEquals(3, messageGroups.nextSequence("a"));
+        assertEquals(1, messageGroups.nextSequence("b"));
+    }
+
+    public void testIdleGroupIsForgotten() throws Exception {
+        MessageGroups messageGroups = new MessageGroups(100, 50);
+        messageGroups.nextSequence("a");
+        messageGroups.nextSequence("a");
+        Thread.sleep(100);
+        assertEquals(1, messageGroups.nextSequence("b"));
+        assertEquals(1, messageGroups.size());
+        assertEquals(1, messageGroups.nextSequence("a"));
+    }
+
+    public void testValidGroups() {
+        assertTrue(MessageGroups.isValidGroup("customer-42"));
+        assertTrue(MessageGroups.isValidGroup("bulk-7:a_b.c"));
+        assertFalse(MessageGroups.isValidGroup(null));
+        assertFalse(MessageGroups.isValidGroup(""));
+        assertFalse(MessageGroups.isValidGroup("a b"));
+        assertFalse(MessageGroups.isValidGroup("<script>"));
+        assertTrue(MessageGroups.isValidGroup(repeat('x', MessageGroups.MAX_GROUP_LENGTH)));
+        assertFalse(MessageGroups.isValidGroup(repeat('x', MessageGroups.MAX_GROUP_LENGTH + 1)));
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            repeated.append(c);
+        }
+        return repeated.toString();
+    }
+}
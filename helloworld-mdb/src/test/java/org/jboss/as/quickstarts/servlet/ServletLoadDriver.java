@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.as.quickstarts.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Load test for {@link HelloWorldMDBServletClient} against a running server. It sends requests from several threads for a
+ * while, first with the <code>unpooled</code> parameter (a connection per request, as the servlet used to work), then through
+ * the pool, and prints the requests per second and the latency percentiles of both. The <code>unpooled</code> baseline is off
+ * in the servlet by default, so deploy it with the init parameter <code>unpooledBaseline</code> set to <code>true</code> in
+ * web.xml to run this; otherwise every unpooled request fails with 403:
+ * </p>
+ *
+ * <pre>
+ * java -cp target/test-classes org.jboss.as.quickstarts.servlet.ServletLoadDriver
+ *         http://localhost:8080/wildfly-helloworld-mdb/HelloWorldMDBServletClient [threads] [seconds]
+ * </pre>
+ *
+ * <p>
+ * Each phase starts with a warm-up of a few seconds that is not measured. Every request sends five messages, so keep an eye on
+ * the queue depth when running it for long.
+ * </p>
+ *
+ * @author Kevin
+ *
+ */
+public class ServletLoadDriver {
+
+    private static final int WARM_UP_SECONDS = 3;
+
+    // Latencies are recorded in microseconds, up to one per request and thread
+    private static final int MAX_SAMPLES_PER_THREAD = 200000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: ServletLoadDriver url [threads] [seconds]");
+            System.exit(3);
+        }
+        String url = args[0];
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        String unpooled = url + (url.contains("?") ? "&" : "?") + "unpooled";
+        Result before = run(unpooled, threads, seconds);
+        Result after = run(url, threads, seconds);
+
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %8s", "", "req/s", "p50", "p99", "max", "errors"));
+        System.out.println(before.format("unpooled"));
+        System.out.println(after.format("pooled"));
+        System.out.println(String.format("speedup %.2fx", after.requestsPerSecond() / before.requestsPerSecond()));
+    }
+
+    private static Result run(String url, int threads, int seconds) throws InterruptedException {
+        run(url, threads, WARM_UP_SECONDS, null);
+        Result result = new Result(seconds);
+        run(url, threads, seconds, result);
+        return result;
+    }
+
+    private static void run(final String url, int threads, int seconds, final Result result) throws InterruptedException {
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final long[][] samples = new long[threads][];
+        final int[] counts = new int[threads];
+        final AtomicLong errors = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            samples[index] = new long[result == null ? 0 : MAX_SAMPLES_PER_THREAD];
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[8192];
+                    while (System.nanoTime() < end) {
+                        long start = System.nanoTime();
+                        try {
+                            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                            // Read the whole body, so the HTTP connection is kept alive for the next request. Error statuses throw
+                            try (InputStream in = connection.getInputStream()) {
+                                while (in.read(buffer) >= 0) {
+                                    // discard
+                                }
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                        if (counts[index] < samples[index].length) {
+                            samples[index][counts[index]++] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                        }
+                    }
+                }
+            }, "load-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (result != null) {
+            result.collect(samples, counts, errors.get());
+        }
+    }
+
+    private static class Result {
+
+        private final int seconds;
+        private long[] latencies = new long[0];
+        private long errors;
+
+        Result(int seconds) {
+            this.seconds = seconds;
+        }
+
+        void collect(long[][] samples, int[] counts, long errors) {
+            int total = 0;
+            for (int count : counts) {
+                total += count;
+            }
+            latencies = new long[total];
+            int offset = 0;
+            for (int t = 0; t < samples.length; t++) {
+                System.arraycopy(samples[t], 0, latencies, offset, counts[t]);
+                offset += counts[t];
+            }
+            Arrays.sort(latencies);
+            this.errors = errors;
+        }
+
+        double requestsPerSecond() {
+            return latencies.length / (double) seconds;
+        }
+
+        long percentile(double percent) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            return latencies[Math.min(latencies.length - 1, (int) (latencies.length * percent / 100))];
+        }
+
+        String format(String name) {
+            return String.format("%-10s %10.1f %8dus %8dus %8dus %8d", name, requestsPerSecond(), percentile(50), percentile(99),
+                    percentile(100), errors);
+        }
+    }
+}